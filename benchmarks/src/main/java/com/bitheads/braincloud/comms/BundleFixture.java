@@ -0,0 +1,130 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Calls and dispatcher responses shaped like the traffic of a game client:
+ * a mix of server time reads, statistics reads and global entity lists,
+ * so bundles carry small and medium payloads side by side.
+ *
+ * The benchmarks live in the comms package to reach the package private
+ * bundle pipeline without widening it in the library.
+ */
+class BundleFixture {
+
+    static final String APP_ID = "20001";
+    static final String SECRET_KEY = "4e51b45c-030e-4f21-8457-dc53c9a0ed5f";
+    static final String SESSION_ID = "p4nvl1kb7ah5fqvr5bm8ti5ql1";
+
+    private static final String[] STATISTICS = {"wins", "losses", "kills", "deaths", "xp", "gold", "gems", "level"};
+
+    /**
+     * A client initialized against an unreachable dispatcher. Nothing is
+     * queued on it, so it never sends.
+     */
+    static BrainCloudClient createClient() {
+        BrainCloudClient client = new BrainCloudClient();
+        client.initialize("http://127.0.0.1:9/dispatcherv2", APP_ID, SECRET_KEY, "1.0.0");
+        return client;
+    }
+
+    static List<ServerCall> createCalls(int count, IServerCallback callback) throws JSONException {
+        List<ServerCall> calls = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            switch (i % 3) {
+                case 0:
+                    calls.add(new ServerCall(ServiceName.time, ServiceOperation.READ, null, callback));
+                    break;
+                case 1: {
+                    JSONObject data = new JSONObject();
+                    data.put("statistics", new JSONArray(STATISTICS));
+                    calls.add(new ServerCall(ServiceName.playerStatistics, ServiceOperation.READ, data, callback));
+                    break;
+                }
+                default: {
+                    JSONObject where = new JSONObject();
+                    where.put("entityType", "weapon");
+                    where.put("data.level", new JSONObject().put("$gte", 10));
+                    JSONObject data = new JSONObject();
+                    data.put("where", where);
+                    data.put("orderBy", new JSONObject().put("createdAt", -1));
+                    data.put("maxReturn", 20);
+                    calls.add(new ServerCall(ServiceName.globalEntity, ServiceOperation.GET_LIST, data, callback));
+                    break;
+                }
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @return The dispatcher response body for the calls of createCalls
+     */
+    static String createResponse(int count, long packetId) throws JSONException {
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            JSONObject data = new JSONObject();
+            switch (i % 3) {
+                case 0:
+                    data.put("server_time", 1700000000000L + i);
+                    break;
+                case 1: {
+                    JSONObject statistics = new JSONObject();
+                    for (int s = 0; s < STATISTICS.length; ++s) {
+                        statistics.put(STATISTICS[s], s * 137 + i);
+                    }
+                    data.put("statistics", statistics);
+                    break;
+                }
+                default: {
+                    JSONArray entityList = new JSONArray();
+                    for (int e = 0; e < 20; ++e) {
+                        JSONObject entity = new JSONObject();
+                        entity.put("entityId", "8b1d4f0e-" + String.format("%04d", e) + "-4c39-9a0b-5f2e7d6c1a3b");
+                        entity.put("entityType", "weapon");
+                        entity.put("version", e + 1);
+                        entity.put("ownerId", JSONObject.NULL);
+                        entity.put("createdAt", 1690000000000L + e * 1000);
+                        entity.put("updatedAt", 1690000500000L + e * 1000);
+                        entity.put("timeToLive", -1);
+                        entity.put("acl", new JSONObject().put("other", 1));
+                        entity.put("data", new JSONObject()
+                                .put("name", "Blade of the " + e)
+                                .put("level", 10 + e)
+                                .put("damage", 12.5 + e)
+                                .put("tags", new JSONArray().put("melee").put("rare")));
+                        entityList.put(entity);
+                    }
+                    data.put("entityList", entityList);
+                    data.put("entityListCount", entityList.length());
+                    break;
+                }
+            }
+            JSONObject message = new JSONObject();
+            message.put("status", 200);
+            message.put("data", data);
+            responses.put(message);
+        }
+
+        JSONObject body = new JSONObject();
+        body.put("packetId", packetId);
+        body.put("responses", responses);
+        return body.toString();
+    }
+
+    static void clearEncodedPayloads(List<ServerCall> calls) {
+        for (int i = 0, ilen = calls.size(); i < ilen; ++i) {
+            calls.get(i).setEncodedPayload(null);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outgoing half of the bundle pipeline: building payloads, encoding and
+ * signing a bundle, and gzipping it.
+ *
+ * The cold variants drop the payloads cached on the calls first, as on the
+ * first send of a bundle; the warm ones reuse them, as on a retry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RequestBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int bundleSize;
+
+    private BrainCloudClient _client;
+    private BrainCloudRestClient _restClient;
+    private List<ServerCall> _calls;
+    private PacketBundle _bundle;
+    private BundleWriter _writer;
+
+    @Setup
+    public void setup() throws JSONException {
+        _client = BundleFixture.createClient();
+        _restClient = _client.getRestClient();
+        _calls = BundleFixture.createCalls(bundleSize, new IServerCallback() {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData) {
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+            }
+        });
+        _bundle = new PacketBundle(_calls, 1);
+        _writer = new BundleWriter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        _client.resetCommunication();
+    }
+
+    @Benchmark
+    public void getPayload(Blackhole blackhole) throws JSONException {
+        for (int i = 0, ilen = _calls.size(); i < ilen; ++i) {
+            blackhole.consume(_calls.get(i).getPayload().toString());
+        }
+    }
+
+    @Benchmark
+    public String getDataStringCold() throws JSONException {
+        BundleFixture.clearEncodedPayloads(_calls);
+        return _restClient.getDataString(_bundle);
+    }
+
+    @Benchmark
+    public String getDataStringWarm() throws JSONException {
+        return _restClient.getDataString(_bundle);
+    }
+
+    @Benchmark
+    public String getSignature() throws JSONException {
+        return _restClient.getSignature(_bundle);
+    }
+
+    @Benchmark
+    public int gzip() throws JSONException {
+        _writer.writeBundle(_bundle, BundleFixture.APP_ID, BundleFixture.SESSION_ID);
+        _writer.compress();
+        return _writer.getCompressedLength();
+    }
+}
@@ -0,0 +1,111 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incoming half of the bundle pipeline: parsing a dispatcher response,
+ * matching its messages to their calls and running the callbacks.
+ *
+ * The bundle is never in flight here, so readResponse keeps every message
+ * on the bundle instead of dispatching it, which isolates the parsing.
+ * dispatch hands already parsed messages to handleBundle and runCallbacks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    private static final long PACKET_ID = 1;
+
+    @Param({"1", "10", "50"})
+    public int bundleSize;
+
+    private BrainCloudClient _client;
+    private BrainCloudRestClient _restClient;
+    private List<ServerCall> _calls;
+    private String _responseBody;
+    private List<JSONObject> _parsedResponses;
+    private int _callbackCount;
+
+    @Setup
+    public void setup() throws JSONException {
+        _client = BundleFixture.createClient();
+        _restClient = _client.getRestClient();
+        _calls = BundleFixture.createCalls(bundleSize, new IServerCallback() {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData) {
+                _callbackCount++;
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+                throw new IllegalStateException(serviceName + "." + serviceOperation + " failed: " + jsonError);
+            }
+        });
+        _responseBody = BundleFixture.createResponse(bundleSize, PACKET_ID);
+
+        PacketBundle bundle = new PacketBundle(_calls, PACKET_ID);
+        _restClient.readResponse(bundle, new JSONTokener(new StringReader(_responseBody)));
+        _parsedResponses = new ArrayList<>(bundle._responses);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (_callbackCount == 0) {
+            throw new IllegalStateException("No callbacks were run");
+        }
+        _client.resetCommunication();
+    }
+
+    @Benchmark
+    public PacketBundle readResponse() throws JSONException {
+        PacketBundle bundle = new PacketBundle(_calls, PACKET_ID);
+        _restClient.readResponse(bundle, new JSONTokener(new StringReader(_responseBody)));
+        return bundle;
+    }
+
+    @Benchmark
+    public int dispatch() throws JSONException {
+        PacketBundle bundle = new PacketBundle(_calls, PACKET_ID);
+        bundle._responses.addAll(_parsedResponses);
+        _restClient.handleBundle(bundle);
+        _restClient.runCallbacks();
+        return _callbackCount;
+    }
+
+    @Benchmark
+    public int readAndDispatch() throws JSONException {
+        PacketBundle bundle = new PacketBundle(_calls, PACKET_ID);
+        _restClient.readResponse(bundle, new JSONTokener(new StringReader(_responseBody)));
+        _restClient.handleBundle(bundle);
+        _restClient.runCallbacks();
+        return _callbackCount;
+    }
+}
@@ -0,0 +1,127 @@
+package com.bitheads.braincloud.client;
+
+import com.bitheads.braincloud.comms.SdkThreads;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Synchronous facade over a BrainCloudClient. Each call blocks the calling
+ * thread until its response arrives and returns the response json, or
+ * throws a ServerCallException:
+ *
+ * <pre>
+ * BrainCloudBlockingClient blocking = new BrainCloudBlockingClient(client);
+ * JSONObject entity = blocking.call(cb -&gt; client.getEntityService().getEntity(entityId, cb));
+ * </pre>
+ *
+ * Callbacks are delivered on the client's callback executor, so no thread
+ * has to pump runCallbacks. On Java 21 the SDK runs sends and callbacks on
+ * virtual threads, so callers on virtual threads can keep thousands of
+ * sessions busy without holding platform threads. Any number of threads may
+ * make calls at once; calls made together share bundles.
+ */
+public class BrainCloudBlockingClient {
+
+    private final BrainCloudClient _client;
+    private ExecutorService _callbackExecutor;
+
+    /**
+     * Wraps the client, giving it a callback executor unless it already has
+     * one.
+     *
+     * @param client The client to make calls with
+     */
+    public BrainCloudBlockingClient(BrainCloudClient client) {
+        _client = client;
+        if (client.getCallbackExecutor() == null) {
+            _callbackExecutor = SdkThreads.newTaskExecutor("braincloud-callback");
+            client.setCallbackExecutor(_callbackExecutor);
+        }
+    }
+
+    public BrainCloudClient getClient() {
+        return _client;
+    }
+
+    /**
+     * Makes a service call and waits for its response.
+     *
+     * @param request Makes the service call with the callback it is given
+     * @return The response json
+     * @throws ServerCallException If the call returned an error
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public JSONObject call(Consumer<IServerCallback> request) throws InterruptedException {
+        return await(ServerCallFuture.of(request));
+    }
+
+    /**
+     * Makes a service call and waits for its response, up to the timeout.
+     *
+     * @param request Makes the service call with the callback it is given
+     * @param timeout Longest time to wait
+     * @param unit Unit of the timeout
+     * @return The response json
+     * @throws ServerCallException If the call returned an error
+     * @throws InterruptedException If the thread was interrupted while waiting
+     * @throws TimeoutException If no response arrived in time. The call may
+     *                          still complete later.
+     */
+    public JSONObject call(Consumer<IServerCallback> request, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        ServerCallFuture future = ServerCallFuture.of(request);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Queues a raw api call and waits for its response.
+     *
+     * @param serviceName The service to call
+     * @param serviceOperation The operation to call
+     * @param data The call parameters, or null
+     * @return The response json
+     * @throws ServerCallException If the call returned an error
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public JSONObject request(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject data) throws InterruptedException {
+        return await(_client.sendRequestAsync(serviceName, serviceOperation, data));
+    }
+
+    /**
+     * Stops the callback executor created by this facade, if any, and puts
+     * the client back to delivering callbacks from runCallbacks.
+     */
+    public void close() {
+        if (_callbackExecutor != null) {
+            _client.setCallbackExecutor(null);
+            _callbackExecutor.shutdown();
+            _callbackExecutor = null;
+        }
+    }
+
+    private static JSONObject await(ServerCallFuture future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new RuntimeException(cause);
+    }
+}
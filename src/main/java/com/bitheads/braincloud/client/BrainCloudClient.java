@@ -1,15 +1,26 @@
 package com.bitheads.braincloud.client;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import com.bitheads.braincloud.comms.BrainCloudRestClient;
+import com.bitheads.braincloud.comms.CircuitBreaker;
+import com.bitheads.braincloud.comms.IRestTransport;
 import com.bitheads.braincloud.comms.RTTComms;
+import com.bitheads.braincloud.comms.OutboundJournal;
+import com.bitheads.braincloud.comms.RateLimiter;
 import com.bitheads.braincloud.comms.RelayComms;
+import com.bitheads.braincloud.comms.RequestCoalescer;
+import com.bitheads.braincloud.comms.ResponseCache;
 import com.bitheads.braincloud.comms.ServerCall;
+import com.bitheads.braincloud.comms.SharedDispatcher;
+import com.bitheads.braincloud.comms.WireTraceRecorder;
 import com.bitheads.braincloud.services.AppStoreService;
 import com.bitheads.braincloud.services.AsyncMatchService;
 import com.bitheads.braincloud.services.AuthenticationService;
@@ -53,6 +64,8 @@ import com.bitheads.braincloud.services.TournamentService;
 import com.bitheads.braincloud.services.UserItemsService;
 import com.bitheads.braincloud.services.VirtualCurrencyService;
 
+import org.json.JSONObject;
+
 public class BrainCloudClient {
 
     public enum BrainCloudUpdateType
@@ -84,6 +97,7 @@ public class BrainCloudClient {
     private BrainCloudRestClient _restClient;
     private RTTComms _rttComms;
     private RelayComms _relayComms;
+    private volatile Executor _futureExecutor;
 
     private AppStoreService _appStoreService = new AppStoreService(this);
     private AuthenticationService _authenticationService = new AuthenticationService(this);
@@ -357,6 +371,17 @@ public class BrainCloudClient {
         _restClient.resetCommunication();
     }
 
+    /**
+     * Disconnects like resetCommunication and releases the client's threads
+     * and connections, for apps creating and dropping many clients. The
+     * client can be initialized again afterwards.
+     */
+    public void close() {
+        _relayComms.disconnect();
+        _rttComms.disableRTT();
+        _restClient.close();
+    }
+
     /**
      * Run callbacks, to be called every so often (e.g. once per frame) from your main thread.
      */
@@ -416,6 +441,90 @@ public class BrainCloudClient {
         _authenticationService.setCompressResponses(compressResponses);
     }
 
+    /**
+     * Replaces the transport used to send api calls to the brainCloud server.
+     * By default an HTTP/2 transport is used on Java 11+ runtimes, and a
+     * pooled keep-alive HttpURLConnection transport otherwise.
+     *
+     * @param transport The transport to use
+     */
+    public void setRestTransport(IRestTransport transport) {
+        _restClient.setTransport(transport);
+    }
+
+    /**
+     * Sends api calls through a dispatcher shared with other clients, rather
+     * than a thread and connections of this client's own, so one JVM can run
+     * thousands of sessions. Must be set before initialize, or after close.
+     *
+     * @param sharedDispatcher The dispatcher, or null to go back to a thread of the client's own
+     */
+    public void setSharedDispatcher(SharedDispatcher sharedDispatcher) {
+        _restClient.setSharedDispatcher(sharedDispatcher);
+    }
+
+    /**
+     * Delivers api callbacks on the given executor as soon as responses
+     * arrive, and file upload callbacks as soon as an upload succeeds or
+     * fails, instead of from runCallbacks. Callbacks are not run under any
+     * of the client's locks and run in parallel on multi-threaded executors.
+     *
+     * @param executor The executor to run callbacks on, or null to deliver
+     *                 them from runCallbacks again
+     */
+    public void setCallbackExecutor(Executor executor) {
+        _restClient.setCallbackExecutor(executor);
+    }
+
+    public Executor getCallbackExecutor() {
+        return _restClient.getCallbackExecutor();
+    }
+
+    /**
+     * Returns the cache of read responses. Set a time to live on operations
+     * that return near static data, such as GlobalAppService.readProperties,
+     * so repeated calls are answered without going to the server.
+     */
+    public ResponseCache getResponseCache() {
+        return _restClient.getResponseCache();
+    }
+
+    /**
+     * Returns the set of read operations whose identical calls are merged
+     * while one of them is waiting for its response, so a burst of requests
+     * for the same data is sent once. The set is empty until operations are
+     * added to it.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return _restClient.getRequestCoalescer();
+    }
+
+    /**
+     * Returns the client side rate limits of service operations. Set a
+     * limit on an operation the server throttles, choosing whether calls
+     * over it are delayed, merged with an identical call or failed, rather
+     * than waiting for the server's errors to disable the client.
+     */
+    public RateLimiter getRateLimiter() {
+        return _restClient.getRateLimiter();
+    }
+
+    /**
+     * Reports bundle sizes, service call latencies, retries and errors of the
+     * REST, RTT and Relay connections, and file upload times, to the recorder.
+     * Use a MetricsRegistry to keep them in memory and MetricsTextExporter to
+     * write them out.
+     *
+     * @param metricsRecorder The recorder, or null to stop reporting
+     */
+    public void setMetricsRecorder(IMetricsRecorder metricsRecorder) {
+        _restClient.setMetricsRecorder(metricsRecorder);
+    }
+
+    public IMetricsRecorder getMetricsRecorder() {
+        return _restClient.getMetricsRecorder();
+    }
+
     /**
      * Returns whether the client is authenticated with the brainCloud server.
      * @return True if authenticated, false otherwise.
@@ -595,6 +704,46 @@ public class BrainCloudClient {
         _restClient.setPacketTimeoutsToDefault();
     }
 
+    /**
+     * Sets the wait between retries of a packet. Each wait is picked at
+     * random between the base and three times the previous wait, capped by
+     * the max and by the packet timeout, so a fleet of clients that failed
+     * together does not retry together.
+     *
+     * By default the base is 1 second and the max 30 seconds.
+     *
+     * @param baseMillis Shortest wait between attempts
+     * @param maxMillis Longest wait between attempts
+     */
+    public void setRetryBackoff(long baseMillis, long maxMillis) {
+        _restClient.setRetryBackoff(baseMillis, maxMillis);
+    }
+
+    /**
+     * Sets how long an operation is disabled once it has returned the
+     * server's maxKillCount errors in a row. After that time a single call
+     * is let through; if it fails the operation is disabled again for twice
+     * as long, up to the max.
+     *
+     * By default the open time is 30 seconds and the max 5 minutes.
+     *
+     * @param openMillis Time an operation is disabled after tripping
+     * @param maxOpenMillis Longest time an operation is disabled
+     */
+    public void setCircuitBreakerOpenTime(long openMillis, long maxOpenMillis) {
+        _restClient.setCircuitBreakerOpenTime(openMillis, maxOpenMillis);
+    }
+
+    /**
+     * Returns the circuit breakers of the operations called so far, for
+     * monitoring which operations are disabled.
+     *
+     * @return The circuit breakers, one per operation
+     */
+    public ArrayList<CircuitBreaker> getCircuitBreakers() {
+        return _restClient.getCircuitBreakers();
+    }
+
     /**
      * Gets the authentication packet timeout which is tracked separately
      * from all other packets. Note that authentication packets are never
@@ -707,6 +856,47 @@ public class BrainCloudClient {
         _restClient.enableNetworkErrorMessageCaching(in_enabled);
     }
 
+    /**
+     * Keeps durable calls in an append-only journal on disk until the server
+     * has answered them. Calls left unanswered when the process stops, such
+     * as stat updates or score posts queued during a network outage, are
+     * sent again the next time the journal is enabled and the same profile
+     * authenticates. Mark calls durable with ServerCall.setDurable or per
+     * operation with getOutboundJournal().addDurableOperation.
+     *
+     * @param directory Directory the journal is kept in, or null to stop journaling
+     * @return false if the journal could not be opened
+     */
+    public boolean enableDurableQueue(File directory) {
+        return _restClient.enableDurableQueue(directory);
+    }
+
+    /**
+     * @return The outbound journal, or null if the durable queue is not enabled
+     */
+    public OutboundJournal getOutboundJournal() {
+        return _restClient.getOutboundJournal();
+    }
+
+    /**
+     * Records the raw bytes of the bundles sent and the responses received
+     * into the recorder's ring buffer, for diagnostics at a fraction of the
+     * cost of enableLogging. Dump the recording to a file with
+     * WireTraceRecorder.dump and replay it with TraceReplayTransport.
+     *
+     * @param recorder The recorder, or null to stop recording
+     */
+    public void setWireTraceRecorder(WireTraceRecorder recorder) {
+        _restClient.setWireTraceRecorder(recorder);
+    }
+
+    /**
+     * @return The wire trace recorder, or null if none is set
+     */
+    public WireTraceRecorder getWireTraceRecorder() {
+        return _restClient.getWireTraceRecorder();
+    }
+
     /** Attempts to resend any cached messages. If no messages are in the cache,
      * this method does nothing.
      */
@@ -747,6 +937,91 @@ public class BrainCloudClient {
     public void sendRequest(ServerCall serverCall) {
         _restClient.addToQueue(serverCall);
     }
+
+    /**
+     * Sets the executor the futures returned by callAsync and
+     * sendRequestAsync are completed on. By default they complete on the
+     * thread that delivers the callbacks.
+     *
+     * @param executor The executor, or null
+     */
+    public void setFutureExecutor(Executor executor) {
+        _futureExecutor = executor;
+    }
+
+    public Executor getFutureExecutor() {
+        return _futureExecutor;
+    }
+
+    /**
+     * Makes any service call return a future instead of taking a callback:
+     *
+     * client.callAsync(cb -&gt; client.getEntityService().getEntity(entityId, cb))
+     *
+     * The future completes when the callback is delivered, from runCallbacks
+     * or from the callback executor if one is set.
+     *
+     * @param request Makes the service call with the callback it is given
+     * @return The future of the call
+     */
+    public ServerCallFuture callAsync(Consumer<IServerCallback> request) {
+        return ServerCallFuture.of(_futureExecutor, request);
+    }
+
+    /**
+     * Queues a raw api call and returns its future.
+     *
+     * @param serviceName The service to call
+     * @param serviceOperation The operation to call
+     * @param data The call parameters, or null
+     * @return The future of the call
+     */
+    public ServerCallFuture sendRequestAsync(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject data) {
+        return sendRequestAsync(serviceName, serviceOperation, data, 0);
+    }
+
+    /**
+     * Queues a raw api call that has to be answered within the timeout and
+     * returns its future. A call that could not be sent in time fails with
+     * CLIENT_NETWORK_ERROR_TIMEOUT.
+     *
+     * @param serviceName The service to call
+     * @param serviceOperation The operation to call
+     * @param data The call parameters, or null
+     * @param timeoutMillis Time the call has to be answered in, 0 for no deadline
+     * @return The future of the call
+     */
+    public ServerCallFuture sendRequestAsync(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject data, long timeoutMillis) {
+        ServerCallFuture future = new ServerCallFuture(_futureExecutor);
+        ServerCall serverCall = new ServerCall(serviceName, serviceOperation, data, future);
+        if (timeoutMillis > 0) {
+            serverCall.setTimeoutMillis(timeoutMillis);
+        }
+        sendRequest(serverCall);
+        return future;
+    }
+
+    /**
+     * Derives packet timeouts from the measured round trip time instead of
+     * using the packet timeout list as is. The list still bounds the
+     * timeouts unless a ceiling is set. Off by default: only turn it on if
+     * none of the app's calls take the server longer than the floor.
+     *
+     * @param enabled true to derive the timeouts, false to use the packet timeouts as they are
+     */
+    public void setAdaptiveTimeouts(boolean enabled) {
+        _restClient.setAdaptiveTimeouts(enabled);
+    }
+
+    /**
+     * Sets the bounds of the adaptive packet timeouts.
+     *
+     * @param floorMillis Shortest timeout, 5 seconds by default
+     * @param ceilingMillis Longest timeout, 0 to be bounded by the packet timeouts
+     */
+    public void setAdaptiveTimeoutBounds(long floorMillis, long ceilingMillis) {
+        _restClient.setAdaptiveTimeoutBounds(floorMillis, ceilingMillis);
+    }
     
 
     /**
@@ -0,0 +1,30 @@
+package com.bitheads.braincloud.client;
+
+/**
+ * Receives the measurements of the rest, rtt and relay comms and of file
+ * uploads. Methods are called on the SDK's network threads, often while it
+ * holds its locks, so implementations must be thread safe, must not block
+ * and should not allocate.
+ */
+public interface IMetricsRecorder {
+
+    /**
+     * Called when a service call completes.
+     *
+     * @param serviceName The service of the call
+     * @param serviceOperation The operation of the call
+     * @param latencyMicros Time from the call being queued to its response
+     * @param success false if the call returned an error
+     */
+    void recordCall(ServiceName serviceName, ServiceOperation serviceOperation, long latencyMicros, boolean success);
+
+    /**
+     * Records one value of a distribution, such as a bundle size.
+     */
+    void record(Metric metric, long value);
+
+    /**
+     * Adds to a counter, such as the number of retries.
+     */
+    void increment(Metric metric, long count);
+}
@@ -0,0 +1,20 @@
+package com.bitheads.braincloud.client;
+
+/**
+ * Told about every platform thread the SDK starts and ends, for hosts
+ * keeping track of the threads of long running processes. Methods are
+ * called on the thread itself, first thing as it starts and last thing
+ * before it ends, so implementations must be thread safe and must not block.
+ */
+public interface IThreadListener {
+
+    /**
+     * Called on a new SDK thread before it runs its task.
+     */
+    void threadStarted(Thread thread);
+
+    /**
+     * Called on an SDK thread once its task is done, just before it ends.
+     */
+    void threadEnded(Thread thread);
+}
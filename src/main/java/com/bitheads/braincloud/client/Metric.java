@@ -0,0 +1,50 @@
+package com.bitheads.braincloud.client;
+
+/**
+ * Measurements the comms layers report to an IMetricsRecorder. Counters are
+ * reported through increment, distributions through record.
+ */
+public enum Metric {
+    // rest client, distributions
+    BUNDLE_MESSAGES,
+    BUNDLE_BYTES,
+    BUNDLE_WIRE_BYTES,
+    GZIP_RATIO_PERCENT,
+    BUNDLE_RTT_MILLIS,
+    QUEUE_DEPTH,
+    QUEUE_BLOCKED_MILLIS,
+    RATE_LIMIT_HELD,
+    RATE_LIMIT_WAIT_MILLIS,
+
+    // rest client, counters
+    BYTES_SENT,
+    RETRIES,
+    TIMEOUTS,
+    NETWORK_ERRORS,
+    CALL_ERRORS,
+    OVERSIZED_CALLS,
+    QUEUE_OVERFLOWS,
+    QUEUE_DROPS,
+    RATE_LIMIT_DELAYS,
+    RATE_LIMIT_MERGES,
+    RATE_LIMIT_REJECTS,
+
+    // rtt
+    RTT_EVENTS_RECEIVED,
+    RTT_BYTES_RECEIVED,
+    RTT_MESSAGES_SENT,
+    RTT_DISCONNECTS,
+
+    // relay
+    RELAY_PACKETS_SENT,
+    RELAY_PACKETS_RECEIVED,
+    RELAY_RESENDS,
+    RELAY_DUPLICATES,
+    RELAY_PACKETS_LOST,
+    RELAY_PING_MILLIS,
+
+    // file uploads
+    UPLOAD_BYTES,
+    UPLOAD_MILLIS,
+    UPLOAD_FAILURES
+}
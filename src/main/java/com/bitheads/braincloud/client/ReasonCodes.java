@@ -615,6 +615,8 @@ public interface ReasonCodes {
     int CLIENT_UPLOAD_FILE_TIMED_OUT = 90101;
     int CLIENT_UPLOAD_FILE_UNKNOWN = 90102;
     int CLIENT_DISABLED = 90200;
+    int CLIENT_RATE_LIMITED = 90201;
+    int CLIENT_QUEUE_FULL = 90202;
     int ITUNES_PURCHASE_ALREADY_CLAIMED = APPLE_TRANS_ID_ALREADY_CLAIMED;
     int APP_VERSION_NOT_SUPPORTED = GAME_VERSION_NOT_SUPPORTED;
     int APP_VERSION_NO_LONGER_SUPPORTED = APP_VERSION_NOT_SUPPORTED;
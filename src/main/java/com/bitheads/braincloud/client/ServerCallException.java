@@ -0,0 +1,54 @@
+package com.bitheads.braincloud.client;
+
+/**
+ * Error a ServerCallFuture completes with when the server, or the client on
+ * its behalf, returns an error for the call.
+ */
+public class ServerCallException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ServiceName _serviceName;
+    private final ServiceOperation _serviceOperation;
+    private final int _statusCode;
+    private final int _reasonCode;
+    private final String _jsonError;
+
+    public ServerCallException(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+        super(serviceName + "." + serviceOperation + " failed with status " + statusCode + ", reason " + reasonCode + ": " + jsonError);
+        _serviceName = serviceName;
+        _serviceOperation = serviceOperation;
+        _statusCode = statusCode;
+        _reasonCode = reasonCode;
+        _jsonError = jsonError;
+    }
+
+    public ServiceName getServiceName() {
+        return _serviceName;
+    }
+
+    public ServiceOperation getServiceOperation() {
+        return _serviceOperation;
+    }
+
+    /**
+     * @return The error status return code (400, 403, 500, etc)
+     */
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    /**
+     * @return The brainCloud reason code (see reason codes on apidocs site)
+     */
+    public int getReasonCode() {
+        return _reasonCode;
+    }
+
+    /**
+     * @return The error json string, as passed to IServerCallback.serverError
+     */
+    public String getJsonError() {
+        return _jsonError;
+    }
+}
@@ -0,0 +1,122 @@
+package com.bitheads.braincloud.client;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * IServerCallback that completes as a CompletableFuture, so any service
+ * method can be used with future composition:
+ *
+ * <pre>
+ * ServerCallFuture.of(cb -&gt; client.getEntityService().getEntity(entityId, cb))
+ *         .thenCompose(entity -&gt; ServerCallFuture.of(cb -&gt; ...));
+ * </pre>
+ *
+ * The future completes with the response json, or exceptionally with a
+ * ServerCallException. It completes when the callback is delivered, so
+ * either keep calling runCallbacks or set a callback executor on the
+ * client. Calls made back to back go out in the same bundle.
+ */
+public class ServerCallFuture extends CompletableFuture<JSONObject> implements IServerCallback {
+
+    private final Executor _executor;
+
+    /**
+     * Creates a future completed on the thread that delivers the callback.
+     */
+    public ServerCallFuture() {
+        this(null);
+    }
+
+    /**
+     * @param executor Executor the future is completed on, so dependent
+     *                 stages run there. Null to complete on the thread that
+     *                 delivers the callback.
+     */
+    public ServerCallFuture(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * Issues a service call with a new future as its callback.
+     *
+     * @param request Makes the service call with the callback it is given
+     * @return The future of the call
+     */
+    public static ServerCallFuture of(Consumer<IServerCallback> request) {
+        return of(null, request);
+    }
+
+    /**
+     * Issues a service call with a new future as its callback.
+     *
+     * @param executor Executor the future is completed on, or null
+     * @param request Makes the service call with the callback it is given
+     * @return The future of the call
+     */
+    public static ServerCallFuture of(Executor executor, Consumer<IServerCallback> request) {
+        ServerCallFuture future = new ServerCallFuture(executor);
+        try {
+            request.accept(future);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for all of the calls, keeping their results in order. Fails with
+     * the first error if any of the calls fail.
+     *
+     * @param futures The calls to wait for
+     * @return The results of the calls, in the same order
+     */
+    public static CompletableFuture<List<JSONObject>> allOf(final List<? extends CompletableFuture<JSONObject>> futures) {
+        CompletableFuture<?>[] array = futures.toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(array).thenApply(new Function<Void, List<JSONObject>>() {
+            @Override
+            public List<JSONObject> apply(Void ignored) {
+                List<JSONObject> results = new ArrayList<>(futures.size());
+                for (CompletableFuture<JSONObject> future : futures) {
+                    results.add(future.join());
+                }
+                return results;
+            }
+        });
+    }
+
+    @Override
+    public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, final JSONObject jsonData) {
+        if (_executor == null) {
+            complete(jsonData);
+            return;
+        }
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                complete(jsonData);
+            }
+        });
+    }
+
+    @Override
+    public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+        final ServerCallException error = new ServerCallException(serviceName, serviceOperation, statusCode, reasonCode, jsonError);
+        if (_executor == null) {
+            completeExceptionally(error);
+            return;
+        }
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                completeExceptionally(error);
+            }
+        });
+    }
+}
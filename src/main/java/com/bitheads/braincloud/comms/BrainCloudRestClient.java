@@ -2,10 +2,12 @@ package com.bitheads.braincloud.comms;
 
 import com.bitheads.braincloud.client.BrainCloudClient;
 import com.bitheads.braincloud.client.IEventCallback;
+import com.bitheads.braincloud.client.IMetricsRecorder;
 import com.bitheads.braincloud.client.IFileUploadCallback;
 import com.bitheads.braincloud.client.IGlobalErrorCallback;
 import com.bitheads.braincloud.client.INetworkErrorCallback;
 import com.bitheads.braincloud.client.IRewardCallback;
+import com.bitheads.braincloud.client.Metric;
 import com.bitheads.braincloud.client.ReasonCodes;
 import com.bitheads.braincloud.client.ServiceName;
 import com.bitheads.braincloud.client.ServiceOperation;
@@ -14,27 +16,31 @@ import com.bitheads.braincloud.client.StatusCodes;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.KeyManagementException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -56,14 +62,13 @@ public class BrainCloudRestClient implements Runnable {
     private Map<String, String> _secretMap = new HashMap<String, String>();
     private String _sessionId;
     private long _packetId;
-    private long _expectedPacketId;
     private boolean _isAuthenticated = false;
     private boolean _isInitialized = false;
     private boolean _loggingEnabled = false;
     private int _authenticationTimeoutMillis = 15000;
     private boolean _oldStyleStatusMessageErrorCallback = false;
     private boolean _cacheMessagesOnNetworkError = false;
-    private long _lastSendTime;
+    private volatile long _lastSendTime;
     private long _lastReceivedPacket;
     private boolean _compressRequests = false;
 
@@ -84,36 +89,107 @@ public class BrainCloudRestClient implements Runnable {
 
     private Thread _thread;
     private final Object _lock = new Object();
+    // created on first send, unless set or shared
+    private volatile IRestTransport _transport;
+
+    // when set, passes over the queues run on the dispatcher's pool instead of _thread
+    private SharedDispatcher _sharedDispatcher;
+    private volatile SharedDispatcher.Registration _registration;
+    // end of the linger of a shared pass, only touched by the passes
+    private long _lingerDeadline;
 
     private long _heartbeatIntervalMillis = 30000;
     private int _maxBundleSize = 10;
-    private int _retryCount;
+    private int _maxInFlightBundles = 1;
     private ArrayList<Integer> _packetTimeouts = new ArrayList<>();
-    private long _messageQueuePollIntervalMillis = 1000;
-
-    //kill switch
+    private volatile BundlePolicy _bundlePolicy = new BundlePolicy();
+    private final ResponseCache _responseCache = new ResponseCache();
+    private final RequestCoalescer _requestCoalescer = new RequestCoalescer();
+    private final RateLimiter _rateLimiter = new RateLimiter(new Runnable() {
+        @Override
+        public void run() {
+            synchronized (_lock) {
+                signal();
+            }
+        }
+    });
+    private volatile OutboundJournal _outboundJournal;
+
+    // bound of the calls waiting to be sent, held ones included, 0 for none
+    private int _queueCapacity;
+    private QueueOverflowPolicy _queueOverflowPolicy = QueueOverflowPolicy.FAIL;
+    private long _queueBlockTimeoutMillis = 5000;
+    // callers waiting for room, and room taken by calls being journaled
+    private int _blockedCallerCount;
+    private int _reservedQueueSlots;
+    private long _queueOverflowCount;
+
+    private volatile WireTraceRecorder _wireTraceRecorder;
+    private final BundleStats _bundleStats = new BundleStats();
+    // why the last bundle was flushed, only touched by the rest thread
+    private BundleStats.FlushReason _flushReason = BundleStats.FlushReason.QUEUE_DRAINED;
+
+    // per operation circuit breakers, the threshold comes from the server's maxKillCount
     private int _killSwitchThreshold = 11;
-    private boolean _killSwitchEngaged;
-    private int _killSwitchErrorCount;
-    private String _killSwitchService;
-    private String _killSwitchOperation;
+    private final HashMap<String, CircuitBreaker> _circuitBreakers = new HashMap<>();
+    private volatile long _circuitOpenMillis = 30 * 1000;
+    private volatile long _circuitMaxOpenMillis = 5 * 60 * 1000;
 
-    private LinkedBlockingQueue<ServerCall> _waitingQueue = new LinkedBlockingQueue<>();
-    private LinkedBlockingQueue<ServerCall> _messageQueue = new LinkedBlockingQueue<>();
+    private volatile IMetricsRecorder _metricsRecorder;
+
+    // round trip times of answered bundles, for the packet timeouts
+    private final RttEstimator _rttEstimator = new RttEstimator();
+    private volatile boolean _adaptiveTimeouts = false;
+    private volatile long _timeoutFloorMillis = 5 * 1000;
+    private volatile long _timeoutCeilingMillis = 0;
+
+    // decorrelated jitter between send attempts of a bundle
+    private volatile long _retryBackoffBaseMillis = 1000;
+    private volatile long _retryBackoffMaxMillis = 30 * 1000;
+
+    private final MessageLanes _messageLanes = new MessageLanes();
     private LinkedBlockingQueue<ServerCall> _bundleQueue = new LinkedBlockingQueue<>();
     private LinkedList<ServerCall> _networkErrorMessageQueue = new LinkedList<>();
+    private long _networkErrorPacketId = NO_PACKET_EXPECTED;
+    // packet id of the calls of _bundleQueue when they are a resend
+    private long _resendPacketId = NO_PACKET_EXPECTED;
     private LinkedList<ServerResponse> _serverResponses = new LinkedList<>();
     private LinkedList<JSONObject> _eventResponses = new LinkedList<>();
     private LinkedList<JSONObject> _rewardResponses = new LinkedList<>();
     private ArrayList<FileUploader> _fileUploads = new ArrayList<>();
+    // run by an upload once it has succeeded or failed
+    private final Runnable _fileUploadCompleted = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (_lock) {
+                queueFileUploadCallbacks();
+            }
+            submitCallbackTasks();
+        }
+    };
+
+    // When set, callbacks are handed to this executor instead of waiting for runCallbacks
+    private volatile Executor _callbackExecutor;
+    // where callbacks are delivered: the thread that last ran runCallbacks, and
+    // the callback executor's threads while they run callbacks
+    private volatile Thread _runCallbacksThread;
+    private final ThreadLocal<Boolean> _isDeliveringCallbacks = new ThreadLocal<>();
+    // Callbacks queued under _lock, submitted to the executor once it is released
+    private final ArrayList<Runnable> _callbackTasks = new ArrayList<>();
 
     private int _statusCodeCache;
     private int _reasonCodeCache;
     private String _statusMessageCache;
 
-    // This semaphore is used to monitor size of waiting queue
-    // Required due to lack of blocking peek in blocking queue
-    private Semaphore _messageQueueCount = new Semaphore(0);
+    // Bundles that have been handed to the senders but not yet delivered, in
+    // packet id order. Also the monitor the dispatch thread waits on for a
+    // free slot in the send window.
+    private final ArrayDeque<PacketBundle> _inFlightBundles = new ArrayDeque<>();
+    // Serializes delivery so bundle results reach the callbacks in packet id order
+    private final Object _deliveryLock = new Object();
+    private ExecutorService _senderExecutor;
+    // Reusable encode buffers, one per sender in use
+    private final ArrayDeque<BundleWriter> _bundleWriters = new ArrayDeque<>();
 
     // Disable all SSL Checks. Not recommended
     final static boolean DISABLE_SSL_CHECK = false;
@@ -133,13 +209,72 @@ public class BrainCloudRestClient implements Runnable {
         _compressRequests = compressRequests;
     }
 
+    /**
+     * Replaces the transport used to post message bundles. By default an
+     * HTTP/2 transport is used when the runtime supports it, and a pooled
+     * HttpURLConnection transport otherwise.
+     *
+     * @param transport The transport to use
+     */
+    public void setTransport(IRestTransport transport) {
+        IRestTransport previous;
+        synchronized (_lock) {
+            previous = isOwnTransport(_transport) ? _transport : null;
+            _transport = transport;
+        }
+        if (previous != null && previous != transport) {
+            previous.close();
+        }
+    }
+
+    public IRestTransport getTransport() {
+        IRestTransport transport = _transport;
+        if (transport == null) {
+            synchronized (_lock) {
+                if (_transport == null) {
+                    _transport = _sharedDispatcher != null ? _sharedDispatcher.getTransport() : RestTransportFactory.createDefault();
+                }
+                transport = _transport;
+            }
+        }
+        return transport;
+    }
+
+    private boolean isOwnTransport(IRestTransport transport) {
+        return transport != null && (_sharedDispatcher == null || transport != _sharedDispatcher.getTransport());
+    }
+
+    /**
+     * Sends through a dispatcher shared with other clients instead of a
+     * thread and connections of this client's own. Must be set before
+     * initialize, or after close.
+     *
+     * @param sharedDispatcher The dispatcher, or null to go back to a thread of the client's own
+     */
+    public void setSharedDispatcher(SharedDispatcher sharedDispatcher) {
+        IRestTransport previous;
+        synchronized (_lock) {
+            if (_thread != null || _registration != null) {
+                throw new IllegalStateException("The shared dispatcher must be set before initialize or after close");
+            }
+            previous = isOwnTransport(_transport) ? _transport : null;
+            _sharedDispatcher = sharedDispatcher;
+            _transport = sharedDispatcher != null ? sharedDispatcher.getTransport() : null;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public SharedDispatcher getSharedDispatcher() {
+        return _sharedDispatcher;
+    }
+
     public void initialize(String serverUrl, String appId, String secretKey) {
         resetCommunication();
-        _expectedPacketId = NO_PACKET_EXPECTED;
         _serverUrl = serverUrl;
         _appId = appId;
         _secretKey = secretKey;
-        _retryCount = 0;
         _isInitialized = true;
         _secretMap.put(appId, secretKey);
 
@@ -156,9 +291,76 @@ public class BrainCloudRestClient implements Runnable {
         _uploadUrl = _serverUrl + "/uploader";
         _serverUrl = _serverUrl + "/dispatcherv2";
 
-        if (_thread == null) {
-            _thread = new Thread(this);
-            _thread.start();
+        synchronized (_lock) {
+            if (_sharedDispatcher != null) {
+                if (_registration == null) {
+                    _registration = _sharedDispatcher.register(new Runnable() {
+                        @Override
+                        public void run() {
+                            runSharedPass();
+                        }
+                    });
+                }
+            } else if (_thread == null) {
+                _thread = SdkThreads.startThread("braincloud-rest", this);
+            }
+            signal();
+        }
+    }
+
+    /**
+     * Ends the communication like resetCommunication, then releases the
+     * rest thread or the registration on the shared dispatcher, the sender
+     * threads and the transport unless it is shared. The client can be
+     * initialized again afterwards.
+     */
+    public void close() {
+        resetCommunication();
+
+        Thread thread;
+        SharedDispatcher.Registration registration;
+        IRestTransport transport;
+        synchronized (_lock) {
+            thread = _thread;
+            _thread = null;
+            registration = _registration;
+            _registration = null;
+            transport = isOwnTransport(_transport) ? _transport : null;
+            _transport = _sharedDispatcher != null ? _sharedDispatcher.getTransport() : null;
+        }
+        ExecutorService senderExecutor;
+        synchronized (_inFlightBundles) {
+            senderExecutor = _senderExecutor;
+            _senderExecutor = null;
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (registration != null) {
+            registration.unregister();
+        }
+        if (senderExecutor != null) {
+            senderExecutor.shutdown();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Wakes up the rest thread, or schedules a pass on the shared
+     * dispatcher. Must be called with _lock held.
+     */
+    private void signal() {
+        _lock.notifyAll();
+        wakeSharedDispatcher();
+    }
+
+    private void wakeSharedDispatcher() {
+        SharedDispatcher.Registration registration = _registration;
+        if (registration != null) {
+            registration.wake();
         }
     }
 
@@ -173,83 +375,542 @@ public class BrainCloudRestClient implements Runnable {
     }
 
     public void addToQueue(ServerCall serverCall) {
+        serverCall.setQueuedAtNanos(System.nanoTime());
+
+        String cacheKey = _responseCache.getKey(serverCall);
+        if (cacheKey != null && _isAuthenticated) {
+            JSONObject cached = _responseCache.get(cacheKey, System.currentTimeMillis());
+            if (cached != null) {
+                // answered from the cache, the call is never sent
+                ServerResponse response = new ServerResponse();
+                response._serverCall = serverCall;
+                response._statusCode = HttpURLConnection.HTTP_OK;
+                response._isError = false;
+                response._data = cached;
+                synchronized (_lock) {
+                    queueResponse(response);
+                }
+                submitCallbackTasks();
+                return;
+            }
+        }
+        serverCall.setCacheKey(cacheKey);
+
+        if (_requestCoalescer.join(serverCall)) {
+            // completed with the response of the identical call in flight
+            return;
+        }
+
+        if (PacketBundle.isBarrier(serverCall)) {
+            // calls held for their rate limit belong to the session this call ends
+            failHeldCalls();
+        }
+
+        RateLimiter.Limit limit = _rateLimiter.getLimit(serverCall);
+        if (limit != null && limit.getPolicy() == RateLimiter.Policy.MERGE && _requestCoalescer.merge(serverCall)) {
+            // completed with the response of the identical call, without taking a token
+            limit.onMerged();
+            incrementMetric(Metric.RATE_LIMIT_MERGES);
+            return;
+        }
+        boolean isOverBudget = limit != null && !limit.tryAcquire(System.nanoTime());
+        if (isOverBudget && limit.getPolicy() == RateLimiter.Policy.REJECT) {
+            limit.onRejected();
+            incrementMetric(Metric.RATE_LIMIT_REJECTS);
+            failCall(serverCall, ReasonCodes.CLIENT_RATE_LIMITED, "Rate limit exceeded for the API call: "
+                    + serverCall.getServiceName() + " | " + serverCall.getServiceOperation());
+            return;
+        }
+
+        if (!serverCall.isEndOfBundleMarker() && !reserveQueueSlot(serverCall)) {
+            // failed, the queue is full
+            return;
+        }
+
+        OutboundJournal journal = _outboundJournal;
+        if (journal != null && serverCall.getJournalId() == 0 && journal.isDurable(serverCall)) {
+            try {
+                // the encoded payload is cached on the call and reused by the send
+                getPayloadBytes(serverCall);
+                journal.append(serverCall, serverCall.getEncodedPayload(), _client.getAuthenticationService().getProfileId());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (isOverBudget) {
+            // sent once the limit has a token for it
+            limit.hold(serverCall);
+            IMetricsRecorder metrics = _metricsRecorder;
+            if (metrics != null) {
+                metrics.increment(Metric.RATE_LIMIT_DELAYS, 1);
+                metrics.record(Metric.RATE_LIMIT_HELD, _rateLimiter.getHeldCount());
+            }
+            synchronized (_lock) {
+                _reservedQueueSlots--;
+                signal();
+            }
+            return;
+        }
+
         synchronized (_lock) {
-            _waitingQueue.add(serverCall);
+            if (!serverCall.isEndOfBundleMarker()) {
+                _reservedQueueSlots--;
+            }
+            if (_messageLanes.add(serverCall, System.currentTimeMillis())) {
+                signal();
+            }
+            IMetricsRecorder metrics = _metricsRecorder;
+            if (metrics != null) {
+                metrics.record(Metric.QUEUE_DEPTH, _messageLanes.size());
+            }
         }
     }
 
-    public void runCallbacks() {
-        if (_blockingQueue) {
-            if (_networkErrorCallbackReadyToBeSent) {
-                if (_networkErrorCallback != null) {
-                    _networkErrorCallback.networkError();
+    /**
+     * Makes room for the call in the outbound queue as the overflow policy
+     * says if it is at capacity, and keeps the room for the call until it
+     * is queued.
+     *
+     * @return false if the call was failed with CLIENT_QUEUE_FULL instead
+     */
+    private boolean reserveQueueSlot(ServerCall serverCall) {
+        ServerCall dropped = null;
+        long blockedMillis = -1;
+        boolean isFull;
+        synchronized (_lock) {
+            isFull = isQueueFull();
+            if (isFull && _queueOverflowPolicy == QueueOverflowPolicy.DROP_OLDEST) {
+                dropped = _messageLanes.dropOldest(serverCall.getPriority());
+                isFull = dropped == null;
+            } else if (isFull && _queueOverflowPolicy == QueueOverflowPolicy.BLOCK && mayWaitForRoom()) {
+                long start = System.currentTimeMillis();
+                long deadline = start + _queueBlockTimeoutMillis;
+                _blockedCallerCount++;
+                try {
+                    long remaining = _queueBlockTimeoutMillis;
+                    while (isFull && remaining > 0 && _isInitialized && !Thread.currentThread().isInterrupted()) {
+                        waitForSignal(remaining);
+                        isFull = isQueueFull();
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } finally {
+                    _blockedCallerCount--;
                 }
-                _networkErrorCallbackReadyToBeSent = false;
+                blockedMillis = System.currentTimeMillis() - start;
+            }
+
+            if (isFull) {
+                _queueOverflowCount++;
+            } else {
+                _reservedQueueSlots++;
+            }
+        }
+
+        IMetricsRecorder metrics = _metricsRecorder;
+        if (metrics != null) {
+            if (blockedMillis >= 0) {
+                metrics.record(Metric.QUEUE_BLOCKED_MILLIS, blockedMillis);
+            }
+            if (dropped != null) {
+                metrics.increment(Metric.QUEUE_DROPS, 1);
+            }
+            if (isFull) {
+                metrics.increment(Metric.QUEUE_OVERFLOWS, 1);
             }
+        }
+        if (dropped != null) {
+            failCall(dropped, ReasonCodes.CLIENT_QUEUE_FULL, "Dropped from the full outbound queue for a call of priority "
+                    + serverCall.getPriority());
+        }
+        if (isFull) {
+            failCall(serverCall, ReasonCodes.CLIENT_QUEUE_FULL, "Outbound queue full, capacity " + getQueueCapacity());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The queue drains through the SDK threads, and while callbacks are
+     * pending, through the thread that delivers them, so those fail a call
+     * rather than wait for room.
+     *
+     * @return true if the calling thread may wait for room in the queue
+     */
+    private boolean mayWaitForRoom() {
+        return Thread.currentThread() != _runCallbacksThread && _isDeliveringCallbacks.get() == null
+                && !SdkThreads.isSdkThread();
+    }
+
+    /**
+     * Must be called with _lock held.
+     */
+    private boolean isQueueFull() {
+        return _queueCapacity > 0 && getQueueDepth() >= _queueCapacity;
+    }
+
+    /**
+     * Wakes up the callers waiting for room in the outbound queue.
+     */
+    private void wakeBlockedCallers() {
+        synchronized (_lock) {
+            if (_blockedCallerCount > 0) {
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Fails a call without sending it, such as one over the budget of its
+     * REJECT rate limit.
+     */
+    private void failCall(ServerCall serverCall, int reasonCode, String statusMessage) {
+        ServerResponse response = new ServerResponse();
+        response._serverCall = serverCall;
+        response._isError = true;
+        response._statusCode = StatusCodes.CLIENT_NETWORK_ERROR;
+        response._reasonCode = reasonCode;
+        response._statusMessage = statusMessage;
+        response._data = createErrorJson(StatusCodes.CLIENT_NETWORK_ERROR, reasonCode, statusMessage);
+        synchronized (_lock) {
+            recordCall(serverCall, false);
+            queueResponse(response);
+        }
+        submitCallbackTasks();
+    }
+
+    /**
+     * Fails the calls held for their rate limit, which must not be sent in
+     * another session than the one they were made in.
+     */
+    private void failHeldCalls() {
+        ArrayList<ServerCall> held = new ArrayList<>();
+        _rateLimiter.drainHeld(held);
+        if (held.isEmpty()) {
             return;
         }
+        wakeBlockedCallers();
+        for (ServerCall serverCall : held) {
+            failCall(serverCall, ReasonCodes.CLIENT_RATE_LIMITED, "Session changed while the call was held by the rate limit of the API call: "
+                    + serverCall.getServiceName() + " | " + serverCall.getServiceOperation());
+        }
+    }
+
+    /**
+     * Queues the held calls whose rate limit has a token for them now. Must
+     * be called with _lock held.
+     *
+     * @return Milliseconds until the next held call gets a token, or 0 if none is held
+     */
+    private long releaseRateLimitedCalls() {
+        ArrayList<ServerCall> released = new ArrayList<>();
+        long nextMillis = _rateLimiter.release(System.nanoTime(), released);
+        if (released.isEmpty()) {
+            return nextMillis;
+        }
+
+        long now = System.currentTimeMillis();
+        IMetricsRecorder metrics = _metricsRecorder;
+        for (ServerCall serverCall : released) {
+            _messageLanes.add(serverCall, now);
+            if (metrics != null) {
+                metrics.record(Metric.RATE_LIMIT_WAIT_MILLIS, (System.nanoTime() - serverCall.getQueuedAtNanos()) / 1000000);
+            }
+        }
+        if (metrics != null) {
+            metrics.record(Metric.RATE_LIMIT_HELD, _rateLimiter.getHeldCount());
+            metrics.record(Metric.QUEUE_DEPTH, _messageLanes.size());
+        }
+        return nextMillis;
+    }
+
+    private void incrementMetric(Metric metric) {
+        IMetricsRecorder metrics = _metricsRecorder;
+        if (metrics != null) {
+            metrics.increment(metric, 1);
+        }
+    }
 
+    /**
+     * Reports bundle sizes, latencies, retries and errors to the recorder,
+     * such as a MetricsRegistry.
+     *
+     * @param metricsRecorder The recorder, or null to stop reporting
+     */
+    public void setMetricsRecorder(IMetricsRecorder metricsRecorder) {
+        _metricsRecorder = metricsRecorder;
+    }
+
+    public IMetricsRecorder getMetricsRecorder() {
+        return _metricsRecorder;
+    }
+
+    private void recordCall(ServerCall serverCall, boolean success) {
+        IMetricsRecorder metrics = _metricsRecorder;
+        if (metrics != null && serverCall.getQueuedAtNanos() != 0) {
+            long latencyMicros = (System.nanoTime() - serverCall.getQueuedAtNanos()) / 1000;
+            metrics.recordCall(serverCall.getServiceName(), serverCall.getServiceOperation(), latencyMicros, success);
+        }
+    }
 
+    /**
+     * Sends callbacks to an executor as responses arrive, so there is no
+     * need to call runCallbacks to get them. Callbacks run concurrently if
+     * the executor is multi-threaded; use a single thread executor to get
+     * them in the order the calls were made.
+     *
+     * @param executor The executor to run callbacks on, or null to go back
+     *                 to delivering them from runCallbacks
+     */
+    public void setCallbackExecutor(Executor executor) {
         synchronized (_lock) {
-            //push waiting calls onto queue that the thread will use
-            if(_messageQueue.peek() == null) {
-                _messageQueue.addAll(_waitingQueue);
-                _messageQueueCount.release(_waitingQueue.size());
-                _waitingQueue.clear();
-            }
-
-            ServerResponse response;
-            while ((response = _serverResponses.poll()) != null) {
-                ServerCall sc = response._serverCall;
-
-                // handle response
-                if (sc.getCallback() != null) {
-                    if (response._isError) {
-                        String jsonError;
-                        if (_oldStyleStatusMessageErrorCallback) {
-                            jsonError = response._statusMessage;
-                        } else {
-                            jsonError = response._data.toString();
-                        }
-                        sc.getCallback().serverError(sc.getServiceName(), sc.getServiceOperation(), response._statusCode, response._reasonCode, jsonError);
+            _callbackExecutor = executor;
+            if (executor != null) {
+                // hand over whatever was waiting for runCallbacks
+                ServerResponse response;
+                while ((response = _serverResponses.poll()) != null) {
+                    queueResponse(response);
+                }
+                JSONObject rewards;
+                while ((rewards = _rewardResponses.poll()) != null) {
+                    queueRewards(rewards);
+                }
+                JSONObject events;
+                while ((events = _eventResponses.poll()) != null) {
+                    queueEvents(events);
+                }
+                queueFileUploadCallbacks();
+                signal();
+            }
+        }
+        submitCallbackTasks();
+    }
 
-                        if (_globalErrorCallback != null) {
-                            _globalErrorCallback.globalError(sc.getServiceName(), sc.getServiceOperation(), response._statusCode, response._reasonCode, jsonError);
-                        }
-                    } else {
-                        sc.getCallback().serverCallback(sc.getServiceName(), sc.getServiceOperation(), response._data);
-                    }
+    public Executor getCallbackExecutor() {
+        return _callbackExecutor;
+    }
+
+    public void runCallbacks() {
+        ArrayList<ServerResponse> responses;
+        ArrayList<JSONObject> rewardResponses;
+        ArrayList<JSONObject> eventResponses;
+        boolean sendNetworkError = false;
+
+        _runCallbacksThread = Thread.currentThread();
+
+        // take the pending callbacks under the lock but run them outside of
+        // it, so other threads can queue calls while user code runs
+        synchronized (_lock) {
+            if (_blockingQueue) {
+                sendNetworkError = _networkErrorCallbackReadyToBeSent;
+                _networkErrorCallbackReadyToBeSent = false;
+                responses = null;
+                rewardResponses = null;
+                eventResponses = null;
+            } else {
+                if (!_serverResponses.isEmpty()) {
+                    // the rest thread holds back new bundles until the callbacks have been run
+                    signal();
                 }
+                responses = new ArrayList<>(_serverResponses);
+                _serverResponses.clear();
+                rewardResponses = new ArrayList<>(_rewardResponses);
+                _rewardResponses.clear();
+                eventResponses = new ArrayList<>(_eventResponses);
+                _eventResponses.clear();
             }
+        }
+
+        if (responses == null) {
+            if (sendNetworkError && _networkErrorCallback != null) {
+                _networkErrorCallback.networkError();
+            }
+            return;
+        }
+
+        for (ServerResponse response : responses) {
+            runCallback(response);
+        }
 
-            JSONObject rewards;
-            while ((rewards = _rewardResponses.poll()) != null) {
+        for (JSONObject rewards : rewardResponses) {
+            if (_rewardCallback != null) {
                 _rewardCallback.rewardCallback(rewards);
             }
+        }
 
-            JSONObject events;
-            while ((events = _eventResponses.poll()) != null) {
+        for (JSONObject events : eventResponses) {
+            if (_eventCallback != null) {
                 _eventCallback.eventsReceived(events);
             }
+        }
+
+        runFileUploadCallbacks();
+    }
+
+    private void runCallback(ServerResponse response) {
+        ServerCall sc = response._serverCall;
+
+        // calls merged into this one are completed by the same response
+        ArrayList<ServerCall> followers = _requestCoalescer.complete(sc);
+
+        runCallback(sc, response, response._data);
+
+        if (followers != null) {
+            for (ServerCall follower : followers) {
+                JSONObject data = response._data;
+                try {
+                    data = new JSONObject(response._data.toString());
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                runCallback(follower, response, data);
+            }
+        }
+    }
+
+    private void runCallback(ServerCall sc, ServerResponse response, JSONObject data) {
+        // handle response
+        if (sc.getCallback() != null) {
+            if (response._isError) {
+                String jsonError;
+                if (_oldStyleStatusMessageErrorCallback) {
+                    jsonError = response._statusMessage;
+                } else {
+                    jsonError = data.toString();
+                }
+                sc.getCallback().serverError(sc.getServiceName(), sc.getServiceOperation(), response._statusCode, response._reasonCode, jsonError);
+
+                if (_globalErrorCallback != null) {
+                    _globalErrorCallback.globalError(sc.getServiceName(), sc.getServiceOperation(), response._statusCode, response._reasonCode, jsonError);
+                }
+            } else {
+                sc.getCallback().serverCallback(sc.getServiceName(), sc.getServiceOperation(), data);
+            }
+        }
+    }
+
+    /**
+     * Queues the response for runCallbacks, or for the callback executor.
+     * Must be called with _lock held.
+     */
+    private void queueResponse(final ServerResponse response) {
+        if (_callbackExecutor == null) {
+            _serverResponses.addLast(response);
+            return;
+        }
+        _callbackTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                runCallback(response);
+            }
+        });
+    }
+
+    private void queueRewards(final JSONObject rewards) {
+        if (_callbackExecutor == null) {
+            _rewardResponses.addLast(rewards);
+            return;
+        }
+        _callbackTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                IRewardCallback rewardCallback = _rewardCallback;
+                if (rewardCallback != null) {
+                    rewardCallback.rewardCallback(rewards);
+                }
+            }
+        });
+    }
 
-            runFileUploadCallbacks();
+    private void queueEvents(final JSONObject events) {
+        if (_callbackExecutor == null) {
+            _eventResponses.addLast(events);
+            return;
         }
+        _callbackTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                IEventCallback eventCallback = _eventCallback;
+                if (eventCallback != null) {
+                    eventCallback.eventsReceived(events);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the callbacks queued for the executor over to it. Must be called
+     * without _lock held, since the executor may run them on this thread.
+     */
+    private void submitCallbackTasks() {
+        ArrayList<Runnable> tasks;
+        synchronized (_lock) {
+            if (_callbackTasks.isEmpty()) {
+                return;
+            }
+            tasks = new ArrayList<>(_callbackTasks);
+            _callbackTasks.clear();
+        }
+
+        Executor executor = _callbackExecutor;
+        for (final Runnable task : tasks) {
+            if (executor != null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        _isDeliveringCallbacks.set(Boolean.TRUE);
+                        try {
+                            task.run();
+                        } finally {
+                            _isDeliveringCallbacks.remove();
+                        }
+                    }
+                });
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Queues the callbacks of finished uploads for the callback executor.
+     * Without one, runCallbacks reports them. Must be called with _lock held.
+     */
+    private void queueFileUploadCallbacks() {
+        if (_callbackExecutor == null) {
+            return;
+        }
+        _callbackTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                runFileUploadCallbacks();
+            }
+        });
     }
 
     private void runFileUploadCallbacks() {
-        Iterator<FileUploader> iter = _fileUploads.iterator();
-        while (iter.hasNext()) {
-            FileUploader temp = iter.next();
+        ArrayList<FileUploader> completed = new ArrayList<>();
+        synchronized (_lock) {
+            Iterator<FileUploader> iter = _fileUploads.iterator();
+            while (iter.hasNext()) {
+                FileUploader temp = iter.next();
+                if (temp.getStatus() == FileUploader.FileUploaderStatus.CompleteSuccess
+                        || temp.getStatus() == FileUploader.FileUploaderStatus.CompleteFailed) {
+                    completed.add(temp);
+                    iter.remove();
+                }
+            }
+        }
+
+        for (FileUploader temp : completed) {
             if (temp.getStatus() == FileUploader.FileUploaderStatus.CompleteSuccess) {
                 if (_fileUploadCallback != null)
                     _fileUploadCallback.fileUploadCompleted(temp.getUploadId(), temp.getResponse());
                 LogString("Upload success: " + temp.getUploadId() + " | " + temp.getStatusCode() + "\n" + temp.getResponse());
-                iter.remove();
             } else if (temp.getStatus() == FileUploader.FileUploaderStatus.CompleteFailed) {
                 if (_fileUploadCallback != null)
                     _fileUploadCallback.fileUploadFailed(temp.getUploadId(), temp.getStatusCode(), temp.getReasonCode(), temp.getResponse());
                 LogString("Upload failed: " + temp.getUploadId() + " | " + temp.getStatusCode() + "\n" + temp.getResponse());
-                iter.remove();
             }
         }
     }
@@ -307,9 +968,13 @@ public class BrainCloudRestClient implements Runnable {
     }
 
     public void resetCommunication() {
+        _responseCache.invalidateAll();
+        _requestCoalescer.clear();
+        _rateLimiter.clearHeld();
         synchronized (_lock) {
-            _waitingQueue.clear();
-            _messageQueue.clear();
+            // callers waiting for room give up
+            _lock.notifyAll();
+            _messageLanes.clear();
             _bundleQueue.clear();
             _networkErrorMessageQueue.clear();
             _serverResponses.clear();
@@ -321,138 +986,486 @@ public class BrainCloudRestClient implements Runnable {
             _packetId = 0;
             _blockingQueue = false;
             _networkErrorCallbackReadyToBeSent = false;
+            _networkErrorPacketId = NO_PACKET_EXPECTED;
+            _resendPacketId = NO_PACKET_EXPECTED;
+
+            _client.getAuthenticationService().clearSavedProfileId();
+            signal();
+        }
+
+        // responses to bundles still on the wire are dropped
+        synchronized (_inFlightBundles) {
+            _inFlightBundles.clear();
+            _inFlightBundles.notifyAll();
+            wakeSharedDispatcher();
+        }
+    }
+
+    public void registerEventCallback(IEventCallback callback) {
+        synchronized (_lock) {
+            _eventCallback = callback;
+        }
+    }
+
+    public void deregisterEventCallback() {
+        synchronized (_lock) {
+            _eventCallback = null;
+        }
+    }
+
+    public void registerRewardCallback(IRewardCallback in_rewardCallback) {
+        synchronized (_lock) {
+            _rewardCallback = in_rewardCallback;
+        }
+    }
+
+    public void deregisterRewardCallback() {
+        synchronized (_lock) {
+            _rewardCallback = null;
+        }
+    }
+
+    /**
+     * Registers a file upload callback handler to listen for status updates on uploads
+     *
+     * @param fileUploadCallback The file upload callback handler.
+     */
+    public void registerFileUploadCallback(IFileUploadCallback fileUploadCallback) {
+        _fileUploadCallback = fileUploadCallback;
+    }
+
+    /**
+     * Deregisters the file upload callback
+     */
+    public void deregisterFileUploadCallback() {
+        _fileUploadCallback = null;
+    }
+
+    public void registerGlobalErrorCallback(IGlobalErrorCallback in_globalErrorCallback) {
+        synchronized (_lock) {
+            _globalErrorCallback = in_globalErrorCallback;
+        }
+    }
+
+    public void deregisterGlobalErrorCallback() {
+        synchronized (_lock) {
+            _globalErrorCallback = null;
+        }
+    }
+
+    public void registerNetworkErrorCallback(INetworkErrorCallback in_networkErrorCallback) {
+        synchronized (_lock) {
+            _networkErrorCallback = in_networkErrorCallback;
+        }
+    }
+
+    public void deregisterNetworkErrorCallback() {
+        synchronized (_lock) {
+            _networkErrorCallback = null;
+        }
+    }
+
+    public ArrayList<Integer> getPacketTimeouts() {
+        return _packetTimeouts;
+    }
+
+    public void setPacketTimeouts(ArrayList<Integer> in_packetTimeouts) {
+        _packetTimeouts = in_packetTimeouts;
+    }
+
+    public void setPacketTimeoutsToDefault() {
+        _packetTimeouts = new ArrayList<>();
+        _packetTimeouts.add(15);
+        _packetTimeouts.add(20);
+        _packetTimeouts.add(35);
+        _packetTimeouts.add(50);
+    }
+
+    /**
+     * Derives the packet timeouts from the measured round trip time, TCP
+     * style: the smoothed rtt plus four times its variance, doubled on each
+     * retry and kept between the floor and the ceiling. Without a ceiling
+     * the packet timeouts are the ceiling, so a timeout is never longer
+     * than with the static list. Off by default, since calls that are slow
+     * on the server, such as large queries or scripts, would be timed out
+     * and sent again well before the packet timeouts.
+     *
+     * @param enabled true to derive the timeouts, false to use the packet timeouts as they are
+     */
+    public void setAdaptiveTimeouts(boolean enabled) {
+        _adaptiveTimeouts = enabled;
+    }
+
+    /**
+     * Sets the bounds of the adaptive packet timeouts.
+     *
+     * @param floorMillis Shortest timeout, 5 seconds by default
+     * @param ceilingMillis Longest timeout, 0 to use the packet timeouts
+     */
+    public void setAdaptiveTimeoutBounds(long floorMillis, long ceilingMillis) {
+        _timeoutFloorMillis = Math.max(1, floorMillis);
+        _timeoutCeilingMillis = Math.max(0, ceilingMillis);
+    }
+
+    /**
+     * @return The smoothed round trip time of bundles, 0 before the first sample
+     */
+    public long getSmoothedRttMillis() {
+        return _rttEstimator.getSmoothedRttMillis();
+    }
+
+    /**
+     * @return The round trip time variance of bundles
+     */
+    public long getRttVarianceMillis() {
+        return _rttEstimator.getRttVarianceMillis();
+    }
+
+    /**
+     * Sets the wait between send attempts of a bundle. Each wait is picked
+     * at random between the base and three times the previous wait, capped
+     * by the max and by the packet timeout of the attempt, so clients that
+     * failed together do not retry together.
+     *
+     * @param baseMillis Shortest wait between attempts
+     * @param maxMillis Longest wait between attempts
+     */
+    public void setRetryBackoff(long baseMillis, long maxMillis) {
+        _retryBackoffBaseMillis = Math.max(0, baseMillis);
+        _retryBackoffMaxMillis = Math.max(_retryBackoffBaseMillis, maxMillis);
+    }
+
+    /**
+     * Sets how long a circuit breaker stays open before it lets a probe
+     * call through. The time doubles each time a probe fails, up to the max.
+     *
+     * @param openMillis Open time after the breaker trips
+     * @param maxOpenMillis Longest open time
+     */
+    public void setCircuitBreakerOpenTime(long openMillis, long maxOpenMillis) {
+        _circuitOpenMillis = Math.max(0, openMillis);
+        _circuitMaxOpenMillis = Math.max(_circuitOpenMillis, maxOpenMillis);
+    }
+
+    /**
+     * @return The circuit breaker of the operation, or null if it has not been called
+     */
+    public CircuitBreaker getCircuitBreaker(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_circuitBreakers) {
+            return _circuitBreakers.get(serviceName.name() + "." + serviceOperation.name());
+        }
+    }
+
+    /**
+     * @return The circuit breakers of every operation called so far
+     */
+    public ArrayList<CircuitBreaker> getCircuitBreakers() {
+        synchronized (_circuitBreakers) {
+            return new ArrayList<>(_circuitBreakers.values());
+        }
+    }
+
+    /**
+     * Closes every circuit breaker.
+     */
+    public void resetCircuitBreakers() {
+        synchronized (_circuitBreakers) {
+            _circuitBreakers.clear();
+        }
+    }
+
+    public int getAuthenticationPacketTimeout() {
+        return _authenticationTimeoutMillis / 1000;
+    }
+
+    public void setAuthenticationPacketTimeout(int timeoutSecs) {
+        if (timeoutSecs > 0) {
+            _authenticationTimeoutMillis = timeoutSecs * 1000;
+        }
+    }
+
+    public void setOldStyleStatusMessageErrorCallback(boolean in_enabled) {
+        _oldStyleStatusMessageErrorCallback = in_enabled;
+    }
+
+    public void enableNetworkErrorMessageCaching(boolean in_enabled) {
+        synchronized (_lock) {
+            _cacheMessagesOnNetworkError = in_enabled;
+        }
+    }
+    
+    public String getAppId() {
+        return _appId;
+    }
+
+    public String getSessionId() {
+        return _sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        _sessionId = sessionId;
+    }
+
+
+    public long getHeartbeatInterval() {
+        return _heartbeatIntervalMillis;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        synchronized (_lock) {
+            _heartbeatIntervalMillis = heartbeatInterval;
+            signal();
+        }
+    }
+
+    /**
+     * Sets how many bundles may be awaiting a response at the same time.
+     * With the default of 1 the next bundle is only sent once the previous
+     * one has been answered. Larger values pipeline bundles; responses are
+     * still delivered to callbacks in the order the calls were queued, and
+     * bundles that change the session (authentication, identity, logout)
+     * are always sent on their own.
+     *
+     * @param maxInFlightBundles Number of outstanding packets, at least 1
+     */
+    public void setMaxInFlightBundles(int maxInFlightBundles) {
+        synchronized (_inFlightBundles) {
+            _maxInFlightBundles = Math.max(1, maxInFlightBundles);
+            _inFlightBundles.notifyAll();
+            wakeSharedDispatcher();
+        }
+    }
+
+    public int getMaxInFlightBundles() {
+        return _maxInFlightBundles;
+    }
+
+    /**
+     * Sets the policy that decides when queued calls are sent as a bundle.
+     *
+     * @param bundlePolicy The policy to use, null for the default
+     */
+    public void setBundlePolicy(BundlePolicy bundlePolicy) {
+        _bundlePolicy = bundlePolicy != null ? bundlePolicy : new BundlePolicy();
+    }
+
+    public BundlePolicy getBundlePolicy() {
+        return _bundlePolicy;
+    }
+
+    /**
+     * @return Counters for the bundles sent so far
+     */
+    public BundleStats getBundleStats() {
+        return _bundleStats;
+    }
 
-            _client.getAuthenticationService().clearSavedProfileId();
-        }
+    /**
+     * Sets how quickly queued calls gain priority while they wait. A call
+     * queued one interval before an interactive call is sent ahead of it
+     * even if it is a background call.
+     *
+     * @param agingMillis Aging interval in milliseconds
+     */
+    public void setPriorityAgingMillis(long agingMillis) {
+        _messageLanes.setAgingMillis(agingMillis);
     }
 
-    public void registerEventCallback(IEventCallback callback) {
-        synchronized (_lock) {
-            _eventCallback = callback;
-        }
+    public long getPriorityAgingMillis() {
+        return _messageLanes.getAgingMillis();
     }
 
-    public void deregisterEventCallback() {
-        synchronized (_lock) {
-            _eventCallback = null;
-        }
+    /**
+     * @return The number of calls currently waiting in the priority lane
+     */
+    public int getQueueDepth(CallPriority priority) {
+        return _messageLanes.getDepth(priority);
     }
 
-    public void registerRewardCallback(IRewardCallback in_rewardCallback) {
-        synchronized (_lock) {
-            _rewardCallback = in_rewardCallback;
-        }
+    /**
+     * @return The largest number of calls seen waiting in the priority lane
+     */
+    public int getMaxQueueDepth(CallPriority priority) {
+        return _messageLanes.getMaxDepth(priority);
     }
 
-    public void deregisterRewardCallback() {
-        synchronized (_lock) {
-            _rewardCallback = null;
-        }
+    /**
+     * @return The number of calls queued in the priority lane
+     */
+    public long getQueuedCount(CallPriority priority) {
+        return _messageLanes.getQueuedCount(priority);
     }
 
     /**
-     * Registers a file upload callback handler to listen for status updates on uploads
-     *
-     * @param fileUploadCallback The file upload callback handler.
+     * @return The average time calls of the priority lane waited to be bundled
      */
-    public void registerFileUploadCallback(IFileUploadCallback fileUploadCallback) {
-        _fileUploadCallback = fileUploadCallback;
+    public double getAverageQueueWaitMillis(CallPriority priority) {
+        return _messageLanes.getAverageWaitMillis(priority);
     }
 
     /**
-     * Deregisters the file upload callback
+     * @return The number of calls dropped from the priority lane to make room for others
      */
-    public void deregisterFileUploadCallback() {
-        _fileUploadCallback = null;
+    public long getDroppedCount(CallPriority priority) {
+        return _messageLanes.getDroppedCount(priority);
     }
 
-    public void registerGlobalErrorCallback(IGlobalErrorCallback in_globalErrorCallback) {
+    /**
+     * @return The number of calls waiting to be sent, those held by rate limits included
+     */
+    public int getQueueDepth() {
         synchronized (_lock) {
-            _globalErrorCallback = in_globalErrorCallback;
+            return _messageLanes.size() + _rateLimiter.getHeldCount() + _reservedQueueSlots;
         }
     }
 
-    public void deregisterGlobalErrorCallback() {
+    /**
+     * Bounds the calls waiting to be sent, so the queue cannot grow without
+     * limit while the network is down. Calls made while it is full are
+     * handled as the overflow policy says.
+     *
+     * With BLOCK, the calling thread waits for room for up to the block
+     * timeout, then the call fails. Calls made on the threads the queue
+     * drains through fail right away instead of waiting: the thread running
+     * runCallbacks, which bundles wait for while responses are pending, the
+     * callback executor's threads while they run callbacks, and the SDK's
+     * own threads.
+     *
+     * Durable calls recovered from the outbound journal are queued when
+     * their profile authenticates whatever the capacity, as they were
+     * accepted by an earlier run and have no callback to fail to. They count
+     * towards the depth, so calls made after them see a fuller queue.
+     *
+     * @param capacity Most calls waiting to be sent, or 0 for no bound, the default
+     * @param overflowPolicy What to do with a call made while the queue is full
+     */
+    public void setQueueCapacity(int capacity, QueueOverflowPolicy overflowPolicy) {
         synchronized (_lock) {
-            _globalErrorCallback = null;
+            _queueCapacity = Math.max(0, capacity);
+            _queueOverflowPolicy = overflowPolicy;
+            // waiting callers check the new capacity
+            _lock.notifyAll();
         }
     }
 
-    public void registerNetworkErrorCallback(INetworkErrorCallback in_networkErrorCallback) {
+    public int getQueueCapacity() {
         synchronized (_lock) {
-            _networkErrorCallback = in_networkErrorCallback;
+            return _queueCapacity;
         }
     }
 
-    public void deregisterNetworkErrorCallback() {
+    public QueueOverflowPolicy getQueueOverflowPolicy() {
         synchronized (_lock) {
-            _networkErrorCallback = null;
+            return _queueOverflowPolicy;
         }
     }
 
-    public ArrayList<Integer> getPacketTimeouts() {
-        return _packetTimeouts;
-    }
-
-    public void setPacketTimeouts(ArrayList<Integer> in_packetTimeouts) {
-        _packetTimeouts = in_packetTimeouts;
+    /**
+     * @param blockTimeoutMillis Longest a caller waits for room with the BLOCK policy, 5 seconds by default
+     */
+    public void setQueueBlockTimeout(long blockTimeoutMillis) {
+        synchronized (_lock) {
+            _queueBlockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+        }
     }
 
-    public void setPacketTimeoutsToDefault() {
-        _packetTimeouts = new ArrayList<>();
-        _packetTimeouts.add(15);
-        _packetTimeouts.add(20);
-        _packetTimeouts.add(35);
-        _packetTimeouts.add(50);
+    public long getQueueBlockTimeout() {
+        synchronized (_lock) {
+            return _queueBlockTimeoutMillis;
+        }
     }
 
-    public int getAuthenticationPacketTimeout() {
-        return _authenticationTimeoutMillis / 1000;
+    /**
+     * @return The number of calls failed for the queue being full
+     */
+    public long getQueueOverflowCount() {
+        synchronized (_lock) {
+            return _queueOverflowCount;
+        }
     }
 
-    public void setAuthenticationPacketTimeout(int timeoutSecs) {
-        if (timeoutSecs > 0) {
-            _authenticationTimeoutMillis = timeoutSecs * 1000;
+    public void resetQueueStats() {
+        _messageLanes.resetStats();
+        synchronized (_lock) {
+            _queueOverflowCount = 0;
         }
     }
 
-    public void setOldStyleStatusMessageErrorCallback(boolean in_enabled) {
-        _oldStyleStatusMessageErrorCallback = in_enabled;
+    /**
+     * @return The cache of read responses, configured per operation
+     */
+    public ResponseCache getResponseCache() {
+        return _responseCache;
     }
 
-    public void enableNetworkErrorMessageCaching(boolean in_enabled) {
-        synchronized (_lock) {
-            _cacheMessagesOnNetworkError = in_enabled;
+    /**
+     * Journals durable calls in the directory until the server has answered
+     * them, and queues the calls a previous run left unanswered again once
+     * their profile authenticates.
+     *
+     * @param directory Directory of the journal, or null to stop journaling
+     * @return false if the journal could not be opened
+     */
+    public boolean enableDurableQueue(File directory) {
+        OutboundJournal previous = _outboundJournal;
+        _outboundJournal = null;
+        if (previous != null) {
+            previous.close();
+        }
+        if (directory == null) {
+            return true;
+        }
+
+        try {
+            _outboundJournal = new OutboundJournal(directory, _loggingEnabled);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
-    }
-    
-    public String getAppId() {
-        return _appId;
     }
 
-    public String getSessionId() {
-        return _sessionId;
+    /**
+     * @return The outbound journal, or null if durable calls are not enabled
+     */
+    public OutboundJournal getOutboundJournal() {
+        return _outboundJournal;
     }
 
-    public void setSessionId(String sessionId) {
-        _sessionId = sessionId;
+    /**
+     * Records the raw bytes of every bundle sent and response received.
+     *
+     * @param recorder The recorder, or null to stop recording
+     */
+    public void setWireTraceRecorder(WireTraceRecorder recorder) {
+        _wireTraceRecorder = recorder;
     }
 
+    public WireTraceRecorder getWireTraceRecorder() {
+        return _wireTraceRecorder;
+    }
 
-    public long getHeartbeatInterval() {
-        return _heartbeatIntervalMillis;
+    /**
+     * @return The set of read operations whose identical calls in flight are merged
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return _requestCoalescer;
     }
 
-    public void setHeartbeatInterval(long heartbeatInterval) {
-        _heartbeatIntervalMillis = heartbeatInterval;
+    /**
+     * @return The rate limits of the operations the server throttles
+     */
+    public RateLimiter getRateLimiter() {
+        return _rateLimiter;
     }
 
     /**
      * Set the internal message queue polling interval.
      * @param pollIntervalMillis Poll interval in milliseconds
+     * @deprecated Has no effect, the queue is no longer polled: the rest thread wakes when a call is queued
      */
+    @Deprecated
     public void setMessageQueuePollInterval(long pollIntervalMillis) {
-        _messageQueuePollIntervalMillis = pollIntervalMillis;
     }
 
     public boolean isAuthenticated() {
@@ -473,6 +1486,10 @@ public class BrainCloudRestClient implements Runnable {
 
     public void enableLogging(boolean isEnabled) {
         _loggingEnabled = isEnabled;
+        OutboundJournal journal = _outboundJournal;
+        if (journal != null) {
+            journal.enableLogging(isEnabled);
+        }
     }
 
     public void retryCachedMessages() {
@@ -480,10 +1497,11 @@ public class BrainCloudRestClient implements Runnable {
             if (!_blockingQueue) {
                 return;
             }
-            --_packetId;
+            // the cached calls are resent with the packet id they failed with
             _serverResponses.clear();
             _blockingQueue = false;
             _networkErrorCallbackReadyToBeSent = false;
+            signal();
         }
     }
 
@@ -495,13 +1513,18 @@ public class BrainCloudRestClient implements Runnable {
 
             if (!in_sendApiErrorCallbacks) {
                 _serverResponses.clear();
+                for (ServerCall serverCall : _networkErrorMessageQueue) {
+                    _requestCoalescer.complete(serverCall);
+                }
             }
             // otherwise serverResponses will be populated and callbacks will be issued
             // from next runCallbacks
 
             _networkErrorMessageQueue.clear();
+            _networkErrorPacketId = NO_PACKET_EXPECTED;
             _blockingQueue = false;
             _networkErrorCallbackReadyToBeSent = false;
+            signal();
         }
     }
 
@@ -511,8 +1534,8 @@ public class BrainCloudRestClient implements Runnable {
         addToQueue(sc);
     }
 
-    private boolean shouldRetryPacket() {
-        for (ServerCall serverCall : _bundleQueue) {
+    private boolean shouldRetryPacket(PacketBundle bundle) {
+        for (ServerCall serverCall : bundle._calls) {
             if (serverCall != null) {
                 if (serverCall.getServiceName() == ServiceName.authenticationV2
                         && serverCall.getServiceOperation() == ServiceOperation.AUTHENTICATE) {
@@ -523,117 +1546,477 @@ public class BrainCloudRestClient implements Runnable {
         return true;
     }
 
-    private int getRetryTimeoutMillis(int retryAttempt) {
-        if (!shouldRetryPacket()) {
+    private int getRetryTimeoutMillis(PacketBundle bundle) {
+        if (!shouldRetryPacket(bundle)) {
             return _authenticationTimeoutMillis;
         }
 
-        return _packetTimeouts.get((retryAttempt >= _packetTimeouts.size()) ? (_packetTimeouts.size() - 1) : retryAttempt) * 1000;
+        int retryAttempt = bundle._retryCount;
+        long timeoutMillis = _packetTimeouts.get((retryAttempt >= _packetTimeouts.size()) ? (_packetTimeouts.size() - 1) : retryAttempt) * 1000L;
+
+        long rttTimeout = _rttEstimator.getTimeoutMillis();
+        if (_adaptiveTimeouts && rttTimeout > 0) {
+            long ceiling = _timeoutCeilingMillis > 0 ? _timeoutCeilingMillis : timeoutMillis;
+            long backedOff = rttTimeout << Math.min(retryAttempt, 10);
+            timeoutMillis = Math.min(ceiling, Math.max(_timeoutFloorMillis, backedOff));
+        }
+
+        long deadline = bundle.getDeadline();
+        if (deadline > 0) {
+            // 0 would mean no timeout at all
+            timeoutMillis = Math.min(timeoutMillis, Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        return (int) timeoutMillis;
+    }
+
+    /**
+     * Picks the wait before the next attempt with decorrelated jitter:
+     * random between the base and three times the previous wait, capped by
+     * the max backoff and the packet timeout of the attempt.
+     */
+    private long getRetryDelayMillis(PacketBundle bundle) {
+        long base = _retryBackoffBaseMillis;
+        long cap = Math.min(_retryBackoffMaxMillis, getRetryTimeoutMillis(bundle));
+        long upper = Math.max(base, bundle._retryDelayMillis * 3);
+        long delay = upper > base ? base + ThreadLocalRandom.current().nextLong(upper - base + 1) : base;
+        bundle._retryDelayMillis = Math.min(cap, delay);
+        return bundle._retryDelayMillis;
     }
 
-    private int getMaxSendAttempts() {
-        if (!shouldRetryPacket()) {
+    private int getMaxSendAttempts(PacketBundle bundle) {
+        if (!shouldRetryPacket(bundle)) {
             return 1;
         }
         return _packetTimeouts.size();
     }
 
     public void run() {
-        while (!_thread.isInterrupted()) {
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (_lock) {
+                // sleep until initialize, retryCachedMessages or flushCachedMessages
+                if (!_isInitialized || _blockingQueue) {
+                    waitForSignal(0);
+                    continue;
+                }
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Runs on the shared dispatcher whenever the client has work, and
+     * schedules itself again for as long as bundles go out.
+     */
+    private void runSharedPass() {
+        synchronized (_lock) {
             if (!_isInitialized || _blockingQueue) {
+                return;
+            }
+        }
+        if (dispatch()) {
+            wakeSharedDispatcher();
+        }
+    }
+
+    /**
+     * Sends the next bundle, or a heartbeat when one is due. The rest thread
+     * waits in here for calls and for the send window; a pass of the shared
+     * dispatcher returns instead and is woken up again by them.
+     *
+     * @return true if a bundle was sent or failed
+     */
+    private boolean dispatch() {
+        synchronized (_lock) {
+            if (_networkErrorMessageQueue.size() > 0) {
+                _bundleQueue.addAll(_networkErrorMessageQueue);
+                _networkErrorMessageQueue.clear();
+                _resendPacketId = _networkErrorPacketId;
+                _networkErrorPacketId = NO_PACKET_EXPECTED;
+                _flushReason = BundleStats.FlushReason.RESEND;
+            }
+        }
+        if (_bundleQueue.isEmpty()) {
+            fillBundle();
+            if (!_bundleQueue.isEmpty()) {
+                wakeBlockedCallers();
+            }
+        }
+
+        if (_bundleQueue.isEmpty() || !_isInitialized) {
+            return false;
+        }
+        PacketBundle bundle = new PacketBundle(new ArrayList<>(_bundleQueue), _resendPacketId);
+
+        // wait for the previous bundles to be answered first if this one
+        // depends on the session they may change
+        if (_registration == null) {
+            waitForSendWindow(bundle.isBarrier());
+        } else if (!isSendWindowOpen(bundle.isBarrier())) {
+            // the calls stay queued, completing a bundle wakes the dispatcher up
+            return false;
+        }
+        _bundleQueue.clear();
+        _resendPacketId = NO_PACKET_EXPECTED;
+
+        boolean isAuth = _isAuthenticated;
+        if (!isAuth || bundle.size() > 1) {
+            Iterator<ServerCall> iter = bundle._calls.iterator();
+            while (iter.hasNext()) {
+                ServerCall serverCall = iter.next();
+                if (serverCall.getServiceOperation() == ServiceOperation.AUTHENTICATE ||
+                        serverCall.getServiceOperation() == ServiceOperation.RESET_EMAIL_PASSWORD||
+                        serverCall.getServiceOperation() == ServiceOperation.RESET_EMAIL_PASSWORD_ADVANCED ||
+                        serverCall.getServiceOperation() == ServiceOperation.GET_SERVER_VERSION) {
+                    isAuth = true;
+                } 
+                else if (serverCall.getServiceName() == ServiceName.heartbeat) {
+                    iter.remove();
+                }
+            }
+        }
+        if (isAuth && bundle._packetId == NO_PACKET_EXPECTED) {
+            // resends keep their calls so the packet id still matches them
+            rejectExpiredCalls(bundle);
+            rejectOpenCircuits(bundle);
+        }
+        if (bundle.size() == 0) {
+            return true;
+        }
+        if (!isAuth) {
+            fakeErrorResponse(bundle, _statusCodeCache, _reasonCodeCache, _statusMessageCache);
+        } 
+        else {
+            if (bundle._packetId == NO_PACKET_EXPECTED) {
+                bundle._packetId = _packetId++;
+            }
+            _bundleStats.recordBundle(bundle.size(), _maxBundleSize, getPayloadBytes(bundle), _flushReason);
+            dispatchBundle(bundle);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the calls whose deadline passed while they were queued out of
+     * the bundle and fails them without sending.
+     */
+    private void rejectExpiredCalls(PacketBundle bundle) {
+        long now = System.currentTimeMillis();
+        ArrayList<ServerCall> expired = null;
+        Iterator<ServerCall> iter = bundle._calls.iterator();
+        while (iter.hasNext()) {
+            ServerCall serverCall = iter.next();
+            if (serverCall.getDeadline() > 0 && serverCall.getDeadline() <= now) {
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(serverCall);
+                iter.remove();
+            }
+        }
+
+        if (expired != null) {
+            fakeErrorResponse(new PacketBundle(expired, NO_PACKET_EXPECTED), StatusCodes.CLIENT_NETWORK_ERROR,
+                    ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "Deadline exceeded before the call was sent");
+        }
+    }
+
+    /**
+     * Takes the calls whose circuit breaker is open out of the bundle and
+     * fails them without sending.
+     */
+    private void rejectOpenCircuits(PacketBundle bundle) {
+        long now = System.currentTimeMillis();
+        ArrayList<ServerCall> rejected = null;
+        Iterator<ServerCall> iter = bundle._calls.iterator();
+        while (iter.hasNext()) {
+            ServerCall serverCall = iter.next();
+            CircuitBreaker breaker = getCircuitBreaker(serverCall);
+            if (breaker != null && !breaker.allowRequest(now, getRetryTimeoutMillis(bundle))) {
+                if (rejected == null) {
+                    rejected = new ArrayList<>();
+                }
+                rejected.add(serverCall);
+                iter.remove();
+            }
+        }
+
+        if (rejected != null) {
+            ServerCall first = rejected.get(0);
+            fakeErrorResponse(new PacketBundle(rejected, NO_PACKET_EXPECTED), StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_DISABLED,
+                    "Circuit open due to repeated errors from the API call: " + first.getServiceName() + " | " + first.getServiceOperation());
+        }
+    }
+
+    /**
+     * @return The circuit breaker of the call's operation, created on first use
+     */
+    private CircuitBreaker getCircuitBreaker(ServerCall serverCall) {
+        if (serverCall.getServiceName() == null || serverCall.getServiceOperation() == null) {
+            return null;
+        }
+        String key = serverCall.getServiceName().name() + "." + serverCall.getServiceOperation().name();
+        synchronized (_circuitBreakers) {
+            CircuitBreaker breaker = _circuitBreakers.get(key);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(serverCall.getServiceName(), serverCall.getServiceOperation());
+                _circuitBreakers.put(key, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    private boolean canSend(boolean isBarrier) {
+        if (_inFlightBundles.isEmpty()) {
+            return true;
+        }
+        if (isBarrier || _inFlightBundles.size() >= _maxInFlightBundles) {
+            return false;
+        }
+        for (PacketBundle inFlight : _inFlightBundles) {
+            if (inFlight.isBarrier()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSendWindowOpen(boolean isBarrier) {
+        synchronized (_inFlightBundles) {
+            return canSend(isBarrier);
+        }
+    }
+
+    private void waitForSendWindow(boolean isBarrier) {
+        synchronized (_inFlightBundles) {
+            while (!canSend(isBarrier)) {
                 try {
-                    Thread.sleep(400);
-                } catch (InterruptedException ignored) {
+                    _inFlightBundles.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-            } 
-            else {
-                if (_networkErrorMessageQueue.size() > 0) {
-                    _bundleQueue.addAll(_networkErrorMessageQueue);
-                    _networkErrorMessageQueue.clear();
-                } 
-                else {
-                    fillBundle();
+            }
+        }
+    }
+
+    private void dispatchBundle(final PacketBundle bundle) {
+        synchronized (_inFlightBundles) {
+            _inFlightBundles.addLast(bundle);
+        }
+
+        SharedDispatcher.Registration registration = _registration;
+        if (registration != null) {
+            startSend(bundle);
+            if (_maxInFlightBundles <= 1) {
+                sendShared(bundle);
+            } else {
+                registration.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendShared(bundle);
+                    }
+                }, 0);
+            }
+            return;
+        }
+
+        if (_maxInFlightBundles <= 1) {
+            sendWithRetries(bundle);
+            return;
+        }
+
+        getSenderExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                sendWithRetries(bundle);
+            }
+        });
+    }
+
+    private ExecutorService getSenderExecutor() {
+        synchronized (_inFlightBundles) {
+            if (_senderExecutor == null) {
+                _senderExecutor = SdkThreads.newTaskExecutor("braincloud-sender");
+            }
+            return _senderExecutor;
+        }
+    }
+
+    private void sendWithRetries(PacketBundle bundle) {
+        startSend(bundle);
+        for (; ; ) {
+            long delayMs = getRetryDelayMillis(bundle);
+            long startTime = System.currentTimeMillis();
+            if (attemptSend(bundle, startTime)) {
+                break;
+            }
+
+            long endTime = System.currentTimeMillis();
+            if (endTime < startTime + delayMs) {
+                try {
+                    Thread.sleep((startTime + delayMs) - endTime);
+                } catch (InterruptedException e) {
+                    // closed, the remaining attempts go out without waiting
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        finishSend(bundle);
+    }
+
+    /**
+     * Sends on the shared dispatcher, scheduling the next attempt after the
+     * backoff rather than sleeping on a pool thread.
+     */
+    private void sendShared(final PacketBundle bundle) {
+        long delayMs = getRetryDelayMillis(bundle);
+        long startTime = System.currentTimeMillis();
+        if (attemptSend(bundle, startTime)) {
+            finishSend(bundle);
+            return;
+        }
+
+        SharedDispatcher.Registration registration = _registration;
+        if (registration == null) {
+            // closed while retrying
+            finishSend(bundle);
+            return;
+        }
+        registration.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendShared(bundle);
+            }
+        }, startTime + delayMs - System.currentTimeMillis());
+    }
+
+    private void startSend(PacketBundle bundle) {
+        bundle._retryCount = 0;
+        bundle._retryDelayMillis = 0;
+        bundle._writer = acquireBundleWriter();
+    }
+
+    /**
+     * @return true once the bundle has been answered or has run out of attempts
+     */
+    private boolean attemptSend(PacketBundle bundle, long startTime) {
+        if (sendBundle(bundle)) {
+            if (bundle._retryCount == 0 && !bundle._isError) {
+                long rttMillis = System.currentTimeMillis() - startTime;
+                _rttEstimator.addSample(rttMillis);
+                IMetricsRecorder metrics = _metricsRecorder;
+                if (metrics != null) {
+                    metrics.record(Metric.BUNDLE_RTT_MILLIS, rttMillis);
+                }
+            }
+            return true;
+        }
+
+        ++bundle._retryCount;
+        IMetricsRecorder metrics = _metricsRecorder;
+        if (metrics != null) {
+            metrics.increment(Metric.RETRIES, 1);
+        }
+        return false;
+    }
+
+    private void finishSend(PacketBundle bundle) {
+        releaseBundleWriter(bundle._writer);
+        bundle._writer = null;
+        bundle._isEncoded = false;
+        completeBundle(bundle);
+    }
+
+    /**
+     * Marks the bundle as answered and delivers every completed bundle at the
+     * head of the send window, so results always come out in packet id order.
+     */
+    private void completeBundle(PacketBundle bundle) {
+        synchronized (_deliveryLock) {
+            ArrayList<PacketBundle> ready = new ArrayList<>();
+            synchronized (_inFlightBundles) {
+                bundle._isComplete = true;
+                while (!_inFlightBundles.isEmpty() && _inFlightBundles.peekFirst()._isComplete) {
+                    ready.add(_inFlightBundles.pollFirst());
                 }
+                _inFlightBundles.notifyAll();
+                wakeSharedDispatcher();
+            }
 
-                if (_bundleQueue.size() > 0 && _isInitialized) {
-                    boolean isAuth = _isAuthenticated;
-                    if (!isAuth || _bundleQueue.size() > 1) {
-                        Iterator<ServerCall> iter = _bundleQueue.iterator();
-                        while (iter.hasNext()) {
-                            ServerCall serverCall = iter.next();
-                            if (serverCall.getServiceOperation() == ServiceOperation.AUTHENTICATE ||
-                                    serverCall.getServiceOperation() == ServiceOperation.RESET_EMAIL_PASSWORD||
-                                    serverCall.getServiceOperation() == ServiceOperation.RESET_EMAIL_PASSWORD_ADVANCED ||
-                                    serverCall.getServiceOperation() == ServiceOperation.GET_SERVER_VERSION) {
-                                isAuth = true;
-                            } 
-                            else if (serverCall.getServiceName() == ServiceName.heartbeat) {
-                                iter.remove();
-                            }
-                        }
-                    }
-                    if(!_killSwitchEngaged) {
-                        if (!isAuth) {
-                            fakeErrorResponse(_statusCodeCache, _reasonCodeCache, _statusMessageCache);
-                        } 
-                        else {
-                            _retryCount = 0;
-                            _expectedPacketId = _packetId++;
-                            for (; ; ) {
-                                long timeoutTimeMs = getRetryTimeoutMillis(_retryCount);
-                                long startTime = System.currentTimeMillis();
-                                if (sendBundle()) {
-                                    break;
-                                }
+            for (PacketBundle completed : ready) {
+                deliverBundle(completed);
+            }
+        }
+        submitCallbackTasks();
+    }
 
-                                ++_retryCount;
+    private void deliverBundle(PacketBundle bundle) {
+        if (!bundle._isError) {
+            try {
+                handleBundle(bundle);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                fillWithError(bundle, StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "Network error");
+            }
+            return;
+        }
 
-                                long endTime = System.currentTimeMillis();
-                                if (endTime < startTime + timeoutTimeMs) {
-                                    try {
-                                        Thread.sleep((startTime + timeoutTimeMs) - endTime);
-                                    } catch (Exception e) {
-                                        e.printStackTrace();
-                                    }
-                                }
+        if (bundle._cacheOnError) {
+            synchronized (_lock) {
+                if (_networkErrorMessageQueue.isEmpty()) {
+                    _networkErrorPacketId = bundle._packetId;
+                }
+                _networkErrorMessageQueue.addAll(bundle.getUndispatchedCalls());
+                _blockingQueue = true;
+                if (_callbackExecutor == null) {
+                    _networkErrorCallbackReadyToBeSent = true;
+                } else {
+                    _callbackTasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            INetworkErrorCallback networkErrorCallback = _networkErrorCallback;
+                            if (networkErrorCallback != null) {
+                                networkErrorCallback.networkError();
                             }
                         }
-                    }
-                    else
-                    {
-                        fakeErrorResponse(StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_DISABLED,
-                                "Client has been disabled due to repeated errors from a single API call");
-                    }
+                    });
                 }
             }
         }
+        fillWithError(bundle, bundle._errorStatusCode, bundle._errorReasonCode, bundle._errorStatusMessage);
     }
 
-    public void fakeErrorResponse(int statusCode, int reasonCode, String statusMessage)
+    private void fakeErrorResponse(PacketBundle bundle, int statusCode, int reasonCode, String statusMessage)
     {
         if (_loggingEnabled) {
             try {
-                String body = getDataString();
+                String body = getDataString(bundle);
                 JSONObject jlog = new JSONObject(body);
-                LogString("OUTGOING" + (_retryCount > 0 ? " retry(" + _retryCount + "): " : ": ") + jlog.toString(2));
+                LogString("OUTGOING" + (bundle._retryCount > 0 ? " retry(" + bundle._retryCount + "): " : ": ") + jlog.toString(2));
             } catch (JSONException e) {
                 e.printStackTrace();
             }
         }
 
-        fillWithError(statusCode, reasonCode, statusMessage);
+        // goes through the send window so it is not delivered ahead of earlier bundles
+        bundle.setError(statusCode, reasonCode, statusMessage, false);
+        synchronized (_inFlightBundles) {
+            _inFlightBundles.addLast(bundle);
+        }
+        completeBundle(bundle);
 
         if (_loggingEnabled) {
-            ArrayList<JSONObject> responses = new ArrayList<>(_serverResponses.size());
+            JSONObject jsonError = createErrorJson(statusCode, reasonCode, statusMessage);
+            ArrayList<JSONObject> responses = new ArrayList<>(bundle.size());
 
-            for (ServerResponse response : _serverResponses) {
-                responses.add(response._data);
+            for (int i = 0; i < bundle.size(); ++i) {
+                responses.add(jsonError);
             }
 
             try {
                 JSONObject responseBody = new JSONObject();
                 JSONArray responseArray = new JSONArray(responses);
-                responseBody.put("packetId", _expectedPacketId);
+                responseBody.put("packetId", bundle._packetId);
                 responseBody.put("responses", responseArray);
                 LogString("INCOMING (" + 200 + "): " + responseBody.toString(2));
             } catch (JSONException e) {
@@ -649,99 +2032,223 @@ public class BrainCloudRestClient implements Runnable {
         }
     }
 
-    private void fillBundle() {
-        // we will wait here until the message queue has records
-        long polltime = _heartbeatIntervalMillis;
-        if (_isAuthenticated) {
-            polltime = System.currentTimeMillis() + _heartbeatIntervalMillis - _lastSendTime;
-            if (polltime < 0) {
-                polltime = 500L;
-            }
+    /**
+     * Waits on _lock until it is notified or the timeout expires. Must be
+     * called with _lock held.
+     *
+     * @param timeoutMillis Longest wait in milliseconds, 0 to wait for a notify
+     */
+    private void waitForSignal(long timeoutMillis) {
+        try {
+            _lock.wait(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        //LogString("poll time - " + polltime);
+    }
 
-        boolean hasRecords = false;
-        try {
-            hasRecords = this._messageQueueCount.tryAcquire(1, polltime, TimeUnit.MILLISECONDS);
+    /**
+     * Waits on _lock like waitForSignal on the rest thread. A pass of the
+     * shared dispatcher cannot wait: the wake up is scheduled instead and the
+     * pass has to end. Must be called with _lock held.
+     *
+     * @param timeoutMillis Longest wait in milliseconds, 0 to wait for a signal
+     * @return false if the caller must return rather than check again
+     */
+    private boolean waitForWork(long timeoutMillis) {
+        SharedDispatcher.Registration registration = _registration;
+        if (registration == null) {
+            waitForSignal(timeoutMillis);
+            return true;
         }
-        catch (InterruptedException e) {
+        if (timeoutMillis > 0) {
+            registration.wakeAfter(timeoutMillis);
         }
+        return false;
+    }
 
-        //waiting for callbacks to be run
-        // do a one second sleep so we don't hit this too hard
-        // return the sempahore permit if required
-        if(_serverResponses.peek() != null) {
-            try {
-                Thread.sleep(1000);
-                // if we aquired a permit for the queue return it
-                if (hasRecords) {
-                    _messageQueueCount.release();
+    private void fillBundle() {
+        // we will wait here until calls are queued or the heartbeat is due.
+        // No new bundle is started while responses are waiting for runCallbacks
+        synchronized (_lock) {
+            while (true) {
+                if (!_isInitialized || _blockingQueue || Thread.currentThread().isInterrupted()) {
+                    return;
                 }
-            }
-            catch (InterruptedException e) {
-            }
-            return;
-        }
 
-        //check for heartbeat if no data in queue
-        if(!hasRecords) {
-            if (System.currentTimeMillis() - _lastSendTime > _heartbeatIntervalMillis && _isAuthenticated) {
-                ServerCall serverCall = new ServerCall(ServiceName.heartbeat, ServiceOperation.READ, null, null);
-                _bundleQueue.add(serverCall);
-                return;
+                if (!_serverResponses.isEmpty()) {
+                    if (!waitForWork(0)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                long releaseDelay = releaseRateLimitedCalls();
+                if (_messageLanes.size() > 0) {
+                    break;
+                }
+
+                //check for heartbeat if no data in queue
+                if (!_isAuthenticated) {
+                    if (!waitForWork(releaseDelay)) {
+                        return;
+                    }
+                    continue;
+                }
+                long heartbeatDelay = _lastSendTime + _heartbeatIntervalMillis - System.currentTimeMillis();
+                if (heartbeatDelay <= 0) {
+                    ServerCall serverCall = new ServerCall(ServiceName.heartbeat, ServiceOperation.READ, null, null);
+                    _bundleQueue.add(serverCall);
+                    _flushReason = BundleStats.FlushReason.HEARTBEAT;
+                    return;
+                }
+                if (!waitForWork(releaseDelay > 0 ? Math.min(releaseDelay, heartbeatDelay) : heartbeatDelay)) {
+                    return;
+                }
             }
-            else return;
         }
 
         // Handle auth first and alone
-        Iterator<ServerCall> it = _messageQueue.iterator();
-        while(it.hasNext()){
-            ServerCall call = it.next();
-            if(call.isEndOfBundleMarker()) break;
-
-            if(call.getServiceOperation() == ServiceOperation.AUTHENTICATE) {
-                it.remove();
-                _bundleQueue.add(call);
-                return;
+        ServerCall authCall = _messageLanes.pollAuthenticate(System.currentTimeMillis());
+        if (authCall != null) {
+            _bundleQueue.add(authCall);
+            _flushReason = BundleStats.FlushReason.AUTHENTICATE;
+            return;
+        }
+
+        BundlePolicy policy = _bundlePolicy;
+        long lingerMillis = policy.getLingerMillis();
+        int targetBundleBytes = policy.getTargetBundleBytes();
+        int maxBundleBytes = policy.getMaxBundleBytes();
+        long lingerDeadline = System.currentTimeMillis() + lingerMillis;
+
+        SharedDispatcher.Registration registration = _registration;
+        if (registration != null) {
+            // a pass cannot wait for more calls, so the linger starts with the
+            // first pass to find calls queued and ends early on a full bundle
+            long now = System.currentTimeMillis();
+            if (lingerMillis > 0 && _messageLanes.size() < _maxBundleSize) {
+                if (_lingerDeadline == 0) {
+                    _lingerDeadline = now + lingerMillis;
+                }
+                if (now < _lingerDeadline) {
+                    registration.wakeAfter(_lingerDeadline - now);
+                    return;
+                }
             }
+            _lingerDeadline = 0;
+            lingerDeadline = now;
         }
+        long bundleBytes = 0;
+        long segment = _messageLanes.peekSegment();
+
+        //fill bundle by priority, lingering for more calls if the policy asks for it
+        while (true) {
+            while (_bundleQueue.size() < _maxBundleSize && _messageLanes.size() > 0) {
+
+                // calls after an end of bundle marker go in the next bundle
+                ServerCall serverCall = _messageLanes.peek(segment);
+                if (serverCall == null) {
+                    _flushReason = BundleStats.FlushReason.END_OF_BUNDLE_MARKER;
+                    return;
+                }
 
-        // quick adjustment to make the following code more straightforward
-        _messageQueueCount.release();
+                int callBytes = targetBundleBytes > 0 || maxBundleBytes > 0 ? getPayloadBytes(serverCall) : 0;
+                if (maxBundleBytes > 0 && !_bundleQueue.isEmpty() && bundleBytes + callBytes > maxBundleBytes) {
+                    // leave the call queued for the next bundle
+                    _flushReason = BundleStats.FlushReason.MAX_BYTES;
+                    return;
+                }
+                if (!_messageLanes.remove(serverCall, System.currentTimeMillis())) {
+                    // the queue was reset meanwhile
+                    return;
+                }
 
-        //fill bundle
-        while (_bundleQueue.size() < _maxBundleSize && _messageQueue.size() > 0) {
+                _bundleQueue.add(serverCall);
+                bundleBytes += callBytes;
 
-            // Do a blocking poll for messages
-            ServerCall serverCall = null;
-            try {
-                serverCall = _messageQueue.poll();
-                // re acquire permit
-                _messageQueueCount.acquire();
+                if (maxBundleBytes > 0 && callBytes > maxBundleBytes) {
+                    // too big to share a bundle, so it goes alone
+                    IMetricsRecorder metrics = _metricsRecorder;
+                    if (metrics != null) {
+                        metrics.increment(Metric.OVERSIZED_CALLS, 1);
+                    }
+                    _flushReason = BundleStats.FlushReason.OVERSIZED;
+                    return;
+                }
+                if (policy.isImmediate(serverCall)) {
+                    _flushReason = BundleStats.FlushReason.IMMEDIATE;
+                    return;
+                }
+                if (targetBundleBytes > 0 && bundleBytes >= targetBundleBytes) {
+                    _flushReason = BundleStats.FlushReason.TARGET_BYTES;
+                    return;
+                }
+            }
+
+            if (_bundleQueue.size() >= _maxBundleSize) {
+                _flushReason = BundleStats.FlushReason.FULL;
+                return;
             }
-            catch (InterruptedException e) {
+
+            long remaining = lingerDeadline - System.currentTimeMillis();
+            if (remaining <= 0 || _bundleQueue.isEmpty()) {
+                _flushReason = lingerMillis > 0 ? BundleStats.FlushReason.LINGER_EXPIRED : BundleStats.FlushReason.QUEUE_DRAINED;
+                return;
             }
 
-            if (serverCall.isEndOfBundleMarker())
+            // addToQueue wakes us up as soon as another call is queued
+            synchronized (_lock) {
+                if (_messageLanes.size() == 0) {
+                    waitForSignal(remaining);
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
                 return;
+            }
+        }
+    }
+
+    private long getPayloadBytes(PacketBundle bundle) {
+        long bytes = 0;
+        for (ServerCall serverCall : bundle._calls) {
+            bytes += getPayloadBytes(serverCall);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The encoded size of the call, which is cached on the call for the send
+     */
+    private int getPayloadBytes(ServerCall serverCall) {
+        BundleWriter writer = acquireBundleWriter();
+        try {
+            return writer.encodePayload(serverCall).length;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            releaseBundleWriter(writer);
+        }
+    }
 
-            _bundleQueue.add(serverCall);
+    private JSONObject createErrorJson(int statusCode, int reasonCode, String statusMessage) {
+        JSONObject jsonError = new JSONObject();
+        try {
+            jsonError.put("status", statusCode);
+            jsonError.put("reason_code", reasonCode);
+            jsonError.put("severity", "ERROR");
+            jsonError.put("status_message", statusMessage);
+        } catch (JSONException je) {
+            je.printStackTrace();
         }
+        return jsonError;
     }
 
-    private void fillWithError(int statusCode, int reasonCode, String statusMessage) {
+    private void fillWithError(PacketBundle bundle, int statusCode, int reasonCode, String statusMessage) {
         synchronized (_lock) {
-            JSONObject jsonError = new JSONObject();
-            try {
-                jsonError.put("status", statusCode);
-                jsonError.put("reason_code", reasonCode);
-                jsonError.put("severity", "ERROR");
-                jsonError.put("status_message", statusMessage);
-            } catch (JSONException je) {
-                je.printStackTrace();
-            }
+            JSONObject jsonError = createErrorJson(statusCode, reasonCode, statusMessage);
 
-            for (ServerCall serverCall : _bundleQueue) {
+            for (ServerCall serverCall : bundle.getUndispatchedCalls()) {
                 ServerResponse response = new ServerResponse();
                 response._serverCall = serverCall;
                 response._isError = true;
@@ -750,195 +2257,361 @@ public class BrainCloudRestClient implements Runnable {
                 response._statusMessage = statusMessage;
                 response._data = jsonError;
 
-                _serverResponses.push(response);
+                recordCall(serverCall, false);
+                queueResponse(response);
             }
-            _bundleQueue.clear();
         }
     }
 
     /** Returns true if the max retry count was reached. false should attempt a retry */
-    private boolean onTimeout() {
-        if (_retryCount < getMaxSendAttempts()) {
+    private boolean onTimeout(PacketBundle bundle) {
+        long deadline = bundle.getDeadline();
+        boolean isPastDeadline = deadline > 0 && System.currentTimeMillis() >= deadline;
+        if (bundle._retryCount < getMaxSendAttempts(bundle) && !isPastDeadline) {
             // allow retry of this packet
             return false;
         }
 
-        if (_cacheMessagesOnNetworkError) {
-            _networkErrorMessageQueue.clear();
-            _networkErrorMessageQueue.addAll(_bundleQueue);
-            _networkErrorCallbackReadyToBeSent = true;
-            _blockingQueue = true;
-        }
-
-        fillWithError(StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "timeout");
+        bundle.setError(StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "timeout", _cacheMessagesOnNetworkError);
         return true;
     }
 
-    private boolean sendBundle() {
-        HttpURLConnection connection = null;
+    private boolean sendBundle(PacketBundle bundle) {
+        IRestTransport.Response response = null;
+        int statusCode = 0;
+        WireTraceRecorder recorder = _wireTraceRecorder;
+        WireTraceRecorder.CaptureInputStream capture = null;
         try {
-            connection = (HttpURLConnection) new URL(_serverUrl).openConnection();
-            connection.setConnectTimeout(getRetryTimeoutMillis(_retryCount));
-            connection.setReadTimeout(getRetryTimeoutMillis(_retryCount));
-            connection.setDoOutput(true);
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
+            BundleWriter writer = bundle._writer;
+            if (!bundle._isEncoded) {
+                // encoded once per bundle, retries resend the same bytes
+                writer.writeBundle(bundle, _appId, _sessionId);
+                bundle._signature = _secretKey.length() > 0 ? writer.sign(_secretKey) : null;
+                if (_compressRequests) {
+                    writer.compress();
+                }
+                bundle._isEncoded = true;
+
+                IMetricsRecorder metrics = _metricsRecorder;
+                if (metrics != null) {
+                    metrics.record(Metric.BUNDLE_MESSAGES, bundle.size());
+                    metrics.record(Metric.BUNDLE_BYTES, writer.getBodyLength());
+                    if (_compressRequests) {
+                        metrics.record(Metric.BUNDLE_WIRE_BYTES, writer.getCompressedLength());
+                        metrics.record(Metric.GZIP_RATIO_PERCENT, writer.getCompressedLength() * 100L / Math.max(1, writer.getBodyLength()));
+                    } else {
+                        metrics.record(Metric.BUNDLE_WIRE_BYTES, writer.getBodyLength());
+                    }
+                }
+            }
 
-            String body = getDataString();
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "application/json");
 
-            if (_secretKey.length() > 0) {
-                connection.setRequestProperty("X-SIG", getSignature(body));
+            if (bundle._signature != null) {
+                headers.put("X-SIG", bundle._signature);
             }
 
-            connection.setRequestProperty("X-APPID", _appId);
+            headers.put("X-APPID", _appId);
 
             if (_compressRequests) {
-                connection.setRequestProperty("Content-Encoding", "gzip");
-                connection.setRequestProperty("Accept-Encoding", "gzip");
+                headers.put("Content-Encoding", "gzip");
+                headers.put("Accept-Encoding", "gzip");
             }
 
-            connection.setRequestProperty("charset", "utf-8");
-            byte[] postData = body.getBytes("UTF-8");
+            headers.put("charset", "utf-8");
+
+            // the body is compressed up front so it can be sent with a fixed length
+            byte[] postData = _compressRequests ? writer.getCompressed() : writer.getBody();
+            int postLength = _compressRequests ? writer.getCompressedLength() : writer.getBodyLength();
+
+            IMetricsRecorder metrics = _metricsRecorder;
+            if (metrics != null) {
+                metrics.increment(Metric.BYTES_SENT, postLength);
+            }
 
             // to avoid taking the json parsing hit even when logging is disabled
             if (_loggingEnabled) {
                 try {
-                    JSONObject jlog = new JSONObject(body);
-                    LogString("OUTGOING" + (_retryCount > 0 ? " retry(" + _retryCount + "): " : ": ") + jlog.toString(2) + ", t: " + new Date().toString());
+                    JSONObject jlog = new JSONObject(writer.getBodyString());
+                    LogString("OUTGOING" + (bundle._retryCount > 0 ? " retry(" + bundle._retryCount + "): " : ": ") + jlog.toString(2) + ", t: " + new Date().toString());
                 } catch (JSONException e) {
                     // should never happen
                     e.printStackTrace();
                 }
             }
 
-            _lastSendTime = System.currentTimeMillis();
+            if (recorder != null) {
+                recorder.recordRequest(bundle, writer.getBody(), 0, writer.getBodyLength());
+            }
 
-            connection.connect();
+            _lastSendTime = System.currentTimeMillis();
 
-            DataOutputStream wr = null;
+            int timeoutMillis = getRetryTimeoutMillis(bundle);
+            response = getTransport().send(_serverUrl, headers, postData, 0, postLength, timeoutMillis, timeoutMillis);
+            statusCode = response.getStatusCode();
 
-            if (_compressRequests) {
-                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(connection.getOutputStream());
-                wr = new DataOutputStream(gzipOutputStream);
-            } else {
-                wr = new DataOutputStream(connection.getOutputStream());
+            if (statusCode == 503 ||
+                statusCode == 502 ||
+                statusCode == 504) {
+                return onTimeout(bundle);
             }
-            try {
-                wr.write(postData);
-            } finally {
-                wr.close();
+            if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                onNetworkError(bundle);
+                return true;
             }
 
             // Get server response
-            BufferedReader reader = null;
+            InputStream in = response.getBody();
 
-            String encoding = connection.getHeaderField("Content-Encoding");
+            String encoding = response.getHeader("Content-Encoding");
 
             if(_loggingEnabled){
                 System.out.println("Content-Encoding: " + encoding);
             }
 
             if (encoding != null && encoding.equals(("gzip"))) {
-                GZIPInputStream gzipInputStream = new GZIPInputStream(connection.getInputStream());
-                reader = new BufferedReader(new InputStreamReader(gzipInputStream));
-            } 
-            else {
-                reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+                in = new GZIPInputStream(in);
             }
-
-            String line;
-            StringBuilder builder = new StringBuilder();
-            while ((line = reader.readLine()) != null) {
-                builder.append(line);
+            if (recorder != null) {
+                capture = new WireTraceRecorder.CaptureInputStream(in);
+                in = capture;
             }
-            String responseBody = builder.toString();
+            Reader reader = new BufferedReader(new InputStreamReader(in, BundleWriter.UTF_8));
 
             // to avoid taking the json parsing hit even when logging is disabled
             if (_loggingEnabled) {
+                String line;
+                StringBuilder builder = new StringBuilder();
+                BufferedReader lineReader = (BufferedReader) reader;
+                while ((line = lineReader.readLine()) != null) {
+                    builder.append(line);
+                }
+                String responseBody = builder.toString();
+
                 try {
                     JSONObject jlog = new JSONObject(responseBody);
-                    LogString("INCOMING (" + connection.getResponseCode() + "): " + jlog.toString(2) + ", t: " + new Date().toString());
+                    LogString("INCOMING (" + statusCode + "): " + jlog.toString(2) + ", t: " + new Date().toString());
                 } catch (JSONException e) {
                     // in case we get a non-json response from the server
-                    LogString("INCOMING (" + connection.getResponseCode() + "): " + responseBody + ", t: " + new Date().toString());
+                    LogString("INCOMING (" + statusCode + "): " + responseBody + ", t: " + new Date().toString());
                 }
+                reader = new StringReader(responseBody);
             }
 
             // non-200 status, retry
-            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK || responseBody.length() == 0) {
-                return onTimeout();
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                return onTimeout(bundle);
             }
 
-            JSONObject root;
-            root = new JSONObject(responseBody);
+            // messages are handed to their calls while the rest of the body is still downloading
+            JSONTokener tokener = new JSONTokener(reader);
+            if (tokener.nextClean() == 0) {
+                // empty response, retry
+                return onTimeout(bundle);
+            }
+            tokener.back();
 
-            long receivedPacketId = root.getLong("packetId");
+            long receivedPacketId = readResponse(bundle, tokener);
             _lastReceivedPacket = receivedPacketId;
-            if (receivedPacketId != NO_PACKET_EXPECTED &&(_expectedPacketId == NO_PACKET_EXPECTED || receivedPacketId != _expectedPacketId)) {
-                // this is an old packet so ignore it
-                LogString("Received packet id " + receivedPacketId + " but expected packet id " + _expectedPacketId);
-                return true;
+            if (receivedPacketId != NO_PACKET_EXPECTED && receivedPacketId != bundle._packetId) {
+                // this is an old packet so ignore it and resend ours
+                LogString("Received packet id " + receivedPacketId + " but expected packet id " + bundle._packetId);
+                return onTimeout(bundle);
             }
-            _expectedPacketId = NO_PACKET_EXPECTED;
-            handleBundle(root);
-            _bundleQueue.clear();
+            bundle.setResponse();
         } catch (java.net.SocketTimeoutException e) {
+            if (recorder != null) {
+                recorder.recordFailure(bundle, WireTraceRecorder.RecordType.TIMEOUT);
+            }
             LogString("TIMEOUT t: " + new Date().toString());
-            return onTimeout();
+            IMetricsRecorder metrics = _metricsRecorder;
+            if (metrics != null) {
+                metrics.increment(Metric.TIMEOUTS, 1);
+            }
+            return onTimeout(bundle);
         } catch (Exception e) {
-            int status_code = 0;
-            try {
-                status_code = connection != null ? connection.getResponseCode() : 0;
-                if (status_code == 503 ||
-                    status_code == 502 ||
-                    status_code == 504) {
-                    return onTimeout();
-                }
-            } catch(Exception e2) {
-                e2.printStackTrace();
+            if (statusCode == 503 ||
+                statusCode == 502 ||
+                statusCode == 504) {
+                return onTimeout(bundle);
+            }
+            if (recorder != null && response == null) {
+                recorder.recordFailure(bundle, WireTraceRecorder.RecordType.NETWORK_ERROR);
             }
 
             e.printStackTrace();
-            if (_cacheMessagesOnNetworkError) {
-                _networkErrorMessageQueue.clear();
-                _networkErrorMessageQueue.addAll(_bundleQueue);
-                _networkErrorCallbackReadyToBeSent = true;
-                _blockingQueue = true;
+            onNetworkError(bundle);
+        } finally {
+            if (response != null) {
+                if (recorder != null) {
+                    recorder.recordResponse(bundle, statusCode, capture != null ? capture.getBuffer() : null,
+                            0, capture != null ? capture.getCount() : 0);
+                }
+                response.close();
             }
-            fillWithError(StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "Network error");
         }
 
         return true;
     }
 
-    private String getDataString() throws JSONException {
-        JSONArray messages = new JSONArray();
+    /**
+     * Reads the dispatcher response for the bundle from the tokener. Each
+     * entry of the responses array is dispatched to its call as soon as it
+     * has been parsed, provided the packet id has already been matched and
+     * no earlier bundle is still awaiting delivery. Anything that cannot be
+     * dispatched yet is kept on the bundle until it is delivered.
+     *
+     * @return The packet id of the response
+     */
+    long readResponse(PacketBundle bundle, JSONTokener tokener) throws JSONException {
+        bundle._responses.clear();
+        bundle._events = null;
+
+        long receivedPacketId = NO_PACKET_EXPECTED;
+        boolean hasPacketId = false;
+
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+        for (;;) {
+            char c = tokener.nextClean();
+            if (c == '}') {
+                break;
+            }
+            if (c == 0) {
+                throw tokener.syntaxError("A JSONObject text must end with '}'");
+            }
+            tokener.back();
+
+            String key = tokener.nextValue().toString();
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+
+            if (key.equals("responses")) {
+                boolean packetIdMatches = hasPacketId
+                        && (receivedPacketId == NO_PACKET_EXPECTED || receivedPacketId == bundle._packetId);
+                readMessages(bundle, tokener, packetIdMatches);
+            } else {
+                Object value = tokener.nextValue();
+                if (key.equals("packetId")) {
+                    receivedPacketId = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+                    hasPacketId = true;
+                } else if (key.equals("events") && value instanceof JSONArray) {
+                    bundle._events = (JSONArray) value;
+                }
+            }
+
+            c = tokener.nextClean();
+            if (c == '}') {
+                break;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+
+        if (!hasPacketId) {
+            throw new JSONException("JSONObject[\"packetId\"] not found.");
+        }
+        return receivedPacketId;
+    }
+
+    private void readMessages(PacketBundle bundle, JSONTokener tokener, boolean packetIdMatches) throws JSONException {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return;
+        }
+        tokener.back();
+
+        for (int index = 0; ; ++index) {
+            Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected a response object");
+            }
+
+            // on a resend, responses that were already dispatched are skipped
+            if (index >= bundle._dispatchedCount) {
+                JSONObject message = (JSONObject) value;
+                if (!packetIdMatches || !dispatchMessage(bundle, index, message)) {
+                    bundle._responses.add(message);
+                }
+                submitCallbackTasks();
+            }
+
+            char c = tokener.nextClean();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
 
-        for (ServerCall serverCall : _bundleQueue) {
-            messages.put(serverCall.getPayload());
+    /**
+     * Hands the message straight to its call if every earlier bundle and
+     * message has already been delivered.
+     *
+     * @return false if the message has to wait for the bundle to be delivered
+     */
+    private boolean dispatchMessage(PacketBundle bundle, int index, JSONObject message) throws JSONException {
+        synchronized (_deliveryLock) {
+            if (!bundle._responses.isEmpty()) {
+                return false;
+            }
+            synchronized (_inFlightBundles) {
+                if (_inFlightBundles.peekFirst() != bundle) {
+                    return false;
+                }
+            }
+            handleMessage(bundle, index, message);
+            bundle._dispatchedCount = index + 1;
+            return true;
         }
+    }
 
-        JSONObject allMessages = new JSONObject();
-        allMessages.put("messages", messages);
-        allMessages.put("gameId", _appId);
-        allMessages.put("sessionId", _sessionId);
-        allMessages.put("packetId", _expectedPacketId);
+    private void onNetworkError(PacketBundle bundle) {
+        IMetricsRecorder metrics = _metricsRecorder;
+        if (metrics != null) {
+            metrics.increment(Metric.NETWORK_ERRORS, 1);
+        }
+        bundle.setError(StatusCodes.CLIENT_NETWORK_ERROR, ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, "Network error", _cacheMessagesOnNetworkError);
+    }
 
-        return allMessages.toString() + "\r\n\r\n";
+    String getDataString(PacketBundle bundle) throws JSONException {
+        BundleWriter writer = acquireBundleWriter();
+        try {
+            writer.writeBundle(bundle, _appId, _sessionId);
+            return writer.getBodyString();
+        } finally {
+            releaseBundleWriter(writer);
+        }
     }
 
-    private String getSignature(String body) throws NoSuchAlgorithmException {
+    String getSignature(PacketBundle bundle) throws JSONException {
+        BundleWriter writer = acquireBundleWriter();
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            messageDigest.reset();
-            messageDigest.update(body.getBytes("UTF-8"));
-            messageDigest.update(_secretKey.getBytes("UTF-8"));
+            writer.writeBundle(bundle, _appId, _sessionId);
+            return writer.sign(_secretKey);
+        } finally {
+            releaseBundleWriter(writer);
+        }
+    }
 
-            return toHexString(messageDigest.digest());
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
+    private BundleWriter acquireBundleWriter() {
+        synchronized (_bundleWriters) {
+            BundleWriter writer = _bundleWriters.poll();
+            return writer != null ? writer : new BundleWriter();
+        }
+    }
+
+    private void releaseBundleWriter(BundleWriter writer) {
+        synchronized (_bundleWriters) {
+            _bundleWriters.push(writer);
         }
     }
 
@@ -948,224 +2621,242 @@ public class BrainCloudRestClient implements Runnable {
         _statusMessageCache = "No session";
     }
 
-    private void updateKillSwitch(int statusCode, String service, String operation)
+    private void updateCircuitBreaker(int statusCode, ServerCall serverCall)
     {
         if (statusCode == StatusCodes.CLIENT_NETWORK_ERROR) return;
 
-        if (_killSwitchService == null)
-        {
-            _killSwitchService = service;
-            _killSwitchOperation = operation;
-            _killSwitchErrorCount++;
-        }
-        else if (service == _killSwitchService && operation == _killSwitchOperation)
-            _killSwitchErrorCount++;
+        CircuitBreaker breaker = getCircuitBreaker(serverCall);
+        if (breaker == null) return;
 
-        if (!_killSwitchEngaged && _killSwitchErrorCount >= _killSwitchThreshold)
+        CircuitBreaker.State previous = breaker.getState();
+        breaker.recordFailure(System.currentTimeMillis(), _killSwitchThreshold, _circuitOpenMillis, _circuitMaxOpenMillis);
+        if (previous != CircuitBreaker.State.OPEN && breaker.getState() == CircuitBreaker.State.OPEN)
         {
-            _killSwitchEngaged = true;
-            LogString("Client disabled due to repeated errors from a single API call: " + service + " | " + operation);
+            LogString("Circuit opened for " + breaker.getOpenMillis() + "ms due to repeated errors from the API call: "
+                    + serverCall.getServiceName() + " | " + serverCall.getServiceOperation());
         }
     }
 
-    private void resetKillSwitch()
+    private void resetCircuitBreaker(ServerCall serverCall)
     {
-        _killSwitchErrorCount = 0;
-        _killSwitchService = null;
-        _killSwitchOperation = null;
+        CircuitBreaker breaker = getCircuitBreaker(serverCall);
+        if (breaker != null) {
+            breaker.recordSuccess();
+        }
     }
 
-    private void handleBundle(JSONObject root) throws JSONException {
-        JSONArray messages = root.getJSONArray("responses");
+    /**
+     * Delivers the responses that were not dispatched while the bundle was
+     * being read, then the events that came with it.
+     */
+    void handleBundle(PacketBundle bundle) throws JSONException {
+        for (int i = 0, ilen = bundle._responses.size(); i < ilen; ++i) {
+            handleMessage(bundle, bundle._dispatchedCount, bundle._responses.get(i));
+            bundle._dispatchedCount++;
+        }
+        bundle._responses.clear();
+
+        synchronized (_lock) {
+            if (bundle._events != null && _eventCallback != null) {
+                try {
+                    JSONObject eventsAsJson = new JSONObject();
+                    eventsAsJson.put("events", bundle._events);
+                    queueEvents(eventsAsJson);
+                } catch (JSONException je) {
+                    je.printStackTrace();
+                }
+            }
+        }
+    }
 
+    private void handleMessage(PacketBundle bundle, int index, JSONObject message) throws JSONException {
         synchronized (_lock) {
-            for (int i = 0, ilen = messages.length(); i < ilen; ++i) {
-                ServerCall sc = _bundleQueue.poll();
-                if (sc != null) {
-                    JSONObject message = messages.getJSONObject(i);
-                    int status = message.getInt("status");
-                    ServerResponse serverResponse = new ServerResponse();
-                    serverResponse._serverCall = sc;
-                    serverResponse._statusCode = status;
-
-                    if (status == 200) {
-                        resetKillSwitch();
-
-                        // A session id or a profile id could potentially come back in any messages
-                        //but we want to only update the cache if the auth service or identity service is being used. 
-                        if (message.has("data") && (sc.getServiceName() == ServiceName.authenticationV2 || sc.getServiceName() == ServiceName.identity)) 
+            ServerCall sc = index < bundle.size() ? bundle._calls.get(index) : null;
+            if (sc == null) {
+                LogString("missing server call for json response: " + message.toString());
+                return;
+            }
+
+            int status = message.getInt("status");
+            ServerResponse serverResponse = new ServerResponse();
+            serverResponse._serverCall = sc;
+            serverResponse._statusCode = status;
+
+            if (status == 200) {
+                resetCircuitBreaker(sc);
+
+                // A session id or a profile id could potentially come back in any messages
+                //but we want to only update the cache if the auth service or identity service is being used. 
+                if (message.has("data") && (sc.getServiceName() == ServiceName.authenticationV2 || sc.getServiceName() == ServiceName.identity)) 
+                {
+                    JSONObject data = message.optJSONObject("data");
+                    if (data != null) {
+                        if (data.has("sessionId")) {
+                            _sessionId = data.getString("sessionId");
+                        }
+                        if (data.has("profileId")) {
+                            _client.getAuthenticationService().setProfileId(data.getString("profileId"));
+                        }
+                        if (data.has("switchToAppId"))
                         {
-                            JSONObject data = message.optJSONObject("data");
-                            if (data != null) {
-                                if (data.has("sessionId")) {
-                                    _sessionId = data.getString("sessionId");
-                                }
-                                if (data.has("profileId")) {
-                                    _client.getAuthenticationService().setProfileId(data.getString("profileId"));
-                                }
-                                if (data.has("switchToAppId"))
-                                {
-                                    _appId = data.getString("switchToAppId");
-
-                                    _secretKey = "MISSING";
-                                    if(_secretMap.containsKey(_appId))
-                                    {
-                                        _secretKey = _secretMap.get(_appId);
-                                    }
-                                }
+                            _appId = data.getString("switchToAppId");
+
+                            _secretKey = "MISSING";
+                            if(_secretMap.containsKey(_appId))
+                            {
+                                _secretKey = _secretMap.get(_appId);
                             }
                         }
+                    }
+                }
 
-                        if (sc.getServiceName().equals(ServiceName.authenticationV2)
-                                && sc.getServiceOperation().equals(ServiceOperation.AUTHENTICATE)) {
-                            JSONObject data = message.getJSONObject("data");
-                            String sessionId = data.getString("sessionId");
-                            String profileId = data.getString("profileId");
-                            _sessionId = sessionId;
-                            _isAuthenticated = true;
-                            resetErrorCache();
-                            _client.getAuthenticationService().setProfileId(profileId);
-
-                            long sessionExpiry = data.getLong("playerSessionExpiry");
-                            _heartbeatIntervalMillis = (long)(sessionExpiry * 850);
-                            _maxBundleSize = data.getInt("maxBundleMsgs");
-
-                            if(data.has("maxKillCount"))
-                                _killSwitchThreshold = data.getInt("maxKillCount");
-
-                        } else if (sc.getServiceName().equals(ServiceName.playerState)
-                                && sc.getServiceOperation().equals(ServiceOperation.LOGOUT)) {
-                            _isAuthenticated = false;
-                            _sessionId = "";
-                            resetErrorCache();
-                            _client.getAuthenticationService().clearSavedProfileId();
-                        } else if (sc.getServiceName().equals(ServiceName.file)
-                                && sc.getServiceOperation().equals(ServiceOperation.PREPARE_USER_UPLOAD)) {
-                            JSONObject data = message.getJSONObject("data").getJSONObject("fileDetails");
-                            String uploadId = data.getString("uploadId");
-                            String localPath = data.getString("localPath");
-                            _fileUploads.add(new FileUploader(uploadId, localPath, _uploadUrl, _sessionId,
-                                    _uploadLowTransferTimeoutSecs, _uploadLowTransferThresholdSecs));
+                if (sc.getServiceName().equals(ServiceName.authenticationV2)
+                        && sc.getServiceOperation().equals(ServiceOperation.AUTHENTICATE)) {
+                    JSONObject data = message.getJSONObject("data");
+                    String sessionId = data.getString("sessionId");
+                    String profileId = data.getString("profileId");
+                    _sessionId = sessionId;
+                    _isAuthenticated = true;
+                    resetErrorCache();
+                    _responseCache.invalidateAll();
+                    _client.getAuthenticationService().setProfileId(profileId);
+
+                    long sessionExpiry = data.getLong("playerSessionExpiry");
+                    _heartbeatIntervalMillis = (long)(sessionExpiry * 850);
+                    _maxBundleSize = data.getInt("maxBundleMsgs");
+
+                    if(data.has("maxKillCount"))
+                        _killSwitchThreshold = data.getInt("maxKillCount");
+
+                    OutboundJournal journal = _outboundJournal;
+                    if (journal != null) {
+                        // durable calls a previous run could not deliver, queued
+                        // past the capacity as they were accepted back then
+                        long now = System.currentTimeMillis();
+                        for (ServerCall recovered : journal.takeRecovered(profileId)) {
+                            _messageLanes.add(recovered, now);
                         }
+                    }
 
-                        serverResponse._isError = false;
-                        serverResponse._data = message;
-
-                        // handle reward data if present
-                        if (_rewardCallback != null) {
-                            try {
-                                JSONObject data = message.getJSONObject("data");
-                                JSONObject rewards = null;
-                                if (sc.getServiceName().equals(ServiceName.authenticationV2)
-                                        && sc.getServiceOperation().equals(ServiceOperation.AUTHENTICATE)) {
-                                    JSONObject outerRewards = data.optJSONObject("rewards");
-                                    if (outerRewards != null) {
-                                        JSONObject innerRewards = outerRewards.optJSONObject("rewards");
-                                        if (innerRewards != null) {
-                                            if (innerRewards.length() > 0) {
-                                                rewards = outerRewards;
-                                            }
-                                        }
-                                    }
-                                } else if ((sc.getServiceName().equals(ServiceName.playerStatistics)
-                                        && sc.getServiceOperation().equals(ServiceOperation.UPDATE))
-                                        || (sc.getServiceName().equals(ServiceName.playerStatisticsEvent)
-                                        && (sc.getServiceOperation().equals(ServiceOperation.TRIGGER)
-                                        || (sc.getServiceOperation().equals(ServiceOperation.TRIGGER_MULTIPLE))))) {
-                                    JSONObject innerRewards = data.optJSONObject("rewards");
-                                    if (innerRewards != null) {
-                                        if (innerRewards.length() > 0) {
-                                            rewards = data;
-                                        }
-                                    }
-                                }
+                } else if (sc.getServiceName().equals(ServiceName.playerState)
+                        && sc.getServiceOperation().equals(ServiceOperation.LOGOUT)) {
+                    _isAuthenticated = false;
+                    _sessionId = "";
+                    resetErrorCache();
+                    _responseCache.invalidateAll();
+                    _client.getAuthenticationService().clearSavedProfileId();
+                } else if (sc.getServiceName().equals(ServiceName.file)
+                        && sc.getServiceOperation().equals(ServiceOperation.PREPARE_USER_UPLOAD)) {
+                    JSONObject data = message.getJSONObject("data").getJSONObject("fileDetails");
+                    String uploadId = data.getString("uploadId");
+                    String localPath = data.getString("localPath");
+                    FileUploader uploader = new FileUploader(uploadId, localPath, _uploadUrl, _sessionId,
+                            _uploadLowTransferTimeoutSecs, _uploadLowTransferThresholdSecs, _metricsRecorder,
+                            _fileUploadCompleted);
+                    _fileUploads.add(uploader);
+                    if (uploader.getStatus() == FileUploader.FileUploaderStatus.CompleteFailed) {
+                        // failed before it started, so the listener was never run
+                        queueFileUploadCallbacks();
+                    }
+                }
 
-                                if (rewards != null) {
-                                    JSONObject apiReward = new JSONObject();
-                                    apiReward.put("service", sc.getServiceName());
-                                    apiReward.put("operation", sc.getServiceOperation());
-                                    apiReward.put("rewards", rewards);
+                serverResponse._isError = false;
+                serverResponse._data = message;
 
-                                    JSONObject callbackObj = new JSONObject();
-                                    JSONArray apiRewards = new JSONArray();
-                                    apiRewards.put(apiReward);
-                                    callbackObj.put("apiRewards", apiRewards);
+                if (sc.getCacheKey() != null) {
+                    _responseCache.put(sc.getCacheKey(), sc, message, System.currentTimeMillis());
+                }
 
-                                    _rewardResponses.addLast(callbackObj);
+                // handle reward data if present
+                if (_rewardCallback != null) {
+                    try {
+                        JSONObject data = message.getJSONObject("data");
+                        JSONObject rewards = null;
+                        if (sc.getServiceName().equals(ServiceName.authenticationV2)
+                                && sc.getServiceOperation().equals(ServiceOperation.AUTHENTICATE)) {
+                            JSONObject outerRewards = data.optJSONObject("rewards");
+                            if (outerRewards != null) {
+                                JSONObject innerRewards = outerRewards.optJSONObject("rewards");
+                                if (innerRewards != null) {
+                                    if (innerRewards.length() > 0) {
+                                        rewards = outerRewards;
+                                    }
                                 }
-                            } catch (JSONException e) {
-                                e.printStackTrace();
                             }
-                        }
-                    } 
-                    else {
-                        int reasonCode = 0;
-                        if (!message.isNull("reason_code")) {
-                            reasonCode = message.getInt("reason_code");
-                        }
-                        String statusMessage = message.getString("status_message");
-
-                        if (reasonCode == ReasonCodes.USER_SESSION_EXPIRED
-                                || reasonCode == ReasonCodes.NO_SESSION
-                                || reasonCode == ReasonCodes.USER_SESSION_LOGGED_OUT) {
-                            _isAuthenticated = false;
-                            _sessionId = "";
-                            _statusCodeCache = status;
-                            _reasonCodeCache = reasonCode;
-                            _statusMessageCache = statusMessage;
-                        } else if (sc.getServiceOperation() == ServiceOperation.LOGOUT) {
-                            if (reasonCode == ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT) {
-                                _isAuthenticated = false;
-                                _sessionId = "";
+                        } else if ((sc.getServiceName().equals(ServiceName.playerStatistics)
+                                && sc.getServiceOperation().equals(ServiceOperation.UPDATE))
+                                || (sc.getServiceName().equals(ServiceName.playerStatisticsEvent)
+                                && (sc.getServiceOperation().equals(ServiceOperation.TRIGGER)
+                                || (sc.getServiceOperation().equals(ServiceOperation.TRIGGER_MULTIPLE))))) {
+                            JSONObject innerRewards = data.optJSONObject("rewards");
+                            if (innerRewards != null) {
+                                if (innerRewards.length() > 0) {
+                                    rewards = data;
+                                }
                             }
                         }
 
-                        serverResponse._isError = true;
-                        serverResponse._reasonCode = reasonCode;
-                        serverResponse._statusMessage = statusMessage;
-                        serverResponse._data = message;
+                        if (rewards != null) {
+                            JSONObject apiReward = new JSONObject();
+                            apiReward.put("service", sc.getServiceName());
+                            apiReward.put("operation", sc.getServiceOperation());
+                            apiReward.put("rewards", rewards);
 
-                        updateKillSwitch(status, sc.getServiceName().toString(), sc.getServiceOperation().toString());
+                            JSONObject callbackObj = new JSONObject();
+                            JSONArray apiRewards = new JSONArray();
+                            apiRewards.put(apiReward);
+                            callbackObj.put("apiRewards", apiRewards);
+
+                            queueRewards(callbackObj);
+                        }
+                    } catch (JSONException e) {
+                        e.printStackTrace();
                     }
-                    _serverResponses.addLast(serverResponse);
-                } else {
-                    LogString("missing server call for json response: " + messages.toString());
                 }
-            }
-
-            if (!root.isNull("events") && _eventCallback != null) {
-                try {
-                    JSONArray events = root.getJSONArray("events");
-                    JSONObject eventsAsJson = new JSONObject();
-                    eventsAsJson.put("events", events);
-                    _eventResponses.addLast(eventsAsJson);
-                } catch (JSONException je) {
-                    je.printStackTrace();
+            } 
+            else {
+                int reasonCode = 0;
+                if (!message.isNull("reason_code")) {
+                    reasonCode = message.getInt("reason_code");
+                }
+                String statusMessage = message.getString("status_message");
+
+                if (reasonCode == ReasonCodes.USER_SESSION_EXPIRED
+                        || reasonCode == ReasonCodes.NO_SESSION
+                        || reasonCode == ReasonCodes.USER_SESSION_LOGGED_OUT) {
+                    _isAuthenticated = false;
+                    _sessionId = "";
+                    _responseCache.invalidateAll();
+                    _statusCodeCache = status;
+                    _reasonCodeCache = reasonCode;
+                    _statusMessageCache = statusMessage;
+                } else if (sc.getServiceOperation() == ServiceOperation.LOGOUT) {
+                    if (reasonCode == ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT) {
+                        _isAuthenticated = false;
+                        _sessionId = "";
+                    }
                 }
-            }
-        }
-    }
-
-    /**
-     * Converts the specified byte array into hexadecimal string representation.
-     *
-     * @param bytes Byte array.
-     * @return Hexadecimal string representation of the input argument.
-     */
-    private String toHexString(byte[] bytes) {
-        StringBuilder buffer = new StringBuilder();
 
-        for (byte aByte : bytes) {
-            String hex = Integer.toHexString(0xFF & aByte);
+                serverResponse._isError = true;
+                serverResponse._reasonCode = reasonCode;
+                serverResponse._statusMessage = statusMessage;
+                serverResponse._data = message;
 
-            if (hex.length() == 1) {
-                buffer.append("0");
+                updateCircuitBreaker(status, sc);
             }
 
-            buffer.append(hex);
-        }
+            recordCall(sc, status == 200);
 
-        return buffer.toString();
+            OutboundJournal journal = _outboundJournal;
+            if (journal != null) {
+                try {
+                    journal.acknowledge(sc);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            queueResponse(serverResponse);
+        }
     }
 
     /**
@@ -0,0 +1,109 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Controls when the rest client stops collecting queued calls into a bundle
+ * and sends it.
+ *
+ * By default a bundle is sent as soon as the queued calls have been taken,
+ * which splits bursts of calls made a few milliseconds apart into several
+ * bundles. With a linger time the client keeps collecting calls for up to
+ * that long, unless the bundle fills up, reaches the target byte size or
+ * picks up an operation flagged for immediate flush.
+ *
+ * Bundles are also capped in encoded size: a call that would take the
+ * bundle over the maximum goes in the next bundle, and a call over the
+ * maximum on its own is sent alone. This keeps each POST, and each resend
+ * of it after a timeout, to a predictable size.
+ */
+public class BundlePolicy {
+
+    public static final int DEFAULT_MAX_BUNDLE_BYTES = 256 * 1024;
+
+    private volatile long _lingerMillis = 0;
+    private volatile int _targetBundleBytes = 0;
+    private volatile int _maxBundleBytes = DEFAULT_MAX_BUNDLE_BYTES;
+    private final Set<ServiceOperation> _immediateOperations = EnumSet.noneOf(ServiceOperation.class);
+
+    /**
+     * @return How long a bundle waits for more calls before being sent
+     */
+    public long getLingerMillis() {
+        return _lingerMillis;
+    }
+
+    /**
+     * Sets how long a bundle may wait for more calls before it is sent.
+     *
+     * @param lingerMillis Linger time in milliseconds, 0 to send right away
+     */
+    public void setLingerMillis(long lingerMillis) {
+        _lingerMillis = Math.max(0, lingerMillis);
+    }
+
+    /**
+     * @return The encoded size at which a bundle is sent without lingering
+     */
+    public int getTargetBundleBytes() {
+        return _targetBundleBytes;
+    }
+
+    /**
+     * Sets the encoded size of the bundle messages at which the bundle is
+     * sent without waiting out the linger time.
+     *
+     * @param targetBundleBytes Size in bytes, 0 for no target
+     */
+    public void setTargetBundleBytes(int targetBundleBytes) {
+        _targetBundleBytes = Math.max(0, targetBundleBytes);
+    }
+
+    /**
+     * @return The encoded size a bundle of several calls never goes over
+     */
+    public int getMaxBundleBytes() {
+        return _maxBundleBytes;
+    }
+
+    /**
+     * Sets the encoded size of the bundle messages that a bundle of several
+     * calls never goes over, on top of the server's message count limit.
+     *
+     * @param maxBundleBytes Size in bytes, 0 for no limit
+     */
+    public void setMaxBundleBytes(int maxBundleBytes) {
+        _maxBundleBytes = Math.max(0, maxBundleBytes);
+    }
+
+    /**
+     * Flags an operation as latency critical. A bundle that contains it is
+     * sent as soon as the call has been added.
+     *
+     * @param operation The operation to flush immediately
+     */
+    public void addImmediateOperation(ServiceOperation operation) {
+        synchronized (_immediateOperations) {
+            _immediateOperations.add(operation);
+        }
+    }
+
+    public void removeImmediateOperation(ServiceOperation operation) {
+        synchronized (_immediateOperations) {
+            _immediateOperations.remove(operation);
+        }
+    }
+
+    public boolean isImmediate(ServerCall serverCall) {
+        ServiceOperation operation = serverCall.getServiceOperation();
+        if (operation == null) {
+            return false;
+        }
+        synchronized (_immediateOperations) {
+            return _immediateOperations.contains(operation);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.bitheads.braincloud.comms;
+
+import java.util.Locale;
+
+/**
+ * Counters for the bundles sent by the rest client, used to tune the
+ * BundlePolicy. The fill ratio is the number of messages sent over the
+ * number of messages the bundles could have held.
+ */
+public class BundleStats {
+
+    /**
+     * Why a bundle stopped collecting calls and was sent.
+     */
+    public enum FlushReason {
+        /** The bundle reached the maximum number of messages */
+        FULL,
+        /** The encoded messages reached the target bundle size */
+        TARGET_BYTES,
+        /** The next call would have taken the bundle over the maximum size */
+        MAX_BYTES,
+        /** A single call over the maximum size was sent alone */
+        OVERSIZED,
+        /** The linger time ran out */
+        LINGER_EXPIRED,
+        /** The queue was empty and no linger time is configured */
+        QUEUE_DRAINED,
+        /** The bundle contains an operation flagged for immediate flush */
+        IMMEDIATE,
+        /** An end of bundle marker was queued */
+        END_OF_BUNDLE_MARKER,
+        /** Authentication calls are always sent on their own */
+        AUTHENTICATE,
+        /** Nothing was queued before the heartbeat was due */
+        HEARTBEAT,
+        /** Calls cached after a network error were resent */
+        RESEND
+    }
+
+    private final Object _lock = new Object();
+    private long _bundleCount;
+    private long _messageCount;
+    private long _capacity;
+    private long _payloadBytes;
+    private long _maxPayloadBytes;
+    private final long[] _flushCounts = new long[FlushReason.values().length];
+
+    void recordBundle(int messageCount, int maxBundleSize, long payloadBytes, FlushReason reason) {
+        synchronized (_lock) {
+            _bundleCount++;
+            _messageCount += messageCount;
+            _capacity += Math.max(messageCount, maxBundleSize);
+            _payloadBytes += payloadBytes;
+            _maxPayloadBytes = Math.max(_maxPayloadBytes, payloadBytes);
+            _flushCounts[reason.ordinal()]++;
+        }
+    }
+
+    public long getBundleCount() {
+        synchronized (_lock) {
+            return _bundleCount;
+        }
+    }
+
+    public long getMessageCount() {
+        synchronized (_lock) {
+            return _messageCount;
+        }
+    }
+
+    /**
+     * @return Encoded size of the messages sent, excluding the bundle envelope
+     */
+    public long getPayloadBytes() {
+        synchronized (_lock) {
+            return _payloadBytes;
+        }
+    }
+
+    /**
+     * @return Encoded size of the messages of the largest bundle sent
+     */
+    public long getMaxPayloadBytes() {
+        synchronized (_lock) {
+            return _maxPayloadBytes;
+        }
+    }
+
+    public long getFlushCount(FlushReason reason) {
+        synchronized (_lock) {
+            return _flushCounts[reason.ordinal()];
+        }
+    }
+
+    /**
+     * @return Messages sent over bundle capacity, between 0 and 1
+     */
+    public double getFillRatio() {
+        synchronized (_lock) {
+            return _capacity == 0 ? 0 : (double) _messageCount / _capacity;
+        }
+    }
+
+    public double getAverageMessagesPerBundle() {
+        synchronized (_lock) {
+            return _bundleCount == 0 ? 0 : (double) _messageCount / _bundleCount;
+        }
+    }
+
+    public double getAverageBundleBytes() {
+        synchronized (_lock) {
+            return _bundleCount == 0 ? 0 : (double) _payloadBytes / _bundleCount;
+        }
+    }
+
+    public void reset() {
+        synchronized (_lock) {
+            _bundleCount = 0;
+            _messageCount = 0;
+            _capacity = 0;
+            _payloadBytes = 0;
+            _maxPayloadBytes = 0;
+            for (int i = 0; i < _flushCounts.length; ++i) {
+                _flushCounts[i] = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (_lock) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("bundles=").append(_bundleCount)
+                    .append(" messages=").append(_messageCount)
+                    .append(" fillRatio=").append(String.format(Locale.ROOT, "%.3f", getFillRatio()))
+                    .append(" bytes=").append(_payloadBytes)
+                    .append(" maxBytes=").append(_maxPayloadBytes);
+            for (FlushReason reason : FlushReason.values()) {
+                if (_flushCounts[reason.ordinal()] > 0) {
+                    builder.append(' ').append(reason.name()).append('=').append(_flushCounts[reason.ordinal()]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.bitheads.braincloud.comms;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a bundle into a reusable buffer in a single pass. The encoded
+ * payload of each ServerCall is cached on the call so retries and resends
+ * after a network error do not serialize it again. Writers are pooled by
+ * the rest client and only ever used by one sender at a time.
+ */
+class BundleWriter {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] MESSAGES_START = "{\"messages\":[".getBytes(UTF_8);
+    private static final byte[] GAME_ID = "],\"gameId\":".getBytes(UTF_8);
+    private static final byte[] SESSION_ID = ",\"sessionId\":".getBytes(UTF_8);
+    private static final byte[] PACKET_ID = ",\"packetId\":".getBytes(UTF_8);
+    private static final byte[] BUNDLE_END = "}\r\n\r\n".getBytes(UTF_8);
+
+    // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Buffer _body = new Buffer(4096);
+    private final Buffer _compressed = new Buffer(1024);
+    private final Buffer _scratch = new Buffer(1024);
+    private final Writer _scratchWriter = new OutputStreamWriter(_scratch, UTF_8);
+    private final byte[] _deflateBuffer = new byte[4096];
+    private final Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 _crc = new CRC32();
+    private final MessageDigest _md5;
+
+    BundleWriter() {
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        _md5 = md5;
+    }
+
+    /**
+     * Writes the dispatcher json for the bundle into the body buffer.
+     */
+    void writeBundle(PacketBundle bundle, String appId, String sessionId) throws JSONException {
+        _body.reset();
+        _body.write(MESSAGES_START);
+        boolean first = true;
+        for (ServerCall serverCall : bundle._calls) {
+            if (!first) {
+                _body.write(',');
+            }
+            first = false;
+            _body.write(encodePayload(serverCall));
+        }
+        _body.write(GAME_ID);
+        writeQuoted(_body, appId);
+        _body.write(SESSION_ID);
+        writeQuoted(_body, sessionId);
+        _body.write(PACKET_ID);
+        writeAscii(_body, Long.toString(bundle._packetId));
+        _body.write(BUNDLE_END);
+    }
+
+    byte[] getBody() {
+        return _body.array();
+    }
+
+    int getBodyLength() {
+        return _body.size();
+    }
+
+    String getBodyString() {
+        return new String(_body.array(), 0, _body.size(), UTF_8);
+    }
+
+    /**
+     * @return The hex MD5 of the body followed by the secret
+     */
+    String sign(String secretKey) {
+        _md5.reset();
+        _md5.update(_body.array(), 0, _body.size());
+        _md5.update(secretKey.getBytes(UTF_8));
+        return toHexString(_md5.digest());
+    }
+
+    /**
+     * Gzips the body into the compressed buffer, reusing the deflater.
+     */
+    void compress() {
+        _compressed.reset();
+        _compressed.write(GZIP_HEADER);
+
+        _crc.reset();
+        _crc.update(_body.array(), 0, _body.size());
+
+        _deflater.reset();
+        _deflater.setInput(_body.array(), 0, _body.size());
+        _deflater.finish();
+        while (!_deflater.finished()) {
+            int count = _deflater.deflate(_deflateBuffer);
+            _compressed.write(_deflateBuffer, 0, count);
+        }
+
+        writeIntLE(_compressed, (int) _crc.getValue());
+        writeIntLE(_compressed, _body.size());
+    }
+
+    byte[] getCompressed() {
+        return _compressed.array();
+    }
+
+    int getCompressedLength() {
+        return _compressed.size();
+    }
+
+    /**
+     * Returns the encoded {"service", "operation", "data"} object for the call,
+     * encoding and caching it on the first use.
+     */
+    byte[] encodePayload(ServerCall serverCall) throws JSONException {
+        byte[] payload = serverCall.getEncodedPayload();
+        if (payload != null) {
+            return payload;
+        }
+
+        _scratch.reset();
+        try {
+            _scratchWriter.write("{\"service\":");
+            _scratchWriter.write(JSONObject.quote(serverCall.getServiceName().name()));
+            _scratchWriter.write(",\"operation\":");
+            _scratchWriter.write(JSONObject.quote(serverCall.getServiceOperation().name()));
+            JSONObject data = serverCall.getData();
+            if (data != null) {
+                _scratchWriter.write(",\"data\":");
+                data.write(_scratchWriter);
+            }
+            _scratchWriter.write('}');
+            _scratchWriter.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+
+        payload = Arrays.copyOf(_scratch.array(), _scratch.size());
+        serverCall.setEncodedPayload(payload);
+        return payload;
+    }
+
+    private void writeQuoted(Buffer out, String value) {
+        out.write(JSONObject.quote(value).getBytes(UTF_8));
+    }
+
+    private static void writeAscii(Buffer out, String value) {
+        for (int i = 0, len = value.length(); i < len; ++i) {
+            out.write(value.charAt(i));
+        }
+    }
+
+    private static void writeIntLE(Buffer out, int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    /**
+     * Converts the specified byte array into hexadecimal string representation.
+     *
+     * @param bytes Byte array.
+     * @return Hexadecimal string representation of the input argument.
+     */
+    static String toHexString(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            int value = bytes[i] & 0xFF;
+            hex[i * 2] = Character.forDigit(value >> 4, 16);
+            hex[i * 2 + 1] = Character.forDigit(value & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Byte buffer that gives direct access to its backing array.
+     */
+    static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        @Override
+        public void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+    }
+}
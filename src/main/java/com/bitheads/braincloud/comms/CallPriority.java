@@ -0,0 +1,35 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+/**
+ * Priority class of a queued ServerCall. Bundles are filled from the highest
+ * priority lane first, with waiting calls aged so background calls are never
+ * starved.
+ */
+public enum CallPriority {
+    /** Session and latency critical calls */
+    CRITICAL,
+    /** User facing calls, the default */
+    INTERACTIVE,
+    /** Analytics, telemetry and other calls nobody is waiting on */
+    BACKGROUND;
+
+    /**
+     * @return The priority a call to the given operation gets unless it is set explicitly
+     */
+    public static CallPriority getDefault(ServiceName serviceName, ServiceOperation serviceOperation) {
+        if (serviceName == null) {
+            return INTERACTIVE;
+        }
+        if (serviceName == ServiceName.authenticationV2) {
+            return CRITICAL;
+        }
+        if (serviceName == ServiceName.dataStream
+                || (serviceName == ServiceName.playbackStream && serviceOperation == ServiceOperation.ADD_EVENT)) {
+            return BACKGROUND;
+        }
+        return INTERACTIVE;
+    }
+}
@@ -0,0 +1,147 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+/**
+ * Error tracking for one service operation, so an operation that keeps
+ * failing stops being sent without disabling the rest of the client.
+ *
+ * The breaker is closed while the operation works. After the failure
+ * threshold of consecutive error responses it opens, and calls to the
+ * operation fail locally with CLIENT_DISABLED. Once the open time has
+ * passed it goes half open and lets a single probe call through: a success
+ * closes it, a failure opens it again for twice as long, up to the maximum
+ * open time. Network errors are not counted since they are not specific to
+ * the operation.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final ServiceName _serviceName;
+    private final ServiceOperation _serviceOperation;
+
+    private State _state = State.CLOSED;
+    private int _failureCount;
+    private long _openedAt;
+    private long _openMillis;
+    private long _probeSentAt;
+    private boolean _isProbeInFlight;
+
+    private long _tripCount;
+    private long _rejectedCount;
+
+    CircuitBreaker(ServiceName serviceName, ServiceOperation serviceOperation) {
+        _serviceName = serviceName;
+        _serviceOperation = serviceOperation;
+    }
+
+    public ServiceName getServiceName() {
+        return _serviceName;
+    }
+
+    public ServiceOperation getServiceOperation() {
+        return _serviceOperation;
+    }
+
+    public synchronized State getState() {
+        return _state;
+    }
+
+    /**
+     * @return Number of consecutive error responses
+     */
+    public synchronized int getFailureCount() {
+        return _failureCount;
+    }
+
+    /**
+     * @return Number of times the breaker opened
+     */
+    public synchronized long getTripCount() {
+        return _tripCount;
+    }
+
+    /**
+     * @return Number of calls failed locally while the breaker was open
+     */
+    public synchronized long getRejectedCount() {
+        return _rejectedCount;
+    }
+
+    /**
+     * @return How long the breaker stays open before the next probe, 0 when closed
+     */
+    public synchronized long getOpenMillis() {
+        return _state == State.CLOSED ? 0 : _openMillis;
+    }
+
+    /**
+     * @return true if a call to the operation may be sent now
+     */
+    synchronized boolean allowRequest(long now, long probeTimeoutMillis) {
+        switch (_state) {
+            case OPEN:
+                if (now - _openedAt < _openMillis) {
+                    _rejectedCount++;
+                    return false;
+                }
+                _state = State.HALF_OPEN;
+                _isProbeInFlight = false;
+                return allowProbe(now, probeTimeoutMillis);
+            case HALF_OPEN:
+                return allowProbe(now, probeTimeoutMillis);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Lets the probe call through if none is in flight.
+     */
+    private boolean allowProbe(long now, long probeTimeoutMillis) {
+        // a probe lost to a network error is replaced once it has timed out
+        if (_isProbeInFlight && now - _probeSentAt < probeTimeoutMillis) {
+            _rejectedCount++;
+            return false;
+        }
+        _isProbeInFlight = true;
+        _probeSentAt = now;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        _state = State.CLOSED;
+        _failureCount = 0;
+        _isProbeInFlight = false;
+    }
+
+    synchronized void recordFailure(long now, int threshold, long openMillis, long maxOpenMillis) {
+        _failureCount++;
+        if (_state == State.HALF_OPEN) {
+            _openMillis = Math.min(maxOpenMillis, _openMillis * 2);
+            open(now);
+        } else if (_state == State.CLOSED && _failureCount >= threshold) {
+            _openMillis = openMillis;
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        _state = State.OPEN;
+        _openedAt = now;
+        _isProbeInFlight = false;
+        _tripCount++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return _serviceName + "." + _serviceOperation + " " + _state
+                + " failures=" + _failureCount + " trips=" + _tripCount + " rejected=" + _rejectedCount;
+    }
+}
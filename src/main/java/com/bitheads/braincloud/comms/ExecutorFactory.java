@@ -0,0 +1,46 @@
+package com.bitheads.braincloud.comms;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors the SDK runs its background tasks on.
+ *
+ * This is the Java 8 version, which uses a cached pool of daemon threads.
+ * The Java 21 section of the multi-release jar replaces this class with one
+ * that starts a virtual thread per task.
+ */
+public final class ExecutorFactory {
+
+    private ExecutorFactory() {
+    }
+
+    /**
+     * @return true if the executors run their tasks on virtual threads
+     */
+    public static boolean isVirtualThreadPerTask() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that runs each task as soon as it is submitted,
+     * such as bundle sends or callbacks.
+     *
+     * @param name Prefix for the thread names
+     * @return A new executor
+     */
+    public static ExecutorService newTaskExecutor(final String name) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -1,5 +1,7 @@
 package com.bitheads.braincloud.comms;
 
+import com.bitheads.braincloud.client.IMetricsRecorder;
+import com.bitheads.braincloud.client.Metric;
 import com.bitheads.braincloud.client.ReasonCodes;
 import com.bitheads.braincloud.client.StatusCodes;
 
@@ -16,6 +18,7 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by bradleyh on 3/29/2016.
@@ -100,7 +103,28 @@ public class FileUploader implements Runnable {
     private long _timeBelowThreshold;
     private long _prevTime;
 
+    private IMetricsRecorder _metricsRecorder;
+    private long _startTime;
+    private Runnable _completionListener;
+
     public FileUploader(String uploadId, String localPath, String serverUrl, String sessionId, int timeout, int timeoutThreshold) {
+        this(uploadId, localPath, serverUrl, sessionId, timeout, timeoutThreshold, null);
+    }
+
+    public FileUploader(String uploadId, String localPath, String serverUrl, String sessionId, int timeout, int timeoutThreshold,
+                        IMetricsRecorder metricsRecorder) {
+        this(uploadId, localPath, serverUrl, sessionId, timeout, timeoutThreshold, metricsRecorder, null);
+    }
+
+    /**
+     * @param completionListener Run on the upload thread, or the canceling
+     *                           thread, once the upload has succeeded or
+     *                           failed, or null
+     */
+    public FileUploader(String uploadId, String localPath, String serverUrl, String sessionId, int timeout, int timeoutThreshold,
+                        IMetricsRecorder metricsRecorder, Runnable completionListener) {
+        _metricsRecorder = metricsRecorder;
+        _completionListener = completionListener;
         _serverUrl = serverUrl;
         _uploadId = uploadId;
         _localPath = localPath;
@@ -117,11 +141,12 @@ public class FileUploader implements Runnable {
         _fileName = file.getName();
         _status = FileUploaderStatus.Uploading;
 
-        //set timeout start
-        _prevTime = System.currentTimeMillis();
-
-        Thread _thread = new Thread(this);
-        _thread.start();
+        try {
+            // an upload can take minutes, so it does not hold a thread of the task pool
+            SdkThreads.startThread("braincloud-upload", this);
+        } catch (RejectedExecutionException e) {
+            throwError(ReasonCodes.CLIENT_UPLOAD_FILE_UNKNOWN, "Could not start the upload: " + e.getMessage());
+        }
     }
 
     public void setBytesTransferred(long bytes) {
@@ -149,6 +174,10 @@ public class FileUploader implements Runnable {
 
     @Override
     public void run() {
+        //set timeout start
+        _prevTime = System.currentTimeMillis();
+        _startTime = _prevTime;
+
         File file = new File(_localPath);
 
         HttpURLConnection connection = null;
@@ -237,6 +266,11 @@ public class FileUploader implements Runnable {
                     if (_statusCode == HttpURLConnection.HTTP_OK) {
                         _response = builder.toString();
                         _status = FileUploaderStatus.CompleteSuccess;
+
+                        if (_metricsRecorder != null) {
+                            _metricsRecorder.increment(Metric.UPLOAD_BYTES, _totalBytesToTransfer);
+                            _metricsRecorder.record(Metric.UPLOAD_MILLIS, System.currentTimeMillis() - _startTime);
+                        }
                     } else {
                         throwError(ReasonCodes.CLIENT_UPLOAD_FILE_UNKNOWN,
                                 connection.getResponseMessage());
@@ -255,6 +289,7 @@ public class FileUploader implements Runnable {
                 e.printStackTrace();
         } finally {
             if (connection != null) connection.disconnect();
+            notifyComplete();
         }
     }
 
@@ -264,9 +299,25 @@ public class FileUploader implements Runnable {
         _isCanceled = true;
         throwError(ReasonCodes.CLIENT_UPLOAD_FILE_CANCELLED,
                 "Upload of " + _fileName + " cancelled by user");
+        notifyComplete();
+    }
+
+    /**
+     * Must be called without _lock held, as the listener may look at the
+     * status from another thread.
+     */
+    private void notifyComplete() {
+        FileUploaderStatus status = getStatus();
+        if (_completionListener != null
+                && (status == FileUploaderStatus.CompleteSuccess || status == FileUploaderStatus.CompleteFailed)) {
+            _completionListener.run();
+        }
     }
 
     private void throwError(int reasonCode, String message) {
+        if (_metricsRecorder != null) {
+            _metricsRecorder.increment(Metric.UPLOAD_FAILURES, 1);
+        }
         _status = FileUploaderStatus.CompleteFailed;
         _statusCode = StatusCodes.CLIENT_NETWORK_ERROR;
         _reasonCode = reasonCode;
@@ -0,0 +1,111 @@
+package com.bitheads.braincloud.comms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative long values, in the manner of an HDR
+ * histogram. Values below 32 are counted exactly; larger values fall in
+ * buckets that split every power of two into 32, so percentiles are within
+ * about 3% of the true value for any magnitude. Recording never allocates.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _totalCount = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong _max = new AtomicLong(Long.MIN_VALUE);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(getIndex(value));
+        _totalCount.incrementAndGet();
+        _sum.addAndGet(value);
+
+        long min = _min.get();
+        while (value < min && !_min.compareAndSet(min, value)) {
+            min = _min.get();
+        }
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _totalCount.get();
+    }
+
+    public long getSum() {
+        return _sum.get();
+    }
+
+    public long getMin() {
+        return _totalCount.get() > 0 ? _min.get() : 0;
+    }
+
+    public long getMax() {
+        return _totalCount.get() > 0 ? _max.get() : 0;
+    }
+
+    public double getMean() {
+        long count = _totalCount.get();
+        return count > 0 ? (double) _sum.get() / count : 0;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return The highest value in the bucket holding the percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = _totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += _counts.get(i);
+            if (seen >= target) {
+                return Math.min(getHighestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            _counts.set(i, 0);
+        }
+        _totalCount.set(0);
+        _sum.set(0);
+        _min.set(Long.MAX_VALUE);
+        _max.set(Long.MIN_VALUE);
+    }
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,62 @@
+package com.bitheads.braincloud.comms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Transport used by the BrainCloudRestClient to post message bundles to the
+ * dispatcher. Implementations are expected to keep connections alive between
+ * sends so that consecutive bundles do not pay for socket and TLS setup.
+ */
+public interface IRestTransport {
+
+    /**
+     * Posts a bundle to the given url.
+     *
+     * Timeouts must be reported as a java.net.SocketTimeoutException so the
+     * rest client can apply its retry policy. Non 2xx http statuses are not
+     * errors at this level and are returned through the response.
+     *
+     * @param url The dispatcher url
+     * @param headers The request headers
+     * @param body Buffer holding the encoded request body
+     * @param offset Offset of the body in the buffer
+     * @param length Length of the body, sent as a fixed length stream
+     * @param connectTimeoutMillis Connect timeout in milliseconds
+     * @param readTimeoutMillis Read timeout in milliseconds
+     * @return The response, which must be closed by the caller
+     */
+    Response send(String url, Map<String, String> headers, byte[] body, int offset, int length,
+                  int connectTimeoutMillis, int readTimeoutMillis) throws IOException;
+
+    /**
+     * Releases any pooled connections held by the transport.
+     */
+    void close();
+
+    interface Response extends Closeable {
+
+        int getStatusCode() throws IOException;
+
+        /**
+         * @param name The header name
+         * @return The header value, or null if not present
+         */
+        String getHeader(String name);
+
+        /**
+         * Returns the raw (possibly gzip encoded) response body. For error
+         * statuses this is the error body, or an empty stream if there is none.
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the response. The remaining body is drained so the
+         * underlying connection can be handed back to the pool.
+         */
+        @Override
+        void close();
+    }
+}
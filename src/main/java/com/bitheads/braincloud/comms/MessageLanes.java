@@ -0,0 +1,249 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The queue of calls waiting to be bundled, with one FIFO lane per
+ * CallPriority.
+ *
+ * Each call gets a due time of its enqueue time plus the aging interval
+ * times its priority rank, and the lane whose head is due first is polled.
+ * A critical call therefore goes ahead of anything queued less than one
+ * aging interval before it, and a background call is never passed by calls
+ * queued more than two aging intervals after it.
+ *
+ * Calls are only reordered within a segment. End of bundle markers and
+ * calls that change the session start a new segment, so the calls queued
+ * before them are always sent first.
+ */
+class MessageLanes {
+
+    private static class Entry {
+        final ServerCall _call;
+        final int _lane;
+        final long _segment;
+        final long _queuedAt;
+        final long _dueAt;
+
+        Entry(ServerCall call, int lane, long segment, long queuedAt, long dueAt) {
+            _call = call;
+            _lane = lane;
+            _segment = segment;
+            _queuedAt = queuedAt;
+            _dueAt = dueAt;
+        }
+    }
+
+    private static final int LANE_COUNT = CallPriority.values().length;
+
+    private final ArrayDeque<Entry>[] _lanes;
+    private long _segment;
+    private int _size;
+    private long _agingMillis = 1000;
+
+    // per lane counters
+    private final int[] _maxDepth = new int[LANE_COUNT];
+    private final long[] _queuedCount = new long[LANE_COUNT];
+    private final long[] _dequeuedCount = new long[LANE_COUNT];
+    private final long[] _totalWaitMillis = new long[LANE_COUNT];
+    private final long[] _droppedCount = new long[LANE_COUNT];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    MessageLanes() {
+        _lanes = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; ++i) {
+            _lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    synchronized void setAgingMillis(long agingMillis) {
+        _agingMillis = Math.max(0, agingMillis);
+    }
+
+    synchronized long getAgingMillis() {
+        return _agingMillis;
+    }
+
+    /**
+     * Queues the call in its lane. End of bundle markers are not queued,
+     * they only close the current segment.
+     *
+     * @return true if the call was queued
+     */
+    synchronized boolean add(ServerCall serverCall, long now) {
+        if (serverCall.isEndOfBundleMarker()) {
+            _segment++;
+            return false;
+        }
+
+        // session changes keep their place relative to the calls around them,
+        // authentication is always pulled to the front of its segment anyway
+        boolean isBarrier = PacketBundle.isBarrier(serverCall)
+                && serverCall.getServiceOperation() != ServiceOperation.AUTHENTICATE;
+        if (isBarrier) {
+            _segment++;
+        }
+
+        int lane = serverCall.getPriority().ordinal();
+        _lanes[lane].addLast(new Entry(serverCall, lane, _segment, now, now + lane * _agingMillis));
+        _size++;
+        _queuedCount[lane]++;
+        _maxDepth[lane] = Math.max(_maxDepth[lane], _lanes[lane].size());
+
+        if (isBarrier) {
+            _segment++;
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * @return The segment of the next call to send, or -1 if nothing is queued
+     */
+    synchronized long peekSegment() {
+        long segment = -1;
+        for (ArrayDeque<Entry> lane : _lanes) {
+            Entry head = lane.peekFirst();
+            if (head != null && (segment == -1 || head._segment < segment)) {
+                segment = head._segment;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * @return The next call of the segment, from the lane whose head is due
+     * first, or null if the segment has no calls left
+     */
+    synchronized ServerCall peek(long segment) {
+        ArrayDeque<Entry> next = findNextLane(segment);
+        return next != null ? next.peekFirst()._call : null;
+    }
+
+    /**
+     * Removes the call peek returned, if it is still at the head of its
+     * lane. Only the bundling thread removes calls, so it is unless the queue
+     * was cleared.
+     *
+     * @return false if the call is no longer queued
+     */
+    synchronized boolean remove(ServerCall serverCall, long now) {
+        ArrayDeque<Entry> lane = _lanes[serverCall.getPriority().ordinal()];
+        Entry head = lane.peekFirst();
+        if (head == null || head._call != serverCall) {
+            return false;
+        }
+        remove(lane.pollFirst(), now);
+        return true;
+    }
+
+    /**
+     * Removes the first AUTHENTICATE call of the oldest segment, so it can be
+     * sent ahead of the calls that need its session.
+     *
+     * @return The call, or null if there is none
+     */
+    synchronized ServerCall pollAuthenticate(long now) {
+        long segment = peekSegment();
+        for (ArrayDeque<Entry> lane : _lanes) {
+            Iterator<Entry> it = lane.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry._segment != segment) {
+                    break;
+                }
+                if (entry._call.getServiceOperation() == ServiceOperation.AUTHENTICATE) {
+                    it.remove();
+                    return remove(entry, now);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest call that can be dropped to make room for a call of
+     * the priority, from the lowest priority lane first. Session changes and
+     * journaled calls are never dropped.
+     *
+     * @return The call, or null if there is none
+     */
+    synchronized ServerCall dropOldest(CallPriority priority) {
+        for (int lane = LANE_COUNT - 1; lane >= priority.ordinal(); --lane) {
+            Iterator<Entry> it = _lanes[lane].iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry._call.getJournalId() == 0 && !PacketBundle.isBarrier(entry._call)) {
+                    it.remove();
+                    _size--;
+                    _droppedCount[lane]++;
+                    return entry._call;
+                }
+            }
+        }
+        return null;
+    }
+
+    synchronized void clear() {
+        for (ArrayDeque<Entry> lane : _lanes) {
+            lane.clear();
+        }
+        _size = 0;
+    }
+
+    synchronized int getDepth(CallPriority priority) {
+        return _lanes[priority.ordinal()].size();
+    }
+
+    synchronized int getMaxDepth(CallPriority priority) {
+        return _maxDepth[priority.ordinal()];
+    }
+
+    synchronized long getQueuedCount(CallPriority priority) {
+        return _queuedCount[priority.ordinal()];
+    }
+
+    synchronized long getDroppedCount(CallPriority priority) {
+        return _droppedCount[priority.ordinal()];
+    }
+
+    synchronized double getAverageWaitMillis(CallPriority priority) {
+        int lane = priority.ordinal();
+        return _dequeuedCount[lane] == 0 ? 0 : (double) _totalWaitMillis[lane] / _dequeuedCount[lane];
+    }
+
+    synchronized void resetStats() {
+        for (int i = 0; i < LANE_COUNT; ++i) {
+            _maxDepth[i] = _lanes[i].size();
+            _queuedCount[i] = 0;
+            _dequeuedCount[i] = 0;
+            _totalWaitMillis[i] = 0;
+            _droppedCount[i] = 0;
+        }
+    }
+
+    private ArrayDeque<Entry> findNextLane(long segment) {
+        ArrayDeque<Entry> next = null;
+        for (ArrayDeque<Entry> lane : _lanes) {
+            Entry head = lane.peekFirst();
+            if (head != null && head._segment == segment
+                    && (next == null || head._dueAt < next.peekFirst()._dueAt)) {
+                next = lane;
+            }
+        }
+        return next;
+    }
+
+    private ServerCall remove(Entry entry, long now) {
+        _size--;
+        _dequeuedCount[entry._lane]++;
+        _totalWaitMillis[entry._lane] += Math.max(0, now - entry._queuedAt);
+        return entry._call;
+    }
+}
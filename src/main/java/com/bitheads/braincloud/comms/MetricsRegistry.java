@@ -0,0 +1,155 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.IMetricsRecorder;
+import com.bitheads.braincloud.client.Metric;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In memory IMetricsRecorder. Every metric has a counter and a histogram,
+ * and every service operation called has a latency histogram and an error
+ * count, all of which can be read at any time or written out with
+ * MetricsTextExporter.
+ *
+ * Histograms of the metrics are created up front, and the latency histogram
+ * of an operation the first time it completes, so recording does not
+ * allocate after that.
+ */
+public class MetricsRegistry implements IMetricsRecorder {
+
+    private static final Metric[] METRICS = Metric.values();
+    private static final ServiceName[] SERVICE_NAMES = ServiceName.values();
+    private static final ServiceOperation[] SERVICE_OPERATIONS = ServiceOperation.values();
+
+    private final AtomicLongArray _counters = new AtomicLongArray(METRICS.length);
+    private final Histogram[] _histograms = new Histogram[METRICS.length];
+
+    // by service then operation ordinal, created on first use
+    private final AtomicReferenceArray<AtomicReferenceArray<Histogram>> _callLatency =
+            new AtomicReferenceArray<>(SERVICE_NAMES.length);
+    private final AtomicReferenceArray<AtomicLongArray> _callErrors =
+            new AtomicReferenceArray<>(SERVICE_NAMES.length);
+
+    public MetricsRegistry() {
+        for (int i = 0; i < _histograms.length; ++i) {
+            _histograms[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void recordCall(ServiceName serviceName, ServiceOperation serviceOperation, long latencyMicros, boolean success) {
+        if (serviceName == null || serviceOperation == null) {
+            return;
+        }
+        int s = serviceName.ordinal();
+        int o = serviceOperation.ordinal();
+
+        AtomicReferenceArray<Histogram> operations = _callLatency.get(s);
+        if (operations == null) {
+            _callLatency.compareAndSet(s, null, new AtomicReferenceArray<Histogram>(SERVICE_OPERATIONS.length));
+            operations = _callLatency.get(s);
+        }
+        Histogram latency = operations.get(o);
+        if (latency == null) {
+            operations.compareAndSet(o, null, new Histogram());
+            latency = operations.get(o);
+        }
+        latency.record(latencyMicros);
+
+        if (!success) {
+            AtomicLongArray errors = _callErrors.get(s);
+            if (errors == null) {
+                _callErrors.compareAndSet(s, null, new AtomicLongArray(SERVICE_OPERATIONS.length));
+                errors = _callErrors.get(s);
+            }
+            errors.incrementAndGet(o);
+            _counters.incrementAndGet(Metric.CALL_ERRORS.ordinal());
+        }
+    }
+
+    @Override
+    public void record(Metric metric, long value) {
+        _histograms[metric.ordinal()].record(value);
+    }
+
+    @Override
+    public void increment(Metric metric, long count) {
+        _counters.addAndGet(metric.ordinal(), count);
+    }
+
+    public long getCounter(Metric metric) {
+        return _counters.get(metric.ordinal());
+    }
+
+    public Histogram getHistogram(Metric metric) {
+        return _histograms[metric.ordinal()];
+    }
+
+    /**
+     * @return The latency histogram of the operation in microseconds, or null if it never completed
+     */
+    public Histogram getCallLatency(ServiceName serviceName, ServiceOperation serviceOperation) {
+        AtomicReferenceArray<Histogram> operations = _callLatency.get(serviceName.ordinal());
+        return operations != null ? operations.get(serviceOperation.ordinal()) : null;
+    }
+
+    /**
+     * @return The number of calls to the operation that returned an error
+     */
+    public long getCallErrorCount(ServiceName serviceName, ServiceOperation serviceOperation) {
+        return getCallErrorCount(serviceName.ordinal(), serviceOperation.ordinal());
+    }
+
+    /**
+     * Zeroes every counter and histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < METRICS.length; ++i) {
+            _counters.set(i, 0);
+            _histograms[i].reset();
+        }
+        for (int s = 0; s < SERVICE_NAMES.length; ++s) {
+            AtomicReferenceArray<Histogram> operations = _callLatency.get(s);
+            AtomicLongArray errors = _callErrors.get(s);
+            for (int o = 0; o < SERVICE_OPERATIONS.length; ++o) {
+                Histogram latency = operations != null ? operations.get(o) : null;
+                if (latency != null) {
+                    latency.reset();
+                }
+                if (errors != null) {
+                    errors.set(o, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls the visitor with the latency histogram of every operation that completed.
+     */
+    void forEachCall(CallVisitor visitor) {
+        for (int s = 0; s < SERVICE_NAMES.length; ++s) {
+            AtomicReferenceArray<Histogram> operations = _callLatency.get(s);
+            if (operations == null) {
+                continue;
+            }
+            for (int o = 0; o < SERVICE_OPERATIONS.length; ++o) {
+                Histogram latency = operations.get(o);
+                if (latency != null && latency.getCount() > 0) {
+                    visitor.visit(SERVICE_NAMES[s], SERVICE_OPERATIONS[o], latency, getCallErrorCount(s, o));
+                }
+            }
+        }
+    }
+
+    interface CallVisitor {
+        void visit(ServiceName serviceName, ServiceOperation serviceOperation, Histogram latency, long errorCount);
+    }
+
+    private long getCallErrorCount(int s, int o) {
+        AtomicLongArray errors = _callErrors.get(s);
+        return errors != null ? errors.get(o) : 0;
+    }
+}
@@ -0,0 +1,113 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.Metric;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Writes the contents of a MetricsRegistry in the Prometheus text format, so
+ * it can be logged, served to a scraper or pushed to a gateway.
+ *
+ * Counters are written as braincloud_&lt;metric&gt;_total. Histograms are
+ * written as summaries with count, sum, min, max and the 50th, 90th, 99th
+ * and 99.9th percentiles, and only once they hold a value. Service call
+ * latencies are written as braincloud_call_latency_micros with service and
+ * operation labels, along with braincloud_call_errors_total.
+ */
+public class MetricsTextExporter {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final String PREFIX = "braincloud_";
+
+    private MetricsTextExporter() {
+    }
+
+    /**
+     * @return The registry's metrics in the Prometheus text format
+     */
+    public static String export(MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            export(registry, sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            e.printStackTrace();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the registry's metrics in the Prometheus text format.
+     */
+    public static void export(MetricsRegistry registry, final Appendable out) throws IOException {
+        for (Metric metric : Metric.values()) {
+            long count = registry.getCounter(metric);
+            if (count != 0) {
+                String name = PREFIX + metric.name().toLowerCase(Locale.ROOT) + "_total";
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(Long.toString(count)).append('\n');
+            }
+        }
+
+        for (Metric metric : Metric.values()) {
+            Histogram histogram = registry.getHistogram(metric);
+            if (histogram.getCount() > 0) {
+                String name = PREFIX + metric.name().toLowerCase(Locale.ROOT);
+                out.append("# TYPE ").append(name).append(" summary\n");
+                writeSummary(out, name, "", histogram);
+            }
+        }
+
+        final String latencyName = PREFIX + "call_latency_micros";
+        final String errorsName = PREFIX + "call_errors_total";
+        final IOException[] error = new IOException[1];
+        final boolean[] first = {true};
+        registry.forEachCall(new MetricsRegistry.CallVisitor() {
+            @Override
+            public void visit(ServiceName serviceName, ServiceOperation serviceOperation, Histogram latency, long errorCount) {
+                if (error[0] != null) {
+                    return;
+                }
+                try {
+                    if (first[0]) {
+                        out.append("# TYPE ").append(latencyName).append(" summary\n");
+                        first[0] = false;
+                    }
+                    String labels = "service=\"" + serviceName.name() + "\",operation=\"" + serviceOperation.name() + "\"";
+                    writeSummary(out, latencyName, labels, latency);
+                    if (errorCount > 0) {
+                        out.append(errorsName).append('{').append(labels).append("} ").append(Long.toString(errorCount)).append('\n');
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private static void writeSummary(Appendable out, String name, String labels, Histogram histogram) throws IOException {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(separator)
+                    .append("quantile=\"").append(formatQuantile(quantile)).append("\"} ")
+                    .append(Long.toString(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        String suffixLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_min").append(suffixLabels).append(' ').append(Long.toString(histogram.getMin())).append('\n');
+        out.append(name).append("_max").append(suffixLabels).append(' ').append(Long.toString(histogram.getMax())).append('\n');
+        out.append(name).append("_sum").append(suffixLabels).append(' ').append(Long.toString(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(suffixLabels).append(' ').append(Long.toString(histogram.getCount())).append('\n');
+    }
+
+    private static String formatQuantile(double quantile) {
+        String text = Double.toString(quantile);
+        return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+    }
+}
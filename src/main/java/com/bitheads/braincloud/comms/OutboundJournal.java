@@ -0,0 +1,522 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of durable calls, kept on disk until the server has
+ * answered them, so calls such as stats or score posts survive the process
+ * being killed.
+ *
+ * A call is durable when its operation has been added with
+ * addDurableOperation or when ServerCall.setDurable has been set. The
+ * encoded call is appended when it is queued, which is the same encoding
+ * the bundle reuses when it is sent, and an acknowledgement is appended
+ * once a response comes back for it, successful or not. Calls that never
+ * got a response, whether the process died, the network failed or the
+ * queue was reset, are recovered when the journal is next opened and
+ * queued again the next time the same profile authenticates. Recovered
+ * calls have no callback.
+ *
+ * Records are written to numbered segment files in the journal directory.
+ * When the current segment reaches the segment size a new one is started,
+ * and once there are more than the maximum number of segments the calls
+ * still waiting are copied forward and the old segments deleted. Opening a
+ * journal compacts it the same way. A record cut short by a crash is
+ * dropped along with everything after it in its segment.
+ */
+public class OutboundJournal {
+
+    private static final String SEGMENT_PREFIX = "outbound-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte RECORD_APPEND = 1;
+    private static final byte RECORD_ACK = 2;
+
+    // type, id, body length
+    private static final int HEADER_BYTES = 1 + 8 + 4;
+    private static final int CRC_BYTES = 4;
+
+    /**
+     * A durable call read back from the journal.
+     */
+    private static final class PendingCall {
+        final long _id;
+        final String _profileId;
+        final byte[] _payload;
+        long _segment;
+
+        PendingCall(long id, String profileId, byte[] payload, long segment) {
+            _id = id;
+            _profileId = profileId;
+            _payload = payload;
+            _segment = segment;
+        }
+    }
+
+    private final Object _lock = new Object();
+    private final File _directory;
+    private final Set<String> _durableOperations = new HashSet<>();
+
+    // calls appended and not acknowledged yet, in append order
+    private final LinkedHashMap<Long, PendingCall> _pending = new LinkedHashMap<>();
+    // recovered calls waiting for their profile to authenticate
+    private final LinkedHashMap<Long, PendingCall> _recovered = new LinkedHashMap<>();
+    private final TreeMap<Long, File> _segments = new TreeMap<>();
+
+    private long _segmentBytes = 1024 * 1024;
+    private int _maxSegments = 4;
+    private boolean _syncOnAppend = false;
+
+    private RandomAccessFile _file;
+    private FileChannel _channel;
+    private long _segment;
+    private long _nextId = 1;
+
+    // reused for every record so encoding one does not allocate; the
+    // pending entry each append keeps in memory still does
+    private ByteBuffer _buffer = ByteBuffer.allocateDirect(4096);
+    private final CRC32 _crc = new CRC32();
+    private String _lastProfileId = "";
+    private byte[] _lastProfileIdBytes = new byte[0];
+
+    private long _appendCount;
+    private long _ackCount;
+    private long _recoveredCount;
+
+    private volatile boolean _loggingEnabled;
+
+    /**
+     * Opens the journal in the directory, creating it if needed, and reads
+     * back the calls that were never answered.
+     *
+     * @param directory Directory of the journal segments
+     * @throws IOException If the journal could not be read or written
+     */
+    public OutboundJournal(File directory) throws IOException {
+        this(directory, false);
+    }
+
+    OutboundJournal(File directory, boolean loggingEnabled) throws IOException {
+        _directory = directory;
+        _loggingEnabled = loggingEnabled;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        synchronized (_lock) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    long segment = parseSegment(file.getName());
+                    if (segment > 0) {
+                        _segments.put(segment, file);
+                    }
+                }
+            }
+
+            HashSet<Long> acknowledged = new HashSet<>();
+            TreeMap<Long, PendingCall> appended = new TreeMap<>();
+            for (Map.Entry<Long, File> segment : _segments.entrySet()) {
+                readSegment(segment.getKey(), segment.getValue(), appended, acknowledged);
+                _segment = segment.getKey();
+            }
+            for (PendingCall call : appended.values()) {
+                if (!acknowledged.contains(call._id)) {
+                    _pending.put(call._id, call);
+                    _recovered.put(call._id, call);
+                }
+                _nextId = Math.max(_nextId, call._id + 1);
+            }
+            _recoveredCount = _recovered.size();
+
+            // start from a clean segment holding only the calls still waiting
+            compact();
+        }
+    }
+
+    /**
+     * Makes every call to the operation durable.
+     */
+    public void addDurableOperation(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            _durableOperations.add(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    public void removeDurableOperation(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            _durableOperations.remove(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    /**
+     * Sets the size at which a new segment file is started.
+     *
+     * @param segmentBytes Segment size in bytes
+     */
+    public void setSegmentBytes(long segmentBytes) {
+        synchronized (_lock) {
+            _segmentBytes = Math.max(4096, segmentBytes);
+        }
+    }
+
+    /**
+     * Sets how many segment files are kept before the journal is compacted.
+     */
+    public void setMaxSegments(int maxSegments) {
+        synchronized (_lock) {
+            _maxSegments = Math.max(1, maxSegments);
+        }
+    }
+
+    /**
+     * Flushes every append to the storage device. Off by default, in which
+     * case records survive the process dying but may be lost if the machine
+     * loses power.
+     */
+    public void setSyncOnAppend(boolean syncOnAppend) {
+        synchronized (_lock) {
+            _syncOnAppend = syncOnAppend;
+        }
+    }
+
+    /**
+     * @return Number of durable calls waiting for a response, including recovered ones
+     */
+    public int getPendingCount() {
+        synchronized (_lock) {
+            return _pending.size();
+        }
+    }
+
+    public long getAppendCount() {
+        synchronized (_lock) {
+            return _appendCount;
+        }
+    }
+
+    public long getAcknowledgedCount() {
+        synchronized (_lock) {
+            return _ackCount;
+        }
+    }
+
+    /**
+     * @return Number of unanswered calls found when the journal was opened
+     */
+    public long getRecoveredCount() {
+        synchronized (_lock) {
+            return _recoveredCount;
+        }
+    }
+
+    /**
+     * Copies the calls still waiting into a new segment and deletes the
+     * older segments.
+     */
+    public void compact() throws IOException {
+        synchronized (_lock) {
+            closeSegment();
+            ArrayList<File> oldSegments = new ArrayList<>(_segments.values());
+            _segments.clear();
+            openSegment(_segment + 1);
+            for (PendingCall call : _pending.values()) {
+                writeAppend(call._id, call._profileId, call._payload, 0, call._payload.length);
+                call._segment = _segment;
+            }
+            _channel.force(false);
+            for (File file : oldSegments) {
+                if (!file.delete()) {
+                    LogString("Unable to delete journal segment " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment. Calls still waiting stay on disk.
+     */
+    public void close() {
+        synchronized (_lock) {
+            try {
+                closeSegment();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void enableLogging(boolean isEnabled) {
+        _loggingEnabled = isEnabled;
+    }
+
+    boolean isDurable(ServerCall serverCall) {
+        if (serverCall.isDurable()) {
+            return true;
+        }
+        if (serverCall.isEndOfBundleMarker() || serverCall.getServiceName() == null) {
+            return false;
+        }
+        synchronized (_lock) {
+            return _durableOperations.contains(getOperationKey(serverCall.getServiceName(), serverCall.getServiceOperation()));
+        }
+    }
+
+    /**
+     * Appends the encoded call, recording its journal id on the call.
+     */
+    void append(ServerCall serverCall, byte[] payload, String profileId) throws IOException {
+        synchronized (_lock) {
+            if (_channel == null) {
+                return;
+            }
+            if (profileId == null) {
+                // not authenticated yet
+                profileId = "";
+            }
+            long id = _nextId++;
+            writeAppend(id, profileId, payload, 0, payload.length);
+            if (_syncOnAppend) {
+                _channel.force(false);
+            }
+            serverCall.setJournalId(id);
+            _pending.put(id, new PendingCall(id, profileId, payload, _segment));
+            _appendCount++;
+            rollIfFull();
+        }
+    }
+
+    /**
+     * Records that the server answered the call, so it is not recovered.
+     */
+    void acknowledge(ServerCall serverCall) throws IOException {
+        long id = serverCall.getJournalId();
+        if (id <= 0) {
+            return;
+        }
+        synchronized (_lock) {
+            serverCall.setJournalId(0);
+            if (_pending.remove(id) == null || _channel == null) {
+                return;
+            }
+            _recovered.remove(id);
+            writeRecord(RECORD_ACK, id, null, null, 0, 0);
+            _ackCount++;
+            rollIfFull();
+        }
+    }
+
+    /**
+     * Takes the recovered calls made by the profile, to be queued again now
+     * that it has a session. Calls made before any profile was known are
+     * included for every profile.
+     */
+    ArrayList<ServerCall> takeRecovered(String profileId) {
+        ArrayList<ServerCall> calls = new ArrayList<>();
+        synchronized (_lock) {
+            Iterator<PendingCall> it = _recovered.values().iterator();
+            while (it.hasNext()) {
+                PendingCall call = it.next();
+                if (!call._profileId.isEmpty() && !call._profileId.equals(profileId)) {
+                    continue;
+                }
+                it.remove();
+                try {
+                    JSONObject payload = new JSONObject(new String(call._payload, BundleWriter.UTF_8));
+                    ServerCall serverCall = new ServerCall(
+                            ServiceName.valueOf(payload.getString("service")),
+                            ServiceOperation.valueOf(payload.getString("operation")),
+                            payload.optJSONObject("data"),
+                            null);
+                    serverCall.setDurable(true);
+                    serverCall.setEncodedPayload(call._payload);
+                    serverCall.setJournalId(call._id);
+                    calls.add(serverCall);
+                } catch (JSONException | IllegalArgumentException e) {
+                    // not a call this version knows, drop it
+                    e.printStackTrace();
+                    _pending.remove(call._id);
+                }
+            }
+        }
+        return calls;
+    }
+
+    private void writeAppend(long id, String profileId, byte[] payload, int offset, int length) throws IOException {
+        if (!profileId.equals(_lastProfileId)) {
+            _lastProfileId = profileId;
+            _lastProfileIdBytes = profileId.getBytes(BundleWriter.UTF_8);
+        }
+        writeRecord(RECORD_APPEND, id, _lastProfileIdBytes, payload, offset, length);
+    }
+
+    /**
+     * Writes type, id, body length, body and the CRC32 of the body, where an
+     * append body is the profile id length and bytes followed by the payload.
+     */
+    private void writeRecord(byte type, long id, byte[] profileId, byte[] payload, int offset, int length) throws IOException {
+        int bodyLength = profileId != null ? 2 + profileId.length + length : 0;
+        int recordLength = HEADER_BYTES + bodyLength + CRC_BYTES;
+        if (_buffer.capacity() < recordLength) {
+            _buffer = ByteBuffer.allocateDirect(Math.max(recordLength, _buffer.capacity() * 2));
+        }
+
+        _buffer.clear();
+        _buffer.put(type);
+        _buffer.putLong(id);
+        _buffer.putInt(bodyLength);
+        _crc.reset();
+        if (profileId != null) {
+            _buffer.putShort((short) profileId.length);
+            _buffer.put(profileId);
+            _buffer.put(payload, offset, length);
+            _crc.update(profileId, 0, profileId.length);
+            _crc.update(payload, offset, length);
+        }
+        _buffer.putInt((int) _crc.getValue());
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+    }
+
+    private void readSegment(long segment, File file, TreeMap<Long, PendingCall> appended, Set<Long> acknowledged) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+            }
+            data.flip();
+
+            CRC32 crc = new CRC32();
+            int validEnd = 0;
+            while (data.remaining() >= HEADER_BYTES + CRC_BYTES) {
+                byte type = data.get();
+                long id = data.getLong();
+                int bodyLength = data.getInt();
+                if (bodyLength < 0 || data.remaining() < bodyLength + CRC_BYTES
+                        || (type != RECORD_APPEND && type != RECORD_ACK)) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                data.get(body);
+                int checksum = data.getInt();
+                crc.reset();
+                if (type == RECORD_APPEND) {
+                    int profileLength = bodyLength >= 2 ? ((body[0] & 0xff) << 8) | (body[1] & 0xff) : -1;
+                    if (profileLength < 0 || 2 + profileLength > bodyLength) {
+                        break;
+                    }
+                    crc.update(body, 2, bodyLength - 2);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    String profileId = new String(body, 2, profileLength, BundleWriter.UTF_8);
+                    byte[] payload = Arrays.copyOfRange(body, 2 + profileLength, bodyLength);
+                    appended.put(id, new PendingCall(id, profileId, payload, segment));
+                } else {
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    acknowledged.add(id);
+                }
+                validEnd = data.position();
+            }
+
+            if (validEnd < channel.size()) {
+                LogString("Dropping " + (channel.size() - validEnd) + " bytes of torn records from " + file);
+                channel.truncate(validEnd);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void rollIfFull() throws IOException {
+        if (_channel.position() < _segmentBytes) {
+            return;
+        }
+        if (_segments.size() >= _maxSegments) {
+            compact();
+            return;
+        }
+
+        closeSegment();
+        openSegment(_segment + 1);
+
+        // segments are deleted oldest first, once no call in them or before them is waiting
+        long oldestWaiting = _segment;
+        for (PendingCall call : _pending.values()) {
+            oldestWaiting = Math.min(oldestWaiting, call._segment);
+        }
+        Iterator<Map.Entry<Long, File>> it = _segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, File> segment = it.next();
+            if (segment.getKey() >= oldestWaiting) {
+                break;
+            }
+            if (segment.getValue().delete()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        File file = new File(_directory, String.format(Locale.ROOT, "%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+        _file = new RandomAccessFile(file, "rw");
+        _channel = _file.getChannel();
+        _channel.position(_channel.size());
+        _segment = segment;
+        _segments.put(segment, file);
+    }
+
+    private void closeSegment() throws IOException {
+        if (_file != null) {
+            _file.close();
+            _file = null;
+            _channel = null;
+        }
+    }
+
+    private static long parseSegment(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String getOperationKey(ServiceName serviceName, ServiceOperation serviceOperation) {
+        return serviceName.name() + "." + serviceOperation.name();
+    }
+
+    private void LogString(String s) {
+        if (_loggingEnabled) {
+            System.out.println("#BCC " + s);
+        }
+    }
+}
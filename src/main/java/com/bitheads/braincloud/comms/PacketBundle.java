@@ -0,0 +1,100 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of server calls sent to the dispatcher as one packet, along with
+ * its send state. Bundles are completed out of order by the sender threads
+ * but their results are always delivered in packet id order.
+ */
+class PacketBundle {
+
+    final ArrayList<ServerCall> _calls;
+    long _packetId;
+    int _retryCount;
+    long _retryDelayMillis;
+
+    // encoded form, kept for the retries of this bundle
+    BundleWriter _writer;
+    boolean _isEncoded;
+    String _signature;
+
+    // result, applied when the bundle is delivered
+    boolean _isComplete;
+    boolean _isError;
+    boolean _cacheOnError;
+    int _errorStatusCode;
+    int _errorReasonCode;
+    String _errorStatusMessage;
+
+    // responses read but not yet handed to their calls, starting at _dispatchedCount
+    final ArrayList<JSONObject> _responses = new ArrayList<>();
+    int _dispatchedCount;
+    JSONArray _events;
+
+    PacketBundle(List<ServerCall> calls, long packetId) {
+        _calls = new ArrayList<>(calls);
+        _packetId = packetId;
+    }
+
+    int size() {
+        return _calls.size();
+    }
+
+    /**
+     * @return The latest deadline of the calls if they all have one, otherwise 0
+     */
+    long getDeadline() {
+        long deadline = 0;
+        for (ServerCall serverCall : _calls) {
+            if (serverCall.getDeadline() <= 0) {
+                return 0;
+            }
+            deadline = Math.max(deadline, serverCall.getDeadline());
+        }
+        return deadline;
+    }
+
+    /**
+     * Barrier bundles change the session (authentication, profile switches,
+     * logout) so they are never in flight alongside any other bundle.
+     */
+    boolean isBarrier() {
+        for (ServerCall serverCall : _calls) {
+            if (isBarrier(serverCall)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isBarrier(ServerCall serverCall) {
+        ServiceName serviceName = serverCall.getServiceName();
+        return serviceName == ServiceName.authenticationV2
+                || serviceName == ServiceName.identity
+                || serverCall.getServiceOperation() == ServiceOperation.LOGOUT;
+    }
+
+    List<ServerCall> getUndispatchedCalls() {
+        return _calls.subList(Math.min(_dispatchedCount, _calls.size()), _calls.size());
+    }
+
+    void setResponse() {
+        _isError = false;
+    }
+
+    void setError(int statusCode, int reasonCode, String statusMessage, boolean cacheOnError) {
+        _isError = true;
+        _cacheOnError = cacheOnError;
+        _errorStatusCode = statusCode;
+        _errorReasonCode = reasonCode;
+        _errorStatusMessage = statusMessage;
+    }
+}
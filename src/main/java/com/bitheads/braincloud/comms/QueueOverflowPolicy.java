@@ -0,0 +1,19 @@
+package com.bitheads.braincloud.comms;
+
+/**
+ * What the rest client does with a call made while its outbound queue is
+ * at capacity.
+ */
+public enum QueueOverflowPolicy {
+    /** The caller waits for room, up to the block timeout, then the call fails */
+    BLOCK,
+    /** The call fails right away with CLIENT_QUEUE_FULL, the default */
+    FAIL,
+    /**
+     * The oldest queued call of the lowest priority lane, not above the new
+     * call's priority, fails with CLIENT_QUEUE_FULL to make room. Session
+     * changes and journaled durable calls are never dropped. The new call
+     * fails if there is nothing to drop.
+     */
+    DROP_OLDEST
+}
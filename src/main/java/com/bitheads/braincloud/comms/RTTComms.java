@@ -12,6 +12,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -25,9 +26,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IMetricsRecorder;
 import com.bitheads.braincloud.client.IRTTCallback;
 import com.bitheads.braincloud.client.IRTTConnectCallback;
 import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.Metric;
 import com.bitheads.braincloud.client.ServiceName;
 import com.bitheads.braincloud.client.ServiceOperation;
 import com.bitheads.braincloud.services.AuthenticationService;
@@ -404,7 +407,7 @@ public class RTTComms implements IServerCallback {
 //    }
 
     private void connectTCP() {
-        Thread connectionThread = new Thread(new Runnable() {
+        Runnable connect = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -426,13 +429,21 @@ public class RTTComms implements IServerCallback {
                     
                 } catch (Exception e) {
                     e.printStackTrace();
+                    // close the socket and leave Connecting so enableRTT can try again
+                    disconnect();
                     failedToConnect();
                     return;
                 }
             }
-        });
+        };
 
-        connectionThread.start();
+        try {
+            SdkThreads.execute(connect);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+            disconnect();
+            failedToConnect();
+        }
     }
 
     private void connectWebSocket() throws JSONException {
@@ -505,6 +516,9 @@ public class RTTComms implements IServerCallback {
     }
 
     private void disconnect() {
+        if (_rttConnectionStatus == RTTComms.RttConnectionStatus.Connected) {
+            incrementMetric(Metric.RTT_DISCONNECTS, 1);
+        }
         _rttConnectionStatus = RTTComms.RttConnectionStatus.Disconnecting;
         try {
             if (_socket != null) {
@@ -531,6 +545,13 @@ public class RTTComms implements IServerCallback {
         }
     }
 
+    private void incrementMetric(Metric metric, long count) {
+        IMetricsRecorder metrics = _client.getMetricsRecorder();
+        if (metrics != null) {
+            metrics.increment(metric, count);
+        }
+    }
+
     private boolean send(JSONObject jsonData) {
         try {
             String message = jsonData.toString();
@@ -542,6 +563,7 @@ public class RTTComms implements IServerCallback {
             DataOutputStream out = new DataOutputStream(_socket.getOutputStream());
             out.writeInt(message.length());
             out.writeBytes(message);
+            incrementMetric(Metric.RTT_MESSAGES_SENT, 1);
 
             return true;
         }
@@ -560,6 +582,7 @@ public class RTTComms implements IServerCallback {
             }
 
             _webSocketClient.send(/*buildLenEncodedMessage*/(message));
+            incrementMetric(Metric.RTT_MESSAGES_SENT, 1);
 
             return true;
         }
@@ -573,6 +596,8 @@ public class RTTComms implements IServerCallback {
         if (_loggingEnabled) {
             System.out.println("RTT RECV: " + message);
         }
+        incrementMetric(Metric.RTT_EVENTS_RECEIVED, 1);
+        incrementMetric(Metric.RTT_BYTES_RECEIVED, message.length());
 
         try {
             JSONObject jsonData = new JSONObject(message);
@@ -632,7 +657,7 @@ public class RTTComms implements IServerCallback {
     private void startReceiving(DataInputStream in_in) {
         final DataInputStream capture_in_in = in_in;
         
-        Thread receiveThread = new Thread(new Runnable() {
+        SdkThreads.startThread("braincloud-rtt-receive", new Runnable() {
             @Override
             public void run() {
                 DataInputStream in;
@@ -647,7 +672,8 @@ public class RTTComms implements IServerCallback {
                     _rttConnectionStatus = RTTComms.RttConnectionStatus.Disconnected;
                     return;
                 }
-                while (isRTTEnabled()) {
+                // the CONNECT response arrives on this thread, so keep reading while connecting
+                while (isRTTEnabled() || _rttConnectionStatus == RTTComms.RttConnectionStatus.Connecting) {
                     try {
                         int len = in.readInt();
 
@@ -664,8 +690,6 @@ public class RTTComms implements IServerCallback {
                 disconnect();
             }
         });
-
-        receiveThread.start();
     }
 
     @Override
@@ -0,0 +1,370 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side rate limits for service operations the server throttles, so
+ * a hot operation is held back before the server starts returning errors
+ * for it.
+ *
+ * Each limited operation has a token bucket that refills at its rate up to
+ * its burst. A call is sent when it can take a token. What happens to a
+ * call over the budget depends on the policy of the limit:
+ * - DELAY holds the call until a token is free. Held calls go out in the
+ *   order they were made, but after the calls of other operations made
+ *   while they were held.
+ * - MERGE holds the call as with DELAY. In addition, any call identical to
+ *   one of the operation that is held or waiting for its response is
+ *   completed with that call's response, each callback getting its own
+ *   copy, without taking a token.
+ * - REJECT fails the call locally with CLIENT_RATE_LIMITED.
+ *
+ * A call that changes the session, such as an authentication or a logout,
+ * fails the calls held at that time with CLIENT_RATE_LIMITED, so they are
+ * never sent in a session other than the one they were made in.
+ *
+ * Operations without a limit are not affected. Limits are checked when a
+ * call is queued, after the response cache and the request coalescer.
+ */
+public class RateLimiter {
+
+    public enum Policy {
+        DELAY,
+        MERGE,
+        REJECT
+    }
+
+    /**
+     * The token bucket of one operation.
+     */
+    public static class Limit {
+
+        private final ServiceName _serviceName;
+        private final ServiceOperation _serviceOperation;
+        private final double _callsPerSecond;
+        private final int _burst;
+        private final Policy _policy;
+
+        private double _tokens;
+        private long _refilledAtNanos;
+        private final ArrayDeque<ServerCall> _held = new ArrayDeque<>();
+
+        private long _allowedCount;
+        private long _delayedCount;
+        private long _mergedCount;
+        private long _rejectedCount;
+        private int _maxHeldCount;
+
+        Limit(ServiceName serviceName, ServiceOperation serviceOperation, double callsPerSecond, int burst,
+              Policy policy, long nowNanos) {
+            _serviceName = serviceName;
+            _serviceOperation = serviceOperation;
+            _callsPerSecond = callsPerSecond;
+            _burst = burst;
+            _policy = policy;
+            _tokens = burst;
+            _refilledAtNanos = nowNanos;
+        }
+
+        public ServiceName getServiceName() {
+            return _serviceName;
+        }
+
+        public ServiceOperation getServiceOperation() {
+            return _serviceOperation;
+        }
+
+        public double getCallsPerSecond() {
+            return _callsPerSecond;
+        }
+
+        public int getBurst() {
+            return _burst;
+        }
+
+        public Policy getPolicy() {
+            return _policy;
+        }
+
+        /**
+         * @return Calls that can be made right now without going over the budget
+         */
+        public synchronized double getAvailableTokens() {
+            refill(System.nanoTime());
+            return _tokens;
+        }
+
+        /**
+         * @return Number of calls held until a token is free
+         */
+        public synchronized int getHeldCount() {
+            return _held.size();
+        }
+
+        public synchronized int getMaxHeldCount() {
+            return _maxHeldCount;
+        }
+
+        /**
+         * @return Number of calls that took a token, held calls included once released
+         */
+        public synchronized long getAllowedCount() {
+            return _allowedCount;
+        }
+
+        /**
+         * @return Number of calls that were held for being over the budget
+         */
+        public synchronized long getDelayedCount() {
+            return _delayedCount;
+        }
+
+        /**
+         * @return Number of calls completed from an identical call's response
+         */
+        public synchronized long getMergedCount() {
+            return _mergedCount;
+        }
+
+        /**
+         * @return Number of calls failed locally for being over the budget
+         */
+        public synchronized long getRejectedCount() {
+            return _rejectedCount;
+        }
+
+        public synchronized void resetStats() {
+            _allowedCount = 0;
+            _delayedCount = 0;
+            _mergedCount = 0;
+            _rejectedCount = 0;
+            _maxHeldCount = _held.size();
+        }
+
+        /**
+         * Takes a token for the call, unless calls are already held: those
+         * get the next tokens.
+         *
+         * @return false if the call is over the budget
+         */
+        synchronized boolean tryAcquire(long nowNanos) {
+            refill(nowNanos);
+            if (!_held.isEmpty() || _tokens < 1) {
+                return false;
+            }
+            _tokens -= 1;
+            _allowedCount++;
+            return true;
+        }
+
+        synchronized void hold(ServerCall serverCall) {
+            _held.addLast(serverCall);
+            _delayedCount++;
+            _maxHeldCount = Math.max(_maxHeldCount, _held.size());
+        }
+
+        synchronized void onMerged() {
+            _mergedCount++;
+        }
+
+        synchronized void onRejected() {
+            _rejectedCount++;
+        }
+
+        /**
+         * Moves the held calls that can take a token now to the list.
+         *
+         * @return Nanoseconds until the next held call gets a token, or -1 if none is held
+         */
+        synchronized long release(long nowNanos, List<ServerCall> released) {
+            refill(nowNanos);
+            while (!_held.isEmpty() && _tokens >= 1) {
+                released.add(_held.pollFirst());
+                _tokens -= 1;
+                _allowedCount++;
+            }
+            if (_held.isEmpty()) {
+                return -1;
+            }
+            return Math.max(1, (long) Math.ceil((1 - _tokens) * 1e9 / _callsPerSecond));
+        }
+
+        synchronized void drainHeld(List<ServerCall> released) {
+            released.addAll(_held);
+            _held.clear();
+        }
+
+        synchronized void clearHeld() {
+            _held.clear();
+        }
+
+        private void refill(long nowNanos) {
+            long elapsed = nowNanos - _refilledAtNanos;
+            if (elapsed > 0) {
+                _tokens = Math.min(_burst, _tokens + elapsed * _callsPerSecond / 1e9);
+                _refilledAtNanos = nowNanos;
+            }
+        }
+    }
+
+    private final Object _lock = new Object();
+    private final Map<String, Limit> _limits = new HashMap<>();
+    // limits replaced or removed, whose held calls the next release sends
+    private final ArrayList<Limit> _replaced = new ArrayList<>();
+    private final Runnable _onLimitsChanged;
+
+    /**
+     * @param onLimitsChanged Run when a limit is set or removed, so held calls are looked at again
+     */
+    RateLimiter(Runnable onLimitsChanged) {
+        _onLimitsChanged = onLimitsChanged;
+    }
+
+    /**
+     * Limits the operation to a rate of calls, replacing its previous limit.
+     * Calls the previous limit was holding are sent without waiting for a
+     * token.
+     *
+     * @param callsPerSecond Rate the budget refills at
+     * @param burst Calls that can be made at once after a quiet period, at least 1
+     * @param policy What to do with calls over the budget
+     */
+    public void setLimit(ServiceName serviceName, ServiceOperation serviceOperation, double callsPerSecond, int burst,
+                         Policy policy) {
+        if (callsPerSecond <= 0) {
+            throw new IllegalArgumentException("callsPerSecond must be positive");
+        }
+        Limit limit = new Limit(serviceName, serviceOperation, callsPerSecond, Math.max(1, burst), policy, System.nanoTime());
+        synchronized (_lock) {
+            Limit previous = _limits.put(getOperationKey(serviceName, serviceOperation), limit);
+            if (previous != null) {
+                _replaced.add(previous);
+            }
+        }
+        _onLimitsChanged.run();
+    }
+
+    /**
+     * Removes the limit of the operation. The calls it was holding are sent.
+     */
+    public void removeLimit(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            Limit previous = _limits.remove(getOperationKey(serviceName, serviceOperation));
+            if (previous != null) {
+                _replaced.add(previous);
+            }
+        }
+        _onLimitsChanged.run();
+    }
+
+    /**
+     * @return The limit of the operation, or null if it has none
+     */
+    public Limit getLimit(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            return _limits.get(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    public ArrayList<Limit> getLimits() {
+        synchronized (_lock) {
+            return new ArrayList<>(_limits.values());
+        }
+    }
+
+    /**
+     * @return Number of calls held by every limit
+     */
+    public int getHeldCount() {
+        int count = 0;
+        for (Limit limit : getLimits()) {
+            count += limit.getHeldCount();
+        }
+        return count;
+    }
+
+    public void resetStats() {
+        for (Limit limit : getLimits()) {
+            limit.resetStats();
+        }
+    }
+
+    /**
+     * @return The limit of the call's operation, or null if it has none
+     */
+    Limit getLimit(ServerCall serverCall) {
+        if (serverCall.isEndOfBundleMarker() || serverCall.getServiceName() == null
+                || serverCall.getServiceOperation() == null) {
+            return null;
+        }
+        return getLimit(serverCall.getServiceName(), serverCall.getServiceOperation());
+    }
+
+    /**
+     * Moves the held calls that can take a token now to the list, in the
+     * order they were made per operation.
+     *
+     * @return Milliseconds until the next held call gets a token, or 0 if none is held
+     */
+    long release(long nowNanos, List<ServerCall> released) {
+        ArrayList<Limit> limits;
+        synchronized (_lock) {
+            limits = new ArrayList<>(_limits.values());
+            for (Limit replaced : _replaced) {
+                // the calls a replaced limit was holding go out without waiting for a token
+                replaced.drainHeld(released);
+            }
+            _replaced.clear();
+        }
+
+        long nextNanos = -1;
+        for (Limit limit : limits) {
+            long delayNanos = limit.release(nowNanos, released);
+            if (delayNanos > 0 && (nextNanos == -1 || delayNanos < nextNanos)) {
+                nextNanos = delayNanos;
+            }
+        }
+        return nextNanos == -1 ? 0 : Math.max(1, (nextNanos + 999999) / 1000000);
+    }
+
+    /**
+     * Takes every held call out of the limits, as when the session changes.
+     */
+    void drainHeld(List<ServerCall> drained) {
+        synchronized (_lock) {
+            for (Limit limit : _limits.values()) {
+                limit.drainHeld(drained);
+            }
+            for (Limit replaced : _replaced) {
+                replaced.drainHeld(drained);
+            }
+            _replaced.clear();
+        }
+    }
+
+    /**
+     * Drops every held call, as when the communication is reset.
+     */
+    void clearHeld() {
+        synchronized (_lock) {
+            for (Limit limit : _limits.values()) {
+                limit.clearHeld();
+            }
+            for (Limit replaced : _replaced) {
+                replaced.clearHeld();
+            }
+            _replaced.clear();
+        }
+    }
+
+    private static String getOperationKey(ServiceName serviceName, ServiceOperation serviceOperation) {
+        return serviceName.name() + "." + serviceOperation.name();
+    }
+}
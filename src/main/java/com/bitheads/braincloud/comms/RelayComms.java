@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -32,10 +33,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IMetricsRecorder;
 import com.bitheads.braincloud.client.IRelayCallback;
 import com.bitheads.braincloud.client.IRelayConnectCallback;
 import com.bitheads.braincloud.client.IRelaySystemCallback;
 import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.Metric;
 import com.bitheads.braincloud.client.RelayConnectionType;
 import com.bitheads.braincloud.client.RelayConnectionType;
 import com.bitheads.braincloud.client.ServiceName;
@@ -347,7 +350,7 @@ public class RelayComms {
                 break;
             }
             case TCP: {
-                Thread connectionThread = new Thread(new Runnable() {
+                Runnable connect = new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -364,8 +367,15 @@ public class RelayComms {
                             return;
                         }
                     }
-                });
-                connectionThread.start();
+                };
+                try {
+                    SdkThreads.execute(connect);
+                } catch (RejectedExecutionException e) {
+                    e.printStackTrace();
+                    _callbackEventQueue.add(new RelayCallback(RelayCallbackType.ConnectFailure, "Failed to connect"));
+                    disconnect();
+                    return;
+                }
                 break;
             }
             case UDP: {
@@ -618,8 +628,16 @@ public class RelayComms {
         send(buffer);
     }
 
+    private void incrementMetric(Metric metric, long count) {
+        IMetricsRecorder metrics = _client.getMetricsRecorder();
+        if (metrics != null) {
+            metrics.increment(metric, count);
+        }
+    }
+
     private void send(ByteBuffer buffer) {
         buffer.rewind();
+        incrementMetric(Metric.RELAY_PACKETS_SENT, 1);
 
         try {
             synchronized(_lock) {
@@ -729,7 +747,7 @@ public class RelayComms {
     }
 
     private void startTCPReceivingThread() {
-        Thread receiveThread = new Thread(new Runnable() {
+        SdkThreads.startThread("braincloud-relay-tcp-receive", new Runnable() {
             @Override
             public void run() {
                 DataInputStream in;
@@ -772,12 +790,10 @@ public class RelayComms {
                 }
             }
         });
-
-        receiveThread.start();
     }
 
     private void startUDPReceivingThread() {
-        Thread receivingThread = new Thread(new Runnable() {
+        SdkThreads.startThread("braincloud-relay-udp-receive", new Runnable() {
             @Override
             public void run() {
                 byte[] receiveData = new byte[1400];
@@ -818,8 +834,6 @@ public class RelayComms {
                 }
             }
         });
-
-        receivingThread.start();
     }
 
     private void sendPing() {
@@ -839,6 +853,7 @@ public class RelayComms {
 
     private void onRecv(ByteBuffer buffer) {
         int len = buffer.limit();
+        incrementMetric(Metric.RELAY_PACKETS_RECEIVED, 1);
         if (len < 3) {
             disconnect();
             synchronized(_callbackEventQueue) {
@@ -1004,6 +1019,7 @@ public class RelayComms {
                             if (_loggingEnabled && VERBOSE_LOG) {
                                 System.out.println("Duplicated packet from: " + netId + ", got: " + packetId);
                             }
+                            incrementMetric(Metric.RELAY_DUPLICATES, 1);
                             return;
                         }
 
@@ -1029,6 +1045,7 @@ public class RelayComms {
                                     if (_loggingEnabled && VERBOSE_LOG) {
                                         System.out.println("Duplicated packet: " + packetId);
                                     }
+                                    incrementMetric(Metric.RELAY_DUPLICATES, 1);
                                     return;
                                 }
                                 if (packetLE(packetId, packet.packetId)) break;
@@ -1068,8 +1085,14 @@ public class RelayComms {
                             if (_loggingEnabled && VERBOSE_LOG) {
                                 System.out.println("RELAY Packet our of order: " + packetId + ", expected: " + ((prevPacketId + 1) & MAX_PACKET_ID));
                             }
+                            incrementMetric(Metric.RELAY_PACKETS_LOST, 1);
                             return;
                         }
+                        // unreliables skipped over will not arrive in order anymore
+                        int skipped = (packetId - prevPacketId - 1) & MAX_PACKET_ID;
+                        if (skipped > 0 && prevPacketId != MAX_PACKET_ID) {
+                            incrementMetric(Metric.RELAY_PACKETS_LOST, skipped);
+                        }
                         _recvPacketId.put(ackIdWithoutPacketId, packetId);
                     }
                 }
@@ -1084,6 +1107,10 @@ public class RelayComms {
     }
     private void onPONG() {
         _ping = (int)Math.min((long)999, System.currentTimeMillis() - _lastPingTime);
+        IMetricsRecorder metrics = _client.getMetricsRecorder();
+        if (metrics != null) {
+            metrics.record(Metric.RELAY_PING_MILLIS, _ping);
+        }
         if (_loggingEnabled && VERBOSE_LOG) {
             System.out.println("RELAY PONG: " + _ping);
         }
@@ -1112,6 +1139,7 @@ public class RelayComms {
                 // Is it duplicate?
                 for (int i = 0; i < _rsmgHistory.size(); ++i) {
                     if (_rsmgHistory.get(i) == rsmgPacketId) {
+                        incrementMetric(Metric.RELAY_DUPLICATES, 1);
                         return; // Just ignore it
                     }
                 }
@@ -1308,6 +1336,7 @@ public class RelayComms {
                         reliable.waitTimeMs = Math.min(500, (reliable.waitTimeMs * 125) / 100);
                         reliable.resendTimeMs = nowMs;
                         send(reliable.buffer);
+                        incrementMetric(Metric.RELAY_RESENDS, 1);
 
                         if (_loggingEnabled && VERBOSE_LOG) {
                             System.out.println("RELAY RESEND: " + reliable.packetId + ", " + reliable.ackId + ", Next resend in: " + reliable.waitTimeMs + "ms");
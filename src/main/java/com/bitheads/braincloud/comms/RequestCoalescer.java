@@ -0,0 +1,205 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses identical read calls made while one of them is still waiting
+ * for its response.
+ *
+ * When a call is queued for a coalesced operation with the same parameters
+ * as a call already queued or on the wire, it is not sent. It is completed
+ * from the response of the first call instead, each callback getting its own
+ * copy of the response.
+ *
+ * No operation is coalesced by default. Only add operations that are safe
+ * to merge, such as globalApp.READ_PROPERTIES: a read made after a write
+ * to the same data joins an identical read sent before the write, and so
+ * gets the data as it was before the write.
+ */
+public class RequestCoalescer {
+
+    private final Object _lock = new Object();
+    private final Set<String> _operations = new HashSet<>();
+    private final Map<String, ServerCall> _leaders = new HashMap<>();
+    private final Map<ServerCall, ArrayList<ServerCall>> _followers = new HashMap<>();
+
+    private long _coalescedCount;
+
+    /**
+     * Merges identical calls to the operation while one is in flight.
+     */
+    public void addOperation(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            _operations.add(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    public void removeOperation(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            _operations.remove(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    public boolean isCoalesced(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            return _operations.contains(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    /**
+     * @return Number of calls that were completed from another call's response
+     */
+    public long getCoalescedCount() {
+        synchronized (_lock) {
+            return _coalescedCount;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (_lock) {
+            _coalescedCount = 0;
+        }
+    }
+
+    /**
+     * Joins the call to an identical call in flight, or makes it the one
+     * others join.
+     *
+     * @return true if the call was joined to another and must not be sent
+     */
+    boolean join(ServerCall serverCall) {
+        if (serverCall.isEndOfBundleMarker() || serverCall.getServiceName() == null) {
+            return false;
+        }
+        String operationKey = getOperationKey(serverCall.getServiceName(), serverCall.getServiceOperation());
+        synchronized (_lock) {
+            if (!_operations.contains(operationKey)) {
+                return false;
+            }
+        }
+
+        return join(serverCall, operationKey);
+    }
+
+    /**
+     * Like join for an operation of a MERGE rate limit, whether or not it is
+     * coalesced.
+     *
+     * @return true if the call was joined to another and must not be sent
+     */
+    boolean merge(ServerCall serverCall) {
+        if (serverCall.getCoalesceKey() != null) {
+            // already one others join
+            return false;
+        }
+        return join(serverCall, getOperationKey(serverCall.getServiceName(), serverCall.getServiceOperation()));
+    }
+
+    private boolean join(ServerCall serverCall, String operationKey) {
+        String key = operationKey + ":" + toCanonicalString(serverCall.getData());
+        synchronized (_lock) {
+            ServerCall leader = _leaders.get(key);
+            if (leader == null) {
+                _leaders.put(key, serverCall);
+                serverCall.setCoalesceKey(key);
+                return false;
+            }
+            ArrayList<ServerCall> followers = _followers.get(leader);
+            if (followers == null) {
+                followers = new ArrayList<>();
+                _followers.put(leader, followers);
+            }
+            followers.add(serverCall);
+            _coalescedCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Ends the flight of a call that got its response.
+     *
+     * @return The calls waiting on the same response, or null if there are none
+     */
+    ArrayList<ServerCall> complete(ServerCall serverCall) {
+        String key = serverCall.getCoalesceKey();
+        if (key == null) {
+            return null;
+        }
+        synchronized (_lock) {
+            serverCall.setCoalesceKey(null);
+            if (_leaders.get(key) == serverCall) {
+                _leaders.remove(key);
+            }
+            return _followers.remove(serverCall);
+        }
+    }
+
+    /**
+     * Forgets every call in flight, along with the calls waiting on them.
+     */
+    void clear() {
+        synchronized (_lock) {
+            for (ServerCall leader : _leaders.values()) {
+                leader.setCoalesceKey(null);
+            }
+            _leaders.clear();
+            _followers.clear();
+        }
+    }
+
+    /**
+     * Writes json with the object keys sorted, so equal parameters give the
+     * same string whatever order they were put in.
+     */
+    static String toCanonicalString(Object value) {
+        StringBuilder sb = new StringBuilder();
+        appendCanonical(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendCanonical(StringBuilder sb, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            String[] keys = object.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            sb.append('{');
+            for (int i = 0; i < keys.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(JSONObject.quote(keys[i])).append(':');
+                appendCanonical(sb, object.opt(keys[i]));
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendCanonical(sb, array.opt(i));
+            }
+            sb.append(']');
+        } else if (value == null) {
+            sb.append("null");
+        } else {
+            sb.append(JSONObject.valueToString(value));
+        }
+    }
+
+    private static String getOperationKey(ServiceName serviceName, ServiceOperation serviceOperation) {
+        return serviceName.name() + "." + serviceOperation.name();
+    }
+}
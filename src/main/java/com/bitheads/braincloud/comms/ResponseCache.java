@@ -0,0 +1,226 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client side cache of successful responses to read operations that return
+ * near static data, such as app properties or catalog definitions.
+ *
+ * Nothing is cached until a time to live is set for an operation. A call to
+ * a cached operation whose response is still fresh is answered from the
+ * cache without being sent, on the same runCallbacks or callback executor
+ * path as a response from the server. Entries are keyed by the call
+ * parameters, bounded in number and evicted least recently used first.
+ * The cache is cleared whenever the session changes.
+ */
+public class ResponseCache {
+
+    private static final class CachedResponse {
+        final String _response;
+        final long _expiresAt;
+
+        CachedResponse(String response, long expiresAt) {
+            _response = response;
+            _expiresAt = expiresAt;
+        }
+    }
+
+    private final Object _lock = new Object();
+    private final Map<String, Long> _ttls = new HashMap<>();
+    private int _maxEntries = 256;
+    private final LinkedHashMap<String, CachedResponse> _entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            if (size() > _maxEntries) {
+                _evictionCount++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private long _hitCount;
+    private long _missCount;
+    private long _evictionCount;
+
+    /**
+     * Caches the responses of an operation for the given time.
+     *
+     * @param serviceName The service of the operation
+     * @param serviceOperation The operation to cache
+     * @param ttlMillis How long a response stays fresh, 0 to stop caching the operation
+     */
+    public void setTtl(ServiceName serviceName, ServiceOperation serviceOperation, long ttlMillis) {
+        synchronized (_lock) {
+            String operationKey = getOperationKey(serviceName, serviceOperation);
+            if (ttlMillis > 0) {
+                _ttls.put(operationKey, ttlMillis);
+            } else {
+                _ttls.remove(operationKey);
+                removeOperation(operationKey);
+            }
+        }
+    }
+
+    /**
+     * @return The time to live of the operation, or 0 if it is not cached
+     */
+    public long getTtl(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            Long ttl = _ttls.get(getOperationKey(serviceName, serviceOperation));
+            return ttl != null ? ttl : 0;
+        }
+    }
+
+    /**
+     * Sets how many responses are kept, across all operations.
+     *
+     * @param maxEntries The maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        synchronized (_lock) {
+            _maxEntries = Math.max(1, maxEntries);
+            Iterator<String> it = _entries.keySet().iterator();
+            while (_entries.size() > _maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                _evictionCount++;
+            }
+        }
+    }
+
+    public int getMaxEntries() {
+        synchronized (_lock) {
+            return _maxEntries;
+        }
+    }
+
+    /**
+     * Drops the cached responses of an operation, for example after a call
+     * that changes the data it returns.
+     */
+    public void invalidate(ServiceName serviceName, ServiceOperation serviceOperation) {
+        synchronized (_lock) {
+            removeOperation(getOperationKey(serviceName, serviceOperation));
+        }
+    }
+
+    /**
+     * Drops every cached response. The time to live settings are kept.
+     */
+    public void invalidateAll() {
+        synchronized (_lock) {
+            _entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (_lock) {
+            return _entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        synchronized (_lock) {
+            return _hitCount;
+        }
+    }
+
+    public long getMissCount() {
+        synchronized (_lock) {
+            return _missCount;
+        }
+    }
+
+    public long getEvictionCount() {
+        synchronized (_lock) {
+            return _evictionCount;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (_lock) {
+            _hitCount = 0;
+            _missCount = 0;
+            _evictionCount = 0;
+        }
+    }
+
+    /**
+     * @return The cache key of the call, or null if its operation is not cached
+     */
+    String getKey(ServerCall serverCall) {
+        if (serverCall.isEndOfBundleMarker() || serverCall.getServiceName() == null) {
+            return null;
+        }
+        String operationKey = getOperationKey(serverCall.getServiceName(), serverCall.getServiceOperation());
+        synchronized (_lock) {
+            if (!_ttls.containsKey(operationKey)) {
+                return null;
+            }
+        }
+        JSONObject data = serverCall.getData();
+        return data != null ? operationKey + ":" + RequestCoalescer.toCanonicalString(data) : operationKey;
+    }
+
+    /**
+     * @return A copy of the fresh response for the key, or null on a miss
+     */
+    JSONObject get(String key, long now) {
+        String response;
+        synchronized (_lock) {
+            CachedResponse entry = _entries.get(key);
+            if (entry != null && entry._expiresAt <= now) {
+                _entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                _missCount++;
+                return null;
+            }
+            _hitCount++;
+            response = entry._response;
+        }
+
+        try {
+            return new JSONObject(response);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void put(String key, ServerCall serverCall, JSONObject response, long now) {
+        String operationKey = getOperationKey(serverCall.getServiceName(), serverCall.getServiceOperation());
+        String json = response.toString();
+        synchronized (_lock) {
+            Long ttl = _ttls.get(operationKey);
+            if (ttl != null) {
+                _entries.put(key, new CachedResponse(json, now + ttl));
+            }
+        }
+    }
+
+    private void removeOperation(String operationKey) {
+        Iterator<String> it = _entries.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.equals(operationKey) || key.startsWith(operationKey + ":")) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String getOperationKey(ServiceName serviceName, ServiceOperation serviceOperation) {
+        return serviceName.name() + "." + serviceOperation.name();
+    }
+}
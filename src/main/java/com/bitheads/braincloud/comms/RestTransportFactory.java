@@ -0,0 +1,40 @@
+package com.bitheads.braincloud.comms;
+
+/**
+ * Picks the transport used by the BrainCloudRestClient when none has been
+ * supplied by the app.
+ */
+public final class RestTransportFactory {
+
+    // Packaged under META-INF/versions/11 of the jar, so it only resolves on Java 11+
+    private static final String HTTP2_TRANSPORT_CLASS = "com.bitheads.braincloud.comms.HttpClientTransport";
+
+    private RestTransportFactory() {
+    }
+
+    /**
+     * Returns the HTTP/2 transport when the runtime provides java.net.http,
+     * otherwise the pooled HttpURLConnection transport.
+     *
+     * @return A new transport instance
+     */
+    public static IRestTransport createDefault() {
+        IRestTransport transport = createHttp2Transport();
+        return transport != null ? transport : new UrlConnectionTransport();
+    }
+
+    /**
+     * @return A new HTTP/2 transport, or null if the runtime does not support it
+     */
+    public static IRestTransport createHttp2Transport() {
+        try {
+            Class<?> transportClass = Class.forName(HTTP2_TRANSPORT_CLASS);
+            return (IRestTransport) transportClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.bitheads.braincloud.comms;
+
+/**
+ * Smoothed round trip time and variance of bundles, computed the way TCP
+ * computes its retransmission timeout (RFC 6298). Only bundles answered on
+ * their first attempt are sampled, since the response to a retried bundle
+ * can't be matched to one attempt.
+ */
+class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    // smallest margin added over the smoothed rtt
+    private static final long GRANULARITY_MILLIS = 100;
+
+    private double _smoothedRtt;
+    private double _rttVariance;
+    private long _sampleCount;
+
+    synchronized void addSample(long rttMillis) {
+        if (rttMillis < 0) {
+            return;
+        }
+        if (_sampleCount == 0) {
+            _smoothedRtt = rttMillis;
+            _rttVariance = rttMillis / 2.0;
+        } else {
+            _rttVariance = (1 - BETA) * _rttVariance + BETA * Math.abs(_smoothedRtt - rttMillis);
+            _smoothedRtt = (1 - ALPHA) * _smoothedRtt + ALPHA * rttMillis;
+        }
+        _sampleCount++;
+    }
+
+    synchronized long getSampleCount() {
+        return _sampleCount;
+    }
+
+    synchronized long getSmoothedRttMillis() {
+        return Math.round(_smoothedRtt);
+    }
+
+    synchronized long getRttVarianceMillis() {
+        return Math.round(_rttVariance);
+    }
+
+    /**
+     * @return The smoothed rtt plus four times its variance, or 0 without samples
+     */
+    synchronized long getTimeoutMillis() {
+        if (_sampleCount == 0) {
+            return 0;
+        }
+        return Math.round(_smoothedRtt + Math.max(GRANULARITY_MILLIS, 4 * _rttVariance));
+    }
+
+    synchronized void reset() {
+        _smoothedRtt = 0;
+        _rttVariance = 0;
+        _sampleCount = 0;
+    }
+}
@@ -0,0 +1,325 @@
+package com.bitheads.braincloud.comms;
+
+import com.bitheads.braincloud.client.IThreadListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the host application decides how the SDK gets its threads, for all
+ * clients of the process. Set it up before creating clients.
+ *
+ * The SDK runs two kinds of work:
+ * - short tasks, such as the RTT and relay connects and lobby region
+ *   pings, run on the task executor. By default it is a shared
+ *   pool of at most getMaxTaskThreads() threads, whose idle threads end
+ *   after a while, so repeated pings and reconnects reuse threads rather
+ *   than start new ones. The host can supply its own executor instead.
+ * - loops living as long as a connection, such as the rest thread of each
+ *   client and the RTT and relay receive threads, and file uploads, get a
+ *   dedicated thread.
+ *   At most getMaxThreads() of them can be alive at once; starting one more
+ *   fails as if the connection could not be made.
+ *
+ * Every platform thread is made by the host's ThreadFactory if one is set,
+ * or else is named braincloud-[purpose]-[n] and is not a daemon unless
+ * set otherwise. Threads started through here are counted and reported to the
+ * IThreadListener. Threads of a host supplied executor are not.
+ */
+public final class SdkThreads {
+
+    public static final int DEFAULT_MAX_TASK_THREADS = 8;
+
+    private static final long TASK_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final Object _lock = new Object();
+    private static volatile ThreadFactory _threadFactory;
+    private static volatile boolean _daemon = false;
+    private static volatile IThreadListener _threadListener;
+    private static volatile int _maxThreads;
+    private static int _maxTaskThreads = DEFAULT_MAX_TASK_THREADS;
+    private static Executor _taskExecutor;
+    private static ThreadPoolExecutor _taskPool;
+
+    private static final AtomicInteger _liveThreads = new AtomicInteger();
+    private static final AtomicInteger _dedicatedThreads = new AtomicInteger();
+    private static final AtomicLong _startedThreads = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicInteger> _nameCounts = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Boolean> _isSdkThread = new ThreadLocal<>();
+
+    private SdkThreads() {
+    }
+
+    /**
+     * Makes every platform thread of the SDK, including those of the task
+     * pool, the sender pools and shared dispatchers. The factory then
+     * decides their names and whether they are daemons.
+     *
+     * @param threadFactory The host's factory, or null for the SDK's own
+     */
+    public static void setThreadFactory(ThreadFactory threadFactory) {
+        _threadFactory = threadFactory;
+    }
+
+    public static ThreadFactory getThreadFactory() {
+        return _threadFactory;
+    }
+
+    /**
+     * Whether the threads the SDK names itself are daemons, false by default
+     * so the process stays up while calls are queued or in flight, such as
+     * in a headless bot whose main thread returns. Ignored when a
+     * ThreadFactory is set.
+     */
+    public static void setDaemon(boolean daemon) {
+        _daemon = daemon;
+    }
+
+    public static boolean isDaemon() {
+        return _daemon;
+    }
+
+    /**
+     * @param threadListener Told about every thread started through here, or null
+     */
+    public static void setThreadListener(IThreadListener threadListener) {
+        _threadListener = threadListener;
+    }
+
+    public static IThreadListener getThreadListener() {
+        return _threadListener;
+    }
+
+    /**
+     * Bounds the dedicated threads alive at once, such as rest and receive
+     * threads. Share a SharedDispatcher among clients to run many clients
+     * without a rest thread each.
+     *
+     * @param maxThreads The bound, or 0 for none, the default
+     */
+    public static void setMaxThreads(int maxThreads) {
+        _maxThreads = Math.max(0, maxThreads);
+    }
+
+    public static int getMaxThreads() {
+        return _maxThreads;
+    }
+
+    /**
+     * Bounds the threads of the default task pool. Tasks beyond it wait for
+     * a thread to be free. A lobby region ping holds a thread for up to a
+     * few seconds, so keep at least two.
+     *
+     * @param maxTaskThreads The bound, DEFAULT_MAX_TASK_THREADS by default
+     */
+    public static void setMaxTaskThreads(int maxTaskThreads) {
+        synchronized (_lock) {
+            int previous = _maxTaskThreads;
+            _maxTaskThreads = Math.max(2, maxTaskThreads);
+            if (_taskPool != null) {
+                // the core size can never exceed the maximum size, even briefly
+                if (_maxTaskThreads > previous) {
+                    _taskPool.setMaximumPoolSize(_maxTaskThreads);
+                    _taskPool.setCorePoolSize(_maxTaskThreads);
+                } else {
+                    _taskPool.setCorePoolSize(_maxTaskThreads);
+                    _taskPool.setMaximumPoolSize(_maxTaskThreads);
+                }
+            }
+        }
+    }
+
+    public static int getMaxTaskThreads() {
+        synchronized (_lock) {
+            return _maxTaskThreads;
+        }
+    }
+
+    /**
+     * Runs the short tasks of the SDK on the host's executor rather than
+     * the default pool. The executor must not run tasks on the calling
+     * thread, and should not be bounded below two threads.
+     *
+     * @param taskExecutor The host's executor, or null for the default pool
+     */
+    public static void setTaskExecutor(Executor taskExecutor) {
+        synchronized (_lock) {
+            _taskExecutor = taskExecutor;
+        }
+    }
+
+    public static Executor getTaskExecutor() {
+        synchronized (_lock) {
+            if (_taskExecutor != null) {
+                return _taskExecutor;
+            }
+            if (_taskPool == null) {
+                _taskPool = new ThreadPoolExecutor(_maxTaskThreads, _maxTaskThreads,
+                        TASK_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), newThreadFactory("braincloud-task"));
+                _taskPool.allowCoreThreadTimeOut(true);
+            }
+            return _taskPool;
+        }
+    }
+
+    /**
+     * @return The number of threads started through here and still running
+     */
+    public static int getLiveThreadCount() {
+        return _liveThreads.get();
+    }
+
+    /**
+     * @return The number of dedicated threads still running
+     */
+    public static int getDedicatedThreadCount() {
+        return _dedicatedThreads.get();
+    }
+
+    /**
+     * @return The number of threads started through here since the process started
+     */
+    public static long getStartedThreadCount() {
+        return _startedThreads.get();
+    }
+
+    /**
+     * @return true on a thread started through here, such as a rest, sender
+     * or shared dispatcher thread
+     */
+    static boolean isSdkThread() {
+        return _isSdkThread.get() != null;
+    }
+
+    /**
+     * Runs a short task on the task executor.
+     */
+    public static void execute(Runnable task) {
+        getTaskExecutor().execute(task);
+    }
+
+    /**
+     * Starts a dedicated thread for a loop living as long as a connection,
+     * or other long running work such as a file upload.
+     *
+     * @param name Prefix for the thread name
+     * @throws RejectedExecutionException if getMaxThreads() dedicated
+     * threads are already alive, or the host's factory made no thread
+     */
+    static Thread startThread(String name, Runnable loop) {
+        for (; ; ) {
+            int count = _dedicatedThreads.get();
+            int maxThreads = _maxThreads;
+            if (maxThreads > 0 && count >= maxThreads) {
+                throw new RejectedExecutionException("Too many SDK threads, the bound is " + maxThreads);
+            }
+            if (_dedicatedThreads.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+
+        Thread thread = null;
+        try {
+            thread = newThread(name, track(loop, true));
+            if (thread == null) {
+                throw new RejectedExecutionException("ThreadFactory made no thread for " + name);
+            }
+            thread.start();
+            return thread;
+        } catch (RuntimeException | Error e) {
+            _dedicatedThreads.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the threads of an executor belonging to the SDK, counted and
+     * reported to the listener.
+     *
+     * @param name Prefix for the thread names
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return SdkThreads.newThread(name, track(runnable, false));
+            }
+        };
+    }
+
+    /**
+     * Creates an executor that runs each task as soon as it is submitted,
+     * such as bundle sends or callbacks. It runs a virtual thread per task
+     * on Java 21 runtimes unless a ThreadFactory is set, and otherwise
+     * caches threads made through here.
+     *
+     * @param name Prefix for the thread names
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        if (_threadFactory == null && ExecutorFactory.isVirtualThreadPerTask()) {
+            return ExecutorFactory.newTaskExecutor(name);
+        }
+        return Executors.newCachedThreadPool(newThreadFactory(name));
+    }
+
+    private static Thread newThread(String name, Runnable runnable) {
+        ThreadFactory threadFactory = _threadFactory;
+        if (threadFactory != null) {
+            return threadFactory.newThread(runnable);
+        }
+
+        AtomicInteger count = _nameCounts.get(name);
+        if (count == null) {
+            _nameCounts.putIfAbsent(name, new AtomicInteger());
+            count = _nameCounts.get(name);
+        }
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(_daemon);
+        return thread;
+    }
+
+    private static Runnable track(final Runnable runnable, final boolean dedicated) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                _isSdkThread.set(Boolean.TRUE);
+                _liveThreads.incrementAndGet();
+                _startedThreads.incrementAndGet();
+                IThreadListener threadListener = _threadListener;
+                if (threadListener != null) {
+                    try {
+                        threadListener.threadStarted(thread);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                try {
+                    runnable.run();
+                } finally {
+                    _liveThreads.decrementAndGet();
+                    if (dedicated) {
+                        _dedicatedThreads.decrementAndGet();
+                    }
+                    if (threadListener != null) {
+                        try {
+                            threadListener.threadEnded(thread);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+    }
+}
@@ -15,6 +15,19 @@ public class ServerCall {
     private JSONObject _data;
     private IServerCallback _callback;
     boolean _isEndOfBundleMarker;
+    private CallPriority _priority;
+
+    // encoded payload, cached so retries don't serialize the call again
+    private byte[] _encodedPayload;
+    // key the response is stored under when the operation is cached
+    private String _cacheKey;
+    private String _coalesceKey;
+    private boolean _isDurable;
+    // id of the call in the outbound journal, 0 if it is not journaled
+    private long _journalId;
+    private long _deadline;
+    // System.nanoTime when the call was queued, for the latency metrics
+    private long _queuedAtNanos;
 
     public ServerCall(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject data, IServerCallback callback) {
         _serviceName = serviceName;
@@ -22,6 +35,7 @@ public class ServerCall {
         _data = data;
         _callback = callback;
         _isEndOfBundleMarker = false;
+        _priority = CallPriority.getDefault(serviceName, serviceOperation);
     }
 
     public JSONObject getPayload() throws JSONException {
@@ -33,12 +47,99 @@ public class ServerCall {
         return payload;
     }
 
+    public JSONObject getData() {
+        return _data;
+    }
+
+    byte[] getEncodedPayload() {
+        return _encodedPayload;
+    }
+
+    void setEncodedPayload(byte[] encodedPayload) {
+        _encodedPayload = encodedPayload;
+    }
+
+    String getCacheKey() {
+        return _cacheKey;
+    }
+
+    void setCacheKey(String cacheKey) {
+        _cacheKey = cacheKey;
+    }
+
+    String getCoalesceKey() {
+        return _coalesceKey;
+    }
+
+    void setCoalesceKey(String coalesceKey) {
+        _coalesceKey = coalesceKey;
+    }
+
+    long getJournalId() {
+        return _journalId;
+    }
+
+    void setJournalId(long journalId) {
+        _journalId = journalId;
+    }
+
+    long getQueuedAtNanos() {
+        return _queuedAtNanos;
+    }
+
+    void setQueuedAtNanos(long queuedAtNanos) {
+        _queuedAtNanos = queuedAtNanos;
+    }
+
+    /**
+     * @return The time the call must be answered by, in epoch milliseconds, or 0 for none
+     */
+    public long getDeadline() {
+        return _deadline;
+    }
+
+    /**
+     * Sets the time by which the call must be answered. A call still queued
+     * at its deadline fails with CLIENT_NETWORK_ERROR_TIMEOUT without being
+     * sent, and the packet it is sent in is not retried past it once every
+     * call in the packet has a deadline.
+     *
+     * @param deadline Time in epoch milliseconds, 0 for no deadline
+     */
+    public void setDeadline(long deadline) {
+        _deadline = deadline;
+    }
+
+    /**
+     * Sets the deadline of the call to the given time from now.
+     *
+     * @param timeoutMillis Time the call has to be answered in
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        _deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    public boolean isDurable() {
+        return _isDurable;
+    }
+
+    /**
+     * Keeps the call in the outbound journal until the server has answered
+     * it, when a journal is enabled. Must be set before the call is queued.
+     *
+     * @param durable true to journal the call
+     */
+    public void setDurable(boolean durable) {
+        _isDurable = durable;
+    }
+
     public ServiceName getServiceName() {
         return _serviceName;
     }
 
     public void setServiceName(ServiceName _serviceName) {
         this._serviceName = _serviceName;
+        _encodedPayload = null;
     }
 
     public ServiceOperation getServiceOperation() {
@@ -47,6 +148,21 @@ public class ServerCall {
 
     public void setServiceOperation(ServiceOperation _serviceOperation) {
         this._serviceOperation = _serviceOperation;
+        _encodedPayload = null;
+    }
+
+    public CallPriority getPriority() {
+        return _priority;
+    }
+
+    /**
+     * Overrides the priority lane the call is queued in. Must be set before
+     * the call is queued.
+     *
+     * @param priority The priority of the call
+     */
+    public void setPriority(CallPriority priority) {
+        _priority = priority != null ? priority : CallPriority.INTERACTIVE;
     }
 
     public IServerCallback getCallback() {
@@ -0,0 +1,204 @@
+package com.bitheads.braincloud.comms;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the calls of many clients from a small pool of threads over one
+ * transport, for bot farms and server side simulators running thousands of
+ * sessions in one JVM.
+ *
+ * A client given a SharedDispatcher before it is initialized starts no
+ * thread of its own: each time it has work, such as queued calls, a freed
+ * send window or a heartbeat coming due, a pass over its queues is run on
+ * the pool. Passes of one client never run concurrently, and waits between
+ * retries are scheduled rather than slept so a slow server does not tie up
+ * the pool. Sends still block a pool thread for the duration of the
+ * request, so the pool should be sized for the number of bundles expected
+ * on the wire at once.
+ *
+ * The dispatcher and its transport outlive the clients; close it once every
+ * client using it has been closed.
+ */
+public class SharedDispatcher {
+
+    private final ScheduledThreadPoolExecutor _executor;
+    private final IRestTransport _transport;
+    private final int _threadCount;
+    private final AtomicInteger _clientCount = new AtomicInteger();
+    private volatile boolean _closed;
+
+    /**
+     * A client's hold on the dispatcher: runs its passes one at a time and
+     * keeps at most one wake up timer outstanding.
+     */
+    class Registration {
+        private final Runnable _pass;
+        // a pass is queued or running
+        private final AtomicBoolean _queued = new AtomicBoolean();
+        // work arrived while the pass was queued or running
+        private volatile boolean _again;
+        // time of the earliest wake up timer, 0 if none
+        private final AtomicLong _wakeAt = new AtomicLong();
+        private volatile boolean _registered = true;
+
+        private final Runnable _run = new Runnable() {
+            @Override
+            public void run() {
+                _again = false;
+                try {
+                    if (_registered) {
+                        _pass.run();
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    _queued.set(false);
+                }
+                if (_again) {
+                    wake();
+                }
+            }
+        };
+
+        Registration(Runnable pass) {
+            _pass = pass;
+        }
+
+        /**
+         * Runs a pass as soon as a thread is free, or once more after the
+         * current one if a pass is already queued or running.
+         */
+        void wake() {
+            if (!_registered || _closed) {
+                return;
+            }
+            if (_queued.compareAndSet(false, true)) {
+                _executor.execute(_run);
+            } else {
+                _again = true;
+                // the pass may have finished between the two checks
+                if (_queued.compareAndSet(false, true)) {
+                    _again = false;
+                    _executor.execute(_run);
+                }
+            }
+        }
+
+        /**
+         * Runs a pass once the delay has passed, unless a timer already
+         * wakes the client up before then.
+         */
+        void wakeAfter(long delayMillis) {
+            if (!_registered || _closed) {
+                return;
+            }
+            if (delayMillis <= 0) {
+                wake();
+                return;
+            }
+            final long wakeAt = System.currentTimeMillis() + delayMillis;
+            long current = _wakeAt.get();
+            while (current == 0 || current > wakeAt) {
+                if (_wakeAt.compareAndSet(current, wakeAt)) {
+                    _executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            _wakeAt.compareAndSet(wakeAt, 0);
+                            wake();
+                        }
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                current = _wakeAt.get();
+            }
+        }
+
+        /**
+         * Runs a task of the client on the pool, such as a pipelined send or
+         * the next attempt of a retried bundle.
+         */
+        void execute(Runnable task, long delayMillis) {
+            if (_closed) {
+                return;
+            }
+            if (delayMillis > 0) {
+                _executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                _executor.execute(task);
+            }
+        }
+
+        void unregister() {
+            if (_registered) {
+                _registered = false;
+                _clientCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Creates a dispatcher sending over the default transport, HTTP/2 on
+     * Java 11+ runtimes and pooled HttpURLConnections otherwise.
+     *
+     * @param threadCount Number of threads sending for all clients
+     */
+    public SharedDispatcher(int threadCount) {
+        this(threadCount, RestTransportFactory.createDefault());
+    }
+
+    /**
+     * @param threadCount Number of threads sending for all clients
+     * @param transport Transport shared by all clients, closed with the dispatcher
+     */
+    public SharedDispatcher(int threadCount, IRestTransport transport) {
+        _threadCount = Math.max(1, threadCount);
+        _transport = transport;
+        _executor = new ScheduledThreadPoolExecutor(_threadCount, SdkThreads.newThreadFactory("braincloud-shared"));
+        // cancelled wake ups are dropped rather than kept until they are due
+        _executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public IRestTransport getTransport() {
+        return _transport;
+    }
+
+    public int getThreadCount() {
+        return _threadCount;
+    }
+
+    /**
+     * @return The number of clients initialized with this dispatcher and not yet closed
+     */
+    public int getClientCount() {
+        return _clientCount.get();
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Stops the pool threads and closes the transport. Calls still queued by
+     * clients using the dispatcher are never sent.
+     */
+    public void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _executor.shutdownNow();
+        _transport.close();
+    }
+
+    Registration register(Runnable pass) {
+        if (_closed) {
+            throw new IllegalStateException("SharedDispatcher is closed");
+        }
+        _clientCount.incrementAndGet();
+        return new Registration(pass);
+    }
+}
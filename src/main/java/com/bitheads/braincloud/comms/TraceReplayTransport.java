@@ -0,0 +1,313 @@
+package com.bitheads.braincloud.comms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stands in for the dispatcher by answering bundles with the responses of a
+ * WireTraceRecorder capture, so a capture can be fed back through the
+ * client's parsing and callback pipeline without a server.
+ *
+ * The client must send the calls of the capture in the same bundles, such
+ * as with the replay tool of the load generator. The first packet id the
+ * transport sees is matched to the first bundle of the capture and the
+ * following packet ids to the following bundles, so the packet ids need not
+ * be the same as when the capture was made, and bundles may be in flight at
+ * once. The packet id in each response is replaced by the one of the
+ * request. Each attempt at a bundle gets the outcome of the same attempt in
+ * the capture, so timeouts, error statuses and retries play out again.
+ * Heartbeat bundles of the capture are left out, and those of the replaying
+ * client answered directly.
+ *
+ * Captures should start with an authentication, since calls made before
+ * one are never sent.
+ */
+public class TraceReplayTransport implements IRestTransport {
+
+    private static final byte[] PACKET_ID = "\"packetId\":".getBytes(BundleWriter.UTF_8);
+    private static final String HEARTBEAT = "{\"service\":\"heartbeat\"";
+    private static final String SERVICE = "\"service\":";
+
+    /**
+     * How one attempt at a bundle ended in the capture.
+     */
+    private static final class Outcome {
+        final WireTraceRecorder.RecordType _type;
+        final int _statusCode;
+        final byte[] _body;
+        // where the packet id digits of the body start and end, -1 if it has none
+        final int _packetIdStart;
+        final int _packetIdEnd;
+        final long _latencyNanos;
+
+        Outcome(WireTraceRecorder.Record record, long latencyNanos) {
+            _type = record.getType();
+            _statusCode = record.getStatusCode();
+            _body = record.getBody();
+            _latencyNanos = latencyNanos;
+
+            int start = indexOf(_body, PACKET_ID, 0);
+            if (start >= 0) {
+                start += PACKET_ID.length;
+                int end = start;
+                while (end < _body.length && (_body[end] == '-' || (_body[end] >= '0' && _body[end] <= '9'))) {
+                    ++end;
+                }
+                _packetIdStart = start;
+                _packetIdEnd = end;
+            } else {
+                _packetIdStart = -1;
+                _packetIdEnd = -1;
+            }
+        }
+    }
+
+    private static final class Response implements IRestTransport.Response {
+        private final int _statusCode;
+        private final byte[] _body;
+
+        Response(int statusCode, byte[] body) {
+            _statusCode = statusCode;
+            _body = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return _statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(_body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Object _lock = new Object();
+    // the attempts of each bundle of the capture, in order
+    private final List<List<Outcome>> _bundles = new ArrayList<>();
+    private final Map<Long, Integer> _attempts = new HashMap<>();
+    private final TreeSet<Long> _heartbeats = new TreeSet<>();
+    private long _firstPacketId = -1;
+    private volatile boolean _paced;
+    private long _sendCount;
+    private long _unmatchedCount;
+
+    /**
+     * @param records The capture, as from WireTraceRecorder.getRecords or load
+     */
+    public TraceReplayTransport(List<WireTraceRecorder.Record> records) {
+        Map<Long, List<Outcome>> bundles = new LinkedHashMap<>();
+        Map<Long, WireTraceRecorder.Record> pending = new HashMap<>();
+        for (WireTraceRecorder.Record record : records) {
+            if (record.getType() == WireTraceRecorder.RecordType.REQUEST) {
+                if (isHeartbeat(record.getBody())) {
+                    continue;
+                }
+                pending.put(record.getPacketId(), record);
+                if (!bundles.containsKey(record.getPacketId())) {
+                    bundles.put(record.getPacketId(), new ArrayList<Outcome>());
+                }
+                continue;
+            }
+            WireTraceRecorder.Record request = pending.remove(record.getPacketId());
+            if (request == null) {
+                // the request was evicted from the ring buffer, or was a heartbeat
+                continue;
+            }
+            bundles.get(record.getPacketId()).add(new Outcome(record, record.getTimeNanos() - request.getTimeNanos()));
+        }
+        for (List<Outcome> outcomes : bundles.values()) {
+            if (!outcomes.isEmpty()) {
+                _bundles.add(outcomes);
+            }
+        }
+    }
+
+    /**
+     * Waits out the latency each response had in the capture before
+     * returning it, to replay a workload at its recorded pace.
+     */
+    public void setPaced(boolean paced) {
+        _paced = paced;
+    }
+
+    public boolean isPaced() {
+        return _paced;
+    }
+
+    /**
+     * @return The number of bundles of the capture that can be replayed
+     */
+    public int getBundleCount() {
+        return _bundles.size();
+    }
+
+    /**
+     * @return The number of bundles sent to the transport, heartbeats included
+     */
+    public long getSendCount() {
+        synchronized (_lock) {
+            return _sendCount;
+        }
+    }
+
+    /**
+     * @return The number of sends past the end of the capture
+     */
+    public long getUnmatchedCount() {
+        synchronized (_lock) {
+            return _unmatchedCount;
+        }
+    }
+
+    @Override
+    public IRestTransport.Response send(String url, Map<String, String> headers, byte[] body, int offset, int length,
+                                        int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        byte[] request = decode(headers, body, offset, length);
+        long packetId = readPacketId(request);
+
+        Outcome outcome = null;
+        synchronized (_lock) {
+            ++_sendCount;
+            if (isHeartbeat(request)) {
+                _heartbeats.add(packetId);
+                return new Response(200, ("{\"packetId\":" + packetId
+                        + ",\"responses\":[{\"status\":200,\"data\":null}]}").getBytes(BundleWriter.UTF_8));
+            }
+
+            if (_firstPacketId == -1) {
+                _firstPacketId = packetId;
+            }
+            long index = packetId < _firstPacketId ? -1
+                    : packetId - _firstPacketId - _heartbeats.subSet(_firstPacketId, packetId).size();
+            if (index >= 0 && index < _bundles.size()) {
+                Integer attempt = _attempts.get(packetId);
+                attempt = attempt == null ? 0 : attempt + 1;
+                _attempts.put(packetId, attempt);
+                List<Outcome> outcomes = _bundles.get((int) index);
+                outcome = outcomes.get(Math.min(attempt, outcomes.size() - 1));
+            } else {
+                ++_unmatchedCount;
+            }
+        }
+        if (outcome == null) {
+            throw new IOException("No bundle of the capture left for packet id " + packetId);
+        }
+
+        if (_paced && outcome._latencyNanos > 0) {
+            try {
+                Thread.sleep(outcome._latencyNanos / 1000000, (int) (outcome._latencyNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+
+        switch (outcome._type) {
+            case TIMEOUT:
+                throw new SocketTimeoutException("Timed out in the capture");
+            case NETWORK_ERROR:
+                throw new IOException("Failed in the capture");
+            default:
+                return new Response(outcome._statusCode, withPacketId(outcome, packetId));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static byte[] withPacketId(Outcome outcome, long packetId) {
+        if (outcome._packetIdStart < 0) {
+            return outcome._body;
+        }
+        byte[] digits = Long.toString(packetId).getBytes(BundleWriter.UTF_8);
+        byte[] body = new byte[outcome._body.length - (outcome._packetIdEnd - outcome._packetIdStart) + digits.length];
+        System.arraycopy(outcome._body, 0, body, 0, outcome._packetIdStart);
+        System.arraycopy(digits, 0, body, outcome._packetIdStart, digits.length);
+        System.arraycopy(outcome._body, outcome._packetIdEnd, body, outcome._packetIdStart + digits.length,
+                outcome._body.length - outcome._packetIdEnd);
+        return body;
+    }
+
+    private static byte[] decode(Map<String, String> headers, byte[] body, int offset, int length) throws IOException {
+        if (!"gzip".equals(headers.get("Content-Encoding"))) {
+            byte[] request = new byte[length];
+            System.arraycopy(body, offset, request, 0, length);
+            return request;
+        }
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(body, offset, length));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static long readPacketId(byte[] request) {
+        // the packet id is at the end of the bundle, after the messages
+        int start = lastIndexOf(request, PACKET_ID);
+        if (start < 0) {
+            return -1;
+        }
+        long packetId = 0;
+        for (int i = start + PACKET_ID.length; i < request.length && request[i] >= '0' && request[i] <= '9'; ++i) {
+            packetId = packetId * 10 + (request[i] - '0');
+        }
+        return packetId;
+    }
+
+    private static boolean isHeartbeat(byte[] request) {
+        String body = new String(request, BundleWriter.UTF_8);
+        int first = body.indexOf(SERVICE);
+        return body.contains(HEARTBEAT) && body.indexOf(SERVICE, first + SERVICE.length()) < 0;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        for (int i = from; i <= bytes.length - pattern.length; ++i) {
+            if (regionMatches(bytes, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte[] pattern) {
+        for (int i = bytes.length - pattern.length; i >= 0; --i) {
+            if (regionMatches(bytes, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; ++j) {
+            if (bytes[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
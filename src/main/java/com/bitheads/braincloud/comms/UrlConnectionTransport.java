@@ -0,0 +1,139 @@
+package com.bitheads.braincloud.comms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/1.1 transport built on HttpURLConnection.
+ *
+ * Connections are pooled by the JDK keep-alive cache as long as every
+ * response is fully read and closed rather than disconnected, which this
+ * transport guarantees. All https connections share one SSLSocketFactory so
+ * TLS sessions are resumed instead of renegotiated on every bundle.
+ */
+public class UrlConnectionTransport implements IRestTransport {
+
+    // bodies larger than this are not worth draining just to keep the socket
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final Map<String, URL> _urls = new HashMap<>();
+    private final SSLSocketFactory _sslSocketFactory;
+
+    public UrlConnectionTransport() {
+        this(HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    public UrlConnectionTransport(SSLSocketFactory sslSocketFactory) {
+        _sslSocketFactory = sslSocketFactory;
+    }
+
+    @Override
+    public Response send(String url, Map<String, String> headers, byte[] body, int offset, int length,
+                         int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) getUrl(url).openConnection();
+        if (connection instanceof HttpsURLConnection && _sslSocketFactory != null) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(_sslSocketFactory);
+        }
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Connection", "keep-alive");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setFixedLengthStreamingMode(length);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body, offset, length);
+        } finally {
+            out.close();
+        }
+
+        return new UrlConnectionResponse(connection);
+    }
+
+    @Override
+    public void close() {
+        synchronized (_urls) {
+            _urls.clear();
+        }
+    }
+
+    private URL getUrl(String url) throws IOException {
+        synchronized (_urls) {
+            URL result = _urls.get(url);
+            if (result == null) {
+                result = new URL(url);
+                _urls.put(url, result);
+            }
+            return result;
+        }
+    }
+
+    private static class UrlConnectionResponse implements Response {
+
+        private final HttpURLConnection _connection;
+        private InputStream _body;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            _connection = connection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return _connection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return _connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (_body == null) {
+                if (getStatusCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    _body = _connection.getErrorStream();
+                } else {
+                    _body = _connection.getInputStream();
+                }
+                if (_body == null) {
+                    _body = new ByteArrayInputStream(new byte[0]);
+                }
+            }
+            return _body;
+        }
+
+        @Override
+        public void close() {
+            try {
+                InputStream in = getBody();
+                byte[] skip = new byte[1024];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = in.read(skip)) != -1) {
+                    drained += read;
+                }
+                in.close();
+                if (drained >= MAX_DRAIN_BYTES) {
+                    _connection.disconnect();
+                }
+            } catch (IOException e) {
+                // broken connections are never returned to the pool
+                _connection.disconnect();
+            }
+        }
+    }
+}
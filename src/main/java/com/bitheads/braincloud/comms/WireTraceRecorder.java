@@ -0,0 +1,572 @@
+package com.bitheads.braincloud.comms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the bundles the rest client sends and the responses it gets, as
+ * raw bytes, into a ring buffer of fixed size. When the buffer is full the
+ * oldest records make room for new ones, so it always holds the latest
+ * traffic and can be left on in production.
+ *
+ * Credentials are blanked out as bodies are recorded: session ids, and the
+ * data of authenticationV2 and identity calls, which carries passwords and
+ * external tokens. The data of every other call is recorded as it was sent
+ * or received, so a dump can still hold personal data and should be handled
+ * like the app's logs.
+ *
+ * Unlike enableLogging, recording parses nothing: a request costs one copy
+ * of the encoded body, and a response one copy of the bytes as the client
+ * reads them. Bodies are recorded uncompressed. Each record carries its
+ * time, the packet id and retry count of its bundle and, for responses, the
+ * http status.
+ *
+ * A recording can be written to a file with dump and read back with load,
+ * then replayed through a client with TraceReplayTransport.
+ */
+public class WireTraceRecorder {
+
+    public static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x42435754; // BCWT
+    private static final int FILE_VERSION = 1;
+
+    // length, type, time millis, time nanos, packet id, retry count, status code
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 8 + 8 + 4 + 4;
+
+    private static final byte[] SESSION_ID_VALUE = "\"sessionId\":\"".getBytes(BundleWriter.UTF_8);
+    private static final byte[] DATA_VALUE = ",\"data\":".getBytes(BundleWriter.UTF_8);
+    // calls whose data carries passwords and tokens
+    private static final byte[][] CREDENTIAL_SERVICES = {
+            "{\"service\":\"authenticationV2\"".getBytes(BundleWriter.UTF_8),
+            "{\"service\":\"identity\"".getBytes(BundleWriter.UTF_8)
+    };
+
+    public enum RecordType {
+        /** A bundle as posted, once per attempt */
+        REQUEST,
+        /** The response body to a bundle, as far as the client read it */
+        RESPONSE,
+        /** The attempt timed out */
+        TIMEOUT,
+        /** The attempt failed without a response */
+        NETWORK_ERROR
+    }
+
+    /**
+     * One recorded request, response or failure.
+     */
+    public static final class Record {
+        private final RecordType _type;
+        private final long _timeMillis;
+        private final long _timeNanos;
+        private final long _packetId;
+        private final int _retryCount;
+        private final int _statusCode;
+        private final byte[] _body;
+
+        Record(RecordType type, long timeMillis, long timeNanos, long packetId, int retryCount, int statusCode, byte[] body) {
+            _type = type;
+            _timeMillis = timeMillis;
+            _timeNanos = timeNanos;
+            _packetId = packetId;
+            _retryCount = retryCount;
+            _statusCode = statusCode;
+            _body = body;
+        }
+
+        public RecordType getType() {
+            return _type;
+        }
+
+        /**
+         * @return Wall clock time of the record
+         */
+        public long getTimeMillis() {
+            return _timeMillis;
+        }
+
+        /**
+         * @return System.nanoTime of the record, to measure between records
+         */
+        public long getTimeNanos() {
+            return _timeNanos;
+        }
+
+        public long getPacketId() {
+            return _packetId;
+        }
+
+        public int getRetryCount() {
+            return _retryCount;
+        }
+
+        /**
+         * @return The http status of a response, 0 for other records
+         */
+        public int getStatusCode() {
+            return _statusCode;
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+
+        public String getBodyString() {
+            return new String(_body, BundleWriter.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return _type + " packetId=" + _packetId + " retry=" + _retryCount
+                    + (_type == RecordType.RESPONSE ? " status=" + _statusCode : "")
+                    + " bytes=" + _body.length;
+        }
+    }
+
+    /**
+     * Copies the bytes read from a response body for the recorder.
+     */
+    static final class CaptureInputStream extends FilterInputStream {
+        private byte[] _buffer = new byte[4096];
+        private int _count;
+
+        CaptureInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                ensureCapacity(1);
+                _buffer[_count++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                ensureCapacity(read);
+                System.arraycopy(bytes, offset, _buffer, _count, read);
+                _count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes still belong in the capture
+            byte[] scratch = new byte[(int) Math.min(n, 4096)];
+            int read = read(scratch, 0, scratch.length);
+            return Math.max(0, read);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (_count + extra > _buffer.length) {
+                _buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _count + extra));
+            }
+        }
+
+        byte[] getBuffer() {
+            return _buffer;
+        }
+
+        int getCount() {
+            return _count;
+        }
+    }
+
+    private final Object _lock = new Object();
+    private final byte[] _buffer;
+    // offset of the oldest record, and of the end of the newest
+    private int _head;
+    private int _tail;
+    private int _used;
+    private int _recordCount;
+    private long _recordedCount;
+    private long _droppedCount;
+    private volatile boolean _enabled = true;
+
+    public WireTraceRecorder() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    /**
+     * @param capacityBytes Size of the ring buffer, records and their headers included
+     */
+    public WireTraceRecorder(int capacityBytes) {
+        _buffer = new byte[Math.max(HEADER_BYTES * 16, capacityBytes)];
+    }
+
+    public int getCapacityBytes() {
+        return _buffer.length;
+    }
+
+    /**
+     * Pauses or resumes recording, keeping what was recorded.
+     */
+    public void setEnabled(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * @return The number of records in the buffer
+     */
+    public int getRecordCount() {
+        synchronized (_lock) {
+            return _recordCount;
+        }
+    }
+
+    /**
+     * @return The number of records made since the recorder was created
+     */
+    public long getRecordedCount() {
+        synchronized (_lock) {
+            return _recordedCount;
+        }
+    }
+
+    /**
+     * @return The number of records evicted to make room, or too large to fit
+     */
+    public long getDroppedCount() {
+        synchronized (_lock) {
+            return _droppedCount;
+        }
+    }
+
+    public void clear() {
+        synchronized (_lock) {
+            _head = 0;
+            _tail = 0;
+            _used = 0;
+            _recordCount = 0;
+        }
+    }
+
+    void recordRequest(PacketBundle bundle, byte[] body, int offset, int length) {
+        record(RecordType.REQUEST, bundle._packetId, bundle._retryCount, 0, body, offset, length);
+    }
+
+    void recordResponse(PacketBundle bundle, int statusCode, byte[] body, int offset, int length) {
+        record(RecordType.RESPONSE, bundle._packetId, bundle._retryCount, statusCode, body, offset, length);
+    }
+
+    void recordFailure(PacketBundle bundle, RecordType type) {
+        record(type, bundle._packetId, bundle._retryCount, 0, null, 0, 0);
+    }
+
+    /**
+     * Adds a record, evicting the oldest ones until it fits.
+     */
+    public void record(RecordType type, long packetId, int retryCount, int statusCode, byte[] body, int offset, int length) {
+        if (!_enabled) {
+            return;
+        }
+        long timeMillis = System.currentTimeMillis();
+        long timeNanos = System.nanoTime();
+        int recordLength = HEADER_BYTES + length;
+
+        synchronized (_lock) {
+            _recordedCount++;
+            if (recordLength > _buffer.length) {
+                _droppedCount++;
+                return;
+            }
+            while (_buffer.length - _used < recordLength) {
+                int evicted = getInt(_head);
+                _head = (_head + evicted) % _buffer.length;
+                _used -= evicted;
+                _recordCount--;
+                _droppedCount++;
+            }
+
+            int position = _tail;
+            position = putInt(position, recordLength);
+            position = put(position, (byte) type.ordinal());
+            position = putLong(position, timeMillis);
+            position = putLong(position, timeNanos);
+            position = putLong(position, packetId);
+            position = putInt(position, retryCount);
+            position = putInt(position, statusCode);
+            if (length > 0) {
+                int first = Math.min(length, _buffer.length - position);
+                System.arraycopy(body, offset, _buffer, position, first);
+                System.arraycopy(body, offset + first, _buffer, 0, length - first);
+                redact(body, offset, length, position);
+                position = (position + length) % _buffer.length;
+            }
+            _tail = position;
+            _used += recordLength;
+            _recordCount++;
+        }
+    }
+
+    /**
+     * Blanks out the credentials of a body copied to the buffer at the
+     * position, keeping it valid json of the same length: session ids are
+     * starred out and the data objects of credential calls emptied. Must be
+     * called with _lock held.
+     */
+    private void redact(byte[] body, int offset, int length, int position) {
+        int end = offset + length;
+        for (int i = indexOf(body, SESSION_ID_VALUE, offset, end); i >= 0; i = indexOf(body, SESSION_ID_VALUE, i + 1, end)) {
+            int start = i + SESSION_ID_VALUE.length;
+            fill(position, start - offset, skipString(body, start, end) - offset, (byte) '*');
+        }
+
+        for (byte[] service : CREDENTIAL_SERVICES) {
+            for (int i = indexOf(body, service, offset, end); i >= 0; i = indexOf(body, service, i + 1, end)) {
+                int data = indexOf(body, DATA_VALUE, i + service.length, end);
+                if (data < 0 || !isWithinMessage(body, i + service.length, data)) {
+                    continue;
+                }
+                int start = data + DATA_VALUE.length;
+                if (start < end && body[start] == '{') {
+                    fill(position, start + 1 - offset, skipObject(body, start, end) - 1 - offset, (byte) ' ');
+                }
+            }
+        }
+    }
+
+    private void fill(int position, int from, int to, byte value) {
+        for (int i = from; i < to; ++i) {
+            _buffer[(position + i) % _buffer.length] = value;
+        }
+    }
+
+    /**
+     * @return The offset of the pattern in the range, or -1
+     */
+    private static int indexOf(byte[] bytes, byte[] pattern, int from, int end) {
+        for (int i = from; i <= end - pattern.length; ++i) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                ++j;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the range holds no object boundary, as the service and
+     * operation strings of a message do not
+     */
+    private static boolean isWithinMessage(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (bytes[i] == '{' || bytes[i] == '}') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The offset of the quote closing the string whose content starts at start
+     */
+    private static int skipString(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end && bytes[i] != '"') {
+            i += bytes[i] == '\\' ? 2 : 1;
+        }
+        return Math.min(i, end);
+    }
+
+    /**
+     * @return The offset just past the object starting at start
+     */
+    private static int skipObject(byte[] bytes, int start, int end) {
+        int depth = 0;
+        int i = start;
+        while (i < end) {
+            byte b = bytes[i];
+            if (b == '"') {
+                i = skipString(bytes, i + 1, end);
+            } else if (b == '{' || b == '[') {
+                ++depth;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i + 1;
+            }
+            ++i;
+        }
+        return end;
+    }
+
+    /**
+     * @return A copy of the records in the buffer, oldest first
+     */
+    public List<Record> getRecords() {
+        synchronized (_lock) {
+            List<Record> records = new ArrayList<>(_recordCount);
+            int position = _head;
+            for (int i = 0; i < _recordCount; ++i) {
+                int recordLength = getInt(position);
+                int p = (position + 4) % _buffer.length;
+                RecordType type = RecordType.values()[_buffer[p]];
+                p = (p + 1) % _buffer.length;
+                long timeMillis = getLong(p);
+                p = (p + 8) % _buffer.length;
+                long timeNanos = getLong(p);
+                p = (p + 8) % _buffer.length;
+                long packetId = getLong(p);
+                p = (p + 8) % _buffer.length;
+                int retryCount = getInt(p);
+                p = (p + 4) % _buffer.length;
+                int statusCode = getInt(p);
+                p = (p + 4) % _buffer.length;
+
+                byte[] body = new byte[recordLength - HEADER_BYTES];
+                int first = Math.min(body.length, _buffer.length - p);
+                System.arraycopy(_buffer, p, body, 0, first);
+                System.arraycopy(_buffer, 0, body, first, body.length - first);
+
+                records.add(new Record(type, timeMillis, timeNanos, packetId, retryCount, statusCode, body));
+                position = (position + recordLength) % _buffer.length;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Writes the records in the buffer to the file, replacing it.
+     */
+    public void dump(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(getRecords(), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes records in the dump format.
+     */
+    public static void write(List<Record> records, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_MAGIC);
+        data.writeInt(FILE_VERSION);
+        for (Record record : records) {
+            data.writeByte(record._type.ordinal());
+            data.writeLong(record._timeMillis);
+            data.writeLong(record._timeNanos);
+            data.writeLong(record._packetId);
+            data.writeInt(record._retryCount);
+            data.writeInt(record._statusCode);
+            data.writeInt(record._body.length);
+            data.write(record._body);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads the records of a file written by dump.
+     */
+    public static List<Record> load(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads records in the dump format.
+     */
+    public static List<Record> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a wire trace");
+        }
+        int version = data.readInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported wire trace version " + version);
+        }
+
+        List<Record> records = new ArrayList<>();
+        while (true) {
+            int type = data.read();
+            if (type < 0) {
+                return records;
+            }
+            if (type >= RecordType.values().length) {
+                throw new IOException("Bad wire trace record type " + type);
+            }
+            try {
+                long timeMillis = data.readLong();
+                long timeNanos = data.readLong();
+                long packetId = data.readLong();
+                int retryCount = data.readInt();
+                int statusCode = data.readInt();
+                byte[] body = new byte[data.readInt()];
+                data.readFully(body);
+                records.add(new Record(RecordType.values()[type], timeMillis, timeNanos, packetId, retryCount, statusCode, body));
+            } catch (EOFException e) {
+                // a dump cut short keeps its complete records
+                return records;
+            }
+        }
+    }
+
+    private int put(int position, byte value) {
+        _buffer[position] = value;
+        return (position + 1) % _buffer.length;
+    }
+
+    private int putInt(int position, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            position = put(position, (byte) (value >>> shift));
+        }
+        return position;
+    }
+
+    private int putLong(int position, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            position = put(position, (byte) (value >>> shift));
+        }
+        return position;
+    }
+
+    private int getInt(int position) {
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+            value = (value << 8) | (_buffer[position] & 0xFF);
+            position = (position + 1) % _buffer.length;
+        }
+        return value;
+    }
+
+    private long getLong(int position) {
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (_buffer[position] & 0xFF);
+            position = (position + 1) % _buffer.length;
+        }
+        return value;
+    }
+}
@@ -17,6 +17,7 @@ import com.bitheads.braincloud.client.ReasonCodes;
 import com.bitheads.braincloud.client.ServiceName;
 import com.bitheads.braincloud.client.ServiceOperation;
 import com.bitheads.braincloud.client.StatusCodes;
+import com.bitheads.braincloud.comms.SdkThreads;
 import com.bitheads.braincloud.comms.ServerCall;
 
 /**
@@ -55,46 +56,41 @@ public class LobbyService implements IServerCallback{
         public String jsonError;
     };
 
-    class ActivePing {
-        public ActivePing(String regionName, String regionURL, Object sync) {
+    class ActivePing implements Runnable {
+        public ActivePing(String regionName, String regionURL, int generation) {
             _regionName = regionName;
             _regionURL = regionURL;
-            _sync = sync;
+            _generation = generation;
             _ping = -1;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Ping as many times as required (MAX_PING_CALLS)
+                ArrayList<Integer> pings = new ArrayList<Integer>();
+                String fullURL = "http://" + _regionURL;
+                for (int i = 0; i < MAX_PING_CALLS; ++i) {
+                    pings.add(new Integer(pingHost(fullURL)));
+                }
 
-            _thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        // Ping as many times as required (MAX_PING_CALLS)
-                        ArrayList<Integer> pings = new ArrayList<Integer>();
-                        String fullURL = "http://" + _regionURL;
-                        for (int i = 0; i < MAX_PING_CALLS; ++i) {
-                            pings.add(new Integer(pingHost(fullURL)));
-                        }
-
-                        // Sort results from faster to slowest
-                        pings.sort(null);
-                                
-                        // Calculate the average, minus the slowest one (MAX_PING_CALLS - 1)
-                        int pingResult = 0;
-                        for (int i = 0; i < MAX_PING_CALLS - 1; ++i) {
-                            pingResult += pings.get(i);
-                        }
-                        pingResult /= MAX_PING_CALLS - 1;
-
-                        // Notify
-                        _ping = pingResult;
-                        synchronized(_sync) {
-                            _sync.notify();
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return;
-                    }
+                // Sort results from faster to slowest
+                pings.sort(null);
+                        
+                // Calculate the average, minus the slowest one (MAX_PING_CALLS - 1)
+                int pingResult = 0;
+                for (int i = 0; i < MAX_PING_CALLS - 1; ++i) {
+                    pingResult += pings.get(i);
                 }
-            });
-            _thread.start();
+                pingResult /= MAX_PING_CALLS - 1;
+
+                _ping = pingResult;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            // Notify, even on failure, so the remaining regions still get pinged
+            onPingFinished(this);
         }
 
         public String getRegion() {
@@ -105,15 +101,18 @@ public class LobbyService implements IServerCallback{
             return _ping;
         }
 
+        public int getGeneration() {
+            return _generation;
+        }
+
         public boolean isFinished() {
             return _ping != -1;
         }
 
         private String _regionName;
         private String _regionURL;
-        private Object _sync;
+        private int _generation;
         private int _ping;
-        private Thread _thread;
     }
 
     private BrainCloudClient _client;
@@ -121,7 +120,11 @@ public class LobbyService implements IServerCallback{
 
     private JSONObject _pingData = null;
     private JSONObject _pingRegions = null;
-    private Thread _pingRegionsThread = null;
+    private boolean _pingRegionsStarted = false;
+    // regions not pinged yet, and pings running, of the current pingRegions
+    private Map<String, String> _regionsToPing = new HashMap<String, String>();
+    private int _activePingCount = 0;
+    private int _pingGeneration = 0;
     private IServerCallback _pingCallback = null;
     private AtomicBoolean _isPingRunning = new AtomicBoolean(false);
     private Object _pingSync = new Object();
@@ -762,82 +765,81 @@ public class LobbyService implements IServerCallback{
         }
     }
 
-    private void startPingThread() {
-        _pingData = new JSONObject();
-        
-        // Run the thread
-        _isPingRunning.set(true);
-        _pingRegionsThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // Build a map of regions to ping
-                    Map<String, String> regionsToPing = new HashMap<String, String>();
-                    for (int i = 0; i < _pingRegions.names().length(); ++i) {
-                        String regionName = _pingRegions.names().getString(i);
-                        JSONObject jsonRegion = _pingRegions.getJSONObject(regionName);
-                        String type = jsonRegion.getString("type");
-                        String target = jsonRegion.getString("target");
-                        if (type != null && type.equals("PING")) {
-                            regionsToPing.put(regionName, target);
-                        }
-                    }
-
-                    ArrayList<ActivePing> activePings = new ArrayList<ActivePing>();
-
-                    synchronized(_pingSync) {
-                        while (_isPingRunning.get()) {
-                            // Make sure we have the desired active pings count in parrallel
-                            while (!regionsToPing.isEmpty() && activePings.size() < NUM_PING_CALLS_IN_PARALLEL) {
-                                String regionName = (String)regionsToPing.keySet().toArray()[0];
-                                String regionURL = regionsToPing.get(regionName);
-                                ActivePing activePing = new ActivePing(regionName, regionURL, _pingSync);
-                                activePings.add(activePing);
-                                regionsToPing.remove(regionName);
-                            }
-
-                            // Check for completed active pings
-                            for (int i = 0; i < activePings.size(); ++i) {
-                                ActivePing activePing = activePings.get(i);
-                                if (activePing.isFinished()) {
-                                    _pingData.put(activePing.getRegion(), activePing.getPing());
-                                    activePings.remove(i);
-                                    --i;
-                                }
-                            }
-
-                            // Check if we completed all the regions
-                            if (regionsToPing.isEmpty() && activePings.isEmpty()) {
-                                _isPingRunning.set(false);
-                                break;
-                            }
-				
-				            // Otherwise, wait for an active ping to complete
-                            if (!activePings.isEmpty()) {
-                                _pingSync.wait();
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    queueErrorEvent(_pingCallback, ServiceName.lobby, ServiceOperation.PING_REGIONS, StatusCodes.BAD_REQUEST, ReasonCodes.MISSING_REQUIRED_PARAMETER, "Required message parameter 'pingData' is missing. Please ensure PingData exists by first calling GetRegionsForLobbies and PingRegions, and waiting for response before proceeding.");
-                    return;
+    private void startPings() {
+        // Build a map of regions to ping
+        Map<String, String> regionsToPing = new HashMap<String, String>();
+        try {
+            for (int i = 0; i < _pingRegions.names().length(); ++i) {
+                String regionName = _pingRegions.names().getString(i);
+                JSONObject jsonRegion = _pingRegions.getJSONObject(regionName);
+                String type = jsonRegion.getString("type");
+                String target = jsonRegion.getString("target");
+                if (type != null && type.equals("PING")) {
+                    regionsToPing.put(regionName, target);
                 }
             }
-        });
-        _pingRegionsThread.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            queueErrorEvent(_pingCallback, ServiceName.lobby, ServiceOperation.PING_REGIONS, StatusCodes.BAD_REQUEST, ReasonCodes.MISSING_REQUIRED_PARAMETER, "Required message parameter 'pingData' is missing. Please ensure PingData exists by first calling GetRegionsForLobbies and PingRegions, and waiting for response before proceeding.");
+            _pingCallback = null;
+            return;
+        }
+
+        _pingRegionsStarted = true;
+        synchronized(_pingSync) {
+            _pingData = new JSONObject();
+            _regionsToPing = regionsToPing;
+            _activePingCount = 0;
+            ++_pingGeneration;
+            _isPingRunning.set(true);
+            startNextPings();
+        }
     }
 
-    private void stopPingThread() {
-        if (_pingRegionsThread != null) {
+    /**
+     * Keeps NUM_PING_CALLS_IN_PARALLEL regions being pinged on the SDK task
+     * executor until every region is done. Must hold _pingSync.
+     */
+    private void startNextPings() {
+        while (!_regionsToPing.isEmpty() && _activePingCount < NUM_PING_CALLS_IN_PARALLEL) {
+            String regionName = _regionsToPing.keySet().iterator().next();
+            String regionURL = _regionsToPing.remove(regionName);
+            ++_activePingCount;
+            SdkThreads.execute(new ActivePing(regionName, regionURL, _pingGeneration));
+        }
+
+        // Check if we completed all the regions
+        if (_regionsToPing.isEmpty() && _activePingCount == 0) {
             _isPingRunning.set(false);
+        }
+    }
+
+    private void onPingFinished(ActivePing activePing) {
+        synchronized(_pingSync) {
+            if (activePing.getGeneration() != _pingGeneration || !_isPingRunning.get()) {
+                // left over from a stopped pingRegions
+                return;
+            }
+            if (activePing.isFinished()) {
+                try {
+                    _pingData.put(activePing.getRegion(), activePing.getPing());
+                } catch (JSONException je) {
+                    je.printStackTrace();
+                }
+            }
+            --_activePingCount;
+            startNextPings();
+        }
+    }
+
+    private void stopPings() {
+        if (_pingRegionsStarted) {
             synchronized(_pingSync) {
-                _pingSync.notify();
+                _isPingRunning.set(false);
+                _regionsToPing.clear();
+                _activePingCount = 0;
             }
-            try {
-                _pingRegionsThread.join();
-            } catch(InterruptedException e) {}
-            _pingRegionsThread = null;
+            _pingRegionsStarted = false;
         }
     }
 
@@ -848,9 +850,9 @@ public class LobbyService implements IServerCallback{
             }
             return;
         }
-        if (_pingRegionsThread == null) {
+        if (!_pingRegionsStarted) {
             _pingCallback = callback;
-            startPingThread();
+            startPings();
         }
         else if (callback != null) {
             queueErrorEvent(callback, ServiceName.lobby, ServiceOperation.PING_REGIONS, StatusCodes.BAD_REQUEST, ReasonCodes.MISSING_REQUIRED_PARAMETER, "'pingRegions' is already running. Please wait for callback before calling this again.");
@@ -935,7 +937,7 @@ public class LobbyService implements IServerCallback{
             }
 			_pingCallback.serverCallback(ServiceName.lobby, ServiceOperation.PING_REGIONS, _pingData);
             _pingCallback = null;
-            stopPingThread();
+            stopPings();
 		}
 
         // Trigger delayed events
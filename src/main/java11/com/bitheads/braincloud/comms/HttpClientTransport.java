@@ -0,0 +1,94 @@
+package com.bitheads.braincloud.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * HTTP/2 transport built on java.net.http. Only packaged in the Java 11
+ * section of the multi-release jar; RestTransportFactory falls back to
+ * UrlConnectionTransport on older runtimes.
+ *
+ * A single HttpClient is kept for the lifetime of the transport so bundles
+ * are multiplexed over one connection when the server negotiates h2, and
+ * fall back to pooled HTTP/1.1 keep-alive connections otherwise.
+ */
+final class HttpClientTransport implements IRestTransport {
+
+    private final HttpClient _httpClient;
+
+    HttpClientTransport() {
+        _httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Override
+    public Response send(String url, Map<String, String> headers, byte[] body, int offset, int length,
+                         int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis((long) connectTimeoutMillis + readTimeoutMillis))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body, offset, length));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        try {
+            return new HttpClientResponse(_httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (HttpTimeoutException e) {
+            SocketTimeoutException timeout = new SocketTimeoutException(e.getMessage());
+            timeout.initCause(e);
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        // the HttpClient releases its connections once it is unreachable
+    }
+
+    private static final class HttpClientResponse implements Response {
+
+        private final HttpResponse<InputStream> _response;
+
+        HttpClientResponse(HttpResponse<InputStream> response) {
+            _response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return _response.statusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return _response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return _response.body();
+        }
+
+        @Override
+        public void close() {
+            try {
+                _response.body().close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.bitheads.braincloud.comms;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors the SDK runs its background tasks on.
+ *
+ * Java 21 version, packaged under META-INF/versions/21 of the jar. Every
+ * task gets its own virtual thread, so a blocked send or a blocking caller
+ * waiting on its response does not hold a platform thread.
+ */
+public final class ExecutorFactory {
+
+    private ExecutorFactory() {
+    }
+
+    /**
+     * @return true if the executors run their tasks on virtual threads
+     */
+    public static boolean isVirtualThreadPerTask() {
+        return true;
+    }
+
+    /**
+     * Creates an executor that runs each task as soon as it is submitted,
+     * such as bundle sends or callbacks.
+     *
+     * @param name Prefix for the thread names
+     * @return A new executor
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}
@@ -0,0 +1,66 @@
+package com.bitheads.braincloud.emulator;
+
+/**
+ * A failure the LocalDispatcher applies to one request. Faults are queued
+ * with LocalDispatcher.script and each request takes the next one, so a
+ * test can lay out exactly which attempts of a bundle fail and how.
+ */
+public class Fault {
+
+    enum Type {
+        // answer normally, after a delay
+        DELAY,
+        // answer with an http status and no body, without running the bundle
+        HTTP_STATUS,
+        // hold the request without running it, then close the connection
+        LOSE_REQUEST,
+        // run the bundle, then hold the request and close the connection
+        LOSE_RESPONSE
+    }
+
+    final Type _type;
+    final long _millis;
+    final int _httpStatus;
+
+    private Fault(Type type, long millis, int httpStatus) {
+        _type = type;
+        _millis = millis;
+        _httpStatus = httpStatus;
+    }
+
+    /**
+     * Answers the request normally once the delay has passed.
+     */
+    public static Fault delay(long millis) {
+        return new Fault(Type.DELAY, millis, 0);
+    }
+
+    /**
+     * Answers with the http status, such as 503, without running the bundle.
+     */
+    public static Fault httpStatus(int httpStatus) {
+        return new Fault(Type.HTTP_STATUS, 0, httpStatus);
+    }
+
+    /**
+     * Never runs the bundle, as if the request was lost on its way. The
+     * connection is held for the given time so the client times out.
+     */
+    public static Fault loseRequest(long holdMillis) {
+        return new Fault(Type.LOSE_REQUEST, holdMillis, 0);
+    }
+
+    /**
+     * Runs the bundle but never answers, as if the response was lost on its
+     * way. The resend of the packet is answered from the session's cached
+     * response, so the bundle still only runs once.
+     */
+    public static Fault loseResponse(long holdMillis) {
+        return new Fault(Type.LOSE_RESPONSE, holdMillis, 0);
+    }
+
+    @Override
+    public String toString() {
+        return _type == Type.HTTP_STATUS ? _type + " " + _httpStatus : _type + " " + _millis + "ms";
+    }
+}
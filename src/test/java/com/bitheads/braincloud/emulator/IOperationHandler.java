@@ -0,0 +1,18 @@
+package com.bitheads.braincloud.emulator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Answers one service operation for the LocalDispatcher.
+ */
+public interface IOperationHandler {
+
+    /**
+     * @param session The session of the caller, or null for the operations
+     *                that do not need one such as authenticate
+     * @param data The data of the message, never null
+     * @return The data of the 200 response
+     */
+    JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException;
+}
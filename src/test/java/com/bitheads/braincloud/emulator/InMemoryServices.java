@@ -0,0 +1,521 @@
+package com.bitheads.braincloud.emulator;
+
+import com.bitheads.braincloud.client.AuthenticationType;
+import com.bitheads.braincloud.client.ReasonCodes;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+import com.bitheads.braincloud.client.StatusCodes;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory state and handlers of the operations load and integration
+ * tests use the most: authentication, player state, heartbeat, server time,
+ * user statistics, global entities, leaderboard posts, chat and the rtt
+ * connection request.
+ *
+ * Global entity lists support equality where clauses on top level and
+ * dotted data fields, a single orderBy field and maxReturn. Leaderboards
+ * keep the best score of each profile. Chat messages are pushed over RTT to
+ * the profiles connected to the channel.
+ */
+public class InMemoryServices {
+
+    // status of the authenticate of an unknown identity without forceCreate
+    private static final int STATUS_ACCEPTED = 202;
+
+    private final LocalDispatcher _dispatcher;
+    private final Map<String, IOperationHandler> _handlers = new HashMap<>();
+
+    // profile id by "<authenticationType>:<externalId>"
+    private final Map<String, String> _identities = new ConcurrentHashMap<>();
+    private final Map<String, String> _tokens = new ConcurrentHashMap<>();
+    private final Map<String, Profile> _profiles = new ConcurrentHashMap<>();
+    private final Map<String, JSONObject> _globalEntities = new ConcurrentHashMap<>();
+    // best score by profile id, by leaderboard id
+    private final Map<String, Map<String, Long>> _leaderboards = new ConcurrentHashMap<>();
+    // profile ids by channel id
+    private final Map<String, Set<String>> _channels = new ConcurrentHashMap<>();
+    private final AtomicLong _chatMessageCount = new AtomicLong();
+
+    private static class Profile {
+        final String _profileId;
+        String _playerName = "";
+        final JSONObject _statistics = new JSONObject();
+
+        Profile(String profileId) {
+            _profileId = profileId;
+        }
+    }
+
+    InMemoryServices(LocalDispatcher dispatcher) {
+        _dispatcher = dispatcher;
+
+        put(ServiceName.authenticationV2, ServiceOperation.AUTHENTICATE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return authenticate(data);
+            }
+        });
+        put(ServiceName.playerState, ServiceOperation.READ, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                return readPlayerState(getProfile(session));
+            }
+        });
+        put(ServiceName.playerState, ServiceOperation.UPDATE_NAME, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                Profile profile = getProfile(session);
+                profile._playerName = data.optString("playerName", "");
+                return new JSONObject().put("playerName", profile._playerName);
+            }
+        });
+        put(ServiceName.playerState, ServiceOperation.LOGOUT, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) {
+                _dispatcher.endSession(session);
+                return null;
+            }
+        });
+        put(ServiceName.heartbeat, ServiceOperation.READ, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) {
+                return new JSONObject();
+            }
+        });
+        put(ServiceName.time, ServiceOperation.READ, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                return new JSONObject().put("server_time", System.currentTimeMillis());
+            }
+        });
+        put(ServiceName.playerStatistics, ServiceOperation.READ, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                Profile profile = getProfile(session);
+                synchronized (profile) {
+                    return new JSONObject().put("statistics", new JSONObject(profile._statistics.toString()));
+                }
+            }
+        });
+        put(ServiceName.playerStatistics, ServiceOperation.UPDATE_INCREMENT, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return updateStatistics(getProfile(session), data.optJSONObject("statistics"));
+            }
+        });
+        put(ServiceName.globalEntity, ServiceOperation.CREATE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                return createGlobalEntity(session, data);
+            }
+        });
+        put(ServiceName.globalEntity, ServiceOperation.READ, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return copy(getGlobalEntity(data.optString("entityId")));
+            }
+        });
+        put(ServiceName.globalEntity, ServiceOperation.UPDATE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return updateGlobalEntity(data);
+            }
+        });
+        put(ServiceName.globalEntity, ServiceOperation.DELETE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                JSONObject entity = getGlobalEntity(data.optString("entityId"));
+                synchronized (entity) {
+                    checkVersion(entity, data);
+                    _globalEntities.remove(entity.getString("entityId"));
+                }
+                return null;
+            }
+        });
+        put(ServiceName.globalEntity, ServiceOperation.GET_LIST, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                return getGlobalEntityList(data);
+            }
+        });
+        put(ServiceName.leaderboard, ServiceOperation.POST_SCORE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return postScore(session, data);
+            }
+        });
+        put(ServiceName.chat, ServiceOperation.CHANNEL_CONNECT, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws JSONException {
+                getChannel(data.optString("channelId")).add(session.getProfileId());
+                return new JSONObject().put("messages", new JSONArray());
+            }
+        });
+        put(ServiceName.chat, ServiceOperation.CHANNEL_DISCONNECT, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) {
+                getChannel(data.optString("channelId")).remove(session.getProfileId());
+                return null;
+            }
+        });
+        put(ServiceName.chat, ServiceOperation.POST_CHAT_MESSAGE_SIMPLE, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                return postChatMessage(session, data);
+            }
+        });
+        put(ServiceName.rttRegistration, ServiceOperation.REQUEST_CLIENT_CONNECTION, new IOperationHandler() {
+            @Override
+            public JSONObject handle(Session session, JSONObject data) throws OperationException, JSONException {
+                LocalRttServer rttServer = _dispatcher.getRttServer();
+                if (rttServer == null) {
+                    throw new OperationException(StatusCodes.FORBIDDEN, ReasonCodes.RTT_FEATURE_NOT_CONFIGURED,
+                            "RTT is not enabled");
+                }
+                return rttServer.createConnectionInfo(session);
+            }
+        });
+    }
+
+    IOperationHandler getHandler(String service, String operation) {
+        return _handlers.get(service + "." + operation);
+    }
+
+    /**
+     * Creates a profile signed in to with a universal id and password,
+     * without going through authenticate.
+     *
+     * @return The profile id
+     */
+    public String addUniversalUser(String userId, String password) {
+        String profileId = UUID.randomUUID().toString();
+        _profiles.put(profileId, new Profile(profileId));
+        String identity = AuthenticationType.Universal + ":" + userId;
+        _identities.put(identity, profileId);
+        _tokens.put(identity, password);
+        return profileId;
+    }
+
+    public int getProfileCount() {
+        return _profiles.size();
+    }
+
+    /**
+     * @return A copy of the user statistics of the profile, or null if it does not exist
+     */
+    public JSONObject getStatistics(String profileId) {
+        Profile profile = _profiles.get(profileId);
+        if (profile == null) {
+            return null;
+        }
+        synchronized (profile) {
+            try {
+                return new JSONObject(profile._statistics.toString());
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    public int getGlobalEntityCount() {
+        return _globalEntities.size();
+    }
+
+    /**
+     * @return The number of profiles with a score on the leaderboard
+     */
+    public int getLeaderboardEntryCount(String leaderboardId) {
+        Map<String, Long> leaderboard = _leaderboards.get(leaderboardId);
+        return leaderboard != null ? leaderboard.size() : 0;
+    }
+
+    public long getChatMessageCount() {
+        return _chatMessageCount.get();
+    }
+
+    private void put(ServiceName serviceName, ServiceOperation serviceOperation, IOperationHandler handler) {
+        _handlers.put(serviceName.name() + "." + serviceOperation.name(), handler);
+    }
+
+    private JSONObject authenticate(JSONObject data) throws OperationException, JSONException {
+        String authenticationType = data.optString("authenticationType");
+        String externalId = authenticationType.equals(AuthenticationType.Anonymous.toString())
+                ? data.optString("anonymousId") : data.optString("externalId");
+        String token = data.optString("authenticationToken", "");
+        if (externalId.isEmpty()) {
+            throw new OperationException(StatusCodes.FORBIDDEN, ReasonCodes.MISSING_IDENTITY_ERROR, "Missing identity");
+        }
+
+        String identity = authenticationType + ":" + externalId;
+        boolean isNewUser = false;
+        String profileId;
+        synchronized (_identities) {
+            profileId = _identities.get(identity);
+            if (profileId == null) {
+                if (!data.optBoolean("forceCreate")) {
+                    throw new OperationException(STATUS_ACCEPTED, ReasonCodes.MISSING_IDENTITY_ERROR, "Identity does not exist");
+                }
+                profileId = UUID.randomUUID().toString();
+                _profiles.put(profileId, new Profile(profileId));
+                _identities.put(identity, profileId);
+                _tokens.put(identity, token);
+                isNewUser = true;
+            } else if (!authenticationType.equals(AuthenticationType.Anonymous.toString())
+                    && !token.equals(_tokens.get(identity))) {
+                throw new OperationException(StatusCodes.FORBIDDEN, ReasonCodes.TOKEN_DOES_NOT_MATCH_USER,
+                        "Token does not match user");
+            }
+        }
+
+        Session session = _dispatcher.createSession(profileId, data.optString("gameId"));
+        JSONObject result = readPlayerState(_profiles.get(profileId));
+        result.put("sessionId", session.getSessionId());
+        result.put("newUser", Boolean.toString(isNewUser));
+        result.put("playerSessionExpiry", _dispatcher.getSessionTimeoutSeconds());
+        result.put("maxBundleMsgs", _dispatcher.getMaxBundleMessages());
+        result.put("maxKillCount", 11);
+        result.put("server_time", System.currentTimeMillis());
+        result.put("rewards", new JSONObject().put("rewards", new JSONObject()));
+        return result;
+    }
+
+    private Profile getProfile(Session session) {
+        Profile profile = _profiles.get(session.getProfileId());
+        if (profile == null) {
+            profile = new Profile(session.getProfileId());
+            _profiles.put(profile._profileId, profile);
+        }
+        return profile;
+    }
+
+    private JSONObject readPlayerState(Profile profile) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("profileId", profile._profileId);
+        result.put("playerName", profile._playerName);
+        synchronized (profile) {
+            result.put("statistics", new JSONObject(profile._statistics.toString()));
+        }
+        return result;
+    }
+
+    /**
+     * Applies the increments, or the values when they are prefixed with '#',
+     * to the user statistics.
+     */
+    private JSONObject updateStatistics(Profile profile, JSONObject statistics) throws OperationException, JSONException {
+        if (statistics == null) {
+            throw new OperationException(StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_REQUEST, "Missing statistics");
+        }
+        synchronized (profile) {
+            Iterator<String> keys = statistics.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                String change = statistics.get(key).toString();
+                long current = profile._statistics.optLong(key, 0);
+                try {
+                    if (change.startsWith("#")) {
+                        profile._statistics.put(key, Long.parseLong(change.substring(1)));
+                    } else {
+                        profile._statistics.put(key, current + Long.parseLong(change.startsWith("+") ? change.substring(1) : change));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new OperationException(StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_PARAMETER_VALUE,
+                            "Invalid statistic change " + key + ": " + change);
+                }
+            }
+            return new JSONObject().put("statistics", new JSONObject(profile._statistics.toString()));
+        }
+    }
+
+    private JSONObject createGlobalEntity(Session session, JSONObject data) throws JSONException {
+        long now = System.currentTimeMillis();
+        JSONObject entity = new JSONObject();
+        entity.put("entityId", UUID.randomUUID().toString());
+        entity.put("entityType", data.optString("entityType"));
+        if (data.has("entityIndexedId")) {
+            entity.put("entityIndexedId", data.getString("entityIndexedId"));
+        }
+        entity.put("version", 1);
+        entity.put("ownerId", session.getProfileId());
+        entity.put("timeToLive", data.optLong("timeToLive", -1));
+        entity.put("acl", data.has("acl") ? data.getJSONObject("acl") : new JSONObject().put("other", 1));
+        entity.put("data", data.has("data") ? data.getJSONObject("data") : new JSONObject());
+        entity.put("createdAt", now);
+        entity.put("updatedAt", now);
+        _globalEntities.put(entity.getString("entityId"), entity);
+        return copy(entity);
+    }
+
+    private JSONObject getGlobalEntity(String entityId) throws OperationException {
+        JSONObject entity = _globalEntities.get(entityId);
+        if (entity == null) {
+            throw new OperationException(StatusCodes.BAD_REQUEST, ReasonCodes.MISSING_RECORD, "Entity " + entityId + " not found");
+        }
+        return entity;
+    }
+
+    private JSONObject updateGlobalEntity(JSONObject data) throws OperationException, JSONException {
+        JSONObject entity = getGlobalEntity(data.optString("entityId"));
+        synchronized (entity) {
+            checkVersion(entity, data);
+            entity.put("data", data.has("data") ? data.getJSONObject("data") : new JSONObject());
+            entity.put("version", entity.getInt("version") + 1);
+            entity.put("updatedAt", System.currentTimeMillis());
+            return new JSONObject(entity.toString());
+        }
+    }
+
+    private static void checkVersion(JSONObject entity, JSONObject data) throws OperationException, JSONException {
+        int version = data.optInt("version", -1);
+        if (version != -1 && version != entity.getInt("version")) {
+            throw new OperationException(StatusCodes.BAD_REQUEST, ReasonCodes.ENTITY_VERSION_MISMATCH,
+                    "Version " + version + " does not match " + entity.getInt("version"));
+        }
+    }
+
+    private JSONObject getGlobalEntityList(JSONObject data) throws JSONException {
+        JSONObject where = data.optJSONObject("where");
+        List<JSONObject> matches = new ArrayList<>();
+        for (JSONObject entity : _globalEntities.values()) {
+            JSONObject snapshot = copy(entity);
+            if (matches(snapshot, where)) {
+                matches.add(snapshot);
+            }
+        }
+
+        JSONObject orderBy = data.optJSONObject("orderBy");
+        if (orderBy != null && orderBy.length() > 0) {
+            final String field = orderBy.keys().next();
+            final int direction = orderBy.optInt(field, 1) < 0 ? -1 : 1;
+            Collections.sort(matches, new Comparator<JSONObject>() {
+                @Override
+                public int compare(JSONObject a, JSONObject b) {
+                    return direction * compareValues(getField(a, field), getField(b, field));
+                }
+            });
+        }
+
+        int maxReturn = data.optInt("maxReturn", 100);
+        JSONArray entityList = new JSONArray();
+        for (int i = 0; i < matches.size() && i < maxReturn; ++i) {
+            entityList.put(matches.get(i));
+        }
+        return new JSONObject().put("entityList", entityList).put("entityListCount", entityList.length());
+    }
+
+    private static boolean matches(JSONObject entity, JSONObject where) {
+        if (where == null) {
+            return true;
+        }
+        Iterator<String> keys = where.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object expected = where.opt(key);
+            Object actual = getField(entity, key);
+            if (actual == null || !actual.toString().equals(String.valueOf(expected))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object getField(JSONObject object, String path) {
+        Object value = object;
+        for (String part : path.split("\\.")) {
+            if (!(value instanceof JSONObject)) {
+                return null;
+            }
+            value = ((JSONObject) value).opt(part);
+        }
+        return value;
+    }
+
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private JSONObject postScore(Session session, JSONObject data) throws OperationException, JSONException {
+        String leaderboardId = data.optString("leaderboardId");
+        if (leaderboardId.isEmpty() || !data.has("score")) {
+            throw new OperationException(StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_REQUEST, "Missing leaderboardId or score");
+        }
+        long score = data.getLong("score");
+        Map<String, Long> leaderboard = _leaderboards.get(leaderboardId);
+        if (leaderboard == null) {
+            _leaderboards.putIfAbsent(leaderboardId, new ConcurrentHashMap<String, Long>());
+            leaderboard = _leaderboards.get(leaderboardId);
+        }
+        synchronized (leaderboard) {
+            Long best = leaderboard.get(session.getProfileId());
+            if (best == null || score > best) {
+                leaderboard.put(session.getProfileId(), score);
+            }
+        }
+        return new JSONObject();
+    }
+
+    private Set<String> getChannel(String channelId) {
+        Set<String> channel = _channels.get(channelId);
+        if (channel == null) {
+            _channels.putIfAbsent(channelId, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            channel = _channels.get(channelId);
+        }
+        return channel;
+    }
+
+    private JSONObject postChatMessage(Session session, JSONObject data) throws OperationException, JSONException {
+        String channelId = data.optString("channelId");
+        Set<String> channel = _channels.get(channelId);
+        if (channel == null || !channel.contains(session.getProfileId())) {
+            throw new OperationException(StatusCodes.FORBIDDEN, ReasonCodes.INVALID_REQUEST, "Not connected to channel " + channelId);
+        }
+        long msgId = _chatMessageCount.incrementAndGet();
+
+        LocalRttServer rttServer = _dispatcher.getRttServer();
+        if (rttServer != null) {
+            Profile profile = getProfile(session);
+            JSONObject message = new JSONObject();
+            message.put("chId", channelId);
+            message.put("msgId", String.valueOf(msgId));
+            message.put("ver", 1);
+            message.put("date", System.currentTimeMillis());
+            message.put("content", new JSONObject().put("text", data.optString("text")));
+            message.put("from", new JSONObject()
+                    .put("id", profile._profileId)
+                    .put("name", profile._playerName));
+            for (String profileId : channel) {
+                rttServer.sendEvent(profileId, "chat", "INCOMING", message);
+            }
+        }
+        return new JSONObject().put("msgId", String.valueOf(msgId));
+    }
+
+    private static JSONObject copy(JSONObject entity) throws JSONException {
+        synchronized (entity) {
+            return new JSONObject(entity.toString());
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package com.bitheads.braincloud.emulator;
+
+import com.bitheads.braincloud.client.ReasonCodes;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+import com.bitheads.braincloud.client.StatusCodes;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In process stand-in for the brainCloud dispatcher, for tests that must run
+ * without network access and measure load, retry and timeout behaviour
+ * repeatably on one machine.
+ *
+ * It speaks the dispatcherv2 bundle protocol: requests are checked against
+ * their X-SIG signature, may be gzipped and are answered gzipped when the
+ * client accepts it; messages run in order and may use the session an
+ * earlier authenticate of the same bundle created; sessions expire when idle
+ * and bundles over maxBundleMsgs are refused. The resend of a packet is
+ * answered with the response of its first attempt, so a bundle never runs
+ * twice. InMemoryServices answers the most common operations and any other
+ * can be added with setHandler. File uploads posted to /uploader are
+ * accepted and counted. With RTT enabled, a LocalRttServer accepts
+ * WebSocket and TCP connections.
+ *
+ * Latency is added with setLatency and failures are scripted per request
+ * with script, or per operation with failOperation.
+ */
+public class LocalDispatcher {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, String> _secrets = new ConcurrentHashMap<>();
+    private final Map<String, IOperationHandler> _handlers = new ConcurrentHashMap<>();
+    private final Map<String, OperationFailure> _operationFailures = new HashMap<>();
+    private final Map<String, Session> _sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Fault> _faults = new ConcurrentLinkedQueue<>();
+    private final InMemoryServices _services;
+
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private LocalRttServer _rttServer;
+    private boolean _isRttEnabled;
+
+    private volatile int _maxBundleMessages = 10;
+    private volatile long _sessionTimeoutMillis = 20 * 60 * 1000;
+    private volatile int _compressionThreshold = 1024;
+    private volatile long _minLatencyMillis;
+    private volatile long _maxLatencyMillis;
+
+    private final AtomicLong _requestCount = new AtomicLong();
+    private final AtomicLong _messageCount = new AtomicLong();
+    private final AtomicLong _replayCount = new AtomicLong();
+    private final AtomicLong _badSignatureCount = new AtomicLong();
+    private final AtomicLong _faultCount = new AtomicLong();
+    private final AtomicLong _uploadCount = new AtomicLong();
+
+    private static class OperationFailure {
+        int _remaining;
+        int _statusCode;
+        int _reasonCode;
+    }
+
+    public LocalDispatcher(String appId, String secretKey) {
+        _secrets.put(appId, secretKey);
+        _services = new InMemoryServices(this);
+    }
+
+    /**
+     * Accepts the bundles of another app, signed with its own secret.
+     */
+    public void addApp(String appId, String secretKey) {
+        _secrets.put(appId, secretKey);
+    }
+
+    /**
+     * Starts a LocalRttServer along with the dispatcher. Must be called before start.
+     */
+    public void enableRtt() {
+        _isRttEnabled = true;
+    }
+
+    public synchronized void start() throws IOException {
+        if (_server != null) {
+            return;
+        }
+        if (_isRttEnabled) {
+            _rttServer = new LocalRttServer(this);
+            _rttServer.start();
+        }
+
+        // without it the headers and body go out in two segments and the second
+        // waits for the client's delayed ack, adding 40ms to every response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/dispatcherv2", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) {
+                handleRequest(exchange);
+            }
+        });
+        _server.createContext("/uploader", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) {
+                handleUpload(exchange);
+            }
+        });
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.start();
+    }
+
+    public synchronized void stop() {
+        if (_server != null) {
+            _server.stop(0);
+            _executor.shutdownNow();
+            _server = null;
+        }
+        if (_rttServer != null) {
+            _rttServer.stop();
+            _rttServer = null;
+        }
+    }
+
+    /**
+     * @return The server url to initialize the client with
+     */
+    public String getServerUrl() {
+        return "http://127.0.0.1:" + _server.getAddress().getPort() + "/dispatcherv2";
+    }
+
+    public InMemoryServices getServices() {
+        return _services;
+    }
+
+    /**
+     * @return The rtt server, or null if rtt is not enabled
+     */
+    public LocalRttServer getRttServer() {
+        return _rttServer;
+    }
+
+    /**
+     * Answers the operation with the handler, replacing its current one.
+     */
+    public void setHandler(ServiceName serviceName, ServiceOperation serviceOperation, IOperationHandler handler) {
+        _handlers.put(getKey(serviceName.name(), serviceOperation.name()), handler);
+    }
+
+    public void setMaxBundleMessages(int maxBundleMessages) {
+        _maxBundleMessages = maxBundleMessages;
+    }
+
+    public int getMaxBundleMessages() {
+        return _maxBundleMessages;
+    }
+
+    public void setSessionTimeoutSeconds(int sessionTimeoutSeconds) {
+        _sessionTimeoutMillis = sessionTimeoutSeconds * 1000L;
+    }
+
+    public int getSessionTimeoutSeconds() {
+        return (int) (_sessionTimeoutMillis / 1000);
+    }
+
+    /**
+     * Responses at least this large are gzipped for clients that accept it.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Delays every request by a random time between the bounds.
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        _minLatencyMillis = minMillis;
+        _maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * Queues faults for the next requests, one request per fault, after any
+     * already queued. Requests without a fault are answered normally.
+     */
+    public void script(Fault... faults) {
+        for (Fault fault : faults) {
+            _faults.add(fault);
+        }
+    }
+
+    /**
+     * @return The number of scripted faults not applied yet
+     */
+    public int getPendingFaultCount() {
+        return _faults.size();
+    }
+
+    /**
+     * Answers the next calls to the operation with an error instead of
+     * running them.
+     */
+    public void failOperation(ServiceName serviceName, ServiceOperation serviceOperation,
+                              int statusCode, int reasonCode, int count) {
+        OperationFailure failure = new OperationFailure();
+        failure._remaining = count;
+        failure._statusCode = statusCode;
+        failure._reasonCode = reasonCode;
+        synchronized (_operationFailures) {
+            _operationFailures.put(getKey(serviceName.name(), serviceOperation.name()), failure);
+        }
+    }
+
+    public long getRequestCount() {
+        return _requestCount.get();
+    }
+
+    public long getMessageCount() {
+        return _messageCount.get();
+    }
+
+    /**
+     * @return The number of resent packets answered from the session's cache
+     */
+    public long getReplayCount() {
+        return _replayCount.get();
+    }
+
+    public long getBadSignatureCount() {
+        return _badSignatureCount.get();
+    }
+
+    public long getUploadCount() {
+        return _uploadCount.get();
+    }
+
+    public long getFaultCount() {
+        return _faultCount.get();
+    }
+
+    public Session getSession(String sessionId) {
+        return sessionId != null ? _sessions.get(sessionId) : null;
+    }
+
+    /**
+     * @return The session of the profile, or null if it has none
+     */
+    public Session getSessionOfProfile(String profileId) {
+        for (Session session : _sessions.values()) {
+            if (session.getProfileId().equals(profileId)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    Session createSession(String profileId, String appId) {
+        Session session = new Session(UUID.randomUUID().toString(), profileId, appId, System.currentTimeMillis());
+        _sessions.put(session.getSessionId(), session);
+        return session;
+    }
+
+    void endSession(Session session) {
+        _sessions.remove(session.getSessionId());
+        if (_rttServer != null) {
+            _rttServer.disconnect(session.getProfileId());
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) {
+        _requestCount.incrementAndGet();
+        try {
+            byte[] body = readBody(exchange);
+
+            sleep(getLatency());
+
+            Fault fault = _faults.poll();
+            if (fault != null) {
+                _faultCount.incrementAndGet();
+                switch (fault._type) {
+                    case DELAY:
+                        sleep(fault._millis);
+                        break;
+                    case HTTP_STATUS:
+                        exchange.sendResponseHeaders(fault._httpStatus, -1);
+                        return;
+                    case LOSE_REQUEST:
+                        sleep(fault._millis);
+                        return;
+                    default:
+                        break;
+                }
+            }
+
+            JSONObject bundle;
+            try {
+                bundle = new JSONObject(new String(body, UTF_8));
+            } catch (JSONException e) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+                return;
+            }
+
+            byte[] response = runBundle(bundle, body, exchange.getRequestHeaders().getFirst("X-SIG"));
+
+            if (fault != null && fault._type == Fault.Type.LOSE_RESPONSE) {
+                sleep(fault._millis);
+                return;
+            }
+
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip") && response.length >= _compressionThreshold) {
+                response = gzip(response);
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.flush();
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] runBundle(JSONObject bundle, byte[] body, String signature) throws JSONException, InterruptedException {
+        long packetId = bundle.optLong("packetId", -1);
+        Session session = getSession(bundle.optString("sessionId", null));
+
+        if (session == null) {
+            return runMessages(bundle, body, signature, null);
+        }
+
+        synchronized (session) {
+            while (session._packetsInProgress.contains(packetId)) {
+                session.wait();
+            }
+            byte[] cached = session._responses.get(packetId);
+            if (cached != null) {
+                _replayCount.incrementAndGet();
+                return cached;
+            }
+            session._packetsInProgress.add(packetId);
+        }
+
+        byte[] response = null;
+        try {
+            response = runMessages(bundle, body, signature, session);
+            return response;
+        } finally {
+            synchronized (session) {
+                session._packetsInProgress.remove(packetId);
+                if (response != null) {
+                    session._responses.put(packetId, response);
+                }
+                session.notifyAll();
+            }
+        }
+    }
+
+    private byte[] runMessages(JSONObject bundle, byte[] body, String signature, Session session) throws JSONException {
+        JSONArray messages = bundle.optJSONArray("messages");
+        if (messages == null) {
+            messages = new JSONArray();
+        }
+        _messageCount.addAndGet(messages.length());
+
+        String appId = bundle.optString("gameId", "");
+        String secretKey = _secrets.get(appId);
+        JSONObject bundleError = null;
+        if (secretKey == null) {
+            bundleError = createError(StatusCodes.FORBIDDEN, ReasonCodes.INVALID_APP_ID, "Invalid app id: " + appId);
+        } else if (signature == null || !signature.equalsIgnoreCase(sign(body, secretKey))) {
+            _badSignatureCount.incrementAndGet();
+            bundleError = createError(StatusCodes.FORBIDDEN, ReasonCodes.BAD_SIGNATURE, "Bad signature");
+        } else if (messages.length() > _maxBundleMessages) {
+            bundleError = createError(StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_REQUEST,
+                    "Bundle of " + messages.length() + " messages exceeds maxBundleMsgs of " + _maxBundleMessages);
+        }
+
+        long now = System.currentTimeMillis();
+        if (session != null && now - session.getLastActivity() > _sessionTimeoutMillis) {
+            endSession(session);
+            session = null;
+            if (bundleError == null) {
+                bundleError = createError(StatusCodes.FORBIDDEN, ReasonCodes.USER_SESSION_EXPIRED, "Session expired");
+            }
+        }
+
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i < messages.length(); ++i) {
+            if (bundleError != null) {
+                responses.put(bundleError);
+                continue;
+            }
+            JSONObject message = messages.getJSONObject(i);
+            JSONObject response = runMessage(message, session, appId);
+            responses.put(response);
+
+            // an authenticate gives the rest of the bundle its session
+            JSONObject data = response.optJSONObject("data");
+            if (data != null && data.has("sessionId") && message.optString("service").equals(ServiceName.authenticationV2.name())) {
+                session = getSession(data.getString("sessionId"));
+            }
+        }
+        if (session != null) {
+            session.touch(now);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("packetId", bundle.optLong("packetId", -1));
+        result.put("responses", responses);
+        return result.toString().getBytes(UTF_8);
+    }
+
+    private JSONObject runMessage(JSONObject message, Session session, String appId) throws JSONException {
+        String service = message.optString("service");
+        String operation = message.optString("operation");
+        String key = getKey(service, operation);
+
+        IOperationHandler handler = _handlers.get(key);
+        if (handler == null) {
+            handler = _services.getHandler(service, operation);
+        }
+        if (handler == null) {
+            return createError(StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_REQUEST,
+                    "Operation " + key + " is not emulated");
+        }
+
+        if (session == null && !service.equals(ServiceName.authenticationV2.name())) {
+            return createError(StatusCodes.FORBIDDEN, ReasonCodes.NO_SESSION, "No session");
+        }
+
+        synchronized (_operationFailures) {
+            OperationFailure failure = _operationFailures.get(key);
+            if (failure != null && failure._remaining > 0) {
+                failure._remaining--;
+                return createError(failure._statusCode, failure._reasonCode, "Injected failure of " + key);
+            }
+        }
+
+        JSONObject data = message.optJSONObject("data");
+        if (data == null) {
+            data = new JSONObject();
+        }
+        if (session == null) {
+            // authenticate needs to know which app it signs in to
+            data.put("gameId", appId);
+        }
+
+        try {
+            JSONObject result = handler.handle(session, data);
+            JSONObject response = new JSONObject();
+            response.put("status", 200);
+            response.put("data", result != null ? result : JSONObject.NULL);
+            return response;
+        } catch (OperationException e) {
+            return createError(e.getStatusCode(), e.getReasonCode(), e.getMessage());
+        }
+    }
+
+    static JSONObject createError(int statusCode, int reasonCode, String statusMessage) throws JSONException {
+        JSONObject error = new JSONObject();
+        error.put("status", statusCode);
+        error.put("reason_code", reasonCode);
+        error.put("status_message", statusMessage);
+        error.put("severity", "ERROR");
+        return error;
+    }
+
+    private long getLatency() {
+        long min = _minLatencyMillis;
+        long max = _maxLatencyMillis;
+        return max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+    }
+
+    private static String getKey(String service, String operation) {
+        return service + "." + operation;
+    }
+
+    private void handleUpload(HttpExchange exchange) {
+        try {
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // the file is not kept
+            }
+            _uploadCount.incrementAndGet();
+
+            byte[] response = "{\"status\":200}".getBytes(UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.flush();
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding != null && encoding.equals("gzip")) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static String sign(byte[] body, String secretKey) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(body);
+            md5.update(secretKey.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md5.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+}
@@ -0,0 +1,1031 @@
+package com.bitheads.braincloud.emulator;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IFileUploadCallback;
+import com.bitheads.braincloud.client.IRTTCallback;
+import com.bitheads.braincloud.client.IRTTConnectCallback;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.IThreadListener;
+import com.bitheads.braincloud.client.Metric;
+import com.bitheads.braincloud.client.ReasonCodes;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+import com.bitheads.braincloud.client.StatusCodes;
+import com.bitheads.braincloud.comms.BundlePolicy;
+import com.bitheads.braincloud.comms.BundleStats;
+import com.bitheads.braincloud.comms.CallPriority;
+import com.bitheads.braincloud.comms.IRestTransport;
+import com.bitheads.braincloud.comms.MetricsRegistry;
+import com.bitheads.braincloud.comms.OutboundJournal;
+import com.bitheads.braincloud.comms.QueueOverflowPolicy;
+import com.bitheads.braincloud.comms.RateLimiter;
+import com.bitheads.braincloud.comms.SdkThreads;
+import com.bitheads.braincloud.comms.ServerCall;
+import com.bitheads.braincloud.comms.SharedDispatcher;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs the client against the LocalDispatcher, so unlike the service tests
+ * these need neither ids.txt nor network access.
+ */
+public class LocalDispatcherTest
+{
+    private static final String APP_ID = "10001";
+    private static final String SECRET = "local-secret";
+
+    private LocalDispatcher _dispatcher;
+    private BrainCloudClient _client;
+
+    private static class Result implements IServerCallback
+    {
+        boolean _done;
+        boolean _success;
+        JSONObject _response;
+        int _statusCode;
+        int _reasonCode;
+
+        @Override
+        public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+        {
+            _done = true;
+            _success = true;
+            _response = jsonData;
+        }
+
+        @Override
+        public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+        {
+            _done = true;
+            _statusCode = statusCode;
+            _reasonCode = reasonCode;
+        }
+
+        boolean run(BrainCloudClient client) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 30000;
+            while (!_done && System.currentTimeMillis() < end)
+            {
+                client.runCallbacks();
+                Thread.sleep(5);
+            }
+            Assert.assertTrue("no response", _done);
+            boolean success = _success;
+            _done = false;
+            _success = false;
+            return success;
+        }
+    }
+
+    /**
+     * Keeps a copy of every request sent through the transport it wraps.
+     */
+    private static class RecordingTransport implements IRestTransport
+    {
+        final IRestTransport _transport;
+        final List<Map<String, String>> _headers = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        final List<byte[]> _bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        RecordingTransport(IRestTransport transport)
+        {
+            _transport = transport;
+        }
+
+        @Override
+        public Response send(String url, Map<String, String> headers, byte[] body, int offset, int length,
+                             int connectTimeoutMillis, int readTimeoutMillis) throws IOException
+        {
+            _headers.add(new HashMap<>(headers));
+            _bodies.add(Arrays.copyOfRange(body, offset, offset + length));
+            return _transport.send(url, headers, body, offset, length, connectTimeoutMillis, readTimeoutMillis);
+        }
+
+        @Override
+        public void close()
+        {
+            _transport.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        _dispatcher = new LocalDispatcher(APP_ID, SECRET);
+        _dispatcher.enableRtt();
+        _dispatcher.start();
+
+        _client = new BrainCloudClient();
+        _client.initialize(_dispatcher.getServerUrl(), APP_ID, SECRET, "1.0.0");
+    }
+
+    @After
+    public void tearDown()
+    {
+        _client.resetCommunication();
+        _dispatcher.stop();
+    }
+
+    private void authenticate(Result result) throws InterruptedException
+    {
+        _client.getAuthenticationService().authenticateUniversal("local-user", "local-password", true, result);
+        Assert.assertTrue(result.run(_client));
+    }
+
+    @Test
+    public void testServices() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+        String profileId = _client.getAuthenticationService().getProfileId();
+        Assert.assertNotNull(_dispatcher.getSessionOfProfile(profileId));
+
+        _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":2}", result);
+        Assert.assertTrue(result.run(_client));
+        _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", result);
+        Assert.assertTrue(result.run(_client));
+        Assert.assertEquals(3, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+
+        _client.getGlobalEntityService().createEntity("weapon", -1, null, "{\"level\":3}", result);
+        Assert.assertTrue(result.run(_client));
+        _client.getGlobalEntityService().getList("{\"entityType\":\"weapon\",\"data.level\":3}", null, 10, result);
+        Assert.assertTrue(result.run(_client));
+        Assert.assertEquals(1, result._response.getJSONObject("data").getInt("entityListCount"));
+
+        _client.getAuthenticationService().authenticateUniversal("local-user", "wrong-password", false, result);
+        Assert.assertFalse(result.run(_client));
+        Assert.assertEquals(ReasonCodes.TOKEN_DOES_NOT_MATCH_USER, result._reasonCode);
+        Assert.assertEquals(0, _dispatcher.getBadSignatureCount());
+    }
+
+    @Test
+    public void testLostResponseIsReplayed() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+        _client.setAdaptiveTimeouts(true);
+        _client.setAdaptiveTimeoutBounds(200, 500);
+        _client.setRetryBackoff(10, 50);
+
+        _dispatcher.script(Fault.httpStatus(503), Fault.loseResponse(2000));
+        _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", result);
+        Assert.assertTrue(result.run(_client));
+
+        // ran once despite three attempts
+        String profileId = _client.getAuthenticationService().getProfileId();
+        Assert.assertEquals(1, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+        Assert.assertEquals(1, _dispatcher.getReplayCount());
+        Assert.assertEquals(0, _dispatcher.getPendingFaultCount());
+    }
+
+    @Test
+    public void testSessionExpiry() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+
+        _dispatcher.getSessionOfProfile(_client.getAuthenticationService().getProfileId()).expire();
+        _client.getTimeService().readServerTime(result);
+        Assert.assertFalse(result.run(_client));
+        Assert.assertEquals(StatusCodes.FORBIDDEN, result._statusCode);
+        Assert.assertEquals(ReasonCodes.USER_SESSION_EXPIRED, result._reasonCode);
+        Assert.assertFalse(_client.isAuthenticated());
+    }
+
+    @Test
+    public void testBadSignature() throws Exception
+    {
+        Result result = new Result();
+        _client.initialize(_dispatcher.getServerUrl(), APP_ID, "wrong-secret", "1.0.0");
+        _client.getAuthenticationService().authenticateUniversal("local-user", "local-password", true, result);
+        Assert.assertFalse(result.run(_client));
+        Assert.assertEquals(ReasonCodes.BAD_SIGNATURE, result._reasonCode);
+        Assert.assertEquals(1, _dispatcher.getBadSignatureCount());
+    }
+
+    @Test
+    public void testCompression() throws Exception
+    {
+        _client.enableCompression(true);
+        _dispatcher.setCompressionThreshold(0);
+        Result result = new Result();
+        authenticate(result);
+
+        StringBuilder data = new StringBuilder("{\"text\":\"");
+        for (int i = 0; i < 1000; i++)
+        {
+            data.append("compressible ");
+        }
+        data.append("\"}");
+        _client.getGlobalEntityService().createEntity("note", -1, null, data.toString(), result);
+        Assert.assertTrue(result.run(_client));
+        Assert.assertEquals(1, _dispatcher.getServices().getGlobalEntityCount());
+    }
+
+    @Test
+    public void testBundleEncoding() throws Exception
+    {
+        RecordingTransport transport = new RecordingTransport(_client.getRestClient().getTransport());
+        _client.setRestTransport(transport);
+        _client.enableCompression(true);
+        Result result = new Result();
+        authenticate(result);
+
+        ServerCall serverCall = new ServerCall(ServiceName.globalEntity, ServiceOperation.CREATE,
+                new JSONObject()
+                        .put("entityType", "note")
+                        .put("timeToLive", -1)
+                        .put("data", new JSONObject().put("text", "caf\u00e9 \u2713 \"quoted\" \\ </tag>\n")),
+                result);
+        _client.sendRequest(serverCall);
+        Assert.assertTrue(result.run(_client));
+        Assert.assertEquals(2, transport._bodies.size());
+
+        for (int i = 0; i < transport._bodies.size(); ++i)
+        {
+            // the same gzip stream and signature the GZIPOutputStream and String based encoding made
+            byte[] compressed = transport._bodies.get(i);
+            byte[] body = gunzip(compressed);
+            byte[] expected = gzip(body);
+            // but for the OS byte of the header, which GZIPOutputStream sets per JDK version
+            expected[9] = compressed[9];
+            Assert.assertArrayEquals(expected, compressed);
+            Assert.assertEquals(md5Hex(new String(body, "UTF-8"), SECRET), transport._headers.get(i).get("X-SIG"));
+            Assert.assertEquals("gzip", transport._headers.get(i).get("Content-Encoding"));
+        }
+
+        // and the same json as the bundle built from JSONObjects
+        String body = new String(gunzip(transport._bodies.get(1)), "UTF-8");
+        Assert.assertTrue(body.endsWith("}\r\n\r\n"));
+        JSONObject bundle = new JSONObject(body);
+        JSONObject expected = new JSONObject();
+        expected.put("messages", new JSONArray().put(serverCall.getPayload()));
+        expected.put("gameId", APP_ID);
+        expected.put("sessionId", _client.getRestClient().getSessionId());
+        expected.put("packetId", bundle.getLong("packetId"));
+        Assert.assertTrue(body, expected.similar(bundle));
+        Assert.assertEquals(0, _dispatcher.getBadSignatureCount());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static String md5Hex(String body, String secretKey) throws Exception
+    {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(body.getBytes("UTF-8"));
+        md5.update(secretKey.getBytes("UTF-8"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5.digest())
+        {
+            String digit = Integer.toHexString(0xFF & b);
+            if (digit.length() == 1)
+            {
+                hex.append('0');
+            }
+            hex.append(digit);
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void testResponseErrorMidBundle() throws Exception
+    {
+        RecordingTransport transport = new RecordingTransport(_client.getRestClient().getTransport());
+        _client.setRestTransport(transport);
+        _client.enableCompression(true);
+        _dispatcher.setCompressionThreshold(0);
+        Result result = new Result();
+        authenticate(result);
+        String profileId = _client.getAuthenticationService().getProfileId();
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        IServerCallback recorder = new IServerCallback()
+        {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+            {
+                events.add(serviceOperation.name());
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+            {
+                events.add(serviceOperation.name() + " " + statusCode + " " + reasonCode);
+            }
+        };
+
+        // no bundle is sent while a response waits for runCallbacks, so the next three share one
+        sendIncrement(CallPriority.INTERACTIVE, recorder);
+        Thread.sleep(300);
+        _dispatcher.failOperation(ServiceName.globalEntity, ServiceOperation.CREATE,
+                StatusCodes.BAD_REQUEST, ReasonCodes.INVALID_REQUEST, 1);
+        sendIncrement(CallPriority.INTERACTIVE, recorder);
+        _client.getGlobalEntityService().createEntity("note", -1, null, "{}", recorder);
+        sendIncrement(CallPriority.INTERACTIVE, recorder);
+
+        long end = System.currentTimeMillis() + 10000;
+        while (events.size() < 4 && System.currentTimeMillis() < end)
+        {
+            _client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(Arrays.asList("UPDATE_INCREMENT", "UPDATE_INCREMENT",
+                "CREATE " + StatusCodes.BAD_REQUEST + " " + ReasonCodes.INVALID_REQUEST, "UPDATE_INCREMENT"), events);
+        JSONObject bundle = new JSONObject(new String(gunzip(transport._bodies.get(transport._bodies.size() - 1)), "UTF-8"));
+        Assert.assertEquals(3, bundle.getJSONArray("messages").length());
+        Assert.assertEquals(3, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+
+        // the session carries on after the error
+        _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", result);
+        Assert.assertTrue(result.run(_client));
+        Assert.assertEquals(4, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+    }
+
+    @Test
+    public void testQueuedCallsWakeRestThread() throws Exception
+    {
+        // an idle client that is not authenticated waits without a timeout
+        Thread.sleep(500);
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        authenticate(result);
+        Assert.assertTrue(System.currentTimeMillis() - start < 300);
+
+        // each call goes out as it is queued, not on the next pass of a poll
+        for (int i = 0; i < 10; ++i)
+        {
+            start = System.currentTimeMillis();
+            _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", result);
+            Assert.assertTrue(result.run(_client));
+            Assert.assertTrue(System.currentTimeMillis() - start < 300);
+        }
+
+        // so does a call from another thread while the rest thread waits for the heartbeat
+        Thread.sleep(500);
+        final long[] queuedAt = {0};
+        Thread caller = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queuedAt[0] = System.currentTimeMillis();
+                sendIncrement(CallPriority.INTERACTIVE, null);
+            }
+        });
+        long requests = _dispatcher.getRequestCount();
+        caller.start();
+        caller.join();
+        long end = System.currentTimeMillis() + 10000;
+        while (_dispatcher.getRequestCount() == requests && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - queuedAt[0] < 300);
+    }
+
+    @Test
+    public void testDurableCallBeforeAuthentication() throws Exception
+    {
+        File directory = Files.createTempDirectory("braincloud-journal").toFile();
+        Assert.assertTrue(_client.enableDurableQueue(directory));
+        try
+        {
+            _client.getOutboundJournal().addDurableOperation(ServiceName.playerStatistics, ServiceOperation.UPDATE_INCREMENT);
+
+            // journaled without a profile id, as with nothing saved from a previous run, and
+            // compacted while it waits for one
+            _client.initializeIdentity(null, "");
+            Result result = new Result();
+            sendIncrement(CallPriority.INTERACTIVE, result);
+            Assert.assertEquals(1, _client.getOutboundJournal().getPendingCount());
+            _client.getOutboundJournal().compact();
+            Assert.assertFalse(result.run(_client));
+            Assert.assertEquals(ReasonCodes.NO_SESSION, result._reasonCode);
+            Assert.assertEquals(0, _client.getRestClient().getQueueDepth());
+
+            // reopened, the call goes out once a profile authenticates
+            Assert.assertTrue(_client.enableDurableQueue(directory));
+            OutboundJournal journal = _client.getOutboundJournal();
+            Assert.assertEquals(1, journal.getPendingCount());
+            authenticate(result);
+            long end = System.currentTimeMillis() + 10000;
+            while (journal.getPendingCount() > 0 && System.currentTimeMillis() < end)
+            {
+                _client.runCallbacks();
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(0, journal.getPendingCount());
+            String profileId = _client.getAuthenticationService().getProfileId();
+            Assert.assertEquals(1, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+        }
+        finally
+        {
+            _client.enableDurableQueue(null);
+        }
+    }
+
+    @Test
+    public void testBundleByteCap() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+
+        BundlePolicy policy = _client.getRestClient().getBundlePolicy();
+        policy.setLingerMillis(200);
+        policy.setMaxBundleBytes(2000);
+        try
+        {
+            StringBuilder filler = new StringBuilder();
+            for (int i = 0; i < 600; ++i)
+            {
+                filler.append('x');
+            }
+            String entityJson = "{\"filler\":\"" + filler + "\"}";
+            String oversizedJson = "{\"filler\":\"" + filler + filler + filler + filler + "\"}";
+
+            // six calls that fit three to a bundle, with an oversized one in the middle
+            _client.getRestClient().getBundleStats().reset();
+            final int[] done = {0};
+            IServerCallback counter = new IServerCallback()
+            {
+                @Override
+                public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+                {
+                    ++done[0];
+                }
+
+                @Override
+                public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+                {
+                    Assert.fail(jsonError);
+                }
+            };
+            for (int i = 0; i < 7; ++i)
+            {
+                _client.getGlobalEntityService().createEntity("crate", -1, null, i == 3 ? oversizedJson : entityJson, counter);
+            }
+            long end = System.currentTimeMillis() + 10000;
+            while (done[0] < 7 && System.currentTimeMillis() < end)
+            {
+                _client.runCallbacks();
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(7, done[0]);
+
+            BundleStats stats = _client.getRestClient().getBundleStats();
+            Assert.assertEquals(stats.toString(), 7, stats.getMessageCount());
+            Assert.assertEquals(stats.toString(), 1, stats.getFlushCount(BundleStats.FlushReason.OVERSIZED));
+            Assert.assertTrue(stats.toString(), stats.getFlushCount(BundleStats.FlushReason.MAX_BYTES) >= 2);
+            Assert.assertTrue(stats.toString(), stats.getBundleCount() >= 4);
+            Assert.assertTrue(stats.toString(), stats.getMaxPayloadBytes() > 2000);
+        }
+        finally
+        {
+            policy.setLingerMillis(0);
+            policy.setMaxBundleBytes(BundlePolicy.DEFAULT_MAX_BUNDLE_BYTES);
+        }
+    }
+
+    @Test
+    public void testRateLimits() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+        MetricsRegistry metrics = new MetricsRegistry();
+        _client.setMetricsRecorder(metrics);
+
+        final int[] results = {0, 0, 0};
+        IServerCallback counter = new IServerCallback()
+        {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+            {
+                ++results[0];
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+            {
+                ++results[reasonCode == ReasonCodes.CLIENT_RATE_LIMITED ? 1 : 2];
+            }
+        };
+        RateLimiter rateLimiter = _client.getRateLimiter();
+
+        // calls past the burst are failed without being sent
+        rateLimiter.setLimit(ServiceName.playerStatistics, ServiceOperation.UPDATE_INCREMENT, 0.1, 2, RateLimiter.Policy.REJECT);
+        for (int i = 0; i < 4; ++i)
+        {
+            _client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", counter);
+        }
+        waitFor(results, 4);
+        Assert.assertArrayEquals(new int[] {2, 2, 0}, results);
+        String profileId = _client.getAuthenticationService().getProfileId();
+        Assert.assertEquals(2, _dispatcher.getServices().getStatistics(profileId).getLong("wins"));
+        RateLimiter.Limit limit = rateLimiter.getLimit(ServiceName.playerStatistics, ServiceOperation.UPDATE_INCREMENT);
+        Assert.assertEquals(2, limit.getAllowedCount());
+        Assert.assertEquals(2, limit.getRejectedCount());
+        Assert.assertEquals(2, metrics.getCounter(Metric.RATE_LIMIT_REJECTS));
+
+        // calls past the burst wait for the budget to refill, in order
+        Arrays.fill(results, 0);
+        rateLimiter.setLimit(ServiceName.globalEntity, ServiceOperation.CREATE, 20, 1, RateLimiter.Policy.DELAY);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i)
+        {
+            _client.getGlobalEntityService().createEntity("crate", -1, null, "{\"index\":" + i + "}", counter);
+        }
+        Assert.assertEquals(4, rateLimiter.getHeldCount());
+        waitFor(results, 5);
+        Assert.assertArrayEquals(new int[] {5, 0, 0}, results);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+        limit = rateLimiter.getLimit(ServiceName.globalEntity, ServiceOperation.CREATE);
+        Assert.assertEquals(4, limit.getDelayedCount());
+        Assert.assertEquals(5, limit.getAllowedCount());
+        Assert.assertEquals(0, limit.getHeldCount());
+        Assert.assertEquals(4, metrics.getCounter(Metric.RATE_LIMIT_DELAYS));
+        Assert.assertEquals(4, metrics.getHistogram(Metric.RATE_LIMIT_WAIT_MILLIS).getCount());
+
+        // identical calls get the response of the first without taking a token
+        Arrays.fill(results, 0);
+        rateLimiter.setLimit(ServiceName.globalEntity, ServiceOperation.GET_LIST, 0.1, 2, RateLimiter.Policy.MERGE);
+        for (int i = 0; i < 3; ++i)
+        {
+            _client.getGlobalEntityService().getList("{\"entityType\":\"crate\"}", null, 10, counter);
+        }
+        // so a different call still gets the second token, and the next one waits for the budget
+        _client.getGlobalEntityService().getList("{\"entityType\":\"weapon\"}", null, 10, counter);
+        _client.getGlobalEntityService().getList("{\"entityType\":\"gem\"}", null, 10, counter);
+        waitFor(results, 4);
+        Assert.assertArrayEquals(new int[] {4, 0, 0}, results);
+        limit = rateLimiter.getLimit(ServiceName.globalEntity, ServiceOperation.GET_LIST);
+        Assert.assertEquals(2, limit.getMergedCount());
+        Assert.assertEquals(2, limit.getAllowedCount());
+        Assert.assertEquals(1, limit.getHeldCount());
+        Assert.assertEquals(2, metrics.getCounter(Metric.RATE_LIMIT_MERGES));
+
+        // removing the limit sends the held call
+        rateLimiter.removeLimit(ServiceName.globalEntity, ServiceOperation.GET_LIST);
+        waitFor(results, 5);
+        Assert.assertArrayEquals(new int[] {5, 0, 0}, results);
+        Assert.assertEquals(0, rateLimiter.getHeldCount());
+
+        // a session change fails the calls held in the previous session
+        Arrays.fill(results, 0);
+        rateLimiter.setLimit(ServiceName.globalEntity, ServiceOperation.GET_LIST, 0.1, 1, RateLimiter.Policy.DELAY);
+        _client.getGlobalEntityService().getList("{\"entityType\":\"crate\"}", null, 10, counter);
+        _client.getGlobalEntityService().getList("{\"entityType\":\"weapon\"}", null, 10, counter);
+        Assert.assertEquals(1, rateLimiter.getHeldCount());
+        _client.getAuthenticationService().authenticateUniversal("local-user", "local-password", true, counter);
+        Assert.assertEquals(0, rateLimiter.getHeldCount());
+        waitFor(results, 3);
+        Assert.assertArrayEquals(new int[] {2, 1, 0}, results);
+        rateLimiter.removeLimit(ServiceName.globalEntity, ServiceOperation.GET_LIST);
+        _client.setMetricsRecorder(null);
+    }
+
+    @Test
+    public void testQueueCapacity() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+        MetricsRegistry metrics = new MetricsRegistry();
+        _client.setMetricsRecorder(metrics);
+
+        final int[] results = {0, 0, 0};
+        final ArrayList<Integer> queueFull = new ArrayList<>();
+        final IServerCallback counter = new IServerCallback()
+        {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+            {
+                ++results[0];
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+            {
+                ++results[reasonCode == ReasonCodes.CLIENT_QUEUE_FULL ? 1 : 2];
+            }
+        };
+        try
+        {
+            // no bundle is sent while a response waits for runCallbacks, so calls pile up
+            _client.getRestClient().setQueueCapacity(3, QueueOverflowPolicy.FAIL);
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            Thread.sleep(300);
+            for (int i = 0; i < 4; ++i)
+            {
+                sendIncrement(CallPriority.INTERACTIVE, counter);
+            }
+            Assert.assertEquals(3, _client.getRestClient().getQueueDepth());
+            Assert.assertEquals(1, _client.getRestClient().getQueueOverflowCount());
+            waitFor(results, 5);
+            Assert.assertArrayEquals(new int[] {4, 1, 0}, results);
+            Assert.assertEquals(1, metrics.getCounter(Metric.QUEUE_OVERFLOWS));
+
+            // the oldest call of the lowest lane not above the new call's makes room
+            Arrays.fill(results, 0);
+            _client.getRestClient().setQueueCapacity(3, QueueOverflowPolicy.DROP_OLDEST);
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            Thread.sleep(300);
+            sendIncrement(CallPriority.BACKGROUND, counter);
+            sendIncrement(CallPriority.BACKGROUND, counter);
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            sendIncrement(CallPriority.CRITICAL, counter);
+            sendIncrement(CallPriority.BACKGROUND, counter);
+            Assert.assertEquals(2, _client.getRestClient().getDroppedCount(CallPriority.BACKGROUND));
+            Assert.assertEquals(0, _client.getRestClient().getDroppedCount(CallPriority.INTERACTIVE));
+            waitFor(results, 6);
+            Assert.assertArrayEquals(new int[] {4, 2, 0}, results);
+            Assert.assertEquals(2, metrics.getCounter(Metric.QUEUE_DROPS));
+
+            // the thread running the callbacks is what drains the queue, so it fails instead of waiting
+            Arrays.fill(results, 0);
+            _client.getRestClient().setQueueCapacity(1, QueueOverflowPolicy.BLOCK);
+            _client.getRestClient().setQueueBlockTimeout(10000);
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            Thread.sleep(300);
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            long start = System.currentTimeMillis();
+            sendIncrement(CallPriority.INTERACTIVE, counter);
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            waitFor(results, 3);
+            Assert.assertArrayEquals(new int[] {2, 1, 0}, results);
+
+            // so does a call made from a callback: the rest thread may send the first call
+            // right away, but with one bundle in flight the third finds the queue full
+            Arrays.fill(results, 0);
+            final long[] callbackMillis = {-1};
+            sendIncrement(CallPriority.INTERACTIVE, new IServerCallback()
+            {
+                @Override
+                public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+                {
+                    ++results[0];
+                    long callbackStart = System.currentTimeMillis();
+                    for (int i = 0; i < 3; ++i)
+                    {
+                        sendIncrement(CallPriority.INTERACTIVE, counter);
+                    }
+                    callbackMillis[0] = System.currentTimeMillis() - callbackStart;
+                }
+
+                @Override
+                public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+                {
+                    ++results[2];
+                }
+            });
+            waitFor(results, 4);
+            Assert.assertTrue(Arrays.toString(results), results[1] >= 1 && results[2] == 0);
+            Assert.assertTrue(callbackMillis[0] >= 0 && callbackMillis[0] < 1000);
+
+            // callers on another thread wait for room while the callbacks run
+            Arrays.fill(results, 0);
+            _client.getRestClient().setQueueBlockTimeout(10000);
+            Thread producer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 5; ++i)
+                    {
+                        sendIncrement(CallPriority.INTERACTIVE, counter);
+                    }
+                }
+            });
+            producer.start();
+            waitFor(results, 5);
+            producer.join();
+            Assert.assertArrayEquals(new int[] {5, 0, 0}, results);
+            Assert.assertTrue(metrics.getHistogram(Metric.QUEUE_BLOCKED_MILLIS).getCount() >= 1);
+            Assert.assertEquals(0, _client.getRestClient().getQueueDepth());
+        }
+        finally
+        {
+            _client.getRestClient().setQueueCapacity(0, QueueOverflowPolicy.FAIL);
+            _client.setMetricsRecorder(null);
+        }
+    }
+
+    private void sendIncrement(CallPriority priority, IServerCallback callback)
+    {
+        ServerCall serverCall = new ServerCall(ServiceName.playerStatistics, ServiceOperation.UPDATE_INCREMENT,
+                new JSONObject().put("statistics", new JSONObject().put("wins", 1)), callback);
+        serverCall.setPriority(priority);
+        _client.sendRequest(serverCall);
+    }
+
+    private void waitFor(int[] results, int count) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 10000;
+        while (results[0] + results[1] + results[2] < count && System.currentTimeMillis() < end)
+        {
+            _client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(count, results[0] + results[1] + results[2]);
+    }
+
+    @Test
+    public void testFileUploadCallbacksOnExecutor() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+
+        final String missingPath = new File(System.getProperty("java.io.tmpdir"), "braincloud-missing-upload").getPath();
+        _dispatcher.setHandler(ServiceName.file, ServiceOperation.PREPARE_USER_UPLOAD, new IOperationHandler()
+        {
+            @Override
+            public JSONObject handle(Session session, JSONObject data)
+            {
+                // the second upload points the client at a file that is gone by the time it starts
+                String name = data.getString("cloudFilename");
+                return new JSONObject().put("fileDetails", new JSONObject()
+                        .put("uploadId", "upload-" + name)
+                        .put("localPath", name.equals("gone.txt") ? missingPath : data.getString("localPath")));
+            }
+        });
+
+        final List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+        _client.registerFileUploadCallback(new IFileUploadCallback()
+        {
+            @Override
+            public void fileUploadCompleted(String fileUploadId, String jsonResponse)
+            {
+                uploads.add("completed " + fileUploadId);
+                done.countDown();
+            }
+
+            @Override
+            public void fileUploadFailed(String fileUploadId, int statusCode, int reasonCode, String jsonResponse)
+            {
+                uploads.add("failed " + fileUploadId + " " + reasonCode);
+                done.countDown();
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        _client.setCallbackExecutor(executor);
+        File file = Files.createTempFile("braincloud-upload", ".txt").toFile();
+        try
+        {
+            Files.write(file.toPath(), "uploaded".getBytes("UTF-8"));
+
+            // reported without calling runCallbacks, whether the upload ran or failed before starting
+            Assert.assertTrue(_client.getFileService().uploadFile("", "kept.txt", false, true, file.getPath(), null));
+            Assert.assertTrue(_client.getFileService().uploadFile("", "gone.txt", false, true, file.getPath(), null));
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(uploads.toString(), uploads.contains("completed upload-kept.txt"));
+            Assert.assertTrue(uploads.toString(), uploads.contains("failed upload-gone.txt " + ReasonCodes.CLIENT_UPLOAD_FILE_UNKNOWN));
+            Assert.assertEquals(1, _dispatcher.getUploadCount());
+        }
+        finally
+        {
+            _client.setCallbackExecutor(null);
+            _client.deregisterFileUploadCallback();
+            executor.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSharedDispatcher() throws Exception
+    {
+        SharedDispatcher sharedDispatcher = new SharedDispatcher(2);
+        int threadCount = Thread.activeCount();
+        BrainCloudClient[] clients = new BrainCloudClient[50];
+        Result[] results = new Result[clients.length];
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i] = new BrainCloudClient();
+            clients[i].setSharedDispatcher(sharedDispatcher);
+            clients[i].initialize(_dispatcher.getServerUrl(), APP_ID, SECRET, "1.0.0");
+            results[i] = new Result();
+            clients[i].getAuthenticationService().authenticateUniversal("shared-" + i, "password", true, results[i]);
+        }
+        for (int i = 0; i < clients.length; i++)
+        {
+            Assert.assertTrue(results[i].run(clients[i]));
+            clients[i].getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", results[i]);
+        }
+        for (int i = 0; i < clients.length; i++)
+        {
+            Assert.assertTrue(results[i].run(clients[i]));
+        }
+
+        // the pool, the shared transport and the emulator add a few threads, not one per client
+        Assert.assertTrue(Thread.activeCount() < threadCount + 10);
+        Assert.assertEquals(clients.length, sharedDispatcher.getClientCount());
+        Assert.assertEquals(clients.length, _dispatcher.getServices().getProfileCount());
+
+        for (BrainCloudClient client : clients)
+        {
+            client.close();
+        }
+        Assert.assertEquals(0, sharedDispatcher.getClientCount());
+        sharedDispatcher.close();
+    }
+
+    @Test
+    public void testRttWebSocket() throws Exception
+    {
+        checkRtt(true);
+    }
+
+    @Test
+    public void testRttTcp() throws Exception
+    {
+        checkRtt(false);
+    }
+
+    @Test
+    public void testSdkThreads() throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        SdkThreads.setThreadListener(new IThreadListener()
+        {
+            @Override
+            public void threadStarted(Thread thread)
+            {
+                started.add(thread.getName());
+            }
+
+            @Override
+            public void threadEnded(Thread thread)
+            {
+            }
+        });
+        try
+        {
+            // no room for one more dedicated thread
+            SdkThreads.setMaxThreads(SdkThreads.getDedicatedThreadCount());
+            BrainCloudClient client = new BrainCloudClient();
+            try
+            {
+                client.initialize(_dispatcher.getServerUrl(), APP_ID, SECRET, "1.0.0");
+                Assert.fail("rest thread past the bound");
+            }
+            catch (RejectedExecutionException e)
+            {
+                // expected
+            }
+            Assert.assertFalse(connectRtt());
+
+            SdkThreads.setMaxThreads(0);
+            Assert.assertTrue(connectRtt());
+            Assert.assertTrue(started.toString(), containsPrefix(started, "braincloud-task-"));
+            Assert.assertTrue(started.toString(), containsPrefix(started, "braincloud-rtt-receive-"));
+            Assert.assertTrue(SdkThreads.getLiveThreadCount() > 0);
+            Assert.assertTrue(SdkThreads.getStartedThreadCount() >= started.size());
+        }
+        finally
+        {
+            SdkThreads.setThreadListener(null);
+            SdkThreads.setMaxThreads(0);
+        }
+    }
+
+    private static boolean containsPrefix(List<String> names, String prefix)
+    {
+        synchronized (names)
+        {
+            for (String name : names)
+            {
+                if (name.startsWith(prefix))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private boolean connectRtt() throws InterruptedException
+    {
+        final Boolean[] connected = {null};
+        _client.getRTTService().enableRTT(new IRTTConnectCallback()
+        {
+            @Override
+            public void rttConnectSuccess()
+            {
+                connected[0] = true;
+            }
+
+            @Override
+            public void rttConnectFailure(String errorMessage)
+            {
+                connected[0] = false;
+            }
+        }, false);
+
+        long end = System.currentTimeMillis() + 10000;
+        while (connected[0] == null && System.currentTimeMillis() < end)
+        {
+            _client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertNotNull("no rtt connect callback", connected[0]);
+        return connected[0];
+    }
+
+    private void checkRtt(boolean useWebSocket) throws Exception
+    {
+        Result result = new Result();
+        authenticate(result);
+
+        final boolean[] connected = {false};
+        final JSONObject[] event = {null};
+        _client.getRTTService().enableRTT(new IRTTConnectCallback()
+        {
+            @Override
+            public void rttConnectSuccess()
+            {
+                connected[0] = true;
+            }
+
+            @Override
+            public void rttConnectFailure(String errorMessage)
+            {
+                Assert.fail(errorMessage);
+            }
+        }, useWebSocket);
+        _client.getRTTService().registerRTTEventCallback(new IRTTCallback()
+        {
+            @Override
+            public void rttCallback(JSONObject eventJson)
+            {
+                event[0] = eventJson;
+            }
+        });
+
+        long end = System.currentTimeMillis() + 10000;
+        while (!connected[0] && System.currentTimeMillis() < end)
+        {
+            _client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(connected[0]);
+        Assert.assertEquals(1, _dispatcher.getRttServer().getConnectedCount());
+
+        String profileId = _client.getAuthenticationService().getProfileId();
+        Assert.assertEquals(1, _dispatcher.getRttServer().sendEvent(profileId, "event", "GET_EVENTS", new JSONObject().put("id", 7)));
+        end = System.currentTimeMillis() + 10000;
+        while (event[0] == null && System.currentTimeMillis() < end)
+        {
+            _client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertNotNull(event[0]);
+        Assert.assertEquals(7, event[0].getJSONObject("data").getInt("id"));
+    }
+}
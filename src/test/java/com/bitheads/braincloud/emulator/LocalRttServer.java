@@ -0,0 +1,359 @@
+package com.bitheads.braincloud.emulator;
+
+import com.bitheads.braincloud.client.ReasonCodes;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RTT endpoint of the LocalDispatcher, over WebSocket and over TCP with
+ * length prefixed messages, as RTTComms speaks them.
+ *
+ * The connection request of the rest api hands out both endpoints and a
+ * one time secret; the CONNECT message of the socket must present it to be
+ * answered with the connection id and heartbeat. Events are then pushed to
+ * the profile's connections with sendEvent.
+ */
+public class LocalRttServer {
+
+    private static final String SECRET_KEY = "X-RTT-SECRET";
+
+    private final LocalDispatcher _dispatcher;
+    private final Map<String, String> _secrets = new ConcurrentHashMap<>();
+    private final List<Connection> _connections = new CopyOnWriteArrayList<>();
+
+    private volatile int _heartbeatSeconds = 30;
+
+    private WsServer _wsServer;
+    private ServerSocket _tcpServer;
+    private Thread _acceptThread;
+
+    private final AtomicLong _heartbeatCount = new AtomicLong();
+    private final AtomicLong _eventCount = new AtomicLong();
+
+    /**
+     * One client socket, WebSocket or TCP.
+     */
+    private abstract class Connection {
+        volatile String _profileId;
+        volatile String _connectionId;
+
+        abstract void send(String message) throws IOException;
+
+        abstract void close();
+
+        void onMessage(String message) {
+            try {
+                JSONObject json = new JSONObject(message);
+                if (!json.optString("service").equals("rtt")) {
+                    return;
+                }
+                String operation = json.optString("operation");
+                if (operation.equals("CONNECT")) {
+                    onConnect(this, json.optJSONObject("data"));
+                } else if (operation.equals("HEARTBEAT")) {
+                    _heartbeatCount.incrementAndGet();
+                }
+            } catch (JSONException | IOException e) {
+                close();
+            }
+        }
+    }
+
+    private class WsServer extends WebSocketServer {
+        final CountDownLatch _started = new CountDownLatch(1);
+
+        WsServer() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        @Override
+        public void onStart() {
+            _started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket socket, ClientHandshake handshake) {
+            final WebSocket capture = socket;
+            Connection connection = new Connection() {
+                @Override
+                void send(String message) {
+                    capture.send(message);
+                }
+
+                @Override
+                void close() {
+                    capture.close();
+                }
+            };
+            socket.setAttachment(connection);
+            _connections.add(connection);
+        }
+
+        @Override
+        public void onClose(WebSocket socket, int code, String reason, boolean remote) {
+            Connection connection = socket.getAttachment();
+            _connections.remove(connection);
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, String message) {
+            Connection connection = socket.getAttachment();
+            if (connection != null) {
+                connection.onMessage(message);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket socket, Exception e) {
+            if (socket == null) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class TcpConnection extends Connection implements Runnable {
+        private final Socket _socket;
+        private final DataOutputStream _out;
+
+        TcpConnection(Socket socket) throws IOException {
+            _socket = socket;
+            _socket.setTcpNoDelay(true);
+            _out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        void send(String message) throws IOException {
+            byte[] bytes = message.getBytes(LocalDispatcher.UTF_8);
+            synchronized (_out) {
+                _out.writeInt(bytes.length);
+                _out.write(bytes);
+                _out.flush();
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(_socket.getInputStream());
+                for (;;) {
+                    int length = in.readInt();
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    onMessage(new String(bytes, LocalDispatcher.UTF_8));
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                _connections.remove(this);
+                close();
+            }
+        }
+    }
+
+    LocalRttServer(LocalDispatcher dispatcher) {
+        _dispatcher = dispatcher;
+    }
+
+    void start() throws IOException {
+        _wsServer = new WsServer();
+        _wsServer.setReuseAddr(true);
+        _wsServer.start();
+        try {
+            if (!_wsServer._started.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("RTT WebSocket server did not start");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while starting the RTT WebSocket server");
+        }
+
+        _tcpServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        _acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!_tcpServer.isClosed()) {
+                    try {
+                        TcpConnection connection = new TcpConnection(_tcpServer.accept());
+                        _connections.add(connection);
+                        Thread thread = new Thread(connection, "LocalRttServer-tcp");
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        // closed by stop
+                    }
+                }
+            }
+        }, "LocalRttServer-accept");
+        _acceptThread.setDaemon(true);
+        _acceptThread.start();
+    }
+
+    void stop() {
+        for (Connection connection : _connections) {
+            connection.close();
+        }
+        _connections.clear();
+        try {
+            _wsServer.stop(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            _tcpServer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setHeartbeatSeconds(int heartbeatSeconds) {
+        _heartbeatSeconds = heartbeatSeconds;
+    }
+
+    public long getHeartbeatCount() {
+        return _heartbeatCount.get();
+    }
+
+    public long getEventCount() {
+        return _eventCount.get();
+    }
+
+    /**
+     * @return The number of connections that completed the CONNECT handshake
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (Connection connection : _connections) {
+            if (connection._connectionId != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pushes an event to every connection of the profile, as the server
+     * does for chat, lobby or messaging events.
+     *
+     * @return The number of connections it was sent to
+     */
+    public int sendEvent(String profileId, String service, String operation, JSONObject data) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("service", service);
+        event.put("operation", operation);
+        event.put("data", data);
+        String message = event.toString();
+
+        int sent = 0;
+        for (Connection connection : _connections) {
+            if (connection._connectionId != null && profileId.equals(connection._profileId)) {
+                try {
+                    connection.send(message);
+                    sent++;
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+        _eventCount.addAndGet(sent);
+        return sent;
+    }
+
+    /**
+     * Closes the connections of the profile, as when its session ends.
+     */
+    public void disconnect(String profileId) {
+        List<Connection> closed = new ArrayList<>();
+        for (Connection connection : _connections) {
+            if (profileId.equals(connection._profileId)) {
+                closed.add(connection);
+            }
+        }
+        for (Connection connection : closed) {
+            connection.close();
+            _connections.remove(connection);
+        }
+    }
+
+    JSONObject createConnectionInfo(Session session) throws JSONException {
+        String secret = UUID.randomUUID().toString();
+        _secrets.put(session.getProfileId(), secret);
+
+        JSONArray endpoints = new JSONArray();
+        endpoints.put(new JSONObject()
+                .put("protocol", "ws")
+                .put("host", "127.0.0.1")
+                .put("port", _wsServer.getPort())
+                .put("ssl", false));
+        endpoints.put(new JSONObject()
+                .put("protocol", "tcp")
+                .put("host", "127.0.0.1")
+                .put("port", _tcpServer.getLocalPort())
+                .put("ssl", false));
+
+        JSONObject result = new JSONObject();
+        result.put("endpoints", endpoints);
+        result.put("auth", new JSONObject().put(SECRET_KEY, secret));
+        return result;
+    }
+
+    private void onConnect(Connection connection, JSONObject data) throws JSONException, IOException {
+        String profileId = data != null ? data.optString("profileId") : "";
+        JSONObject auth = data != null ? data.optJSONObject("auth") : null;
+        String secret = auth != null ? auth.optString(SECRET_KEY) : "";
+        Session session = _dispatcher.getSession(data != null ? data.optString("sessionId") : null);
+
+        if (session == null || !session.getProfileId().equals(profileId) || !secret.equals(_secrets.get(profileId))) {
+            JSONObject disconnect = new JSONObject();
+            disconnect.put("service", "rtt");
+            disconnect.put("operation", "DISCONNECT");
+            disconnect.put("data", new JSONObject()
+                    .put("reason", "Invalid rtt connection request")
+                    .put("reasonCode", String.valueOf(ReasonCodes.BAD_SIGNATURE)));
+            connection.send(disconnect.toString());
+            connection.close();
+            return;
+        }
+
+        connection._profileId = profileId;
+        connection._connectionId = UUID.randomUUID().toString();
+
+        JSONObject connected = new JSONObject();
+        connected.put("service", "rtt");
+        connected.put("operation", "CONNECT");
+        connected.put("data", new JSONObject()
+                .put("heartbeatSeconds", _heartbeatSeconds)
+                .put("cxId", connection._connectionId));
+        connection.send(connected.toString());
+    }
+}
@@ -0,0 +1,25 @@
+package com.bitheads.braincloud.emulator;
+
+/**
+ * Thrown by an IOperationHandler to answer its message with an error
+ * instead of data.
+ */
+public class OperationException extends Exception {
+
+    private final int _statusCode;
+    private final int _reasonCode;
+
+    public OperationException(int statusCode, int reasonCode, String statusMessage) {
+        super(statusMessage);
+        _statusCode = statusCode;
+        _reasonCode = reasonCode;
+    }
+
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    public int getReasonCode() {
+        return _reasonCode;
+    }
+}
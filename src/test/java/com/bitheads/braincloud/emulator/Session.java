@@ -0,0 +1,71 @@
+package com.bitheads.braincloud.emulator;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A session of the LocalDispatcher, created by a successful authenticate
+ * and ended by a logout or by expiring.
+ *
+ * The dispatcher keeps the responses of the latest packets of the session,
+ * so the resend of a packet is answered with its response instead of being
+ * run twice.
+ */
+public class Session {
+
+    private static final int MAX_CACHED_RESPONSES = 32;
+
+    private final String _sessionId;
+    private final String _profileId;
+    private final String _appId;
+
+    private volatile long _lastActivity;
+
+    // responses of the latest packets by packet id, guarded by the session.
+    // Several are kept since pipelined bundles may arrive out of order.
+    final Map<Long, byte[]> _responses = new LinkedHashMap<Long, byte[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_RESPONSES;
+        }
+    };
+    // packets being run, so a resend waits for the first attempt's response
+    final Set<Long> _packetsInProgress = new HashSet<>();
+
+    Session(String sessionId, String profileId, String appId, long now) {
+        _sessionId = sessionId;
+        _profileId = profileId;
+        _appId = appId;
+        _lastActivity = now;
+    }
+
+    public String getSessionId() {
+        return _sessionId;
+    }
+
+    public String getProfileId() {
+        return _profileId;
+    }
+
+    public String getAppId() {
+        return _appId;
+    }
+
+    public long getLastActivity() {
+        return _lastActivity;
+    }
+
+    void touch(long now) {
+        _lastActivity = now;
+    }
+
+    /**
+     * Makes the session expire on its next request, as if it had been idle
+     * for longer than the session timeout.
+     */
+    public void expire() {
+        _lastActivity = 0;
+    }
+}
@@ -0,0 +1,476 @@
+package com.bitheads.braincloud.loadgen;
+
+import com.bitheads.braincloud.client.BrainCloudWrapper;
+import com.bitheads.braincloud.comms.MetricsRegistry;
+import com.bitheads.braincloud.comms.MetricsTextExporter;
+import com.bitheads.braincloud.comms.SharedDispatcher;
+import com.bitheads.braincloud.emulator.LocalDispatcher;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many wrapper sessions from one JVM to find where it saturates and
+ * what each session costs.
+ *
+ * Sessions arrive at a fixed rate and each runs the Scenario, for a number
+ * of iterations or until the duration has passed. A small pool of pump
+ * threads runs the callbacks of every session, as game loops would, so the
+ * threads counted in the report are those of the SDK itself.
+ *
+ * Without a server url the sessions run against a LocalDispatcher started
+ * for the run. From the command line, after mvn test-compile:
+ *
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.bitheads.braincloud.loadgen.LoadGenerator \
+ *     -Dexec.args="--sessions=500 --rate=50 --duration=60"
+ * </pre>
+ *
+ * Options are --sessions, --rate (sessions per second, 0 for all at once),
+ * --iterations, --duration (seconds, overrides iterations), --scenario,
+ * --url, --appId, --secret, --pumpThreads, --pumpInterval (ms), --roomSize
+ * (sessions per chat channel), --tcp (RTT over TCP rather than WebSocket),
+ * --shared (threads of a SharedDispatcher for all sessions, rather than a
+ * thread per session) and --serverLatency (min:max ms, for the local
+ * dispatcher).
+ */
+public class LoadGenerator {
+
+    private static final String LOCAL_APP_ID = "10001";
+    private static final String LOCAL_SECRET = "loadgen-secret";
+
+    private int _sessionCount = 10;
+    private double _arrivalRate = 10;
+    private int _iterations = 10;
+    private int _durationSeconds = 0;
+    private int _timeoutSeconds = 600;
+    private Scenario _scenario = Scenario.parse(Scenario.DEFAULT_SCRIPT);
+
+    private String _serverUrl = null;
+    private String _appId = LOCAL_APP_ID;
+    private String _secretKey = LOCAL_SECRET;
+    private long _localLatencyMin = 0;
+    private long _localLatencyMax = 0;
+
+    private int _pumpThreads = Runtime.getRuntime().availableProcessors();
+    private long _pumpIntervalMillis = 5;
+    private int _sharedDispatcherThreads = 0;
+
+    private String _userPrefix = "loadgen-";
+    private String _userPassword = "loadgen-password";
+    private String _entityType = "loadgen";
+    private String _leaderboardId = "loadgen";
+    private String _chatChannelPrefix = null;
+    private int _chatRoomSize = 10;
+    private boolean _rttWebSocket = true;
+
+    public void setSessionCount(int sessionCount) {
+        _sessionCount = sessionCount;
+    }
+
+    /**
+     * @param arrivalRate New sessions per second, or 0 to start them all at once
+     */
+    public void setArrivalRate(double arrivalRate) {
+        _arrivalRate = arrivalRate;
+    }
+
+    /**
+     * @param iterations Number of times each session runs the loop steps
+     */
+    public void setIterations(int iterations) {
+        _iterations = iterations;
+    }
+
+    public int getIterations() {
+        return _iterations;
+    }
+
+    /**
+     * @param durationSeconds Length of the run, sessions repeating the loop
+     *                        steps until it ends. 0 to run the iterations instead.
+     */
+    public void setDurationSeconds(int durationSeconds) {
+        _durationSeconds = durationSeconds;
+    }
+
+    /**
+     * @param timeoutSeconds Time to wait for the sessions to end before
+     *                       reporting without them
+     */
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        _timeoutSeconds = timeoutSeconds;
+    }
+
+    public void setScenario(Scenario scenario) {
+        _scenario = scenario;
+    }
+
+    public Scenario getScenario() {
+        return _scenario;
+    }
+
+    /**
+     * Runs against a server rather than a LocalDispatcher.
+     */
+    public void setServer(String serverUrl, String appId, String secretKey) {
+        _serverUrl = serverUrl;
+        _appId = appId;
+        _secretKey = secretKey;
+    }
+
+    /**
+     * @param minMillis Least time the local dispatcher takes to answer a bundle
+     * @param maxMillis Most time the local dispatcher takes to answer a bundle
+     */
+    public void setLocalLatency(long minMillis, long maxMillis) {
+        _localLatencyMin = minMillis;
+        _localLatencyMax = maxMillis;
+    }
+
+    public void setPumpThreads(int pumpThreads) {
+        _pumpThreads = pumpThreads;
+    }
+
+    /**
+     * @param pumpIntervalMillis Time between two runCallbacks of a session
+     */
+    public void setPumpIntervalMillis(long pumpIntervalMillis) {
+        _pumpIntervalMillis = pumpIntervalMillis;
+    }
+
+    /**
+     * @param sharedDispatcherThreads Threads of a SharedDispatcher sending
+     *                                for every session, or 0 for each
+     *                                session to send on its own thread
+     */
+    public void setSharedDispatcherThreads(int sharedDispatcherThreads) {
+        _sharedDispatcherThreads = sharedDispatcherThreads;
+    }
+
+    /**
+     * @param userPrefix Prefix of the universal ids, followed by the session number
+     */
+    public void setUser(String userPrefix, String userPassword) {
+        _userPrefix = userPrefix;
+        _userPassword = userPassword;
+    }
+
+    public String getUserPrefix() {
+        return _userPrefix;
+    }
+
+    public String getUserPassword() {
+        return _userPassword;
+    }
+
+    public void setEntityType(String entityType) {
+        _entityType = entityType;
+    }
+
+    public String getEntityType() {
+        return _entityType;
+    }
+
+    public void setLeaderboardId(String leaderboardId) {
+        _leaderboardId = leaderboardId;
+    }
+
+    public String getLeaderboardId() {
+        return _leaderboardId;
+    }
+
+    /**
+     * @param chatChannelPrefix Prefix of the chat channel ids, followed by
+     *                          the room number. Defaults to the global
+     *                          channel "loadgen" of the app.
+     */
+    public void setChatChannelPrefix(String chatChannelPrefix) {
+        _chatChannelPrefix = chatChannelPrefix;
+    }
+
+    public String getChatChannelPrefix() {
+        return _chatChannelPrefix != null ? _chatChannelPrefix : _appId + ":gl:loadgen";
+    }
+
+    /**
+     * @param chatRoomSize Number of sessions sharing a chat channel, each
+     *                     message being pushed to all of them
+     */
+    public void setChatRoomSize(int chatRoomSize) {
+        _chatRoomSize = Math.max(1, chatRoomSize);
+    }
+
+    public int getChatRoomSize() {
+        return _chatRoomSize;
+    }
+
+    public void setRttWebSocket(boolean rttWebSocket) {
+        _rttWebSocket = rttWebSocket;
+    }
+
+    public boolean isRttWebSocket() {
+        return _rttWebSocket;
+    }
+
+    public LoadReport run() throws Exception {
+        final LoadReport report = new LoadReport();
+
+        LocalDispatcher dispatcher = null;
+        String serverUrl = _serverUrl;
+        if (serverUrl == null) {
+            dispatcher = new LocalDispatcher(_appId, _secretKey);
+            dispatcher.enableRtt();
+            dispatcher.setLatency(_localLatencyMin, _localLatencyMax);
+            dispatcher.start();
+            serverUrl = dispatcher.getServerUrl();
+        }
+        final String url = serverUrl;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        long heapBefore = getUsedHeapAfterGc();
+        int threadCountBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        long[] gcBefore = getGcTotals();
+
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final SharedDispatcher sharedDispatcher = _sharedDispatcherThreads > 0 ? new SharedDispatcher(_sharedDispatcherThreads) : null;
+        final List<LoadSession> sessions = new ArrayList<>();
+        final CountDownLatch ended = new CountDownLatch(_sessionCount);
+        final ScheduledThreadPoolExecutor pumps = new ScheduledThreadPoolExecutor(_pumpThreads, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "loadgen-pump-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long start = System.nanoTime();
+        long deadline = _durationSeconds > 0 ? start + _durationSeconds * 1000000000L : 0;
+        try {
+            for (int i = 0; i < _sessionCount; ++i) {
+                long delay = _arrivalRate > 0 ? (long) (i * 1e9 / _arrivalRate) : 0;
+                pumps.schedule(newStarter(i, url, deadline, metrics, sharedDispatcher, report, sessions, ended, pumps),
+                        delay, TimeUnit.NANOSECONDS);
+            }
+            if (!ended.await(_timeoutSeconds, TimeUnit.SECONDS)) {
+                System.err.println("LoadGenerator: " + ended.getCount() + " sessions still running after " + _timeoutSeconds + " s");
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // measured while the sessions and their threads are still alive
+            long[] gcAfter = getGcTotals();
+            addThreadGroups(report, threads);
+            int peakThreadCount = threads.getPeakThreadCount();
+            long heapAfter = getUsedHeapAfterGc();
+            report.setJvm(heapBefore, heapAfter, threadCountBefore, peakThreadCount,
+                    gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+            String target = dispatcher != null ? "local dispatcher " + url : url;
+            if (sharedDispatcher != null) {
+                target += ", shared dispatcher of " + sharedDispatcher.getThreadCount() + " threads";
+            }
+            report.setRun(target, _scenario.getScript(), elapsed);
+            report.setClientMetrics(MetricsTextExporter.export(metrics));
+        } finally {
+            pumps.shutdownNow();
+            pumps.awaitTermination(10, TimeUnit.SECONDS);
+            synchronized (sessions) {
+                for (LoadSession session : sessions) {
+                    session.close();
+                }
+            }
+            if (sharedDispatcher != null) {
+                sharedDispatcher.close();
+            }
+            if (dispatcher != null) {
+                dispatcher.stop();
+            }
+        }
+        return report;
+    }
+
+    private Runnable newStarter(final int number, final String url, final long deadline, final MetricsRegistry metrics,
+            final SharedDispatcher sharedDispatcher, final LoadReport report, final List<LoadSession> sessions, final CountDownLatch ended,
+            final ScheduledThreadPoolExecutor pumps) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                // every session shares the saved ids, universal logins never use them
+                BrainCloudWrapper wrapper = new BrainCloudWrapper("loadgen");
+                if (sharedDispatcher != null) {
+                    wrapper.getClient().setSharedDispatcher(sharedDispatcher);
+                }
+                wrapper.initialize(_appId, _secretKey, "1.0.0", url);
+                wrapper.getClient().setMetricsRecorder(metrics);
+
+                final LoadSession session = new LoadSession(LoadGenerator.this, report, number, wrapper, deadline);
+                synchronized (sessions) {
+                    sessions.add(session);
+                }
+                report.sessionStarted();
+
+                session._future = pumps.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session._future == null || session._future.isCancelled()) {
+                            return;
+                        }
+                        boolean running;
+                        boolean failed;
+                        try {
+                            running = session.pump();
+                            failed = session.isFailed();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            running = false;
+                            failed = true;
+                        }
+                        if (!running) {
+                            session._future.cancel(false);
+                            report.sessionEnded(failed);
+                            ended.countDown();
+                        }
+                    }
+                }, _pumpIntervalMillis, _pumpIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    private static long getUsedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long[] getGcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static void addThreadGroups(LoadReport report, ThreadMXBean threads) {
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+
+        Map<String, LoadReport.ThreadGroupStats> groups = new LinkedHashMap<>();
+        for (long id : threads.getAllThreadIds()) {
+            ThreadInfo info = threads.getThreadInfo(id);
+            if (info == null) {
+                continue;
+            }
+            String name = info.getThreadName().replaceAll("[-#_ ]*\\d+$", "");
+            LoadReport.ThreadGroupStats group = groups.get(name);
+            if (group == null) {
+                group = new LoadReport.ThreadGroupStats(name);
+                groups.put(name, group);
+            }
+            group._threads++;
+            group._cpuNanos += Math.max(0, threads.getThreadCpuTime(id));
+            if (allocation != null) {
+                group._allocatedBytes += Math.max(0, allocation.getThreadAllocatedBytes(id));
+            }
+            group._blockedCount += info.getBlockedCount();
+            group._blockedMillis += Math.max(0, info.getBlockedTime());
+        }
+        for (LoadReport.ThreadGroupStats group : groups.values()) {
+            report.addThreadGroup(group);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String url = null;
+        String appId = null;
+        String secret = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            String name = equals >= 0 ? arg.substring(2, equals) : arg.substring(2);
+            String value = equals >= 0 ? arg.substring(equals + 1) : "";
+            switch (name) {
+                case "sessions":
+                    generator.setSessionCount(Integer.parseInt(value));
+                    break;
+                case "rate":
+                    generator.setArrivalRate(Double.parseDouble(value));
+                    break;
+                case "iterations":
+                    generator.setIterations(Integer.parseInt(value));
+                    break;
+                case "duration":
+                    generator.setDurationSeconds(Integer.parseInt(value));
+                    break;
+                case "timeout":
+                    generator.setTimeoutSeconds(Integer.parseInt(value));
+                    break;
+                case "scenario":
+                    generator.setScenario(Scenario.parse(value));
+                    break;
+                case "url":
+                    url = value;
+                    break;
+                case "appId":
+                    appId = value;
+                    break;
+                case "secret":
+                    secret = value;
+                    break;
+                case "pumpThreads":
+                    generator.setPumpThreads(Integer.parseInt(value));
+                    break;
+                case "pumpInterval":
+                    generator.setPumpIntervalMillis(Long.parseLong(value));
+                    break;
+                case "roomSize":
+                    generator.setChatRoomSize(Integer.parseInt(value));
+                    break;
+                case "shared":
+                    generator.setSharedDispatcherThreads(Integer.parseInt(value));
+                    break;
+                case "tcp":
+                    generator.setRttWebSocket(false);
+                    break;
+                case "serverLatency":
+                    String[] range = value.split(":");
+                    generator.setLocalLatency(Long.parseLong(range[0]), Long.parseLong(range[range.length - 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (url != null) {
+            if (appId == null || secret == null) {
+                throw new IllegalArgumentException("--url needs --appId and --secret");
+            }
+            generator.setServer(url, appId, secret);
+        }
+
+        generator.run().print(System.out);
+    }
+}
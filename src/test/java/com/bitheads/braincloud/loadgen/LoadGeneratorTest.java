@@ -0,0 +1,60 @@
+package com.bitheads.braincloud.loadgen;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Short runs of the LoadGenerator against its local dispatcher.
+ */
+public class LoadGeneratorTest
+{
+    @Test
+    public void testParseScenario()
+    {
+        Scenario scenario = Scenario.parse("authenticate, rtt | entityCrud, leaderboard*2, think:50");
+        Assert.assertEquals(3, scenario.getSetupSteps().size());
+        Assert.assertEquals(7, scenario.getLoopSteps().size());
+        Assert.assertEquals(Scenario.StepType.THINK, scenario.getLoopSteps().get(6).getType());
+        Assert.assertEquals(50, scenario.getLoopSteps().get(6).getThinkMillis());
+
+        Assert.assertEquals(0, Scenario.parse("authenticate, readState").getSetupSteps().size());
+
+        try {
+            Scenario.parse("authenticate | chat");
+            Assert.fail("chat without rtt");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Scenario.parse("authenticate | jump");
+            Assert.fail("unknown step");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRun() throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        generator.setSessionCount(8);
+        generator.setArrivalRate(200);
+        generator.setIterations(2);
+        generator.setChatRoomSize(4);
+        generator.setScenario(Scenario.parse("authenticate, rtt | entityCrud, leaderboard, chat, think:10"));
+
+        LoadReport report = generator.run();
+        System.out.println(report);
+
+        Assert.assertEquals(8, report.getSessionsCompleted());
+        Assert.assertEquals(0, report.getErrorCount());
+        Assert.assertEquals(8, report.getStepCount("authenticate"));
+        Assert.assertEquals(8, report.getStepCount("rttConnect"));
+        Assert.assertEquals(16, report.getStepCount("entityDelete"));
+        Assert.assertEquals(16, report.getStepCount("leaderboard"));
+        Assert.assertEquals(16, report.getStepCount("chat"));
+        Assert.assertTrue(report.getThroughput() > 0);
+        Assert.assertTrue(report.getBytesPerSession() >= 0);
+        Assert.assertFalse(report.getThreadGroups().isEmpty());
+    }
+}
@@ -0,0 +1,301 @@
+package com.bitheads.braincloud.loadgen;
+
+import com.bitheads.braincloud.comms.Histogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of a LoadGenerator run: latency and errors of each scenario step,
+ * throughput, and what the sessions cost the JVM in memory, threads, GC and
+ * lock contention.
+ *
+ * Step latencies are in microseconds, from the call to its callback, and so
+ * include the wait for the next pump of the session.
+ */
+public class LoadReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Map<String, Histogram> _stepLatency = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> _stepErrors = new ConcurrentHashMap<>();
+    private final Histogram _chatDelivery = new Histogram();
+    private final AtomicLong _chatReceived = new AtomicLong();
+
+    private final AtomicLong _sessionsStarted = new AtomicLong();
+    private final AtomicLong _sessionsCompleted = new AtomicLong();
+    private final AtomicLong _sessionsFailed = new AtomicLong();
+
+    private String _target = "";
+    private String _scenario = "";
+    private long _elapsedNanos;
+
+    private long _heapBefore;
+    private long _heapAfter;
+    private int _peakThreadCount;
+    private int _threadCountBefore;
+    private long _gcCount;
+    private long _gcMillis;
+    private final List<ThreadGroupStats> _threadGroups = new ArrayList<>();
+    private String _clientMetrics = "";
+
+    /**
+     * CPU, allocation and lock contention of the live threads sharing a
+     * name once their numbers are stripped.
+     */
+    public static class ThreadGroupStats {
+        final String _name;
+        int _threads;
+        long _cpuNanos;
+        long _allocatedBytes;
+        long _blockedCount;
+        long _blockedMillis;
+
+        ThreadGroupStats(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public int getThreadCount() {
+            return _threads;
+        }
+
+        public long getCpuNanos() {
+            return _cpuNanos;
+        }
+
+        public long getAllocatedBytes() {
+            return _allocatedBytes;
+        }
+
+        public long getBlockedCount() {
+            return _blockedCount;
+        }
+
+        public long getBlockedMillis() {
+            return _blockedMillis;
+        }
+    }
+
+    void recordStep(String step, long latencyMicros, boolean success) {
+        Histogram histogram = _stepLatency.get(step);
+        if (histogram == null) {
+            _stepLatency.putIfAbsent(step, new Histogram());
+            histogram = _stepLatency.get(step);
+        }
+        histogram.record(latencyMicros);
+        if (!success) {
+            AtomicLong errors = _stepErrors.get(step);
+            if (errors == null) {
+                _stepErrors.putIfAbsent(step, new AtomicLong());
+                errors = _stepErrors.get(step);
+            }
+            errors.incrementAndGet();
+        }
+    }
+
+    void recordChatDelivery(long latencyMicros) {
+        _chatDelivery.record(latencyMicros);
+    }
+
+    void recordChatReceived() {
+        _chatReceived.incrementAndGet();
+    }
+
+    void sessionStarted() {
+        _sessionsStarted.incrementAndGet();
+    }
+
+    void sessionEnded(boolean failed) {
+        if (failed) {
+            _sessionsFailed.incrementAndGet();
+        } else {
+            _sessionsCompleted.incrementAndGet();
+        }
+    }
+
+    void setRun(String target, String scenario, long elapsedNanos) {
+        _target = target;
+        _scenario = scenario;
+        _elapsedNanos = elapsedNanos;
+    }
+
+    void setJvm(long heapBefore, long heapAfter, int threadCountBefore, int peakThreadCount, long gcCount, long gcMillis) {
+        _heapBefore = heapBefore;
+        _heapAfter = heapAfter;
+        _threadCountBefore = threadCountBefore;
+        _peakThreadCount = peakThreadCount;
+        _gcCount = gcCount;
+        _gcMillis = gcMillis;
+    }
+
+    void addThreadGroup(ThreadGroupStats stats) {
+        _threadGroups.add(stats);
+    }
+
+    void setClientMetrics(String clientMetrics) {
+        _clientMetrics = clientMetrics;
+    }
+
+    /**
+     * @return The latency histogram of the step, or null if it never ran
+     */
+    public Histogram getStepLatency(String step) {
+        return _stepLatency.get(step);
+    }
+
+    public long getStepCount(String step) {
+        Histogram histogram = _stepLatency.get(step);
+        return histogram != null ? histogram.getCount() : 0;
+    }
+
+    public long getStepErrors(String step) {
+        AtomicLong errors = _stepErrors.get(step);
+        return errors != null ? errors.get() : 0;
+    }
+
+    public long getCallCount() {
+        long count = 0;
+        for (Histogram histogram : _stepLatency.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    public long getErrorCount() {
+        long count = 0;
+        for (AtomicLong errors : _stepErrors.values()) {
+            count += errors.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return Completed calls per second over the run
+     */
+    public double getThroughput() {
+        return _elapsedNanos > 0 ? getCallCount() * 1e9 / _elapsedNanos : 0;
+    }
+
+    public Histogram getChatDelivery() {
+        return _chatDelivery;
+    }
+
+    public long getChatReceived() {
+        return _chatReceived.get();
+    }
+
+    public long getSessionsStarted() {
+        return _sessionsStarted.get();
+    }
+
+    public long getSessionsCompleted() {
+        return _sessionsCompleted.get();
+    }
+
+    public long getSessionsFailed() {
+        return _sessionsFailed.get();
+    }
+
+    public long getElapsedMillis() {
+        return _elapsedNanos / 1000000;
+    }
+
+    /**
+     * @return Heap still used by the sessions after a GC, divided among them
+     */
+    public long getBytesPerSession() {
+        long sessions = _sessionsStarted.get();
+        return sessions > 0 ? Math.max(0, _heapAfter - _heapBefore) / sessions : 0;
+    }
+
+    public int getPeakThreadCount() {
+        return _peakThreadCount;
+    }
+
+    public long getGcCount() {
+        return _gcCount;
+    }
+
+    public long getGcMillis() {
+        return _gcMillis;
+    }
+
+    public List<ThreadGroupStats> getThreadGroups() {
+        return Collections.unmodifiableList(_threadGroups);
+    }
+
+    public void print(Appendable out) throws IOException {
+        out.append("target      ").append(_target).append('\n');
+        out.append("scenario    ").append(_scenario).append('\n');
+        out.append(String.format(Locale.ROOT, "sessions    %d started, %d completed, %d failed%n",
+                _sessionsStarted.get(), _sessionsCompleted.get(), _sessionsFailed.get()));
+        out.append(String.format(Locale.ROOT, "elapsed     %.1f s%n", _elapsedNanos / 1e9));
+        out.append(String.format(Locale.ROOT, "throughput  %.1f calls/s, %d calls, %d errors%n",
+                getThroughput(), getCallCount(), getErrorCount()));
+
+        out.append(String.format(Locale.ROOT, "%n%-14s %8s %7s %9s %9s %9s %9s %9s%n",
+                "step (us)", "count", "errors", "p50", "p90", "p99", "p99.9", "max"));
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(_stepLatency).entrySet()) {
+            printHistogram(out, entry.getKey(), entry.getValue(), getStepErrors(entry.getKey()));
+        }
+        if (_chatDelivery.getCount() > 0) {
+            printHistogram(out, "chat delivery", _chatDelivery, 0);
+            out.append(String.format(Locale.ROOT, "chat messages received %d%n", _chatReceived.get()));
+        }
+
+        out.append(String.format(Locale.ROOT, "%nheap        %d KB per session (%d KB before, %d KB after, live after GC)%n",
+                getBytesPerSession() / 1024, _heapBefore / 1024, _heapAfter / 1024));
+        out.append(String.format(Locale.ROOT, "threads     %d peak, %d before the run%n", _peakThreadCount, _threadCountBefore));
+        out.append(String.format(Locale.ROOT, "gc          %d collections, %d ms%n", _gcCount, _gcMillis));
+
+        List<ThreadGroupStats> groups = new ArrayList<>(_threadGroups);
+        Collections.sort(groups, new Comparator<ThreadGroupStats>() {
+            @Override
+            public int compare(ThreadGroupStats a, ThreadGroupStats b) {
+                return Long.compare(b._cpuNanos, a._cpuNanos);
+            }
+        });
+        out.append(String.format(Locale.ROOT, "%n%-32s %7s %9s %11s %9s %10s%n",
+                "live threads", "count", "cpu ms", "alloc KB", "blocked", "blocked ms"));
+        for (ThreadGroupStats group : groups) {
+            out.append(String.format(Locale.ROOT, "%-32s %7d %9d %11d %9d %10d%n",
+                    group._name.length() > 32 ? group._name.substring(0, 32) : group._name, group._threads,
+                    group._cpuNanos / 1000000, group._allocatedBytes / 1024, group._blockedCount, group._blockedMillis));
+        }
+
+        if (!_clientMetrics.isEmpty()) {
+            out.append("\n").append(_clientMetrics);
+        }
+    }
+
+    private static void printHistogram(Appendable out, String name, Histogram histogram, long errors) throws IOException {
+        out.append(String.format(Locale.ROOT, "%-14s %8d %7d", name, histogram.getCount(), errors));
+        for (double percentile : PERCENTILES) {
+            out.append(String.format(Locale.ROOT, " %9d", histogram.getValueAtPercentile(percentile)));
+        }
+        out.append(String.format(Locale.ROOT, " %9d%n", histogram.getMax()));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            print(builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,265 @@
+package com.bitheads.braincloud.loadgen;
+
+import com.bitheads.braincloud.client.BrainCloudWrapper;
+import com.bitheads.braincloud.client.IRTTCallback;
+import com.bitheads.braincloud.client.IRTTConnectCallback;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * One simulated user of the LoadGenerator: a wrapper running the scenario
+ * one step at a time.
+ *
+ * A session is only touched by the pump thread running it, as a game loop
+ * would: pump runs the callbacks of the client, which complete the pending
+ * step, then issues the next step once its think time has passed.
+ */
+class LoadSession implements IServerCallback, IRTTConnectCallback, IRTTCallback {
+
+    private final LoadGenerator _generator;
+    private final LoadReport _report;
+    private final int _number;
+    private final BrainCloudWrapper _wrapper;
+    private final List<Scenario.Step> _setup;
+    private final List<Scenario.Step> _loop;
+    private final String _channelId;
+    private final long _deadlineNanos;
+    private final Random _random;
+
+    private int _setupIndex;
+    private int _loopIndex;
+    private int _iteration;
+    private long _nextStepAt;
+
+    private Scenario.StepType _pending;
+    private long _issuedAt;
+
+    private String _entityId;
+    private int _entityVersion;
+    private int _chatSequence;
+    // send time of the chat messages of this session by text
+    private final Map<String, Long> _chatSent = new HashMap<>();
+
+    private boolean _done;
+    private boolean _failed;
+    volatile ScheduledFuture<?> _future;
+
+    LoadSession(LoadGenerator generator, LoadReport report, int number, BrainCloudWrapper wrapper, long deadlineNanos) {
+        _generator = generator;
+        _report = report;
+        _number = number;
+        _wrapper = wrapper;
+        _setup = generator.getScenario().getSetupSteps();
+        _loop = generator.getScenario().getLoopSteps();
+        _channelId = generator.getChatChannelPrefix() + (number / generator.getChatRoomSize());
+        _deadlineNanos = deadlineNanos;
+        _random = new Random(number);
+    }
+
+    BrainCloudWrapper getWrapper() {
+        return _wrapper;
+    }
+
+    boolean isFailed() {
+        return _failed;
+    }
+
+    /**
+     * Runs the callbacks of the session and issues its next step when due.
+     *
+     * @return false once the session ran its last step
+     */
+    boolean pump() {
+        _wrapper.getClient().runCallbacks();
+        if (_done) {
+            return false;
+        }
+        if (_pending != null) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (now - _nextStepAt < 0) {
+            return true;
+        }
+
+        Scenario.Step step = nextStep(now);
+        if (step == null) {
+            _done = true;
+            return false;
+        }
+        if (step.getType() == Scenario.StepType.THINK) {
+            _nextStepAt = now + step.getThinkMillis() * 1000000;
+            return true;
+        }
+        issue(step.getType(), now);
+        return true;
+    }
+
+    /**
+     * Ends the session and releases the threads and connections of its client.
+     */
+    void close() {
+        _wrapper.getClient().close();
+    }
+
+    private Scenario.Step nextStep(long now) {
+        if (_setupIndex < _setup.size()) {
+            return _setup.get(_setupIndex++);
+        }
+        if (_loop.isEmpty()) {
+            return null;
+        }
+        if (_loopIndex == _loop.size()) {
+            _loopIndex = 0;
+            ++_iteration;
+        }
+        if (_deadlineNanos != 0) {
+            if (now - _deadlineNanos >= 0) {
+                return null;
+            }
+        } else if (_iteration >= _generator.getIterations()) {
+            return null;
+        }
+        return _loop.get(_loopIndex++);
+    }
+
+    private void issue(Scenario.StepType type, long now) {
+        if (_entityId == null && (type == Scenario.StepType.ENTITY_READ
+                || type == Scenario.StepType.ENTITY_UPDATE || type == Scenario.StepType.ENTITY_DELETE)) {
+            // nothing to read, update or delete yet
+            type = Scenario.StepType.ENTITY_CREATE;
+        }
+
+        _pending = type;
+        _issuedAt = now;
+        switch (type) {
+            case AUTHENTICATE:
+                _wrapper.authenticateUniversal(_generator.getUserPrefix() + _number, _generator.getUserPassword(), true, this);
+                break;
+            case READ_STATE:
+                _wrapper.getPlayerStateService().readUserState(this);
+                break;
+            case ENTITY_CREATE:
+                _wrapper.getGlobalEntityService().createEntity(_generator.getEntityType(), -1, null,
+                        "{\"session\":" + _number + ",\"level\":" + _random.nextInt(100) + "}", this);
+                break;
+            case ENTITY_READ:
+                _wrapper.getGlobalEntityService().readEntity(_entityId, this);
+                break;
+            case ENTITY_UPDATE:
+                _wrapper.getGlobalEntityService().updateEntity(_entityId, _entityVersion,
+                        "{\"session\":" + _number + ",\"level\":" + _random.nextInt(100) + "}", this);
+                break;
+            case ENTITY_DELETE:
+                _wrapper.getGlobalEntityService().deleteEntity(_entityId, _entityVersion, this);
+                break;
+            case LEADERBOARD:
+                _wrapper.getLeaderboardService().postScoreToLeaderboard(_generator.getLeaderboardId(),
+                        _random.nextInt(1000000), null, this);
+                break;
+            case RTT_CONNECT:
+                _wrapper.getRTTService().registerRTTChatCallback(this);
+                _wrapper.getRTTService().enableRTT(this, _generator.isRttWebSocket());
+                break;
+            case CHAT_CONNECT:
+                _wrapper.getChatService().channelConnect(_channelId, 0, this);
+                break;
+            case CHAT:
+                String text = "loadgen " + _number + " " + (++_chatSequence);
+                _chatSent.put(text, now);
+                _wrapper.getChatService().postChatMessageSimple(_channelId, text, false, this);
+                break;
+            default:
+                _pending = null;
+                break;
+        }
+    }
+
+    private void complete(boolean success) {
+        Scenario.StepType type = _pending;
+        _pending = null;
+        _report.recordStep(type.getName(), (System.nanoTime() - _issuedAt) / 1000, success);
+        if (!success && type == Scenario.StepType.AUTHENTICATE) {
+            // nothing else can run without a session
+            _failed = true;
+            _done = true;
+        }
+    }
+
+    @Override
+    public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData) {
+        if (_pending == null) {
+            return;
+        }
+        JSONObject data = jsonData.optJSONObject("data");
+        switch (_pending) {
+            case ENTITY_CREATE:
+                if (data != null) {
+                    _entityId = data.optString("entityId", null);
+                    _entityVersion = data.optInt("version", 0);
+                }
+                break;
+            case ENTITY_UPDATE:
+                _entityVersion = data != null ? data.optInt("version", _entityVersion + 1) : _entityVersion + 1;
+                break;
+            case ENTITY_DELETE:
+                _entityId = null;
+                break;
+            default:
+                break;
+        }
+        complete(true);
+    }
+
+    @Override
+    public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+        if (_pending == null) {
+            return;
+        }
+        if (_pending == Scenario.StepType.ENTITY_UPDATE || _pending == Scenario.StepType.ENTITY_DELETE) {
+            // start over with a new entity rather than failing on every later step
+            _entityId = null;
+        }
+        complete(false);
+    }
+
+    @Override
+    public void rttConnectSuccess() {
+        if (_pending == Scenario.StepType.RTT_CONNECT) {
+            complete(true);
+        }
+    }
+
+    @Override
+    public void rttConnectFailure(String errorMessage) {
+        if (_pending == Scenario.StepType.RTT_CONNECT) {
+            complete(false);
+        }
+    }
+
+    @Override
+    public void rttCallback(JSONObject eventJson) {
+        if (!"INCOMING".equals(eventJson.optString("operation"))) {
+            return;
+        }
+        _report.recordChatReceived();
+        JSONObject data = eventJson.optJSONObject("data");
+        JSONObject content = data != null ? data.optJSONObject("content") : null;
+        if (content != null) {
+            Long sentAt = _chatSent.remove(content.optString("text"));
+            if (sentAt != null) {
+                _report.recordChatDelivery((System.nanoTime() - sentAt) / 1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.bitheads.braincloud.loadgen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The script each session of the LoadGenerator runs: setup steps run once,
+ * then the loop steps run for every iteration.
+ *
+ * A script is a comma separated list of steps, with a '|' between the setup
+ * and the loop steps, such as
+ *
+ * <pre>
+ * authenticate, rtt | entityCrud, leaderboard*2, chat, think:100
+ * </pre>
+ *
+ * Steps are authenticate, readState, entityCreate, entityRead, entityUpdate,
+ * entityDelete, entityCrud (create, read, update then delete), leaderboard,
+ * rtt (enable RTT and connect to the chat channel), chat and think:millis.
+ * A step followed by *n is repeated n times. Without a '|' every step is a
+ * loop step.
+ */
+public class Scenario {
+
+    public static final String DEFAULT_SCRIPT = "authenticate, rtt | entityCrud, leaderboard, chat, think:100";
+
+    public enum StepType {
+        AUTHENTICATE("authenticate"),
+        READ_STATE("readState"),
+        ENTITY_CREATE("entityCreate"),
+        ENTITY_READ("entityRead"),
+        ENTITY_UPDATE("entityUpdate"),
+        ENTITY_DELETE("entityDelete"),
+        LEADERBOARD("leaderboard"),
+        RTT_CONNECT("rttConnect"),
+        CHAT_CONNECT("chatConnect"),
+        CHAT("chat"),
+        THINK("think");
+
+        private final String _name;
+
+        StepType(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+    }
+
+    public static class Step {
+        private final StepType _type;
+        private final long _thinkMillis;
+
+        Step(StepType type, long thinkMillis) {
+            _type = type;
+            _thinkMillis = thinkMillis;
+        }
+
+        public StepType getType() {
+            return _type;
+        }
+
+        public long getThinkMillis() {
+            return _thinkMillis;
+        }
+
+        @Override
+        public String toString() {
+            return _type == StepType.THINK ? "think:" + _thinkMillis : _type.getName();
+        }
+    }
+
+    private final String _script;
+    private final List<Step> _setup;
+    private final List<Step> _loop;
+
+    private Scenario(String script, List<Step> setup, List<Step> loop) {
+        _script = script;
+        _setup = Collections.unmodifiableList(setup);
+        _loop = Collections.unmodifiableList(loop);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the script has an unknown step,
+     *      or chat steps without the rtt step before them
+     */
+    public static Scenario parse(String script) {
+        String setupScript = "";
+        String loopScript = script;
+        int separator = script.indexOf('|');
+        if (separator >= 0) {
+            setupScript = script.substring(0, separator);
+            loopScript = script.substring(separator + 1);
+            if (loopScript.indexOf('|') >= 0) {
+                throw new IllegalArgumentException("More than one '|' in scenario: " + script);
+            }
+        }
+
+        List<Step> setup = parseSteps(setupScript);
+        List<Step> loop = parseSteps(loopScript);
+
+        boolean rtt = false;
+        List<Step> all = new ArrayList<>(setup);
+        all.addAll(loop);
+        for (Step step : all) {
+            if (step.getType() == StepType.CHAT_CONNECT) {
+                rtt = true;
+            } else if (step.getType() == StepType.CHAT && !rtt) {
+                throw new IllegalArgumentException("The chat step needs the rtt step before it: " + script);
+            }
+        }
+        return new Scenario(script.trim(), setup, loop);
+    }
+
+    public String getScript() {
+        return _script;
+    }
+
+    public List<Step> getSetupSteps() {
+        return _setup;
+    }
+
+    public List<Step> getLoopSteps() {
+        return _loop;
+    }
+
+    private static List<Step> parseSteps(String script) {
+        List<Step> steps = new ArrayList<>();
+        for (String token : script.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+
+            int repeat = 1;
+            int star = token.indexOf('*');
+            if (star >= 0) {
+                repeat = parsePositive(token.substring(star + 1).trim(), token);
+                token = token.substring(0, star).trim();
+            }
+
+            List<Step> expanded = new ArrayList<>();
+            if (token.startsWith("think:")) {
+                expanded.add(new Step(StepType.THINK, parsePositive(token.substring(6).trim(), token)));
+            } else if (token.equals("entityCrud")) {
+                expanded.add(new Step(StepType.ENTITY_CREATE, 0));
+                expanded.add(new Step(StepType.ENTITY_READ, 0));
+                expanded.add(new Step(StepType.ENTITY_UPDATE, 0));
+                expanded.add(new Step(StepType.ENTITY_DELETE, 0));
+            } else if (token.equals("rtt")) {
+                expanded.add(new Step(StepType.RTT_CONNECT, 0));
+                expanded.add(new Step(StepType.CHAT_CONNECT, 0));
+            } else {
+                StepType type = null;
+                for (StepType candidate : StepType.values()) {
+                    if (candidate != StepType.THINK && candidate.getName().equals(token)) {
+                        type = candidate;
+                    }
+                }
+                if (type == null) {
+                    throw new IllegalArgumentException("Unknown scenario step: " + token);
+                }
+                expanded.add(new Step(type, 0));
+            }
+
+            for (int i = 0; i < repeat; ++i) {
+                steps.addAll(expanded);
+            }
+        }
+        return steps;
+    }
+
+    private static int parsePositive(String value, String token) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid count in scenario step: " + token);
+    }
+
+    @Override
+    public String toString() {
+        return _script;
+    }
+}
@@ -0,0 +1,259 @@
+package com.bitheads.braincloud.loadgen;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+import com.bitheads.braincloud.comms.ServerCall;
+import com.bitheads.braincloud.comms.TraceReplayTransport;
+import com.bitheads.braincloud.comms.WireTraceRecorder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Replays a WireTraceRecorder capture through a client: the calls of each
+ * captured bundle are made again, in the same bundles, and a
+ * TraceReplayTransport answers them with the captured responses, so the
+ * client parses them and runs the callbacks as it did when the capture was
+ * made.
+ *
+ * Bundles are replayed one after the other, each once the callbacks of the
+ * previous one have run. Use it to reproduce a production issue from a dump,
+ * or as a workload to benchmark the client's response pipeline with.
+ */
+public class TraceReplay implements IServerCallback {
+
+    // long enough for all the calls of a bundle to be queued before it is sent
+    private static final long BUNDLE_LINGER_MILLIS = 20;
+
+    private final List<WireTraceRecorder.Record> _records;
+    private boolean _paced;
+    private int _timeoutSeconds = 60;
+
+    private int _bundleCount;
+    private int _callCount;
+    private int _expectedSuccessCount;
+    private int _successCount;
+    private int _errorCount;
+    private long _unmatchedCount;
+    private long _elapsedNanos;
+    private int _completed;
+
+    public TraceReplay(List<WireTraceRecorder.Record> records) {
+        _records = records;
+    }
+
+    /**
+     * Waits out the recorded latency of each response.
+     */
+    public void setPaced(boolean paced) {
+        _paced = paced;
+    }
+
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        _timeoutSeconds = timeoutSeconds;
+    }
+
+    public int getBundleCount() {
+        return _bundleCount;
+    }
+
+    public int getCallCount() {
+        return _callCount;
+    }
+
+    /**
+     * @return The number of calls answered with status 200 in the capture
+     */
+    public int getExpectedSuccessCount() {
+        return _expectedSuccessCount;
+    }
+
+    public int getSuccessCount() {
+        return _successCount;
+    }
+
+    public int getErrorCount() {
+        return _errorCount;
+    }
+
+    /**
+     * @return The number of sends the capture had no response for
+     */
+    public long getUnmatchedCount() {
+        return _unmatchedCount;
+    }
+
+    public long getElapsedMillis() {
+        return _elapsedNanos / 1000000;
+    }
+
+    /**
+     * Replays the capture, returning once every call got its callback.
+     *
+     * @throws IllegalStateException if the callbacks do not all run before the timeout
+     */
+    public void run() throws InterruptedException, JSONException {
+        TraceReplayTransport transport = new TraceReplayTransport(_records);
+        transport.setPaced(_paced);
+
+        List<List<ServerCall>> bundles = new ArrayList<>();
+        String appId = readBundles(bundles);
+
+        BrainCloudClient client = new BrainCloudClient();
+        client.setRestTransport(transport);
+        client.getRestClient().getBundlePolicy().setLingerMillis(BUNDLE_LINGER_MILLIS);
+        client.initialize("http://trace.replay", appId, "replay", "1.0.0");
+        try {
+            long start = System.nanoTime();
+            long deadline = System.currentTimeMillis() + _timeoutSeconds * 1000L;
+            for (List<ServerCall> bundle : bundles) {
+                _completed = 0;
+                for (ServerCall serverCall : bundle) {
+                    client.sendRequest(serverCall);
+                }
+                client.insertEndOfMessageBundleMarker();
+
+                while (_completed < bundle.size()) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("Replay timed out after " + _bundleCount + " bundles");
+                    }
+                    client.runCallbacks();
+                    if (_completed < bundle.size()) {
+                        Thread.sleep(1);
+                    }
+                }
+                ++_bundleCount;
+            }
+            _elapsedNanos = System.nanoTime() - start;
+            _unmatchedCount = transport.getUnmatchedCount();
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Reads the calls of each bundle of the capture, the first attempt of
+     * each, counting the successes the capture ended with.
+     *
+     * @return The app id of the capture
+     */
+    private String readBundles(List<List<ServerCall>> bundles) throws JSONException {
+        String appId = "replay";
+        Set<Long> seen = new HashSet<>();
+        List<Long> packetIds = new ArrayList<>();
+        for (WireTraceRecorder.Record record : _records) {
+            if (record.getType() != WireTraceRecorder.RecordType.REQUEST || !seen.add(record.getPacketId())) {
+                continue;
+            }
+            JSONObject request = new JSONObject(record.getBodyString());
+            appId = request.optString("gameId", appId);
+            JSONArray messages = request.getJSONArray("messages");
+            List<ServerCall> calls = new ArrayList<>();
+            for (int i = 0; i < messages.length(); ++i) {
+                JSONObject message = messages.getJSONObject(i);
+                ServiceName serviceName = ServiceName.valueOf(message.getString("service"));
+                if (serviceName == ServiceName.heartbeat) {
+                    continue;
+                }
+                ServiceOperation operation = ServiceOperation.valueOf(message.getString("operation"));
+                calls.add(new ServerCall(serviceName, operation, message.optJSONObject("data"), this));
+            }
+            if (!calls.isEmpty()) {
+                bundles.add(calls);
+                packetIds.add(record.getPacketId());
+            }
+        }
+        _callCount = 0;
+        for (List<ServerCall> calls : bundles) {
+            _callCount += calls.size();
+        }
+
+        // the last response to each bundle is the one its callbacks got
+        _expectedSuccessCount = 0;
+        for (Long packetId : packetIds) {
+            WireTraceRecorder.Record last = null;
+            for (WireTraceRecorder.Record record : _records) {
+                if (record.getPacketId() == packetId && record.getType() != WireTraceRecorder.RecordType.REQUEST) {
+                    last = record;
+                }
+            }
+            if (last == null || last.getType() != WireTraceRecorder.RecordType.RESPONSE || last.getStatusCode() != 200) {
+                continue;
+            }
+            JSONArray responses = new JSONObject(last.getBodyString()).optJSONArray("responses");
+            for (int i = 0; responses != null && i < responses.length(); ++i) {
+                if (responses.getJSONObject(i).optInt("status") == 200) {
+                    ++_expectedSuccessCount;
+                }
+            }
+        }
+        return appId;
+    }
+
+    @Override
+    public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData) {
+        ++_successCount;
+        ++_completed;
+    }
+
+    @Override
+    public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError) {
+        ++_errorCount;
+        ++_completed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "bundles %d, calls %d, %d succeeded (%d in the capture), %d failed, %d unmatched, %d ms",
+                _bundleCount, _callCount, _successCount, _expectedSuccessCount, _errorCount, _unmatchedCount, getElapsedMillis());
+    }
+
+    /**
+     * Replays a dump: --trace=file [--paced] [--timeout=seconds]
+     */
+    public static void main(String[] args) throws Exception {
+        File trace = null;
+        boolean paced = false;
+        int timeoutSeconds = 60;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            String name = equals >= 0 ? arg.substring(2, equals) : arg.substring(2);
+            String value = equals >= 0 ? arg.substring(equals + 1) : "";
+            switch (name) {
+                case "trace":
+                    trace = new File(value);
+                    break;
+                case "paced":
+                    paced = true;
+                    break;
+                case "timeout":
+                    timeoutSeconds = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (trace == null) {
+            throw new IllegalArgumentException("--trace is required");
+        }
+
+        TraceReplay replay = new TraceReplay(WireTraceRecorder.load(trace));
+        replay.setPaced(paced);
+        replay.setTimeoutSeconds(timeoutSeconds);
+        replay.run();
+        System.out.println(replay);
+    }
+}
@@ -0,0 +1,161 @@
+package com.bitheads.braincloud.loadgen;
+
+import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.IServerCallback;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
+import com.bitheads.braincloud.comms.WireTraceRecorder;
+import com.bitheads.braincloud.emulator.Fault;
+import com.bitheads.braincloud.emulator.LocalDispatcher;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Records traffic with the WireTraceRecorder and replays it with TraceReplay.
+ */
+public class TraceReplayTest
+{
+    @Test
+    public void testRingBuffer() throws Exception
+    {
+        WireTraceRecorder recorder = new WireTraceRecorder(1000);
+        byte[] body = new byte[100];
+        for (int i = 0; i < 20; ++i)
+        {
+            body[0] = (byte) i;
+            recorder.record(WireTraceRecorder.RecordType.REQUEST, i, 0, 0, body, 0, body.length);
+        }
+
+        // each record is its body and a 37 byte header, so only the last 7 fit
+        List<WireTraceRecorder.Record> records = recorder.getRecords();
+        Assert.assertEquals(7, records.size());
+        Assert.assertEquals(20, recorder.getRecordedCount());
+        Assert.assertEquals(13, recorder.getDroppedCount());
+        for (int i = 0; i < records.size(); ++i)
+        {
+            Assert.assertEquals(13 + i, records.get(i).getPacketId());
+            Assert.assertEquals(13 + i, records.get(i).getBody()[0]);
+            Assert.assertEquals(100, records.get(i).getBody().length);
+        }
+
+        File file = File.createTempFile("wire-trace", ".bin");
+        try
+        {
+            recorder.dump(file);
+            List<WireTraceRecorder.Record> loaded = WireTraceRecorder.load(file);
+            Assert.assertEquals(records.size(), loaded.size());
+            Assert.assertEquals(records.get(6).getTimeNanos(), loaded.get(6).getTimeNanos());
+            Assert.assertEquals(19, loaded.get(6).getBody()[0]);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        LocalDispatcher dispatcher = new LocalDispatcher("10001", "local-secret");
+        dispatcher.start();
+        BrainCloudClient client = new BrainCloudClient();
+        WireTraceRecorder recorder = new WireTraceRecorder();
+        client.setWireTraceRecorder(recorder);
+        client.initialize(dispatcher.getServerUrl(), "10001", "local-secret", "1.0.0");
+
+        final int[] results = {0, 0};
+        IServerCallback callback = new IServerCallback()
+        {
+            @Override
+            public void serverCallback(ServiceName serviceName, ServiceOperation serviceOperation, JSONObject jsonData)
+            {
+                ++results[0];
+            }
+
+            @Override
+            public void serverError(ServiceName serviceName, ServiceOperation serviceOperation, int statusCode, int reasonCode, String jsonError)
+            {
+                ++results[1];
+            }
+        };
+        File file = File.createTempFile("wire-trace", ".bin");
+        try
+        {
+            client.getAuthenticationService().authenticateUniversal("trace-user", "trace-password", true, callback);
+            waitFor(client, results, 1);
+            client.getGlobalEntityService().createEntity("crate", -1, null, "{\"level\":1}", callback);
+            client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", callback);
+            waitFor(client, results, 3);
+
+            // an error status and a lost response make the client send the bundle three times
+            client.setAdaptiveTimeouts(true);
+            client.setAdaptiveTimeoutBounds(200, 500);
+            client.setRetryBackoff(10, 50);
+            dispatcher.script(Fault.httpStatus(503), Fault.loseResponse(2000));
+            client.getPlayerStatisticsService().incrementUserStats("{\"wins\":1}", callback);
+            waitFor(client, results, 4);
+            client.getAuthenticationService().authenticateUniversal("trace-user", "wrong-password", false, callback);
+            waitFor(client, results, 5);
+            Assert.assertEquals(4, results[0]);
+            int timeouts = 0;
+            for (WireTraceRecorder.Record record : recorder.getRecords())
+            {
+                if (record.getType() == WireTraceRecorder.RecordType.TIMEOUT)
+                {
+                    ++timeouts;
+                }
+            }
+            Assert.assertEquals(1, timeouts);
+
+            // credentials are not recorded
+            boolean hasSessionId = false;
+            for (WireTraceRecorder.Record record : recorder.getRecords())
+            {
+                String body = record.getBodyString();
+                Assert.assertFalse(body, body.contains("trace-password"));
+                if (body.contains("\"sessionId\":\""))
+                {
+                    hasSessionId = true;
+                    Assert.assertTrue(body, body.matches("(?s).*\"sessionId\":\"\\**\".*"));
+                    Assert.assertFalse(body, body.matches("(?s).*\"sessionId\":\"[^*\"].*"));
+                }
+            }
+            Assert.assertTrue(hasSessionId);
+
+            recorder.dump(file);
+            client.close();
+
+            TraceReplay replay = new TraceReplay(WireTraceRecorder.load(file));
+            replay.run();
+            System.out.println(replay);
+
+            Assert.assertEquals(5, replay.getCallCount());
+            Assert.assertEquals(4, replay.getExpectedSuccessCount());
+            Assert.assertEquals(4, replay.getSuccessCount());
+            Assert.assertEquals(1, replay.getErrorCount());
+            Assert.assertEquals(0, replay.getUnmatchedCount());
+        }
+        finally
+        {
+            file.delete();
+            client.close();
+            dispatcher.stop();
+        }
+    }
+
+    private static void waitFor(BrainCloudClient client, int[] results, int count) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 30000;
+        while (results[0] + results[1] < count && System.currentTimeMillis() < end)
+        {
+            client.runCallbacks();
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(count, results[0] + results[1]);
+    }
+}
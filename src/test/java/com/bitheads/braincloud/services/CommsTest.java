@@ -1,14 +1,35 @@
 package com.bitheads.braincloud.services;
 
 import com.bitheads.braincloud.client.AuthenticationType;
+import com.bitheads.braincloud.client.BrainCloudBlockingClient;
 import com.bitheads.braincloud.client.BrainCloudClient;
+import com.bitheads.braincloud.client.Metric;
 import com.bitheads.braincloud.client.ReasonCodes;
+import com.bitheads.braincloud.client.ServerCallException;
+import com.bitheads.braincloud.client.ServerCallFuture;
+import com.bitheads.braincloud.client.ServiceName;
+import com.bitheads.braincloud.client.ServiceOperation;
 import com.bitheads.braincloud.client.StatusCodes;
-
+import com.bitheads.braincloud.comms.CallPriority;
+import com.bitheads.braincloud.comms.CircuitBreaker;
+import com.bitheads.braincloud.comms.MetricsRegistry;
+import com.bitheads.braincloud.comms.MetricsTextExporter;
+import com.bitheads.braincloud.comms.OutboundJournal;
+import com.bitheads.braincloud.comms.RequestCoalescer;
+import com.bitheads.braincloud.comms.ResponseCache;
+
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by prestonjennings on 15-10-05.
@@ -256,6 +277,282 @@ public class CommsTest extends TestFixtureNoAuth
         tr.Run();
     }
 
+    @Test
+    public void testPipelinedBundles() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        bcc.getRestClient().setMaxInFlightBundles(3);
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        // one call per bundle so they are in flight at the same time
+        for (int i = 0; i < 6; i++)
+        {
+            _wrapper.getTimeService().readServerTime(tr);
+            bcc.insertEndOfMessageBundleMarker();
+        }
+        tr.RunExpectCount(6);
+
+        bcc.getRestClient().setMaxInFlightBundles(1);
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testBundleLinger() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        bcc.getRestClient().getBundlePolicy().setLingerMillis(500);
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        // calls made a few ms apart should still go out in one bundle
+        bcc.getRestClient().getBundleStats().reset();
+        for (int i = 0; i < 4; i++)
+        {
+            _wrapper.getTimeService().readServerTime(tr);
+            bcc.runCallbacks();
+            Thread.sleep(10);
+        }
+        tr.RunExpectCount(4);
+
+        Assert.assertEquals(1, bcc.getRestClient().getBundleStats().getBundleCount());
+        Assert.assertEquals(4, bcc.getRestClient().getBundleStats().getMessageCount());
+
+        bcc.getRestClient().getBundlePolicy().setLingerMillis(0);
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testPriorityLanes() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        bcc.getRestClient().resetQueueStats();
+        for (int i = 0; i < 3; i++)
+        {
+            _wrapper.getDataStreamService().customTrackEvent("testTrack", "{\"testProperty\":\"1\"}", tr);
+        }
+        _wrapper.getTimeService().readServerTime(tr);
+        tr.RunExpectCount(4);
+
+        Assert.assertEquals(3, bcc.getRestClient().getQueuedCount(CallPriority.BACKGROUND));
+        Assert.assertEquals(1, bcc.getRestClient().getQueuedCount(CallPriority.INTERACTIVE));
+        Assert.assertEquals(0, bcc.getRestClient().getQueueDepth(CallPriority.BACKGROUND));
+
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testCallbackExecutor() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bcc.setCallbackExecutor(executor);
+
+        // callbacks arrive on the executor, runCallbacks has nothing left to do
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        _wrapper.getTimeService().readServerTime(tr);
+        _wrapper.getTimeService().readServerTime(tr);
+        tr.RunExpectCount(2);
+
+        bcc.setCallbackExecutor(null);
+        executor.shutdown();
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testServerCallFutures() throws Exception
+    {
+        final BrainCloudClient bcc = _wrapper.getClient();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bcc.setCallbackExecutor(executor);
+
+        try
+        {
+            bcc.callAsync(cb -> bcc.getTimeService().readServerTime(cb)).get(30, TimeUnit.SECONDS);
+            Assert.fail("readServerTime should fail without a session");
+        }
+        catch (ExecutionException e)
+        {
+            ServerCallException error = (ServerCallException) e.getCause();
+            Assert.assertEquals(ReasonCodes.NO_SESSION, error.getReasonCode());
+        }
+
+        bcc.callAsync(cb -> bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, cb))
+                .get(30, TimeUnit.SECONDS);
+
+        List<ServerCallFuture> reads = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            reads.add(bcc.callAsync(cb -> bcc.getTimeService().readServerTime(cb)));
+        }
+        List<JSONObject> results = ServerCallFuture.allOf(reads).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(5, results.size());
+
+        bcc.setCallbackExecutor(null);
+        executor.shutdown();
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testBlockingClient() throws Exception
+    {
+        final BrainCloudClient bcc = _wrapper.getClient();
+        BrainCloudBlockingClient blocking = new BrainCloudBlockingClient(bcc);
+
+        blocking.call(cb -> bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, cb));
+
+        JSONObject response = blocking.call(cb -> bcc.getTimeService().readServerTime(cb));
+        Assert.assertEquals(200, response.getInt("status"));
+
+        blocking.close();
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testResponseCache() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        ResponseCache cache = bcc.getResponseCache();
+        cache.setTtl(ServiceName.globalApp, ServiceOperation.READ_PROPERTIES, 60 * 1000);
+        cache.resetStats();
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        _wrapper.getGlobalAppService().readProperties(tr);
+        tr.Run();
+        _wrapper.getGlobalAppService().readProperties(tr);
+        tr.Run();
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.invalidate(ServiceName.globalApp, ServiceOperation.READ_PROPERTIES);
+        _wrapper.getGlobalAppService().readProperties(tr);
+        tr.Run();
+        Assert.assertEquals(2, cache.getMissCount());
+
+        cache.setTtl(ServiceName.globalApp, ServiceOperation.READ_PROPERTIES, 0);
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testAdaptiveTimeouts() throws Exception
+    {
+        final BrainCloudClient bcc = _wrapper.getClient();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bcc.setCallbackExecutor(executor);
+        bcc.setAdaptiveTimeouts(true);
+
+        bcc.callAsync(cb -> bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, cb))
+                .get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++)
+        {
+            bcc.sendRequestAsync(ServiceName.time, ServiceOperation.READ, null).get(30, TimeUnit.SECONDS);
+        }
+        Assert.assertTrue(bcc.getRestClient().getSmoothedRttMillis() > 0);
+
+        try
+        {
+            bcc.sendRequestAsync(ServiceName.time, ServiceOperation.READ, null, 1).get(30, TimeUnit.SECONDS);
+            Assert.fail("readServerTime should miss a 1ms deadline");
+        }
+        catch (ExecutionException e)
+        {
+            ServerCallException error = (ServerCallException) e.getCause();
+            Assert.assertEquals(ReasonCodes.CLIENT_NETWORK_ERROR_TIMEOUT, error.getReasonCode());
+        }
+
+        bcc.setAdaptiveTimeouts(false);
+        bcc.setCallbackExecutor(null);
+        executor.shutdown();
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        MetricsRegistry registry = new MetricsRegistry();
+        bcc.setMetricsRecorder(registry);
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+        bcc.getTimeService().readServerTime(tr);
+        tr.Run();
+
+        Assert.assertEquals(1, registry.getCallLatency(ServiceName.time, ServiceOperation.READ).getCount());
+        Assert.assertTrue(registry.getHistogram(Metric.BUNDLE_BYTES).getCount() >= 2);
+        Assert.assertTrue(registry.getCounter(Metric.BYTES_SENT) > 0);
+        Assert.assertTrue(MetricsTextExporter.export(registry).contains("braincloud_call_latency_micros{service=\"time\",operation=\"READ\""));
+
+        bcc.setMetricsRecorder(null);
+    }
+
+    @Test
+    public void testDurableQueue() throws Exception
+    {
+        TestResult tr = new TestResult(_wrapper);
+        BrainCloudClient bcc = _wrapper.getClient();
+        File directory = Files.createTempDirectory("braincloud-journal").toFile();
+        Assert.assertTrue(bcc.enableDurableQueue(directory));
+        OutboundJournal journal = bcc.getOutboundJournal();
+        journal.addDurableOperation(ServiceName.time, ServiceOperation.READ);
+
+        bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, tr);
+        tr.Run();
+
+        bcc.getTimeService().readServerTime(tr);
+        tr.Run();
+        Assert.assertEquals(1, journal.getAppendCount());
+        Assert.assertEquals(1, journal.getAcknowledgedCount());
+        Assert.assertEquals(0, journal.getPendingCount());
+
+        bcc.enableDurableQueue(null);
+        bcc.resetCommunication();
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception
+    {
+        final BrainCloudClient bcc = _wrapper.getClient();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bcc.setCallbackExecutor(executor);
+        RequestCoalescer coalescer = bcc.getRequestCoalescer();
+        coalescer.resetStats();
+        coalescer.addOperation(ServiceName.globalApp, ServiceOperation.READ_PROPERTIES);
+
+        bcc.callAsync(cb -> bcc.getAuthenticationService().authenticateUniversal(getUser(Users.UserA).id, getUser(Users.UserA).password, true, cb))
+                .get(30, TimeUnit.SECONDS);
+
+        List<ServerCallFuture> reads = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+        {
+            reads.add(bcc.callAsync(cb -> bcc.getGlobalAppService().readProperties(cb)));
+        }
+        List<JSONObject> results = ServerCallFuture.allOf(reads).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals(3, coalescer.getCoalescedCount());
+
+        coalescer.removeOperation(ServiceName.globalApp, ServiceOperation.READ_PROPERTIES);
+        bcc.setCallbackExecutor(null);
+        executor.shutdown();
+        bcc.resetCommunication();
+    }
+
     @Test(timeout=10000000)
     public void testAuthFirst() throws Exception
     {
@@ -303,7 +600,16 @@ public class CommsTest extends TestFixtureNoAuth
             tr.Run(true);
         }
 
+        // only the failing operation is disabled
         _wrapper.getTimeService().readServerTime(tr);
+        tr.Run();
+
+        _wrapper.getIdentityService().refreshIdentity(
+                "fail", "fail", AuthenticationType.Universal, tr);
         tr.RunExpectFail(900, ReasonCodes.CLIENT_DISABLED);
+
+        CircuitBreaker breaker = _wrapper.getClient().getRestClient().getCircuitBreaker(ServiceName.identity, ServiceOperation.REFRESH_IDENTITY);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        _wrapper.getClient().getRestClient().resetCircuitBreakers();
     }
 }
\ No newline at end of file